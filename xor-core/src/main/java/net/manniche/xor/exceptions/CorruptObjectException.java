@@ -0,0 +1,40 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.exceptions;
+
+import java.io.IOException;
+
+
+/**
+ * Signals that the stored bytes of an object do not match the checksum
+ * recorded when the object was written, ie. the object has been damaged on
+ * disk and must not be served.
+ *
+ * @author Steen Manniche
+ */
+public class CorruptObjectException extends IOException
+{
+    /**
+     * @param msg the detail message.
+     */
+    public CorruptObjectException( String msg )
+    {
+        super( msg );
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.exceptions;
+
+import java.io.FileNotFoundException;
+
+
+/**
+ * Signals that no object is stored under a requested identifier. Clients
+ * routinely poll for objects that do not exist yet, so this exception does
+ * not record a stack trace, which would cost far more than the lookup
+ * itself.
+ *
+ * @author Steen Manniche
+ */
+public class ObjectNotFoundException extends FileNotFoundException
+{
+    /**
+     * @param msg the detail message.
+     */
+    public ObjectNotFoundException( String msg )
+    {
+        super( msg );
+    }
+
+
+    /**
+     * Does not fill in the stack trace.
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace()
+    {
+        return this;
+    }
+}
@@ -18,16 +18,39 @@
 
 package net.manniche.xor.server;
 
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Logger;
 import net.manniche.xor.exceptions.RepositoryServiceException;
+import net.manniche.xor.storage.BatchResult;
+import net.manniche.xor.storage.ContentTypeAwareStorageProvider;
+import net.manniche.xor.storage.MetadataAwareStorageProvider;
+import net.manniche.xor.storage.MetadataIndex;
+import net.manniche.xor.storage.ObjectMetadata;
+import net.manniche.xor.storage.OffHeapCache;
+import net.manniche.xor.storage.StorageExecutors;
+import net.manniche.xor.storage.StorageFuture;
 import net.manniche.xor.storage.StorageProvider;
+import net.manniche.xor.storage.StoredObject;
 import net.manniche.xor.types.DefaultIdentifier;
 import net.manniche.xor.types.DigitalObject;
 import net.manniche.xor.types.ObjectIdentifier;
 import net.manniche.xor.types.InternalDigitalObject;
 import net.manniche.xor.types.ObjectRepositoryContentType;
 import net.manniche.xor.types.CoreRepositoryAction;
+import net.manniche.xor.types.StreamingDigitalObject;
+import net.manniche.xor.utils.RepositoryUtilities;
 
 
 /**
@@ -49,15 +72,204 @@ import net.manniche.xor.types.CoreRepositoryAction;
  */
 public abstract class RepositoryServer{
 
+    private final static Logger Log = Logger.getLogger( RepositoryServer.class.getName() );
+
     private final StorageProvider repositoryStorageMechanism;
 
+    private ExecutorService ioExecutor;
+
+    private final OffHeapCache objectCache;
+
+    private final MetadataIndex metadataIndex;
+
+    private final Set<String> unindexedPaths = new CopyOnWriteArraySet<String>();
+
     /**
      * The constructor of the core server should only be used by
-     * implementing classes.
+     * implementing classes. The asynchronous operations run on an I/O
+     * executor created on first use, see {@link StorageExecutors#newIOExecutor()}.
+     * Retrieved objects are cached off-heap if configured, see
+     * {@link OffHeapCache#getConfigured()}.
      */
     protected RepositoryServer( StorageProvider storage )
+    {
+        this( storage, null );
+    }
+
+
+    /**
+     * @param storage the storage holding the objects of the repository
+     * @param ioExecutor the bounded executor running the asynchronous
+     * operations
+     */
+    protected RepositoryServer( StorageProvider storage, ExecutorService ioExecutor )
+    {
+        this( storage, ioExecutor, OffHeapCache.getConfigured() );
+    }
+
+
+    /**
+     * @param storage the storage holding the objects of the repository
+     * @param ioExecutor the bounded executor running the asynchronous
+     * operations, or null to create one on first use
+     * @param objectCache the cache of retrieved objects, or null if objects
+     * should not be cached
+     */
+    protected RepositoryServer( StorageProvider storage, ExecutorService ioExecutor, OffHeapCache objectCache )
+    {
+        this( storage, ioExecutor, objectCache, null );
+    }
+
+
+    /**
+     * @param storage the storage holding the objects of the repository
+     * @param ioExecutor the bounded executor running the asynchronous
+     * operations, or null to create one on first use
+     * @param objectCache the cache of retrieved objects, or null if objects
+     * should not be cached
+     * @param metadataIndex the index updated with the metadata of every
+     * object stored or deleted, or null if objects should not be indexed
+     */
+    protected RepositoryServer( StorageProvider storage, ExecutorService ioExecutor, OffHeapCache objectCache, MetadataIndex metadataIndex )
     {
         this.repositoryStorageMechanism = storage;
+        this.ioExecutor = ioExecutor;
+        this.objectCache = objectCache;
+        this.metadataIndex = metadataIndex;
+    }
+
+
+    /**
+     * @return the index of the metadata of the objects of the repository, or
+     * null if objects are not indexed
+     */
+    protected MetadataIndex getMetadataIndex()
+    {
+        return this.metadataIndex;
+    }
+
+
+    /**
+     * Keeps the objects stored below {@code storagePath} out of the metadata
+     * index, for storage paths holding data about the objects of the
+     * repository rather than objects, such as files of content types.
+     *
+     * @param storagePath the storage path, ending with a separator
+     */
+    protected void excludeFromIndex( String storagePath )
+    {
+        this.unindexedPaths.add( storagePath );
+    }
+
+
+    /**
+     * Adds the objects stored below {@code storagePath} that are not in the
+     * metadata index, so that objects stored before the index was enabled
+     * can be found through it. Objects are found by walking the directory of
+     * the storage path, skipping files whose names begin with a dot and the
+     * paths excluded from the index; an object kept elsewhere by the
+     * underlying storage is indexed when it is next stored.
+     *
+     * The objects are added while the server runs: objects already in the
+     * index are left as they are, and an object deleted while it is added
+     * is removed again.
+     *
+     * @param storagePath the storage path, ending with a separator
+     * @return the number of objects added to the index
+     * @throws IOException if the index could not be updated
+     */
+    protected long backfillIndex( String storagePath ) throws IOException
+    {
+        if( null == this.metadataIndex )
+        {
+            return 0;
+        }
+        long added = 0;
+        List<String> directories = new ArrayList<String>();
+        directories.add( storagePath );
+        while( ! directories.isEmpty() )
+        {
+            String directory = directories.remove( directories.size() - 1 );
+            File[] files = new File( directory ).listFiles();
+            if( null == files )
+            {
+                continue;
+            }
+            for( File file : files )
+            {
+                String path = directory + file.getName();
+                if( file.getName().startsWith( "." ) )
+                {
+                    continue;
+                }
+                if( file.isDirectory() )
+                {
+                    if( this.isIndexed( path + File.separator ) )
+                    {
+                        directories.add( path + File.separator );
+                    }
+                }
+                else if( this.backfill( new DefaultIdentifier( toURI( path ) ) ) )
+                {
+                    added++;
+                }
+            }
+        }
+        Log.info( String.format( "Added %s objects below %s to the metadata index", added, storagePath ) );
+        return added;
+    }
+
+
+    /**
+     * @return the name of the content type an object found by
+     * {@link #backfillIndex(java.lang.String)} is indexed with, or null if it
+     * is not known. This implementation takes it from the metadata kept with
+     * the object.
+     *
+     * @param identifier an ObjectIdentifier identifying the data with this server
+     * @param metadata the metadata of the object, or null if it has none
+     */
+    protected String getIndexedContentType( ObjectIdentifier identifier, ObjectMetadata metadata ) throws IOException
+    {
+        return null == metadata ? null : metadata.getContentType();
+    }
+
+
+    private boolean backfill( ObjectIdentifier identifier ) throws IOException
+    {
+        URI uri = identifier.getURI();
+        if( null != this.metadataIndex.get( uri ) )
+        {
+            return false;
+        }
+        try
+        {
+            ObjectMetadata metadata = this.getObjectMetadata( identifier );
+            long length = null == metadata ? this.getObjectLength( identifier ) : metadata.getLength();
+            if( ! this.metadataIndex.add( uri, this.getIndexedContentType( identifier, metadata ), length ) )
+            {
+                return false;
+            }
+            // the object may have been deleted, and removed from the
+            // index, after its length was read
+            this.getObjectLength( identifier );
+            return true;
+        }
+        catch( FileNotFoundException ex )
+        {
+            this.metadataIndex.remove( uri );
+            return false;
+        }
+    }
+
+
+    private synchronized ExecutorService getIOExecutor()
+    {
+        if( null == this.ioExecutor )
+        {
+            this.ioExecutor = StorageExecutors.newIOExecutor();
+        }
+        return this.ioExecutor;
     }
 
     /**
@@ -98,19 +310,232 @@ public abstract class RepositoryServer{
      * @throws IOException if the object cannot be stored for a given reason
      */
     protected ObjectIdentifier storeObject( byte[] data, String storagePath, ObjectIdentifier identifier, String message ) throws IOException
+    {
+        return this.storeObject( data, storagePath, identifier, null, message );
+    }
+
+
+    /**
+     * Identical to {@link #storeObject(byte[], java.lang.String, net.manniche.xor.types.ObjectIdentifier, java.lang.String)},
+     * except that the content type of the object is handed to the underlying
+     * storage if it is a {@link ContentTypeAwareStorageProvider}.
+     *
+     * @param contentType the content type of the object, or null if unknown
+     */
+    protected ObjectIdentifier storeObject( byte[] data, String storagePath, ObjectIdentifier identifier, ObjectRepositoryContentType contentType, String message ) throws IOException
     {
         ObjectIdentifier objectID = null;
+        ContentTypeAwareStorageProvider typedStorage = null;
+        if( null != contentType && this.repositoryStorageMechanism instanceof ContentTypeAwareStorageProvider )
+        {
+            typedStorage = (ContentTypeAwareStorageProvider) this.repositoryStorageMechanism;
+        }
 
         if( null == identifier )
         {
-            URI uid = this.repositoryStorageMechanism.save( data, storagePath );
+            URI uid = null == typedStorage ? this.repositoryStorageMechanism.save( data, storagePath ) : typedStorage.save( data, storagePath, contentType );
             objectID = new DefaultIdentifier( uid );
         }
         else
         {
-            this.repositoryStorageMechanism.save( data, identifier.getURI(), storagePath );
+            try
+            {
+                if( null == typedStorage )
+                {
+                    this.repositoryStorageMechanism.save( data, identifier.getURI(), storagePath );
+                }
+                else
+                {
+                    typedStorage.save( data, identifier.getURI(), storagePath, contentType );
+                }
+            }
+            finally
+            {
+                this.invalidate( identifier.getURI() );
+            }
             objectID = identifier;
         }
+        this.index( objectID.getURI(), contentType, data.length );
+        return objectID;
+    }
+
+
+    /**
+     * Stores a batch of objects, letting the underlying
+     * {@link StorageProvider storage} share directory checks, locking and
+     * syncing across the batch.
+     *
+     * @param data the objects to be stored
+     * @param storagePath path to which the objects will be stored
+     * @param identifiers the identifiers to store the objects with, in the
+     * order of {@code data}, or null if the server should construct them
+     * @param message an optional logmessage describing the action
+     * @return the identifier of each stored object, or the reason it could
+     * not be stored
+     * @throws IOException if the batch as a whole could not be stored
+     */
+    protected BatchResult<ObjectIdentifier> storeObjects( List<byte[]> data, String storagePath, List<ObjectIdentifier> identifiers, String message ) throws IOException
+    {
+        BatchResult<ObjectIdentifier> result = this.saveObjects( data, storagePath, identifiers );
+        this.index( result, data, null );
+        return result;
+    }
+
+
+    private BatchResult<ObjectIdentifier> saveObjects( List<byte[]> data, String storagePath, List<ObjectIdentifier> identifiers ) throws IOException
+    {
+        BatchResult<ObjectIdentifier> result = new BatchResult<ObjectIdentifier>( data.size() );
+        if( null == identifiers )
+        {
+            BatchResult<URI> saved = this.repositoryStorageMechanism.saveAll( data, storagePath );
+            for( int i = 0; i < saved.size(); i++ )
+            {
+                if( saved.isSuccess( i ) )
+                {
+                    result.succeeded( i, new DefaultIdentifier( saved.get( i ) ) );
+                }
+                else
+                {
+                    result.failed( i, saved.getFailure( i ) );
+                }
+            }
+        }
+        else
+        {
+            List<URI> uris = getURIs( identifiers );
+            BatchResult<Void> saved;
+            try
+            {
+                saved = this.repositoryStorageMechanism.saveAll( data, uris, storagePath );
+            }
+            finally
+            {
+                this.invalidate( uris );
+            }
+            for( int i = 0; i < saved.size(); i++ )
+            {
+                if( saved.isSuccess( i ) )
+                {
+                    result.succeeded( i, identifiers.get( i ) );
+                }
+                else
+                {
+                    result.failed( i, saved.getFailure( i ) );
+                }
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Stores a batch of new objects of the same content type. The content
+     * type is kept with the objects if the underlying storage is a
+     * {@link MetadataAwareStorageProvider}, and in the
+     * {@link MetadataIndex} if there is one.
+     *
+     * @param data the objects to be stored
+     * @param storagePath path to which the objects will be stored
+     * @param contentType the content type of the objects
+     * @param message an optional logmessage describing the action
+     * @return the identifier of each stored object, or the reason it could
+     * not be stored
+     * @throws IOException if the batch as a whole could not be stored
+     */
+    protected BatchResult<ObjectIdentifier> storeObjectsOfType( List<byte[]> data, String storagePath, ObjectRepositoryContentType contentType, String message ) throws IOException
+    {
+        BatchResult<ObjectIdentifier> result;
+        if( this.hasObjectMetadata() )
+        {
+            BatchResult<URI> saved = ( (MetadataAwareStorageProvider) this.repositoryStorageMechanism ).saveAll( data, storagePath, contentType );
+            result = new BatchResult<ObjectIdentifier>( data.size() );
+            for( int i = 0; i < saved.size(); i++ )
+            {
+                if( saved.isSuccess( i ) )
+                {
+                    result.succeeded( i, new DefaultIdentifier( saved.get( i ) ) );
+                }
+                else
+                {
+                    result.failed( i, saved.getFailure( i ) );
+                }
+            }
+        }
+        else
+        {
+            result = this.saveObjects( data, storagePath, null );
+        }
+        this.index( result, data, contentType );
+        return result;
+    }
+
+
+    /**
+     * Asynchronous variant of {@link #storeObject(byte[], java.lang.String, net.manniche.xor.types.ObjectIdentifier, java.lang.String)}.
+     * The object is stored on the I/O executor, leaving the calling thread
+     * free to handle other requests; a listener added to the returned
+     * future passes the result on without a thread waiting for it. What
+     * happens when the executor is saturated is up to the executor; the one
+     * created on first use lets the calling thread store the object itself.
+     *
+     * @return a future holding the identifier of the stored object, or the
+     * IOException raised while storing it
+     * @throws java.util.concurrent.RejectedExecutionException if the
+     * executor does not accept the task, eg. because it is shut down
+     */
+    protected StorageFuture<ObjectIdentifier> storeObjectAsync( final byte[] data, final String storagePath, final ObjectIdentifier identifier, final String message )
+    {
+        return StorageFuture.submit( this.getIOExecutor(), new Callable<ObjectIdentifier>()
+        {
+            @Override
+            public ObjectIdentifier call() throws IOException
+            {
+                return storeObject( data, storagePath, identifier, message );
+            }
+        } );
+    }
+
+
+    /**
+     * Streaming variant of {@link #storeObject(byte[], java.lang.String, net.manniche.xor.types.ObjectIdentifier, java.lang.String)}.
+     * Exactly {@code length} bytes are read from {@code data} and handed
+     * directly to the underlying {@link StorageProvider storage}, so that
+     * objects larger than the available memory can be stored. The stream is
+     * not closed by this method. As the object is not journaled, a
+     * {@link net.manniche.xor.storage.JournalingStorageProvider} cannot
+     * replay it after a crash; see there for what is durable on return.
+     *
+     * @param data the stream containing data to be stored
+     * @param length the number of bytes to read from {@code data}
+     * @param storagePath path to which data will be stored
+     * @param identifier the ObjectIdentifier that the object should be stored
+     * with, or null if the server should construct one
+     * @param message an optional logmessage describing the action
+     * @return an ObjectIdentifier that uniquely identifies the stored data
+     * @throws IOException if the object cannot be stored for a given reason
+     */
+    protected ObjectIdentifier storeObject( InputStream data, long length, String storagePath, ObjectIdentifier identifier, String message ) throws IOException
+    {
+        ObjectIdentifier objectID = null;
+
+        if( null == identifier )
+        {
+            URI uid = this.repositoryStorageMechanism.save( data, length, storagePath );
+            objectID = new DefaultIdentifier( uid );
+        }
+        else
+        {
+            try
+            {
+                this.repositoryStorageMechanism.save( data, length, identifier.getURI(), storagePath );
+            }
+            finally
+            {
+                this.invalidate( identifier.getURI() );
+            }
+            objectID = identifier;
+        }
+        this.index( objectID.getURI(), null, length );
         return objectID;
     }
 
@@ -124,11 +549,215 @@ public abstract class RepositoryServer{
      */
     protected DigitalObject getObject( ObjectIdentifier identifier ) throws IOException
     {
-        byte[] object = this.repositoryStorageMechanism.get( identifier.getURI() );
+        URI uri = identifier.getURI();
+        if( null == this.objectCache )
+        {
+            return new InternalDigitalObject( this.repositoryStorageMechanism.get( uri ) );
+        }
+
+        byte[] object = this.objectCache.get( uri );
+        if( null == object )
+        {
+            long stamp = this.objectCache.getStamp();
+            object = this.repositoryStorageMechanism.get( uri );
+            this.objectCache.put( uri, object, stamp );
+        }
         return new InternalDigitalObject( object );
     }
 
 
+    /**
+     * @return true if the underlying storage keeps the metadata of each
+     * object with the object, as a {@link MetadataAwareStorageProvider}
+     */
+    protected boolean hasObjectMetadata()
+    {
+        return this.repositoryStorageMechanism instanceof MetadataAwareStorageProvider;
+    }
+
+
+    /**
+     * As {@link #getObject(net.manniche.xor.types.ObjectIdentifier)}, but
+     * also returns the metadata of the object. If the underlying storage is
+     * a {@link MetadataAwareStorageProvider}, the object and its metadata
+     * are read in a single read, otherwise the metadata is null.
+     *
+     * @param identifier an ObjectIdentifier identifying the data with this server
+     * @throws IOException if the object can't be retrieved for a given reason
+     */
+    protected StoredObject getObjectWithMetadata( ObjectIdentifier identifier ) throws IOException
+    {
+        URI uri = identifier.getURI();
+        byte[] cached = null == this.objectCache ? null : this.objectCache.get( uri );
+        if( null != cached )
+        {
+            return new StoredObject( cached, this.getObjectMetadata( identifier ) );
+        }
+        long stamp = null == this.objectCache ? 0 : this.objectCache.getStamp();
+        StoredObject object;
+        if( this.hasObjectMetadata() )
+        {
+            object = ( (MetadataAwareStorageProvider) this.repositoryStorageMechanism ).getWithMetadata( uri );
+        }
+        else
+        {
+            object = new StoredObject( this.repositoryStorageMechanism.get( uri ), null );
+        }
+        if( null != this.objectCache )
+        {
+            this.objectCache.put( uri, object.getBytes(), stamp );
+        }
+        return object;
+    }
+
+
+    /**
+     * Reads the metadata of an object without reading the object.
+     *
+     * @param identifier an ObjectIdentifier identifying the data with this server
+     * @return the metadata of the object, or null if the underlying storage
+     * does not keep metadata or the object was stored without
+     * @throws IOException if the identifier does not identify an object
+     */
+    protected ObjectMetadata getObjectMetadata( ObjectIdentifier identifier ) throws IOException
+    {
+        if( ! this.hasObjectMetadata() )
+        {
+            return null;
+        }
+        return ( (MetadataAwareStorageProvider) this.repositoryStorageMechanism ).getMetadata( identifier.getURI() );
+    }
+
+
+    /**
+     * Retrieves at most {@code length} bytes of the DigitalObject identified
+     * by {@code identifier}, starting at byte {@code offset}. Only the
+     * requested range is read from the underlying storage.
+     *
+     * @param identifier an ObjectIdentifier identifying the data with this server
+     * @param offset the position in the object of the first byte to return
+     * @param length the maximum number of bytes to return
+     * @return the requested range of the DigitalObject, shorter than
+     * {@code length} if the object ends first
+     * @throws IOException if the DigitalObject can't be retrieved for a given reason
+     */
+    protected DigitalObject getObjectRange( ObjectIdentifier identifier, long offset, int length ) throws IOException
+    {
+        URI uri = identifier.getURI();
+        byte[] cached = null == this.objectCache ? null : this.objectCache.get( uri );
+        if( null != cached )
+        {
+            int start = (int) Math.min( offset, cached.length );
+            return new InternalDigitalObject( Arrays.copyOfRange( cached, start, start + RepositoryUtilities.rangeLength( cached.length, offset, length ) ) );
+        }
+        return new InternalDigitalObject( this.repositoryStorageMechanism.get( uri, offset, length ) );
+    }
+
+
+    /**
+     * @param identifier an ObjectIdentifier identifying the data with this server
+     * @return the length in bytes of the DigitalObject
+     * @throws IOException if the identifier does not identify an object
+     */
+    protected long getObjectLength( ObjectIdentifier identifier ) throws IOException
+    {
+        return this.repositoryStorageMechanism.getLength( identifier.getURI() );
+    }
+
+
+    /**
+     * Retrieves a batch of objects.
+     *
+     * @param identifiers identifying the objects with this server
+     * @return each requested DigitalObject, or the reason it could not be
+     * retrieved
+     * @throws IOException if the batch as a whole could not be retrieved
+     */
+    protected BatchResult<DigitalObject> getObjects( List<ObjectIdentifier> identifiers ) throws IOException
+    {
+        BatchResult<DigitalObject> result = new BatchResult<DigitalObject>( identifiers.size() );
+        List<URI> missing = new ArrayList<URI>( identifiers.size() );
+        List<Integer> positions = new ArrayList<Integer>( identifiers.size() );
+        for( int i = 0; i < identifiers.size(); i++ )
+        {
+            URI uri = identifiers.get( i ).getURI();
+            byte[] cached = null == this.objectCache ? null : this.objectCache.get( uri );
+            if( null == cached )
+            {
+                missing.add( uri );
+                positions.add( i );
+            }
+            else
+            {
+                result.succeeded( i, new InternalDigitalObject( cached ) );
+            }
+        }
+        if( missing.isEmpty() )
+        {
+            return result;
+        }
+
+        long stamp = null == this.objectCache ? 0 : this.objectCache.getStamp();
+        BatchResult<byte[]> objects = this.repositoryStorageMechanism.getAll( missing );
+        for( int j = 0; j < objects.size(); j++ )
+        {
+            if( objects.isSuccess( j ) )
+            {
+                if( null != this.objectCache )
+                {
+                    this.objectCache.put( missing.get( j ), objects.getValue( j ), stamp );
+                }
+                result.succeeded( positions.get( j ), new InternalDigitalObject( objects.getValue( j ) ) );
+            }
+            else
+            {
+                result.failed( positions.get( j ), objects.getFailure( j ) );
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Asynchronous variant of {@link #getObject(net.manniche.xor.types.ObjectIdentifier)},
+     * see {@link #storeObjectAsync(byte[], java.lang.String, net.manniche.xor.types.ObjectIdentifier, java.lang.String)}.
+     *
+     * @return a future holding the requested DigitalObject, or the
+     * IOException raised while retrieving it
+     * @throws java.util.concurrent.RejectedExecutionException if the
+     * executor does not accept the task
+     */
+    protected StorageFuture<DigitalObject> getObjectAsync( final ObjectIdentifier identifier )
+    {
+        return StorageFuture.submit( this.getIOExecutor(), new Callable<DigitalObject>()
+        {
+            @Override
+            public DigitalObject call() throws IOException
+            {
+                return getObject( identifier );
+            }
+        } );
+    }
+
+
+    /**
+     * Streaming variant of {@link #getObject(net.manniche.xor.types.ObjectIdentifier)}.
+     * The returned DigitalObject reads its data directly from the underlying
+     * {@link StorageProvider storage} and must be consumed (and its stream
+     * closed) by the caller.
+     *
+     * @param identifier an ObjectIdentifier identifying the data with this server
+     * @return a DigitalObject streaming the requested data
+     * @throws IOException if the DigitalObject can't be retrieved for a given reason
+     */
+    protected DigitalObject getObjectStream( ObjectIdentifier identifier ) throws IOException
+    {
+        long length = this.repositoryStorageMechanism.getLength( identifier.getURI() );
+        InputStream object = this.repositoryStorageMechanism.getStream( identifier.getURI() );
+        return new StreamingDigitalObject( object, length );
+    }
+
+
     /**
      * Given an ObjectIdentifier this method will try to delete a DigitalObject
      * on the server. An IOException is thrown if the operation can't be carried
@@ -142,7 +771,161 @@ public abstract class RepositoryServer{
      */
     protected void deleteObject( ObjectIdentifier identifier, String logmessage ) throws IOException
     {
-        this.repositoryStorageMechanism.delete( identifier.getURI() );
+        try
+        {
+            this.repositoryStorageMechanism.delete( identifier.getURI() );
+        }
+        finally
+        {
+            this.invalidate( identifier.getURI() );
+        }
+        if( this.isIndexed( identifier.getURI() ) )
+        {
+            this.metadataIndex.remove( identifier.getURI() );
+        }
+    }
+
+
+    /**
+     * Deletes a batch of objects.
+     *
+     * @param identifiers identifying the objects with this server
+     * @param logmessage an optional logmessage describing the action
+     * @return the outcome of deleting each object
+     * @throws IOException if the batch as a whole could not be deleted
+     */
+    protected BatchResult<Void> deleteObjects( List<ObjectIdentifier> identifiers, String logmessage ) throws IOException
+    {
+        List<URI> uris = getURIs( identifiers );
+        BatchResult<Void> result;
+        try
+        {
+            result = this.repositoryStorageMechanism.deleteAll( uris );
+        }
+        finally
+        {
+            this.invalidate( uris );
+        }
+        if( null != this.metadataIndex )
+        {
+            for( int i = 0; i < result.size(); i++ )
+            {
+                if( result.isSuccess( i ) && this.isIndexed( uris.get( i ) ) )
+                {
+                    this.metadataIndex.remove( uris.get( i ) );
+                }
+            }
+        }
+        return result;
+    }
+
+
+    private void index( URI identifier, ObjectRepositoryContentType contentType, long length ) throws IOException
+    {
+        if( this.isIndexed( identifier ) )
+        {
+            this.metadataIndex.put( identifier, null == contentType ? null : contentType.toString(), length );
+        }
+    }
+
+
+    private boolean isIndexed( URI identifier )
+    {
+        return null != this.metadataIndex && null != identifier.getPath() && this.isIndexed( identifier.getPath() );
+    }
+
+
+    private boolean isIndexed( String path )
+    {
+        for( String unindexed : this.unindexedPaths )
+        {
+            if( path.startsWith( unindexed ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private void index( BatchResult<ObjectIdentifier> stored, List<byte[]> data, ObjectRepositoryContentType contentType ) throws IOException
+    {
+        for( int i = 0; i < stored.size(); i++ )
+        {
+            if( stored.isSuccess( i ) )
+            {
+                this.index( stored.get( i ).getURI(), contentType, data.get( i ).length );
+            }
+        }
+    }
+
+
+    private void invalidate( URI uri )
+    {
+        if( null != this.objectCache )
+        {
+            this.objectCache.invalidate( uri );
+        }
+    }
+
+
+    private void invalidate( List<URI> uris )
+    {
+        for( URI uri : uris )
+        {
+            this.invalidate( uri );
+        }
+    }
+
+
+    /**
+     * @return the identifier of the object stored at {@code path}, as
+     * generated by the storage, see {@link RepositoryUtilities#generateURI(java.lang.String, java.lang.String, java.lang.String)}
+     */
+    private static URI toURI( String path ) throws IOException
+    {
+        try
+        {
+            return new URI( "file", null, path, null );
+        }
+        catch( URISyntaxException ex )
+        {
+            throw new IOException( String.format( "Could not construct identifier of %s: %s", path, ex.getMessage() ) );
+        }
+    }
+
+
+    private static List<URI> getURIs( List<ObjectIdentifier> identifiers )
+    {
+        List<URI> uris = new ArrayList<URI>( identifiers.size() );
+        for( ObjectIdentifier identifier : identifiers )
+        {
+            uris.add( identifier.getURI() );
+        }
+        return uris;
+    }
+
+
+    /**
+     * Asynchronous variant of {@link #deleteObject(net.manniche.xor.types.ObjectIdentifier, java.lang.String)},
+     * see {@link #storeObjectAsync(byte[], java.lang.String, net.manniche.xor.types.ObjectIdentifier, java.lang.String)}.
+     *
+     * @return a future that completes when the object has been deleted, or
+     * holds the IOException raised while deleting it
+     * @throws java.util.concurrent.RejectedExecutionException if the
+     * executor does not accept the task
+     */
+    protected StorageFuture<Void> deleteObjectAsync( final ObjectIdentifier identifier, final String logmessage )
+    {
+        return StorageFuture.submit( this.getIOExecutor(), new Callable<Void>()
+        {
+            @Override
+            public Void call() throws IOException
+            {
+                deleteObject( identifier, logmessage );
+                return null;
+            }
+        } );
     }
 
     
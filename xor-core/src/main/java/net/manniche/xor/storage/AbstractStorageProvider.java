@@ -0,0 +1,112 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.manniche.xor.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.List;
+import net.manniche.xor.utils.RepositoryUtilities;
+
+
+/**
+ * Base class for storage implementations that only know how to handle
+ * objects as byte arrays. The streaming operations of the
+ * {@link StorageProvider} contract are implemented on top of the byte[]
+ * operations, which means that objects are still materialized in memory.
+ * Implementations that can stream natively should override these methods.
+ * Batch operations are carried out one object at a time.
+ *
+ * @author Steen Manniche
+ */
+public abstract class AbstractStorageProvider implements StorageProvider
+{
+
+    @Override
+    public URI save( InputStream object, long length, String storagePath ) throws IOException
+    {
+        return this.save( RepositoryUtilities.readFully( object, length ), storagePath );
+    }
+
+
+    @Override
+    public void save( InputStream object, long length, URI uri, String storagePath ) throws IOException
+    {
+        this.save( RepositoryUtilities.readFully( object, length ), uri, storagePath );
+    }
+
+
+    @Override
+    public InputStream getStream( URI identifier ) throws IOException
+    {
+        return new ByteArrayInputStream( this.get( identifier ) );
+    }
+
+
+    @Override
+    public long getLength( URI identifier ) throws IOException
+    {
+        return this.get( identifier ).length;
+    }
+
+
+    @Override
+    public byte[] get( URI identifier, long offset, int length ) throws IOException
+    {
+        InputStream object = this.getStream( identifier );
+        try
+        {
+            return RepositoryUtilities.readRange( object, offset, length );
+        }
+        finally
+        {
+            object.close();
+        }
+    }
+
+
+    @Override
+    public BatchResult<URI> saveAll( List<byte[]> objects, String storagePath ) throws IOException
+    {
+        return BatchOperations.saveAll( this, objects, storagePath );
+    }
+
+
+    @Override
+    public BatchResult<Void> saveAll( List<byte[]> objects, List<URI> uris, String storagePath ) throws IOException
+    {
+        return BatchOperations.saveAll( this, objects, uris, storagePath );
+    }
+
+
+    @Override
+    public BatchResult<byte[]> getAll( List<URI> identifiers ) throws IOException
+    {
+        return BatchOperations.getAll( this, identifiers );
+    }
+
+
+    @Override
+    public BatchResult<Void> deleteAll( List<URI> identifiers ) throws IOException
+    {
+        return BatchOperations.deleteAll( this, identifiers );
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.net.URI;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Adds asynchronous variants of the {@link StorageProvider} operations to
+ * any storage. The operations run on a bounded I/O executor, see
+ * {@link StorageExecutors}, and the returned futures carry the result or
+ * the IOException of the operation and run their listeners when it
+ * completes, so a caller need not hold a thread per operation. Once the provider is closed, the
+ * operations throw {@link java.util.concurrent.RejectedExecutionException}.
+ *
+ * @author Steen Manniche
+ */
+public class AsyncStorageProvider extends DelegatingStorageProvider
+{
+    private final ExecutorService executor;
+
+    public AsyncStorageProvider( StorageProvider delegate )
+    {
+        this( delegate, StorageExecutors.newIOExecutor() );
+    }
+
+
+    /**
+     * @param delegate the storage the operations are run against
+     * @param executor the executor running the operations. It is shut down
+     * when this provider is closed
+     */
+    public AsyncStorageProvider( StorageProvider delegate, ExecutorService executor )
+    {
+        super( delegate );
+        this.executor = executor;
+    }
+
+
+    public StorageFuture<URI> saveAsync( final byte[] object, final String storagePath )
+    {
+        return StorageFuture.submit( this.executor, new Callable<URI>()
+        {
+            @Override
+            public URI call() throws Exception
+            {
+                return delegate.save( object, storagePath );
+            }
+        } );
+    }
+
+
+    public StorageFuture<Void> saveAsync( final byte[] object, final URI uri, final String storagePath )
+    {
+        return StorageFuture.submit( this.executor, new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                delegate.save( object, uri, storagePath );
+                return null;
+            }
+        } );
+    }
+
+
+    public StorageFuture<byte[]> getAsync( final URI identifier )
+    {
+        return StorageFuture.submit( this.executor, new Callable<byte[]>()
+        {
+            @Override
+            public byte[] call() throws Exception
+            {
+                return delegate.get( identifier );
+            }
+        } );
+    }
+
+
+    public StorageFuture<Void> deleteAsync( final URI identifier )
+    {
+        return StorageFuture.submit( this.executor, new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                delegate.delete( identifier );
+                return null;
+            }
+        } );
+    }
+
+
+    /**
+     * Lets the submitted operations finish, then closes the delegate.
+     */
+    @Override
+    public void close()
+    {
+        this.executor.shutdown();
+        try
+        {
+            this.executor.awaitTermination( 1, TimeUnit.MINUTES );
+        }
+        catch( InterruptedException ex )
+        {
+            Thread.currentThread().interrupt();
+        }
+        super.close();
+    }
+}
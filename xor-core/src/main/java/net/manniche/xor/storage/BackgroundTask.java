@@ -0,0 +1,140 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Maintenance work run repeatedly in a background thread of its own, such
+ * as compaction, scrubbing or migration. The thread is a daemon thread of
+ * the lowest priority, so that it neither keeps the server running nor
+ * competes with requests.
+ *
+ * A run checks {@link #isStopping()} between units of work, so that
+ * {@link #stop()} does not have to interrupt it; an interrupt would close
+ * the file channels the work is using.
+ *
+ * @author Steen Manniche
+ */
+abstract class BackgroundTask
+{
+    private static final Logger Log = Logger.getLogger( BackgroundTask.class.getName() );
+
+    private final String threadName;
+    private final String activity;
+    private ScheduledExecutorService scheduler;
+    private volatile boolean stopping;
+
+    /**
+     * @param threadName the name of the background thread
+     * @param activity what the task does, as in "Compaction failed"
+     */
+    BackgroundTask( String threadName, String activity )
+    {
+        this.threadName = threadName;
+        this.activity = activity;
+    }
+
+
+    /**
+     * Does one run of the work.
+     */
+    protected abstract void runOnce() throws IOException;
+
+
+    /**
+     * Runs {@link #runOnce()} in the background thread, first after
+     * {@code initialDelay} and then with {@code delay} between the end of
+     * one run and the start of the next.
+     */
+    synchronized void start( long initialDelay, long delay, TimeUnit unit )
+    {
+        if( null != this.scheduler )
+        {
+            throw new IllegalStateException( String.format( "%s is already running", this.activity ) );
+        }
+        this.stopping = false;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+        {
+            @Override
+            public Thread newThread( Runnable runnable )
+            {
+                Thread thread = new Thread( runnable, threadName );
+                thread.setDaemon( true );
+                thread.setPriority( Thread.MIN_PRIORITY );
+                return thread;
+            }
+        } );
+        this.scheduler.scheduleWithFixedDelay( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if( stopping )
+                {
+                    return;
+                }
+                try
+                {
+                    runOnce();
+                }
+                catch( IOException ex )
+                {
+                    Log.log( Level.WARNING, String.format( "%s failed: %s", activity, ex.getMessage() ), ex );
+                }
+                catch( RuntimeException ex )
+                {
+                    Log.log( Level.SEVERE, String.format( "%s failed: %s", activity, ex.getMessage() ), ex );
+                }
+            }
+        }, initialDelay, delay, unit );
+    }
+
+
+    /**
+     * Stops the background thread, waiting for a run in progress to reach
+     * a point where it checks {@link #isStopping()}.
+     */
+    synchronized void stop() throws InterruptedException
+    {
+        if( null != this.scheduler )
+        {
+            this.stopping = true;
+            this.scheduler.shutdown();
+            this.scheduler.awaitTermination( 1, TimeUnit.MINUTES );
+            this.scheduler = null;
+        }
+    }
+
+
+    /**
+     * @return true if a run should give up at the next unit of work
+     */
+    boolean isStopping()
+    {
+        return this.stopping;
+    }
+}
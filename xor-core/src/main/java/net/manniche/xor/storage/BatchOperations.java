@@ -0,0 +1,125 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+
+
+/**
+ * Batch operations implemented as a sequence of single item operations on a
+ * {@link StorageProvider}, for storage that has nothing to gain from seeing
+ * the whole batch at once.
+ *
+ * @author Steen Manniche
+ */
+public final class BatchOperations
+{
+    private BatchOperations()
+    {
+    }
+
+
+    public static BatchResult<URI> saveAll( StorageProvider storage, List<byte[]> objects, String storagePath )
+    {
+        BatchResult<URI> result = new BatchResult<URI>( objects.size() );
+        for( int i = 0; i < objects.size(); i++ )
+        {
+            try
+            {
+                result.succeeded( i, storage.save( objects.get( i ), storagePath ) );
+            }
+            catch( IOException ex )
+            {
+                result.failed( i, ex );
+            }
+        }
+        return result;
+    }
+
+
+    public static BatchResult<Void> saveAll( StorageProvider storage, List<byte[]> objects, List<URI> uris, String storagePath )
+    {
+        checkSizes( objects, uris );
+        BatchResult<Void> result = new BatchResult<Void>( objects.size() );
+        for( int i = 0; i < objects.size(); i++ )
+        {
+            try
+            {
+                storage.save( objects.get( i ), uris.get( i ), storagePath );
+                result.succeeded( i, null );
+            }
+            catch( IOException ex )
+            {
+                result.failed( i, ex );
+            }
+        }
+        return result;
+    }
+
+
+    public static BatchResult<byte[]> getAll( StorageProvider storage, List<URI> identifiers )
+    {
+        BatchResult<byte[]> result = new BatchResult<byte[]>( identifiers.size() );
+        for( int i = 0; i < identifiers.size(); i++ )
+        {
+            try
+            {
+                result.succeeded( i, storage.get( identifiers.get( i ) ) );
+            }
+            catch( IOException ex )
+            {
+                result.failed( i, ex );
+            }
+        }
+        return result;
+    }
+
+
+    public static BatchResult<Void> deleteAll( StorageProvider storage, List<URI> identifiers )
+    {
+        BatchResult<Void> result = new BatchResult<Void>( identifiers.size() );
+        for( int i = 0; i < identifiers.size(); i++ )
+        {
+            try
+            {
+                storage.delete( identifiers.get( i ) );
+                result.succeeded( i, null );
+            }
+            catch( IOException ex )
+            {
+                result.failed( i, ex );
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * @throws IllegalArgumentException unless there is an URI for every object
+     */
+    public static void checkSizes( List<byte[]> objects, List<URI> uris )
+    {
+        if( objects.size() != uris.size() )
+        {
+            throw new IllegalArgumentException( String.format( "Got %s objects but %s identifiers", objects.size(), uris.size() ) );
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * The per item outcome of a batch operation. Each item of the batch either
+ * succeeded with a value (which is null for operations without a result) or
+ * failed with an IOException; items are addressed by their position in the
+ * batch.
+ *
+ * @author Steen Manniche
+ */
+public final class BatchResult<T> implements Serializable
+{
+    static final long serialVersionUID = 4153817623580198143L;
+
+    private final List<T> values;
+    private final List<IOException> failures;
+    private int failureCount;
+
+    public BatchResult( int size )
+    {
+        this.values = new ArrayList<T>( size );
+        this.failures = new ArrayList<IOException>( size );
+        for( int i = 0; i < size; i++ )
+        {
+            this.values.add( null );
+            this.failures.add( null );
+        }
+    }
+
+
+    public void succeeded( int index, T value )
+    {
+        this.values.set( index, value );
+        if( null != this.failures.set( index, null ) )
+        {
+            this.failureCount--;
+        }
+    }
+
+
+    public void failed( int index, IOException failure )
+    {
+        this.values.set( index, null );
+        if( null == this.failures.set( index, failure ) )
+        {
+            this.failureCount++;
+        }
+    }
+
+
+    /**
+     * @return the number of items in the batch
+     */
+    public int size()
+    {
+        return this.values.size();
+    }
+
+
+    public boolean isSuccess( int index )
+    {
+        return null == this.failures.get( index );
+    }
+
+
+    /**
+     * @return the value of item {@code index}
+     * @throws IOException the failure of the item, if it failed
+     */
+    public T get( int index ) throws IOException
+    {
+        IOException failure = this.failures.get( index );
+        if( null != failure )
+        {
+            throw failure;
+        }
+        return this.values.get( index );
+    }
+
+
+    /**
+     * @return the value of item {@code index}, or null if it failed
+     */
+    public T getValue( int index )
+    {
+        return this.values.get( index );
+    }
+
+
+    /**
+     * @return the failure of item {@code index}, or null if it succeeded
+     */
+    public IOException getFailure( int index )
+    {
+        return this.failures.get( index );
+    }
+
+
+    public int getFailureCount()
+    {
+        return this.failureCount;
+    }
+
+
+    public boolean hasFailures()
+    {
+        return this.failureCount > 0;
+    }
+}
@@ -0,0 +1,444 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import net.manniche.xor.utils.RepositoryUtilities;
+
+
+/**
+ * Read cache in front of another {@link StorageProvider}, bounded by the
+ * total number of bytes cached. Entries are evicted in least recently used
+ * order, but a newly read object is only admitted if it has been requested
+ * more often than the entries it would evict, as estimated by a
+ * {@link FrequencySketch} of recent requests. A burst of one-off reads
+ * therefore cannot flush the popular objects out of the cache.
+ *
+ * Saves and deletes through this provider invalidate the cached object.
+ * Writes that bypass this provider are not seen. A read is not cached if
+ * the object was written while it was read; writes are counted in stripes
+ * of the object names, so that a write only keeps the objects sharing its
+ * stripe out of the cache, not every read running at the time.
+ *
+ * @author Steen Manniche
+ */
+public class CachingStorageProvider extends DelegatingStorageProvider
+{
+    /**
+     * Default capacity of the cache in bytes.
+     */
+    public static final long DEFAULT_CAPACITY = 64 * 1024 * 1024;
+
+    /**
+     * Assumed average object size, used to size the frequency sketch.
+     */
+    private static final int AVERAGE_OBJECT_SIZE = 4 * 1024;
+
+    /**
+     * Number of write counters, a power of two.
+     */
+    private static final int WRITE_STRIPES = 1024;
+
+    private final long capacity;
+    private final long maxEntrySize;
+
+    // guarded by this
+    private final LinkedHashMap<String, byte[]> entries;
+    private final FrequencySketch sketch;
+    private long size;
+    private final long[] writes = new long[ WRITE_STRIPES ];
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    /**
+     * Caches up to {@code xor.cache.capacity} bytes, 64MB by default.
+     */
+    public CachingStorageProvider( StorageProvider delegate )
+    {
+        this( delegate, Long.getLong( "xor.cache.capacity", DEFAULT_CAPACITY ) );
+    }
+
+
+    /**
+     * @param delegate the storage to cache reads from
+     * @param capacity the maximum number of bytes to cache. Objects larger
+     * than an eighth of the capacity are never cached
+     */
+    public CachingStorageProvider( StorageProvider delegate, long capacity )
+    {
+        super( delegate );
+        this.capacity = capacity;
+        this.maxEntrySize = capacity / 8;
+        this.entries = new LinkedHashMap<String, byte[]>( 16, 0.75f, true );
+        this.sketch = new FrequencySketch( (int) Math.min( Integer.MAX_VALUE, capacity / AVERAGE_OBJECT_SIZE ) );
+    }
+
+
+    /**
+     * Returns a copy of the cached object, or reads the object from the
+     * underlying storage and considers it for caching.
+     */
+    @Override
+    public byte[] get( URI identifier ) throws IOException
+    {
+        String key = identifier.toString();
+        long stamp;
+        synchronized( this )
+        {
+            this.sketch.increment( key );
+            byte[] cached = this.entries.get( key );
+            if( null != cached )
+            {
+                this.hits.incrementAndGet();
+                return cached.clone();
+            }
+            stamp = this.writes[ stripe( key ) ];
+        }
+        this.misses.incrementAndGet();
+        byte[] object = super.get( identifier );
+        this.admit( key, object.clone(), stamp );
+        return object;
+    }
+
+
+    @Override
+    public InputStream getStream( URI identifier ) throws IOException
+    {
+        byte[] cached = this.lookup( identifier );
+        return null == cached ? super.getStream( identifier ) : new ByteArrayInputStream( cached );
+    }
+
+
+    @Override
+    public long getLength( URI identifier ) throws IOException
+    {
+        byte[] cached = this.lookup( identifier );
+        return null == cached ? super.getLength( identifier ) : cached.length;
+    }
+
+
+    /**
+     * Serves the range from the cached object if there is one. Ranges are
+     * not cached, as a range of a large object is usually all a client
+     * wants of it.
+     */
+    @Override
+    public byte[] get( URI identifier, long offset, int length ) throws IOException
+    {
+        synchronized( this )
+        {
+            byte[] cached = this.entries.get( identifier.toString() );
+            if( null != cached )
+            {
+                int start = (int) Math.min( offset, cached.length );
+                return Arrays.copyOfRange( cached, start, start + RepositoryUtilities.rangeLength( cached.length, offset, length ) );
+            }
+        }
+        return super.get( identifier, offset, length );
+    }
+
+
+    /**
+     * Serves the cached objects of the batch from the cache and reads the
+     * rest from the underlying storage as one batch.
+     */
+    @Override
+    public BatchResult<byte[]> getAll( List<URI> identifiers ) throws IOException
+    {
+        BatchResult<byte[]> result = new BatchResult<byte[]>( identifiers.size() );
+        List<URI> missing = new ArrayList<URI>();
+        List<Integer> positions = new ArrayList<Integer>();
+        List<Long> stamps = new ArrayList<Long>();
+        synchronized( this )
+        {
+            for( int i = 0; i < identifiers.size(); i++ )
+            {
+                String key = identifiers.get( i ).toString();
+                this.sketch.increment( key );
+                byte[] cached = this.entries.get( key );
+                if( null == cached )
+                {
+                    missing.add( identifiers.get( i ) );
+                    positions.add( i );
+                    stamps.add( this.writes[ stripe( key ) ] );
+                }
+                else
+                {
+                    result.succeeded( i, cached.clone() );
+                }
+            }
+        }
+        this.hits.addAndGet( identifiers.size() - missing.size() );
+        this.misses.addAndGet( missing.size() );
+        if( missing.isEmpty() )
+        {
+            return result;
+        }
+
+        BatchResult<byte[]> read = super.getAll( missing );
+        for( int j = 0; j < read.size(); j++ )
+        {
+            if( read.isSuccess( j ) )
+            {
+                byte[] object = read.getValue( j );
+                this.admit( missing.get( j ).toString(), object.clone(), stamps.get( j ) );
+                result.succeeded( positions.get( j ), object );
+            }
+            else
+            {
+                result.failed( positions.get( j ), read.getFailure( j ) );
+            }
+        }
+        return result;
+    }
+
+
+    @Override
+    public void save( byte[] object, URI uri, String storagePath ) throws IOException
+    {
+        this.invalidate( uri );
+        try
+        {
+            super.save( object, uri, storagePath );
+        }
+        finally
+        {
+            this.invalidate( uri );
+        }
+    }
+
+
+    @Override
+    public void save( InputStream object, long length, URI uri, String storagePath ) throws IOException
+    {
+        this.invalidate( uri );
+        try
+        {
+            super.save( object, length, uri, storagePath );
+        }
+        finally
+        {
+            this.invalidate( uri );
+        }
+    }
+
+
+    @Override
+    public BatchResult<Void> saveAll( List<byte[]> objects, List<URI> uris, String storagePath ) throws IOException
+    {
+        this.invalidate( uris );
+        try
+        {
+            return super.saveAll( objects, uris, storagePath );
+        }
+        finally
+        {
+            this.invalidate( uris );
+        }
+    }
+
+
+    @Override
+    public void delete( URI identifier ) throws IOException
+    {
+        this.invalidate( identifier );
+        try
+        {
+            super.delete( identifier );
+        }
+        finally
+        {
+            this.invalidate( identifier );
+        }
+    }
+
+
+    @Override
+    public BatchResult<Void> deleteAll( List<URI> identifiers ) throws IOException
+    {
+        this.invalidate( identifiers );
+        try
+        {
+            return super.deleteAll( identifiers );
+        }
+        finally
+        {
+            this.invalidate( identifiers );
+        }
+    }
+
+
+    /**
+     * Empties the cache. The counters are kept.
+     */
+    public synchronized void clear()
+    {
+        this.entries.clear();
+        this.size = 0;
+        for( int i = 0; i < this.writes.length; i++ )
+        {
+            this.writes[ i ]++;
+        }
+    }
+
+
+    public long getHitCount()
+    {
+        return this.hits.get();
+    }
+
+
+    public long getMissCount()
+    {
+        return this.misses.get();
+    }
+
+
+    /**
+     * @return the number of entries evicted to make room for new ones
+     */
+    public long getEvictionCount()
+    {
+        return this.evictions.get();
+    }
+
+
+    /**
+     * @return the number of objects that were not cached because they were
+     * requested less often than the entries they would have evicted, or
+     * were too large
+     */
+    public long getRejectionCount()
+    {
+        return this.rejections.get();
+    }
+
+
+    /**
+     * @return the number of bytes currently cached
+     */
+    public synchronized long getSize()
+    {
+        return this.size;
+    }
+
+
+    public long getCapacity()
+    {
+        return this.capacity;
+    }
+
+
+    /**
+     * @return a copy of the cached object, or null if it is not cached
+     */
+    private synchronized byte[] lookup( URI identifier )
+    {
+        byte[] cached = this.entries.get( identifier.toString() );
+        return null == cached ? null : cached.clone();
+    }
+
+
+    /**
+     * Caches {@code object} unless its stripe was written since the read
+     * started at {@code stamp}, or it loses against the entries it would
+     * evict.
+     */
+    private synchronized void admit( String key, byte[] object, long stamp )
+    {
+        if( stamp != this.writes[ stripe( key ) ] || this.entries.containsKey( key ) )
+        {
+            return;
+        }
+        if( object.length > this.maxEntrySize )
+        {
+            this.rejections.incrementAndGet();
+            return;
+        }
+
+        long needed = this.size + object.length - this.capacity;
+        if( needed > 0 )
+        {
+            int frequency = this.sketch.estimate( key );
+            List<String> victims = new ArrayList<String>();
+            long freed = 0;
+            Iterator<Map.Entry<String, byte[]>> eldest = this.entries.entrySet().iterator();
+            while( freed < needed )
+            {
+                Map.Entry<String, byte[]> victim = eldest.next();
+                if( this.sketch.estimate( victim.getKey() ) >= frequency )
+                {
+                    this.rejections.incrementAndGet();
+                    return;
+                }
+                victims.add( victim.getKey() );
+                freed += victim.getValue().length;
+            }
+            for( String victim : victims )
+            {
+                this.size -= this.entries.remove( victim ).length;
+            }
+            this.evictions.addAndGet( victims.size() );
+        }
+        this.entries.put( key, object );
+        this.size += object.length;
+    }
+
+
+    private synchronized void invalidate( URI identifier )
+    {
+        byte[] cached = this.entries.remove( identifier.toString() );
+        if( null != cached )
+        {
+            this.size -= cached.length;
+        }
+        this.writes[ stripe( identifier.toString() ) ]++;
+    }
+
+
+    private synchronized void invalidate( List<URI> identifiers )
+    {
+        for( URI identifier : identifiers )
+        {
+            this.invalidate( identifier );
+        }
+    }
+
+
+    private static int stripe( String key )
+    {
+        int hash = key.hashCode();
+        // mix the high bits into the stripe as well
+        hash ^= ( hash >>> 16 );
+        return hash & ( WRITE_STRIPES - 1 );
+    }
+}
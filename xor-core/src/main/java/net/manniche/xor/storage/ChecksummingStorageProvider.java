@@ -0,0 +1,647 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import net.manniche.xor.exceptions.CorruptObjectException;
+import net.manniche.xor.utils.RepositoryUtilities;
+
+
+/**
+ * Records a CRC32 checksum of every object as it is written and verifies it
+ * when the object is read, so that objects damaged on disk are not served.
+ *
+ * The checksum is kept in a trailer after the object:
+ * <pre>
+ *   object | CRC32 (4 bytes) | object length (8 bytes) | magic "XORC" (4 bytes)
+ * </pre>
+ * A trailer at the end lets streamed objects be checksummed while they are
+ * written and leaves the offsets of range reads unchanged.
+ *
+ * Whether every object of a storage is checksummed is recorded apart from
+ * the objects, by the {@value #MARKER} file that {@link #isChecksummed(java.util.List)}
+ * writes when checksumming is enabled on a storage without objects. In a
+ * checksummed storage, an object without a valid trailer is corrupt.
+ * Otherwise such objects are taken to have been stored before
+ * checksumming was enabled, and are returned unverified; the marker may be
+ * created by hand once the {@link Scrubber} no longer finds any of them.
+ *
+ * Verifying a read costs a pass over the object, so only the fraction of
+ * full reads given by {@code xor.checksum.verify_fraction} (default 0.1) is
+ * verified; the {@link Scrubber} verifies every object in the background.
+ * Range reads are never verified.
+ *
+ * @author Steen Manniche
+ */
+public class ChecksummingStorageProvider extends DelegatingStorageProvider
+{
+    private static final Logger Log = Logger.getLogger( ChecksummingStorageProvider.class.getName() );
+
+    private static final byte[] MAGIC = { 'X', 'O', 'R', 'C' };
+    static final int TRAILER_SIZE = 16;
+
+    /**
+     * Name of the file in the first storage directory that marks every
+     * object of the storage as checksummed.
+     */
+    public static final String MARKER = ".checksummed";
+
+    private final double verifyFraction;
+
+    /**
+     * True if every object has a trailer, so that an object without one is
+     * damaged rather than stored before checksumming was enabled.
+     */
+    private final boolean checksummed;
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong verified = new AtomicLong();
+    private final AtomicLong corrupt = new AtomicLong();
+
+    /**
+     * Verifies the fraction of reads given by {@code xor.checksum.verify_fraction}.
+     *
+     * @param checksummed true if every object of {@code delegate} is
+     * checksummed, see {@link #isChecksummed(java.util.List)}
+     */
+    public ChecksummingStorageProvider( StorageProvider delegate, boolean checksummed )
+    {
+        this( delegate, Double.parseDouble( System.getProperty( "xor.checksum.verify_fraction", "0.1" ) ), checksummed );
+    }
+
+
+    /**
+     * Accepts objects without a checksum, as stored before checksumming was
+     * enabled.
+     */
+    public ChecksummingStorageProvider( StorageProvider delegate, double verifyFraction )
+    {
+        this( delegate, verifyFraction, false );
+    }
+
+
+    /**
+     * @param delegate the storage holding the checksummed objects
+     * @param verifyFraction the fraction of full reads that are verified,
+     * from 0 (none) to 1 (all)
+     * @param checksummed true if every object of {@code delegate} is
+     * checksummed, in which case an object without a trailer is corrupt
+     */
+    public ChecksummingStorageProvider( StorageProvider delegate, double verifyFraction, boolean checksummed )
+    {
+        super( delegate );
+        if( verifyFraction < 0 || verifyFraction > 1 )
+        {
+            throw new IllegalArgumentException( String.format( "Verify fraction %s is not between 0 and 1", verifyFraction ) );
+        }
+        this.verifyFraction = verifyFraction;
+        this.checksummed = checksummed;
+    }
+
+
+    /**
+     * Tells whether every object stored in {@code roots} is checksummed,
+     * which is the case if the {@value #MARKER} file exists in the first
+     * root. If none of the roots holds any objects yet, the marker is
+     * written, as every object will be stored with a checksum from now on.
+     *
+     * @param roots the storage directories, the first of which holds the
+     * marker
+     * @throws IOException if the marker could not be written
+     */
+    public static boolean isChecksummed( List<File> roots ) throws IOException
+    {
+        File marker = new File( roots.get( 0 ), MARKER );
+        if( marker.isFile() )
+        {
+            return true;
+        }
+        for( File root : roots )
+        {
+            if( holdsObjects( root ) )
+            {
+                Log.warning( String.format( "%s holds objects stored before checksumming was enabled, objects without a checksum are served unverified", root ) );
+                return false;
+            }
+        }
+        roots.get( 0 ).mkdirs();
+        StateFiles.write( marker, Collections.singletonList( String.format( "Checksummed since %tF %<tT", new Date() ) ) );
+        Log.info( String.format( "Every object in %s is checksummed", roots ) );
+        return true;
+    }
+
+
+    /**
+     * Removes the {@value #MARKER} file from the first of {@code roots}, as
+     * objects stored while checksumming is disabled have no checksum.
+     *
+     * @throws IOException if the marker could not be removed
+     */
+    public static void unmarkChecksummed( List<File> roots ) throws IOException
+    {
+        File marker = new File( roots.get( 0 ), MARKER );
+        if( marker.isFile() )
+        {
+            if( ! marker.delete() )
+            {
+                throw new IOException( String.format( "Could not remove %s", marker ) );
+            }
+            Log.warning( String.format( "Checksumming is disabled, objects in %s will no longer all be checksummed", roots ) );
+        }
+    }
+
+
+    /**
+     * @return true if a file whose name does not start with a '.' is found
+     * in {@code directory} or below it
+     */
+    private static boolean holdsObjects( File directory )
+    {
+        File[] files = directory.listFiles();
+        if( null == files )
+        {
+            return false;
+        }
+        for( File file : files )
+        {
+            if( file.getName().startsWith( "." ) )
+            {
+                continue;
+            }
+            if( file.isFile() || holdsObjects( file ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    @Override
+    public URI save( byte[] object, String storagePath ) throws IOException
+    {
+        return super.save( seal( object ), storagePath );
+    }
+
+
+    @Override
+    public void save( byte[] object, URI uri, String storagePath ) throws IOException
+    {
+        super.save( seal( object ), uri, storagePath );
+    }
+
+
+    @Override
+    public URI save( InputStream object, long length, String storagePath ) throws IOException
+    {
+        return super.save( new TrailerInputStream( object, length ), length + TRAILER_SIZE, storagePath );
+    }
+
+
+    @Override
+    public void save( InputStream object, long length, URI uri, String storagePath ) throws IOException
+    {
+        super.save( new TrailerInputStream( object, length ), length + TRAILER_SIZE, uri, storagePath );
+    }
+
+
+    @Override
+    public BatchResult<URI> saveAll( List<byte[]> objects, String storagePath ) throws IOException
+    {
+        return super.saveAll( sealAll( objects ), storagePath );
+    }
+
+
+    @Override
+    public BatchResult<Void> saveAll( List<byte[]> objects, List<URI> uris, String storagePath ) throws IOException
+    {
+        return super.saveAll( sealAll( objects ), uris, storagePath );
+    }
+
+
+    @Override
+    public byte[] get( URI identifier ) throws IOException
+    {
+        return this.open( super.get( identifier ), identifier );
+    }
+
+
+    @Override
+    public BatchResult<byte[]> getAll( List<URI> identifiers ) throws IOException
+    {
+        BatchResult<byte[]> stored = super.getAll( identifiers );
+        BatchResult<byte[]> result = new BatchResult<byte[]>( stored.size() );
+        for( int i = 0; i < stored.size(); i++ )
+        {
+            try
+            {
+                result.succeeded( i, this.open( stored.get( i ), identifiers.get( i ) ) );
+            }
+            catch( IOException ex )
+            {
+                result.failed( i, ex );
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Returns a stream holding back the last bytes of the object until it
+     * is known whether they are a trailer. A sampled stream throws a
+     * CorruptObjectException instead of reporting the end of the object if
+     * the checksum does not match.
+     */
+    @Override
+    public InputStream getStream( URI identifier ) throws IOException
+    {
+        return new VerifyingInputStream( super.getStream( identifier ), identifier, this.sample() );
+    }
+
+
+    @Override
+    public long getLength( URI identifier ) throws IOException
+    {
+        long stored = super.getLength( identifier );
+        if( stored >= TRAILER_SIZE && isTrailer( super.get( identifier, stored - TRAILER_SIZE, TRAILER_SIZE ), 0, stored ) )
+        {
+            return stored - TRAILER_SIZE;
+        }
+        this.checkUnchecksummed( identifier );
+        return stored;
+    }
+
+
+    @Override
+    public byte[] get( URI identifier, long offset, int length ) throws IOException
+    {
+        return super.get( identifier, offset, RepositoryUtilities.rangeLength( this.getLength( identifier ), offset, length ) );
+    }
+
+
+    /**
+     * @return the number of reads whose checksum was verified
+     */
+    public long getVerifiedCount()
+    {
+        return this.verified.get();
+    }
+
+
+    /**
+     * @return the number of reads that found a corrupt object
+     */
+    public long getCorruptCount()
+    {
+        return this.corrupt.get();
+    }
+
+
+    /**
+     * @return true if the next read should be verified. Every
+     * 1 / verifyFraction'th read is verified, so the sample is spread
+     * evenly over time.
+     */
+    private boolean sample()
+    {
+        long n = this.reads.incrementAndGet();
+        return (long) ( n * this.verifyFraction ) != (long) ( ( n - 1 ) * this.verifyFraction );
+    }
+
+
+    /**
+     * Strips the trailer from a stored object, verifying the checksum if the
+     * read is sampled.
+     */
+    private byte[] open( byte[] stored, URI identifier ) throws IOException
+    {
+        int length = stored.length - TRAILER_SIZE;
+        if( length < 0 || ! isTrailer( stored, length, stored.length ) )
+        {
+            this.checkUnchecksummed( identifier );
+            return stored;
+        }
+        if( this.sample() )
+        {
+            this.verify( checksum( stored, 0, length ), ByteBuffer.wrap( stored ).getInt( length ), identifier );
+        }
+        return Arrays.copyOf( stored, length );
+    }
+
+
+    /**
+     * Accepts an object without a valid trailer only if the storage holds
+     * objects stored before checksumming was enabled.
+     */
+    private void checkUnchecksummed( URI identifier ) throws CorruptObjectException
+    {
+        if( this.checksummed )
+        {
+            this.corrupt.incrementAndGet();
+            String error = String.format( "Object %s is corrupt: its checksum trailer is missing or damaged", identifier );
+            Log.severe( error );
+            throw new CorruptObjectException( error );
+        }
+    }
+
+
+    private void verify( int actual, int expected, URI identifier ) throws CorruptObjectException
+    {
+        this.verified.incrementAndGet();
+        if( actual != expected )
+        {
+            this.corrupt.incrementAndGet();
+            String error = String.format( "Object %s is corrupt: checksum is %08x, expected %08x", identifier, actual, expected );
+            Log.severe( error );
+            throw new CorruptObjectException( error );
+        }
+    }
+
+
+    static byte[] seal( byte[] object )
+    {
+        byte[] sealed = Arrays.copyOf( object, object.length + TRAILER_SIZE );
+        writeTrailer( sealed, object.length, checksum( object, 0, object.length ), object.length );
+        return sealed;
+    }
+
+
+    private static List<byte[]> sealAll( List<byte[]> objects )
+    {
+        List<byte[]> sealed = new ArrayList<byte[]>( objects.size() );
+        for( byte[] object : objects )
+        {
+            sealed.add( seal( object ) );
+        }
+        return sealed;
+    }
+
+
+    static int checksum( byte[] data, int offset, int length )
+    {
+        CRC32 crc = new CRC32();
+        crc.update( data, offset, length );
+        return (int) crc.getValue();
+    }
+
+
+    private static void writeTrailer( byte[] target, int position, int checksum, long length )
+    {
+        ByteBuffer trailer = ByteBuffer.wrap( target, position, TRAILER_SIZE );
+        trailer.putInt( checksum );
+        trailer.putLong( length );
+        trailer.put( MAGIC );
+    }
+
+
+    /**
+     * @return true if the {@link #TRAILER_SIZE} bytes at {@code position}
+     * are the trailer of a stored object of {@code storedLength} bytes
+     */
+    static boolean isTrailer( byte[] data, int position, long storedLength )
+    {
+        if( data.length < position + TRAILER_SIZE )
+        {
+            return false;
+        }
+        for( int i = 0; i < MAGIC.length; i++ )
+        {
+            if( data[ position + 12 + i ] != MAGIC[ i ] )
+            {
+                return false;
+            }
+        }
+        return ByteBuffer.wrap( data ).getLong( position + 4 ) == storedLength - TRAILER_SIZE;
+    }
+
+
+    /**
+     * @return the checksum recorded in the trailer at {@code position}
+     */
+    static int trailerChecksum( byte[] data, int position )
+    {
+        return ByteBuffer.wrap( data ).getInt( position );
+    }
+
+
+    /**
+     * Appends the trailer to a stream of an object, computing the checksum
+     * as the object is read. Closing it does not close the object stream,
+     * which belongs to the caller.
+     */
+    private static final class TrailerInputStream extends FilterInputStream
+    {
+        private final CRC32 crc = new CRC32();
+        private final long length;
+        private long remaining;
+        private byte[] trailer;
+        private int position;
+
+        TrailerInputStream( InputStream object, long length )
+        {
+            super( object );
+            this.length = length;
+            this.remaining = length;
+        }
+
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] single = new byte[ 1 ];
+            int count = this.read( single, 0, 1 );
+            return -1 == count ? -1 : single[ 0 ] & 0xff;
+        }
+
+
+        @Override
+        public int read( byte[] buffer, int offset, int count ) throws IOException
+        {
+            if( 0 == count )
+            {
+                return 0;
+            }
+            if( this.remaining > 0 )
+            {
+                int read = super.read( buffer, offset, (int) Math.min( count, this.remaining ) );
+                if( -1 != read )
+                {
+                    this.crc.update( buffer, offset, read );
+                    this.remaining -= read;
+                }
+                // an object stream ending early is reported by the storage
+                return read;
+            }
+            if( null == this.trailer )
+            {
+                this.trailer = new byte[ TRAILER_SIZE ];
+                writeTrailer( this.trailer, 0, (int) this.crc.getValue(), this.length );
+            }
+            if( this.position == this.trailer.length )
+            {
+                return -1;
+            }
+            int copied = Math.min( count, this.trailer.length - this.position );
+            System.arraycopy( this.trailer, this.position, buffer, offset, copied );
+            this.position += copied;
+            return copied;
+        }
+
+
+        @Override
+        public long skip( long n ) throws IOException
+        {
+            throw new IOException( "Skipping would bypass the checksum" );
+        }
+
+
+        @Override
+        public int available()
+        {
+            return 0;
+        }
+
+
+        @Override
+        public boolean markSupported()
+        {
+            return false;
+        }
+
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+
+    /**
+     * Reads a stored object, holding back the last {@link #TRAILER_SIZE}
+     * bytes until the end of the stream shows whether they are a trailer.
+     */
+    private final class VerifyingInputStream extends InputStream
+    {
+        private final InputStream stored;
+        private final URI identifier;
+        private final boolean verify;
+        private final CRC32 crc = new CRC32();
+        private final byte[] buffer = new byte[ 8192 + TRAILER_SIZE ];
+        private int start;
+        private int end;
+        private long emitted;
+        private boolean eof;
+        private Integer expected;
+
+        VerifyingInputStream( InputStream stored, URI identifier, boolean verify )
+        {
+            this.stored = stored;
+            this.identifier = identifier;
+            this.verify = verify;
+        }
+
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] single = new byte[ 1 ];
+            int count = this.read( single, 0, 1 );
+            return -1 == count ? -1 : single[ 0 ] & 0xff;
+        }
+
+
+        @Override
+        public int read( byte[] target, int offset, int length ) throws IOException
+        {
+            if( 0 == length )
+            {
+                return 0;
+            }
+            while( ! this.eof && this.end - this.start <= TRAILER_SIZE )
+            {
+                this.fill();
+            }
+            int available = this.end - this.start - ( this.eof ? 0 : TRAILER_SIZE );
+            if( 0 == available )
+            {
+                if( null != this.expected && this.verify )
+                {
+                    verify( (int) this.crc.getValue(), this.expected, this.identifier );
+                    this.expected = null;
+                }
+                return -1;
+            }
+            int count = Math.min( length, available );
+            System.arraycopy( this.buffer, this.start, target, offset, count );
+            if( this.verify )
+            {
+                this.crc.update( target, offset, count );
+            }
+            this.start += count;
+            this.emitted += count;
+            return count;
+        }
+
+
+        private void fill() throws IOException
+        {
+            System.arraycopy( this.buffer, this.start, this.buffer, 0, this.end - this.start );
+            this.end -= this.start;
+            this.start = 0;
+            int read = this.stored.read( this.buffer, this.end, this.buffer.length - this.end );
+            if( -1 == read )
+            {
+                this.eof = true;
+                int remaining = this.end - this.start;
+                if( remaining >= TRAILER_SIZE && isTrailer( this.buffer, this.end - TRAILER_SIZE, this.emitted + remaining ) )
+                {
+                    this.expected = trailerChecksum( this.buffer, this.end - TRAILER_SIZE );
+                    this.end -= TRAILER_SIZE;
+                }
+                else
+                {
+                    checkUnchecksummed( this.identifier );
+                }
+            }
+            else
+            {
+                this.end += read;
+            }
+        }
+
+
+        @Override
+        public void close() throws IOException
+        {
+            this.stored.close();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import net.manniche.xor.utils.RepositoryUtilities;
+
+
+/**
+ * Persistent reference counts of the chunks stored by a
+ * {@link ChunkingStorageProvider}, keyed by the hex encoded SHA-256 digest
+ * of the chunk. Every change is appended to a log file as the raw digest
+ * followed by the change in count; the log is replayed and compacted to one
+ * record per chunk when the index is opened.
+ *
+ * Not thread safe; the ChunkingStorageProvider orders changes to each chunk.
+ *
+ * @author Steen Manniche
+ */
+final class ChunkIndex
+{
+    private static final Logger Log = Logger.getLogger( ChunkIndex.class.getName() );
+
+    private static final int DIGEST_SIZE = 32;
+    private static final int RECORD_SIZE = DIGEST_SIZE + 4;
+
+    private final File file;
+    private final Map<String, Integer> counts = new HashMap<String, Integer>();
+    private RandomAccessFile log;
+
+    ChunkIndex( File file ) throws IOException
+    {
+        this.file = file;
+        if( file.exists() )
+        {
+            this.replay();
+        }
+        this.compact();
+    }
+
+
+    private void replay() throws IOException
+    {
+        DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( this.file ) ) );
+        long records = 0;
+        try
+        {
+            byte[] digest = new byte[ DIGEST_SIZE ];
+            while( true )
+            {
+                in.readFully( digest );
+                this.apply( RepositoryUtilities.toHex( digest ), in.readInt() );
+                records++;
+            }
+        }
+        catch( EOFException ex )
+        {
+            // end of the log, or a record torn by a crash
+        }
+        finally
+        {
+            in.close();
+        }
+        Log.info( String.format( "Replayed %s chunk index records from %s, %s chunks stored", records, this.file, this.counts.size() ) );
+    }
+
+
+    /**
+     * Rewrites the log with one record per chunk.
+     */
+    private void compact() throws IOException
+    {
+        File compacted = new File( this.file.getPath() + ".tmp" );
+        RandomAccessFile out = new RandomAccessFile( compacted, "rw" );
+        try
+        {
+            out.setLength( 0 );
+            ByteBuffer records = ByteBuffer.allocate( 64 * RECORD_SIZE );
+            for( Map.Entry<String, Integer> entry : this.counts.entrySet() )
+            {
+                if( ! records.hasRemaining() )
+                {
+                    out.write( records.array(), 0, records.position() );
+                    records.clear();
+                }
+                records.put( fromHex( entry.getKey() ) );
+                records.putInt( entry.getValue() );
+            }
+            out.write( records.array(), 0, records.position() );
+            out.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+        if( ! compacted.renameTo( this.file ) && ! ( this.file.delete() && compacted.renameTo( this.file ) ) )
+        {
+            throw new IOException( String.format( "Could not replace %s with %s", this.file, compacted ) );
+        }
+        this.log = new RandomAccessFile( this.file, "rw" );
+        this.log.seek( this.log.length() );
+    }
+
+
+    /**
+     * @return true if the chunk is stored and referenced
+     */
+    boolean contains( String digest )
+    {
+        return this.counts.containsKey( digest );
+    }
+
+
+    /**
+     * Changes the reference count of a chunk.
+     *
+     * @return the new reference count; at 0 the chunk is no longer in the
+     * index and should be deleted
+     */
+    int add( String digest, int delta ) throws IOException
+    {
+        ByteBuffer record = ByteBuffer.allocate( RECORD_SIZE );
+        record.put( fromHex( digest ) );
+        record.putInt( delta );
+        this.log.write( record.array() );
+        return this.apply( digest, delta );
+    }
+
+
+    private int apply( String digest, int delta )
+    {
+        Integer current = this.counts.get( digest );
+        int count = ( null == current ? 0 : current ) + delta;
+        if( count > 0 )
+        {
+            this.counts.put( digest, count );
+        }
+        else
+        {
+            this.counts.remove( digest );
+        }
+        return count;
+    }
+
+
+    /**
+     * Forces the log to disk.
+     */
+    void sync() throws IOException
+    {
+        this.log.getFD().sync();
+    }
+
+
+    int size()
+    {
+        return this.counts.size();
+    }
+
+
+    void close() throws IOException
+    {
+        this.log.close();
+    }
+
+
+    private static byte[] fromHex( String hex )
+    {
+        byte[] bytes = new byte[ hex.length() / 2 ];
+        for( int i = 0; i < bytes.length; i++ )
+        {
+            bytes[ i ] = (byte) Integer.parseInt( hex.substring( 2 * i, 2 * i + 2 ), 16 );
+        }
+        return bytes;
+    }
+}
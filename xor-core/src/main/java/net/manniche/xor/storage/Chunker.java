@@ -0,0 +1,126 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Splits a stream into content defined chunks. Chunk boundaries are placed
+ * where a rolling gear hash over the last 64 bytes matches a bit mask, so an
+ * insertion or deletion in an object only changes the chunks around it, and
+ * the chunks of a new version of an object mostly equal those of the old one.
+ *
+ * Chunks are between 16KB and 256KB, 64KB on average. At most one maximal
+ * chunk is held in memory.
+ *
+ * @author Steen Manniche
+ */
+final class Chunker
+{
+    static final int MIN_CHUNK_SIZE = 16 * 1024;
+    static final int MAX_CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * Sixteen bits must be zero, giving 64KB chunks on average.
+     */
+    private static final long MASK = 0xffff000000000000L;
+
+    private static final long[] GEAR = new long[ 256 ];
+
+    static
+    {
+        // fixed seed: boundaries must be the same in every run
+        Random random = new Random( 0x584f52L );
+        for( int i = 0; i < GEAR.length; i++ )
+        {
+            GEAR[ i ] = random.nextLong();
+        }
+    }
+
+    private final InputStream in;
+    private long remaining;
+    private final byte[] buffer = new byte[ MAX_CHUNK_SIZE ];
+    private int filled;
+
+    /**
+     * @param in the stream to split, of which exactly {@code length} bytes
+     * are read
+     */
+    Chunker( InputStream in, long length )
+    {
+        this.in = in;
+        this.remaining = length;
+    }
+
+
+    /**
+     * @return the next chunk, or null when the stream is exhausted
+     */
+    byte[] next() throws IOException
+    {
+        while( this.filled < this.buffer.length && this.remaining > 0 )
+        {
+            int count = this.in.read( this.buffer, this.filled, (int) Math.min( this.buffer.length - this.filled, this.remaining ) );
+            if( -1 == count )
+            {
+                throw new EOFException( String.format( "Stream ended %s bytes early", this.remaining ) );
+            }
+            this.filled += count;
+            this.remaining -= count;
+        }
+        if( 0 == this.filled )
+        {
+            return null;
+        }
+
+        int cut = cut( this.buffer, this.filled );
+        byte[] chunk = Arrays.copyOf( this.buffer, cut );
+        System.arraycopy( this.buffer, cut, this.buffer, 0, this.filled - cut );
+        this.filled -= cut;
+        return chunk;
+    }
+
+
+    /**
+     * @return the length of the chunk starting at the beginning of
+     * {@code data}
+     */
+    static int cut( byte[] data, int length )
+    {
+        if( length <= MIN_CHUNK_SIZE )
+        {
+            return length;
+        }
+        long hash = 0;
+        for( int i = MIN_CHUNK_SIZE - 64; i < length; i++ )
+        {
+            hash = ( hash << 1 ) + GEAR[ data[ i ] & 0xff ];
+            if( i >= MIN_CHUNK_SIZE && 0 == ( hash & MASK ) )
+            {
+                return i + 1;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,753 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.manniche.xor.types.ObjectRepositoryContentType;
+import net.manniche.xor.utils.RepositoryUtilities;
+
+
+/**
+ * Stores large objects as content defined chunks, so that chunks shared by
+ * several objects, or by several versions of the same object, are only
+ * stored once.
+ *
+ * Objects of at least {@code xor.chunking.min_object_size} bytes (1MB by
+ * default) are split by a {@link Chunker}. Each chunk is stored in the chunk
+ * path under the hex encoded SHA-256 digest of its contents, spread over
+ * the subdirectories of the {@link FanOutLayout#getConfigured() configured
+ * fan-out layout}, and the object itself is stored as a manifest listing
+ * its chunks:
+ * <pre>
+ *   magic "XORM" (4 bytes) | version (1 byte) | length (8 bytes) | chunk count (4 bytes)
+ *   per chunk: digest (32 bytes) | chunk length (4 bytes)
+ * </pre>
+ * Smaller objects, and objects stored before chunking was enabled, are
+ * passed through unchanged, except that a smaller object starting with the
+ * magic is prefixed with the magic and version 0, so that it is never taken
+ * for a manifest. Objects stored before chunking was enabled are not
+ * escaped, and must not start with the magic.
+ *
+ * The chunks are reference counted in a {@link ChunkIndex}. A chunk is
+ * referenced before the manifest naming it is saved, and released after
+ * the manifest has been replaced or deleted; it is deleted as soon as its
+ * last reference is released. A crash between the two steps can leave a
+ * chunk referenced that no manifest names, but never the other way around.
+ *
+ * @author Steen Manniche
+ */
+public class ChunkingStorageProvider extends DelegatingStorageProvider implements ContentTypeAwareStorageProvider
+{
+    private static final Logger Log = Logger.getLogger( ChunkingStorageProvider.class.getName() );
+
+    private static final byte[] MAGIC = { 'X', 'O', 'R', 'M' };
+    private static final byte VERSION = 1;
+    private static final byte[] ESCAPE = { 'X', 'O', 'R', 'M', 0 };
+    private static final int HEADER_SIZE = 17;
+    private static final int DIGEST_SIZE = 32;
+
+    /**
+     * Read in place of a manifest from an escaped object.
+     */
+    private static final Manifest ESCAPED = new Manifest( -1 );
+
+    private final String chunkPath;
+    private final FanOutLayout layout;
+    private final long minObjectSize;
+    private final ChunkIndex index;
+    private final StripedLock chunkLocks = new StripedLock();
+    private final StripedLock objectLocks = new StripedLock();
+
+    /**
+     * Chunks objects of at least {@code xor.chunking.min_object_size} bytes.
+     *
+     * @param delegate the storage holding chunks, manifests and small objects
+     * @param chunkPath the storage path of the chunks, ending with a separator
+     * @param indexFile the file holding the reference counts of the chunks
+     */
+    public ChunkingStorageProvider( StorageProvider delegate, String chunkPath, File indexFile ) throws IOException
+    {
+        this( delegate, chunkPath, indexFile, Long.getLong( "xor.chunking.min_object_size", 1024 * 1024 ) );
+    }
+
+
+    public ChunkingStorageProvider( StorageProvider delegate, String chunkPath, File indexFile, long minObjectSize ) throws IOException
+    {
+        super( delegate );
+        this.chunkPath = chunkPath;
+        this.layout = FanOutLayout.getConfigured();
+        this.minObjectSize = minObjectSize;
+        this.index = new ChunkIndex( indexFile );
+    }
+
+
+    @Override
+    public URI save( byte[] object, String storagePath ) throws IOException
+    {
+        return this.save( object, storagePath, null );
+    }
+
+
+    @Override
+    public URI save( byte[] object, String storagePath, ObjectRepositoryContentType contentType ) throws IOException
+    {
+        if( object.length < this.minObjectSize )
+        {
+            return this.saveSmall( object, storagePath, contentType );
+        }
+        return this.save( new ByteArrayInputStream( object ), object.length, storagePath );
+    }
+
+
+    @Override
+    public void save( byte[] object, URI uri, String storagePath ) throws IOException
+    {
+        this.save( object, uri, storagePath, null );
+    }
+
+
+    @Override
+    public void save( byte[] object, URI uri, String storagePath, ObjectRepositoryContentType contentType ) throws IOException
+    {
+        if( object.length < this.minObjectSize )
+        {
+            Lock lock = this.objectLocks.get( uri );
+            lock.lock();
+            try
+            {
+                Manifest previous = this.readManifest( uri );
+                this.saveSmall( object, uri, storagePath, contentType );
+                this.release( previous );
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+        else
+        {
+            this.save( new ByteArrayInputStream( object ), object.length, uri, storagePath );
+        }
+    }
+
+
+    @Override
+    public URI save( InputStream object, long length, String storagePath ) throws IOException
+    {
+        if( length < this.minObjectSize )
+        {
+            PushbackInputStream in = new PushbackInputStream( object, MAGIC.length );
+            if( Headers.startsWith( in, MAGIC ) )
+            {
+                return super.save( Headers.prepend( ESCAPE, in ), ESCAPE.length + length, storagePath );
+            }
+            return super.save( in, length, storagePath );
+        }
+        Manifest manifest = this.storeChunks( object, length );
+        try
+        {
+            return super.save( manifest.toBytes(), storagePath );
+        }
+        catch( IOException ex )
+        {
+            this.release( manifest );
+            throw ex;
+        }
+    }
+
+
+    @Override
+    public void save( InputStream object, long length, URI uri, String storagePath ) throws IOException
+    {
+        Lock lock = this.objectLocks.get( uri );
+        lock.lock();
+        try
+        {
+            Manifest previous = this.readManifest( uri );
+            if( length < this.minObjectSize )
+            {
+                PushbackInputStream in = new PushbackInputStream( object, MAGIC.length );
+                if( Headers.startsWith( in, MAGIC ) )
+                {
+                    super.save( Headers.prepend( ESCAPE, in ), ESCAPE.length + length, uri, storagePath );
+                }
+                else
+                {
+                    super.save( in, length, uri, storagePath );
+                }
+            }
+            else
+            {
+                Manifest manifest = this.storeChunks( object, length );
+                try
+                {
+                    super.save( manifest.toBytes(), uri, storagePath );
+                }
+                catch( IOException ex )
+                {
+                    this.release( manifest );
+                    throw ex;
+                }
+            }
+            this.release( previous );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public BatchResult<URI> saveAll( List<byte[]> objects, String storagePath ) throws IOException
+    {
+        return BatchOperations.saveAll( this, objects, storagePath );
+    }
+
+
+    @Override
+    public BatchResult<Void> saveAll( List<byte[]> objects, List<URI> uris, String storagePath ) throws IOException
+    {
+        return BatchOperations.saveAll( this, objects, uris, storagePath );
+    }
+
+
+    @Override
+    public byte[] get( URI identifier ) throws IOException
+    {
+        byte[] stored = super.get( identifier );
+        if( ! Headers.hasMagic( stored, MAGIC ) )
+        {
+            return stored;
+        }
+        if( Headers.hasMagic( stored, ESCAPE ) )
+        {
+            return Arrays.copyOfRange( stored, ESCAPE.length, stored.length );
+        }
+        Manifest manifest = Manifest.read( new DataInputStream( new ByteArrayInputStream( stored, MAGIC.length, stored.length - MAGIC.length ) ), identifier );
+        if( manifest.length > Integer.MAX_VALUE )
+        {
+            throw new IOException( String.format( "Object %s of %s bytes is too large for a byte array", identifier, manifest.length ) );
+        }
+        byte[] object = new byte[ (int) manifest.length ];
+        int offset = 0;
+        for( int i = 0; i < manifest.digests.size(); i++ )
+        {
+            byte[] chunk = super.get( this.chunkURI( manifest.digests.get( i ) ) );
+            if( chunk.length != manifest.lengths.get( i ) || offset + chunk.length > object.length )
+            {
+                throw new IOException( String.format( "Chunk %s of object %s has length %s, expected %s", manifest.digests.get( i ), identifier, chunk.length, manifest.lengths.get( i ) ) );
+            }
+            System.arraycopy( chunk, 0, object, offset, chunk.length );
+            offset += chunk.length;
+        }
+        return object;
+    }
+
+
+    @Override
+    public BatchResult<byte[]> getAll( List<URI> identifiers ) throws IOException
+    {
+        return BatchOperations.getAll( this, identifiers );
+    }
+
+
+    /**
+     * Streams chunked objects one chunk at a time, opening each chunk only
+     * when the previous one has been read.
+     */
+    @Override
+    public InputStream getStream( URI identifier ) throws IOException
+    {
+        Manifest manifest = this.readManifest( identifier );
+        if( null == manifest )
+        {
+            return super.getStream( identifier );
+        }
+        if( ESCAPED == manifest )
+        {
+            InputStream stored = super.getStream( identifier );
+            if( Headers.read( stored, new byte[ ESCAPE.length ] ) < ESCAPE.length )
+            {
+                stored.close();
+                throw new EOFException( String.format( "Object %s ended within its escape", identifier ) );
+            }
+            return stored;
+        }
+        return new ChunkInputStream( manifest );
+    }
+
+
+    /**
+     * Reads only the parts of the chunks that overlap the range.
+     */
+    @Override
+    public byte[] get( URI identifier, long offset, int length ) throws IOException
+    {
+        Manifest manifest = this.readManifest( identifier );
+        if( null == manifest )
+        {
+            return super.get( identifier, offset, length );
+        }
+        if( ESCAPED == manifest )
+        {
+            RepositoryUtilities.rangeLength( Long.MAX_VALUE, offset, length );
+            return super.get( identifier, ESCAPE.length + offset, length );
+        }
+        byte[] range = new byte[ RepositoryUtilities.rangeLength( manifest.length, offset, length ) ];
+        int filled = 0;
+        long chunkStart = 0;
+        for( int i = 0; i < manifest.digests.size() && filled < range.length; i++ )
+        {
+            int chunkLength = manifest.lengths.get( i );
+            long position = offset + filled - chunkStart;
+            if( position < chunkLength )
+            {
+                int expected = (int) Math.min( chunkLength - position, range.length - filled );
+                byte[] part = super.get( this.chunkURI( manifest.digests.get( i ) ), position, expected );
+                if( part.length != expected )
+                {
+                    throw new IOException( String.format( "Chunk %s of object %s is shorter than its manifest says", manifest.digests.get( i ), identifier ) );
+                }
+                System.arraycopy( part, 0, range, filled, part.length );
+                filled += part.length;
+            }
+            chunkStart += chunkLength;
+        }
+        return range;
+    }
+
+
+    @Override
+    public long getLength( URI identifier ) throws IOException
+    {
+        Manifest manifest = this.readManifest( identifier );
+        if( null == manifest )
+        {
+            return super.getLength( identifier );
+        }
+        if( ESCAPED == manifest )
+        {
+            return super.getLength( identifier ) - ESCAPE.length;
+        }
+        return manifest.length;
+    }
+
+
+    @Override
+    public void delete( URI identifier ) throws IOException
+    {
+        Lock lock = this.objectLocks.get( identifier );
+        lock.lock();
+        try
+        {
+            Manifest manifest = this.readManifest( identifier );
+            super.delete( identifier );
+            this.release( manifest );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public BatchResult<Void> deleteAll( List<URI> identifiers ) throws IOException
+    {
+        return BatchOperations.deleteAll( this, identifiers );
+    }
+
+
+    /**
+     * @return the number of distinct chunks stored
+     */
+    public int getChunkCount()
+    {
+        synchronized( this.index )
+        {
+            return this.index.size();
+        }
+    }
+
+
+    @Override
+    public void close()
+    {
+        synchronized( this.index )
+        {
+            try
+            {
+                this.index.close();
+            }
+            catch( IOException ex )
+            {
+                Log.log( Level.WARNING, String.format( "Could not close chunk index: %s", ex.getMessage() ), ex );
+            }
+        }
+        super.close();
+    }
+
+
+    private URI saveSmall( byte[] object, String storagePath, ObjectRepositoryContentType contentType ) throws IOException
+    {
+        object = Headers.escape( object, MAGIC, ESCAPE );
+        if( null != contentType && this.delegate instanceof ContentTypeAwareStorageProvider )
+        {
+            return ( (ContentTypeAwareStorageProvider) this.delegate ).save( object, storagePath, contentType );
+        }
+        return super.save( object, storagePath );
+    }
+
+
+    private void saveSmall( byte[] object, URI uri, String storagePath, ObjectRepositoryContentType contentType ) throws IOException
+    {
+        object = Headers.escape( object, MAGIC, ESCAPE );
+        if( null != contentType && this.delegate instanceof ContentTypeAwareStorageProvider )
+        {
+            ( (ContentTypeAwareStorageProvider) this.delegate ).save( object, uri, storagePath, contentType );
+        }
+        else
+        {
+            super.save( object, uri, storagePath );
+        }
+    }
+
+
+    /**
+     * Splits {@code object} into chunks, stores the chunks not stored
+     * already and references all of them. The references are forced to disk
+     * before returning, so that the manifest can safely be saved.
+     */
+    private Manifest storeChunks( InputStream object, long length ) throws IOException
+    {
+        Manifest manifest = new Manifest( length );
+        MessageDigest sha = newDigest();
+        Chunker chunker = new Chunker( object, length );
+        int stored = 0;
+        try
+        {
+            byte[] chunk;
+            while( null != ( chunk = chunker.next() ) )
+            {
+                String digest = RepositoryUtilities.toHex( sha.digest( chunk ) );
+                Lock lock = this.chunkLocks.get( digest );
+                lock.lock();
+                try
+                {
+                    boolean present;
+                    synchronized( this.index )
+                    {
+                        present = this.index.contains( digest );
+                    }
+                    if( ! present )
+                    {
+                        super.save( chunk, this.chunkURI( digest ), this.chunkPath + this.layout.getRelativeDirectory( digest ) );
+                        stored++;
+                    }
+                    synchronized( this.index )
+                    {
+                        this.index.add( digest, 1 );
+                    }
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+                manifest.add( digest, chunk.length );
+            }
+            synchronized( this.index )
+            {
+                this.index.sync();
+            }
+        }
+        catch( IOException ex )
+        {
+            this.release( manifest );
+            throw ex;
+        }
+        Log.fine( String.format( "Stored %s of %s chunks of a %s byte object", stored, manifest.digests.size(), length ) );
+        return manifest;
+    }
+
+
+    /**
+     * Drops the references of {@code manifest}, deleting the chunks that
+     * are no longer referenced. Failures are logged; they only leave
+     * unreferenced chunks behind.
+     */
+    private void release( Manifest manifest )
+    {
+        if( null == manifest )
+        {
+            return;
+        }
+        for( String digest : manifest.digests )
+        {
+            Lock lock = this.chunkLocks.get( digest );
+            lock.lock();
+            try
+            {
+                int count;
+                synchronized( this.index )
+                {
+                    count = this.index.add( digest, -1 );
+                }
+                if( 0 == count )
+                {
+                    super.delete( this.chunkURI( digest ) );
+                }
+            }
+            catch( IOException ex )
+            {
+                Log.log( Level.WARNING, String.format( "Could not release chunk %s: %s", digest, ex.getMessage() ), ex );
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+
+    /**
+     * @return the manifest stored at {@code identifier}, {@link #ESCAPED} if
+     * an escaped object is stored there, or null if nothing or an unchunked
+     * object is stored there
+     */
+    private Manifest readManifest( URI identifier ) throws IOException
+    {
+        InputStream stored;
+        try
+        {
+            stored = super.getStream( identifier );
+        }
+        catch( FileNotFoundException ex )
+        {
+            return null;
+        }
+        DataInputStream in = new DataInputStream( stored );
+        try
+        {
+            byte[] magic = new byte[ MAGIC.length ];
+            try
+            {
+                in.readFully( magic );
+            }
+            catch( EOFException ex )
+            {
+                return null;
+            }
+            if( ! Headers.hasMagic( magic, MAGIC ) )
+            {
+                return null;
+            }
+            return Manifest.read( in, identifier );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+
+    private URI chunkURI( String digest ) throws IOException
+    {
+        try
+        {
+            return RepositoryUtilities.generateURI( this.delegate.getScheme(), this.chunkPath, digest, this.layout );
+        }
+        catch( URISyntaxException ex )
+        {
+            throw new IOException( String.format( "Could not construct identifier of chunk %s: %s", digest, ex.getMessage() ), ex );
+        }
+    }
+
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance( "SHA-256" );
+        }
+        catch( NoSuchAlgorithmException ex )
+        {
+            throw new IllegalStateException( "SHA-256 is not available", ex );
+        }
+    }
+
+
+    /**
+     * The chunks of an object, in order.
+     */
+    private static final class Manifest
+    {
+        private final long length;
+        private final List<String> digests = new ArrayList<String>();
+        private final List<Integer> lengths = new ArrayList<Integer>();
+
+        Manifest( long length )
+        {
+            this.length = length;
+        }
+
+
+        void add( String digest, int chunkLength )
+        {
+            this.digests.add( digest );
+            this.lengths.add( chunkLength );
+        }
+
+
+        byte[] toBytes() throws IOException
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream( HEADER_SIZE + this.digests.size() * ( DIGEST_SIZE + 4 ) );
+            DataOutputStream out = new DataOutputStream( bytes );
+            out.write( MAGIC );
+            out.writeByte( VERSION );
+            out.writeLong( this.length );
+            out.writeInt( this.digests.size() );
+            for( int i = 0; i < this.digests.size(); i++ )
+            {
+                String digest = this.digests.get( i );
+                for( int j = 0; j < digest.length(); j += 2 )
+                {
+                    out.writeByte( Integer.parseInt( digest.substring( j, j + 2 ), 16 ) );
+                }
+                out.writeInt( this.lengths.get( i ) );
+            }
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+
+        /**
+         * Reads a manifest whose magic has been consumed from {@code in}.
+         *
+         * @return the manifest, or {@link #ESCAPED} if an escaped object
+         * follows the magic
+         */
+        static Manifest read( DataInputStream in, URI identifier ) throws IOException
+        {
+            byte version = in.readByte();
+            if( ESCAPE[ MAGIC.length ] == version )
+            {
+                return ESCAPED;
+            }
+            if( VERSION != version )
+            {
+                throw new IOException( String.format( "Manifest of %s has unknown version %s", identifier, version ) );
+            }
+            Manifest manifest = new Manifest( in.readLong() );
+            int count = in.readInt();
+            byte[] digest = new byte[ DIGEST_SIZE ];
+            for( int i = 0; i < count; i++ )
+            {
+                in.readFully( digest );
+                manifest.add( RepositoryUtilities.toHex( digest ), in.readInt() );
+            }
+            return manifest;
+        }
+    }
+
+
+    /**
+     * Reads the chunks of a manifest in order, holding at most one chunk
+     * stream open.
+     */
+    private final class ChunkInputStream extends InputStream
+    {
+        private final Manifest manifest;
+        private int next;
+        private InputStream current;
+
+        ChunkInputStream( Manifest manifest )
+        {
+            this.manifest = manifest;
+        }
+
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] single = new byte[ 1 ];
+            int count = this.read( single, 0, 1 );
+            return -1 == count ? -1 : single[ 0 ] & 0xff;
+        }
+
+
+        @Override
+        public int read( byte[] buffer, int offset, int length ) throws IOException
+        {
+            if( 0 == length )
+            {
+                return 0;
+            }
+            while( true )
+            {
+                if( null == this.current )
+                {
+                    if( this.next == this.manifest.digests.size() )
+                    {
+                        return -1;
+                    }
+                    this.current = ChunkingStorageProvider.super.getStream( chunkURI( this.manifest.digests.get( this.next++ ) ) );
+                }
+                int count = this.current.read( buffer, offset, length );
+                if( -1 != count )
+                {
+                    return count;
+                }
+                this.current.close();
+                this.current = null;
+            }
+        }
+
+
+        @Override
+        public void close() throws IOException
+        {
+            this.next = this.manifest.digests.size();
+            if( null != this.current )
+            {
+                this.current.close();
+                this.current = null;
+            }
+        }
+    }
+}
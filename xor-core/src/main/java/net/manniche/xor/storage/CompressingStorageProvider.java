@@ -0,0 +1,447 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import net.manniche.xor.types.ObjectRepositoryContentType;
+import net.manniche.xor.utils.RepositoryUtilities;
+
+
+/**
+ * Compresses objects on their way into the underlying storage and
+ * decompresses them on the way out, so that more objects fit on disk and in
+ * the page cache.
+ *
+ * Every stored object starts with a small header recording the codec and
+ * the original length:
+ * <pre>
+ *   magic "XORZ" (4 bytes) | codec (1 byte) | original length (8 bytes) | payload
+ * </pre>
+ * Objects without the header, stored before compression was enabled, are
+ * returned unchanged.
+ *
+ * Objects of the content types listed in {@code xor.compression.content_types}
+ * (by default {@code DUBLIN_CORE}) are always compressed. Other objects are
+ * compressed only if they do not start with the signature of an already
+ * compressed format and a sample of them compresses well. Streamed objects
+ * are stored with the header but uncompressed, since their compressed length
+ * is not known before they have been read.
+ *
+ * @author Steen Manniche
+ */
+public class CompressingStorageProvider extends DelegatingStorageProvider implements ContentTypeAwareStorageProvider
+{
+    private static final Logger Log = Logger.getLogger( CompressingStorageProvider.class.getName() );
+
+    private static final byte[] MAGIC = { 'X', 'O', 'R', 'Z' };
+    static final int HEADER_SIZE = 13;
+
+    static final byte NONE = 0;
+    static final byte DEFLATE = 1;
+
+    /**
+     * Objects smaller than this are not worth the CPU time of compressing.
+     * They are still stored with the header, so that an object starting with
+     * the magic bytes is never mistaken for an encoded one.
+     */
+    private static final int MIN_SIZE = 256;
+    private static final int SAMPLE_SIZE = 8 * 1024;
+
+    /**
+     * A sample must shrink to this fraction of its size for the object to be
+     * compressed.
+     */
+    private static final double SAMPLE_RATIO = 0.9;
+
+    /**
+     * Deflate cannot compress better than this, so a header claiming a
+     * longer original than the payload can inflate to is damaged.
+     */
+    private static final int MAX_DEFLATE_RATIO = 1032;
+
+    /**
+     * Leading bytes of formats that are compressed already: gzip, zip, png,
+     * jpeg, bzip2 and xz.
+     */
+    private static final byte[][] COMPRESSED_SIGNATURES = {
+        { 0x1f, (byte) 0x8b },
+        { 'P', 'K', 3, 4 },
+        { (byte) 0x89, 'P', 'N', 'G' },
+        { (byte) 0xff, (byte) 0xd8, (byte) 0xff },
+        { 'B', 'Z', 'h' },
+        { (byte) 0xfd, '7', 'z', 'X', 'Z', 0 }
+    };
+
+    private final Set<String> compressibleTypes;
+
+    /**
+     * Always compresses the content types listed, comma separated, in the
+     * system property {@code xor.compression.content_types}.
+     */
+    public CompressingStorageProvider( StorageProvider delegate )
+    {
+        this( delegate, new HashSet<String>( Arrays.asList( System.getProperty( "xor.compression.content_types", "DUBLIN_CORE" ).split( "," ) ) ) );
+    }
+
+
+    /**
+     * @param delegate the storage holding the compressed objects
+     * @param compressibleTypes names of the content types that are always
+     * compressed
+     */
+    public CompressingStorageProvider( StorageProvider delegate, Set<String> compressibleTypes )
+    {
+        super( delegate );
+        this.compressibleTypes = compressibleTypes;
+    }
+
+
+    @Override
+    public URI save( byte[] object, String storagePath ) throws IOException
+    {
+        return this.save( object, storagePath, null );
+    }
+
+
+    @Override
+    public URI save( byte[] object, String storagePath, ObjectRepositoryContentType contentType ) throws IOException
+    {
+        return super.save( this.encode( object, contentType ), storagePath );
+    }
+
+
+    @Override
+    public void save( byte[] object, URI uri, String storagePath ) throws IOException
+    {
+        this.save( object, uri, storagePath, null );
+    }
+
+
+    @Override
+    public void save( byte[] object, URI uri, String storagePath, ObjectRepositoryContentType contentType ) throws IOException
+    {
+        super.save( this.encode( object, contentType ), uri, storagePath );
+    }
+
+
+    @Override
+    public URI save( InputStream object, long length, String storagePath ) throws IOException
+    {
+        return super.save( withHeader( object, length ), HEADER_SIZE + length, storagePath );
+    }
+
+
+    @Override
+    public void save( InputStream object, long length, URI uri, String storagePath ) throws IOException
+    {
+        super.save( withHeader( object, length ), HEADER_SIZE + length, uri, storagePath );
+    }
+
+
+    @Override
+    public BatchResult<URI> saveAll( List<byte[]> objects, String storagePath ) throws IOException
+    {
+        return super.saveAll( this.encodeAll( objects ), storagePath );
+    }
+
+
+    @Override
+    public BatchResult<Void> saveAll( List<byte[]> objects, List<URI> uris, String storagePath ) throws IOException
+    {
+        return super.saveAll( this.encodeAll( objects ), uris, storagePath );
+    }
+
+
+    @Override
+    public byte[] get( URI identifier ) throws IOException
+    {
+        return decode( super.get( identifier ), identifier );
+    }
+
+
+    @Override
+    public BatchResult<byte[]> getAll( List<URI> identifiers ) throws IOException
+    {
+        BatchResult<byte[]> stored = super.getAll( identifiers );
+        BatchResult<byte[]> result = new BatchResult<byte[]>( stored.size() );
+        for( int i = 0; i < stored.size(); i++ )
+        {
+            try
+            {
+                result.succeeded( i, decode( stored.get( i ), identifiers.get( i ) ) );
+            }
+            catch( IOException ex )
+            {
+                result.failed( i, ex );
+            }
+        }
+        return result;
+    }
+
+
+    @Override
+    public InputStream getStream( URI identifier ) throws IOException
+    {
+        PushbackInputStream stored = new PushbackInputStream( super.getStream( identifier ), HEADER_SIZE );
+        byte[] header = new byte[ HEADER_SIZE ];
+        int read = Headers.read( stored, header );
+        if( read < HEADER_SIZE || ! Headers.hasMagic( header, MAGIC ) )
+        {
+            stored.unread( header, 0, read );
+            return stored;
+        }
+        switch( header[ MAGIC.length ] )
+        {
+            case NONE:
+                return stored;
+            case DEFLATE:
+                return new InflaterInputStream( stored );
+            default:
+                stored.close();
+                throw new IOException( String.format( "Object %s is encoded with unknown codec %s", identifier, header[ MAGIC.length ] ) );
+        }
+    }
+
+
+    /**
+     * Ranges of uncompressed objects are read directly from the underlying
+     * storage; compressed objects are inflated up to the end of the range.
+     */
+    @Override
+    public byte[] get( URI identifier, long offset, int length ) throws IOException
+    {
+        byte[] header = super.get( identifier, 0, HEADER_SIZE );
+        if( header.length < HEADER_SIZE || ! Headers.hasMagic( header, MAGIC ) )
+        {
+            return super.get( identifier, offset, length );
+        }
+        if( NONE == header[ MAGIC.length ] )
+        {
+            long objectLength = ByteBuffer.wrap( header ).getLong( MAGIC.length + 1 );
+            return super.get( identifier, HEADER_SIZE + offset, RepositoryUtilities.rangeLength( objectLength, offset, length ) );
+        }
+        InputStream object = this.getStream( identifier );
+        try
+        {
+            return RepositoryUtilities.readRange( object, offset, length );
+        }
+        finally
+        {
+            object.close();
+        }
+    }
+
+
+    @Override
+    public long getLength( URI identifier ) throws IOException
+    {
+        byte[] header = super.get( identifier, 0, HEADER_SIZE );
+        if( header.length == HEADER_SIZE && Headers.hasMagic( header, MAGIC ) )
+        {
+            return ByteBuffer.wrap( header ).getLong( MAGIC.length + 1 );
+        }
+        return super.getLength( identifier );
+    }
+
+
+    private List<byte[]> encodeAll( List<byte[]> objects )
+    {
+        List<byte[]> encoded = new ArrayList<byte[]>( objects.size() );
+        for( byte[] object : objects )
+        {
+            encoded.add( this.encode( object, null ) );
+        }
+        return encoded;
+    }
+
+
+    /**
+     * Prefixes {@code object} with the header, compressing it if its content
+     * type or a sample says it is worth it.
+     */
+    byte[] encode( byte[] object, ObjectRepositoryContentType contentType )
+    {
+        boolean compress;
+        if( object.length < MIN_SIZE )
+        {
+            compress = false;
+        }
+        else if( null != contentType && this.compressibleTypes.contains( contentType.toString() ) )
+        {
+            compress = true;
+        }
+        else
+        {
+            compress = ! isCompressed( object ) && samplesWell( object );
+        }
+
+        if( compress )
+        {
+            byte[] compressed = deflate( object, 0, object.length, HEADER_SIZE );
+            if( compressed.length < HEADER_SIZE + object.length )
+            {
+                writeHeader( compressed, DEFLATE, object.length );
+                return compressed;
+            }
+        }
+        byte[] stored = new byte[ HEADER_SIZE + object.length ];
+        writeHeader( stored, NONE, object.length );
+        System.arraycopy( object, 0, stored, HEADER_SIZE, object.length );
+        return stored;
+    }
+
+
+    static byte[] decode( byte[] stored, URI identifier ) throws IOException
+    {
+        if( stored.length < HEADER_SIZE || ! Headers.hasMagic( stored, MAGIC ) )
+        {
+            return stored;
+        }
+        long length = ByteBuffer.wrap( stored ).getLong( MAGIC.length + 1 );
+        switch( stored[ MAGIC.length ] )
+        {
+            case NONE:
+                return Arrays.copyOfRange( stored, HEADER_SIZE, stored.length );
+            case DEFLATE:
+                long payload = stored.length - HEADER_SIZE;
+                if( length < 0 || length > Integer.MAX_VALUE - 8 || length > payload * MAX_DEFLATE_RATIO )
+                {
+                    throw new IOException( String.format( "Compressed object %s is corrupt: header claims %s bytes from a %s byte payload", identifier, length, payload ) );
+                }
+                byte[] object = new byte[ (int) length ];
+                Inflater inflater = new Inflater();
+                try
+                {
+                    inflater.setInput( stored, HEADER_SIZE, stored.length - HEADER_SIZE );
+                    int inflated = 0;
+                    while( inflated < object.length )
+                    {
+                        int count = inflater.inflate( object, inflated, object.length - inflated );
+                        if( 0 == count && ( inflater.finished() || inflater.needsInput() ) )
+                        {
+                            throw new EOFException( String.format( "Compressed object %s is truncated", identifier ) );
+                        }
+                        inflated += count;
+                    }
+                }
+                catch( DataFormatException ex )
+                {
+                    throw new IOException( String.format( "Compressed object %s is corrupt: %s", identifier, ex.getMessage() ), ex );
+                }
+                finally
+                {
+                    inflater.end();
+                }
+                return object;
+            default:
+                throw new IOException( String.format( "Object %s is encoded with unknown codec %s", identifier, stored[ MAGIC.length ] ) );
+        }
+    }
+
+
+    private static boolean isCompressed( byte[] object )
+    {
+        for( byte[] signature : COMPRESSED_SIGNATURES )
+        {
+            if( object.length >= signature.length && Arrays.equals( signature, Arrays.copyOf( object, signature.length ) ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private static boolean samplesWell( byte[] object )
+    {
+        int sample = Math.min( object.length, SAMPLE_SIZE );
+        int compressed = deflate( object, 0, sample, 0 ).length;
+        boolean worthIt = compressed < sample * SAMPLE_RATIO;
+        if( ! worthIt )
+        {
+            Log.fine( String.format( "Sample of %s bytes only compressed to %s bytes, storing uncompressed", sample, compressed ) );
+        }
+        return worthIt;
+    }
+
+
+    /**
+     * Deflates {@code length} bytes of {@code data} from {@code offset} with
+     * the fastest compression level, leaving {@code headroom} bytes free at
+     * the start of the result.
+     */
+    private static byte[] deflate( byte[] data, int offset, int length, int headroom )
+    {
+        Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+        try
+        {
+            deflater.setInput( data, offset, length );
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream( headroom + length / 2 + 64 );
+            out.write( new byte[ headroom ], 0, headroom );
+            byte[] buffer = new byte[ 8 * 1024 ];
+            while( ! deflater.finished() )
+            {
+                int count = deflater.deflate( buffer );
+                out.write( buffer, 0, count );
+            }
+            return out.toByteArray();
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+
+    private static void writeHeader( byte[] target, byte codec, long length )
+    {
+        ByteBuffer header = ByteBuffer.wrap( target );
+        header.put( MAGIC );
+        header.put( codec );
+        header.putLong( length );
+    }
+
+
+    /**
+     * Prefixes a stream with the header of an uncompressed object.
+     */
+    private static InputStream withHeader( InputStream object, long length )
+    {
+        byte[] header = new byte[ HEADER_SIZE ];
+        writeHeader( header, NONE, length );
+        return Headers.prepend( header, object );
+    }
+}
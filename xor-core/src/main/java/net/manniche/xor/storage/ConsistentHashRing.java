@@ -0,0 +1,138 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * Assigns keys to nodes by consistent hashing. Every node is placed on a
+ * ring of 64 bit hashes at {@code virtualNodes} points derived from its
+ * name, and a key belongs to the node of the first point at or after the
+ * hash of the key. The points of a node depend only on its name, so
+ * adding a node only takes keys from the nodes next to its points, about
+ * {@code 1 / nodes} of all keys, and removing one only hands its own keys
+ * to the others.
+ *
+ * Instances are immutable and may be shared between threads.
+ *
+ * @author Steen Manniche
+ */
+final class ConsistentHashRing
+{
+    private final List<String> nodes;
+    private final long[] points;
+    private final int[] owners;
+
+    /**
+     * @param nodes the names of the nodes, which must be distinct
+     * @param virtualNodes the number of points of each node
+     */
+    ConsistentHashRing( List<String> nodes, int virtualNodes )
+    {
+        if( nodes.isEmpty() || virtualNodes < 1 )
+        {
+            throw new IllegalArgumentException( String.format( "Cannot build a ring of %s nodes with %s points each", nodes.size(), virtualNodes ) );
+        }
+        this.nodes = Collections.unmodifiableList( new ArrayList<String>( nodes ) );
+        int count = nodes.size() * virtualNodes;
+        long[][] entries = new long[ count ][];
+        for( int node = 0; node < nodes.size(); node++ )
+        {
+            for( int i = 0; i < virtualNodes; i++ )
+            {
+                entries[ node * virtualNodes + i ] = new long[] { hash( nodes.get( node ) + "#" + i ), node };
+            }
+        }
+        Arrays.sort( entries, new Comparator<long[]>()
+        {
+            @Override
+            public int compare( long[] a, long[] b )
+            {
+                if( a[ 0 ] != b[ 0 ] )
+                {
+                    return a[ 0 ] < b[ 0 ] ? -1 : 1;
+                }
+                // ties, however unlikely, go to the node listed first
+                return a[ 1 ] < b[ 1 ] ? -1 : ( a[ 1 ] > b[ 1 ] ? 1 : 0 );
+            }
+        } );
+        this.points = new long[ count ];
+        this.owners = new int[ count ];
+        for( int i = 0; i < count; i++ )
+        {
+            this.points[ i ] = entries[ i ][ 0 ];
+            this.owners[ i ] = (int) entries[ i ][ 1 ];
+        }
+    }
+
+
+    /**
+     * @return the index of the node owning {@code key}
+     */
+    int owner( String key )
+    {
+        int index = Arrays.binarySearch( this.points, hash( key ) );
+        if( index < 0 )
+        {
+            index = -index - 1;
+        }
+        return this.owners[ index == this.points.length ? 0 : index ];
+    }
+
+
+    /**
+     * @return the node owning {@code key}
+     */
+    String node( String key )
+    {
+        return this.nodes.get( this.owner( key ) );
+    }
+
+
+    List<String> getNodes()
+    {
+        return this.nodes;
+    }
+
+
+    /**
+     * FNV-1a over the characters of {@code key}, followed by the finalizer
+     * of MurmurHash3 to spread similar keys over the whole ring.
+     */
+    static long hash( String key )
+    {
+        long hash = 0xcbf29ce484222325L;
+        for( int i = 0; i < key.length(); i++ )
+        {
+            hash ^= key.charAt( i );
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.IOException;
+import java.net.URI;
+import net.manniche.xor.types.ObjectRepositoryContentType;
+
+
+/**
+ * A {@link StorageProvider} that can make use of the content type of the
+ * objects it stores, for instance to decide how to encode them.
+ *
+ * @author Steen Manniche
+ */
+public interface ContentTypeAwareStorageProvider extends StorageProvider
+{
+    /**
+     * As {@link StorageProvider#save(byte[], java.lang.String)}, for an
+     * object of the given content type.
+     */
+    public URI save( byte[] object, String storagePath, ObjectRepositoryContentType contentType ) throws IOException;
+
+    /**
+     * As {@link StorageProvider#save(byte[], java.net.URI, java.lang.String)},
+     * for an object of the given content type.
+     */
+    public void save( byte[] object, URI uri, String storagePath, ObjectRepositoryContentType contentType ) throws IOException;
+}
@@ -0,0 +1,136 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+
+/**
+ * Set membership filter that answers whether a key may have been added, with
+ * no false negatives and a small rate of false positives. Each slot is a
+ * four bit counter rather than a single bit, so that keys can be removed
+ * again. A counter that overflows stays saturated, trading a permanent false
+ * positive for never producing a false negative.
+ *
+ * @author Steen Manniche
+ */
+public class CountingBloomFilter
+{
+    private static final int HASHES = 7;
+    private static final int SLOTS_PER_KEY = 10;
+    private static final int SATURATED = 15;
+
+    // two counters per byte
+    private final byte[] counters;
+    private final int slots;
+
+    /**
+     * @param expectedKeys the number of keys the filter should hold with a
+     * false positive rate of about 1%
+     */
+    public CountingBloomFilter( int expectedKeys )
+    {
+        this.slots = (int) Math.min( Integer.MAX_VALUE - 1, Math.max( 64L, (long) expectedKeys * SLOTS_PER_KEY ) );
+        this.counters = new byte[ ( this.slots + 1 ) / 2 ];
+    }
+
+
+    public synchronized void add( String key )
+    {
+        long hash = hash( key );
+        for( int i = 0; i < HASHES; i++ )
+        {
+            int slot = this.slot( hash, i );
+            int count = this.get( slot );
+            if( count < SATURATED )
+            {
+                this.set( slot, count + 1 );
+            }
+        }
+    }
+
+
+    /**
+     * Removes a key. Only keys that have been added may be removed.
+     */
+    public synchronized void remove( String key )
+    {
+        long hash = hash( key );
+        for( int i = 0; i < HASHES; i++ )
+        {
+            int slot = this.slot( hash, i );
+            int count = this.get( slot );
+            if( count > 0 && count < SATURATED )
+            {
+                this.set( slot, count - 1 );
+            }
+        }
+    }
+
+
+    /**
+     * @return false if {@code key} has definitely not been added
+     */
+    public synchronized boolean mightContain( String key )
+    {
+        long hash = hash( key );
+        for( int i = 0; i < HASHES; i++ )
+        {
+            if( 0 == this.get( this.slot( hash, i ) ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private int slot( long hash, int i )
+    {
+        int combined = (int) hash + i * (int) ( hash >>> 32 );
+        return ( combined & Integer.MAX_VALUE ) % this.slots;
+    }
+
+
+    private int get( int slot )
+    {
+        return this.counters[ slot >>> 1 ] >>> ( ( slot & 1 ) << 2 ) & 0xf;
+    }
+
+
+    private void set( int slot, int count )
+    {
+        int shift = ( slot & 1 ) << 2;
+        int cleared = this.counters[ slot >>> 1 ] & ~( 0xf << shift );
+        this.counters[ slot >>> 1 ] = (byte) ( cleared | count << shift );
+    }
+
+
+    /**
+     * 64 bit FNV-1a hash of the characters of {@code key}.
+     */
+    private static long hash( String key )
+    {
+        long hash = 0xcbf29ce484222325L;
+        for( int i = 0; i < key.length(); i++ )
+        {
+            hash ^= key.charAt( i );
+            hash *= 0x100000001b3L;
+        }
+        return hash ^ hash >>> 29;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.List;
+
+
+/**
+ * Base class for storage providers that add behaviour on top of another
+ * {@link StorageProvider}. All operations are forwarded to the delegate;
+ * subclasses override the ones they are interested in.
+ *
+ * @author Steen Manniche
+ */
+public abstract class DelegatingStorageProvider implements StorageProvider
+{
+
+    protected final StorageProvider delegate;
+
+    protected DelegatingStorageProvider( StorageProvider delegate )
+    {
+        this.delegate = delegate;
+    }
+
+
+    @Override
+    public URI save( byte[] object, String storagePath ) throws IOException
+    {
+        return this.delegate.save( object, storagePath );
+    }
+
+
+    @Override
+    public void save( byte[] object, URI uri, String storagePath ) throws IOException
+    {
+        this.delegate.save( object, uri, storagePath );
+    }
+
+
+    @Override
+    public URI save( InputStream object, long length, String storagePath ) throws IOException
+    {
+        return this.delegate.save( object, length, storagePath );
+    }
+
+
+    @Override
+    public void save( InputStream object, long length, URI uri, String storagePath ) throws IOException
+    {
+        this.delegate.save( object, length, uri, storagePath );
+    }
+
+
+    @Override
+    public byte[] get( URI identifier ) throws IOException
+    {
+        return this.delegate.get( identifier );
+    }
+
+
+    @Override
+    public InputStream getStream( URI identifier ) throws IOException
+    {
+        return this.delegate.getStream( identifier );
+    }
+
+
+    @Override
+    public long getLength( URI identifier ) throws IOException
+    {
+        return this.delegate.getLength( identifier );
+    }
+
+
+    @Override
+    public byte[] get( URI identifier, long offset, int length ) throws IOException
+    {
+        return this.delegate.get( identifier, offset, length );
+    }
+
+
+    @Override
+    public void delete( URI identifier ) throws IOException
+    {
+        this.delegate.delete( identifier );
+    }
+
+
+    @Override
+    public BatchResult<URI> saveAll( List<byte[]> objects, String storagePath ) throws IOException
+    {
+        return this.delegate.saveAll( objects, storagePath );
+    }
+
+
+    @Override
+    public BatchResult<Void> saveAll( List<byte[]> objects, List<URI> uris, String storagePath ) throws IOException
+    {
+        return this.delegate.saveAll( objects, uris, storagePath );
+    }
+
+
+    @Override
+    public BatchResult<byte[]> getAll( List<URI> identifiers ) throws IOException
+    {
+        return this.delegate.getAll( identifiers );
+    }
+
+
+    @Override
+    public BatchResult<Void> deleteAll( List<URI> identifiers ) throws IOException
+    {
+        return this.delegate.deleteAll( identifiers );
+    }
+
+
+    @Override
+    public String getScheme()
+    {
+        return this.delegate.getScheme();
+    }
+
+
+    @Override
+    public void close()
+    {
+        this.delegate.close();
+    }
+
+
+    /**
+     * @return true if the objects of this provider are stored by content,
+     * so that saves without an identifier name identical objects alike and
+     * count their references, as {@link #getReferenceCount(URI)} tells.
+     * Overridden by the providers that keep the identifiers and reference
+     * counts of the storage below them.
+     */
+    boolean isReferenceCounted()
+    {
+        return false;
+    }
+
+
+    /**
+     * @return the number of references to the object identified by
+     * {@code identifier}, or 0 if it is not stored
+     * @throws IOException if the count could not be read
+     * @throws UnsupportedOperationException if the objects are not
+     * reference counted
+     */
+    int getReferenceCount( URI identifier ) throws IOException
+    {
+        throw new UnsupportedOperationException( "The objects are not reference counted" );
+    }
+
+
+    /**
+     * @return true if the objects of {@code storage} are stored by content
+     * and reference counted
+     */
+    static boolean isReferenceCounted( StorageProvider storage )
+    {
+        if( storage instanceof DelegatingStorageProvider )
+        {
+            return ( (DelegatingStorageProvider) storage ).isReferenceCounted();
+        }
+        return storage instanceof ReferenceCountedStorageProvider && ( (ReferenceCountedStorageProvider) storage ).isReferenceCounted();
+    }
+
+
+    /**
+     * @return the number of references {@code storage} holds to the object
+     * identified by {@code identifier}, which must be reference counted
+     */
+    static int getReferenceCount( StorageProvider storage, URI identifier ) throws IOException
+    {
+        if( storage instanceof DelegatingStorageProvider )
+        {
+            return ( (DelegatingStorageProvider) storage ).getReferenceCount( identifier );
+        }
+        return ( (ReferenceCountedStorageProvider) storage ).getReferenceCount( identifier );
+    }
+}
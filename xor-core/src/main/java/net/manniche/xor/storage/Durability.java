@@ -0,0 +1,59 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+
+/**
+ * How much a write must be on stable storage before it is acknowledged. Used
+ * by the {@link JournalingStorageProvider}.
+ *
+ * @author Steen Manniche
+ */
+public enum Durability
+{
+
+    /**
+     * The write is acknowledged as soon as it has been handed to the
+     * operating system. It reaches the disk with the next commit of another
+     * write or the next checkpoint, and may be lost on power failure.
+     */
+    NONE,
+    /**
+     * The write is acknowledged when the journal has been forced to disk. The
+     * commit waits a short window for other writers, so that concurrent
+     * writes share a single fsync.
+     */
+    BATCHED,
+    /**
+     * The write is acknowledged when the journal has been forced to disk,
+     * starting the commit immediately. Writers that are already waiting
+     * still share the fsync, but none is waited for.
+     */
+    PER_WRITE;
+
+
+    /**
+     * @return the durability named by the system property
+     * {@code xor.storage.durability}, or {@link #BATCHED} if it is not set
+     */
+    public static Durability getConfigured()
+    {
+        return Durability.valueOf( System.getProperty( "xor.storage.durability", BATCHED.name() ).toUpperCase() );
+    }
+}
@@ -0,0 +1,1301 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PushbackInputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.manniche.xor.utils.RepositoryUtilities;
+
+
+/**
+ * Stores large objects as Reed-Solomon coded shards spread over several
+ * directories, so that an object survives the loss of any
+ * {@code parityShards} of its shards at a fraction of the space mirroring
+ * would take: 4 data and 2 parity shards store an object in 1.5 times its
+ * size and survive the loss of two directories.
+ *
+ * Objects of at least {@code minObjectSize} bytes stored below the root
+ * path are cut into stripes of {@code dataShards} cells. Cell {@code i} of
+ * every stripe is appended to data shard {@code i}, and the parity cells
+ * computed from the stripe to the parity shards; the last stripe is padded
+ * with zeros. Shard {@code i} is stored in shard path
+ * {@code i % shardPaths.size()}, spread over the subdirectories of the
+ * {@link FanOutLayout#getConfigured() configured fan-out layout}, and the
+ * object itself as a manifest:
+ * <pre>
+ *   magic "XORE" (4 bytes) | version (1 byte) | length (8 bytes)
+ *   | data shards (1 byte) | parity shards (1 byte) | cell size (4 bytes) | shard name (UTF)
+ * </pre>
+ * Smaller objects, and objects outside the root path, are passed through
+ * unchanged, except that one starting with the magic is prefixed with the
+ * magic and version 0, so that it is never taken for a manifest. A copy of the manifest is stored next to each shard, named by
+ * the identifier of the object, so that an object whose manifest is lost
+ * can still be read as long as {@code dataShards} of its shards and one of
+ * the copies survive.
+ *
+ * Encoding and decoding are pipelined one stripe at a time: every shard is
+ * written, or read, by its own thread through a short queue of cells while
+ * the calling thread codes the next stripe, so the shards are transferred
+ * in parallel and at most a few stripes are held in memory. Reads use the
+ * data shards when they are all present, and otherwise reconstruct the
+ * data from any {@code dataShards} shards.
+ *
+ * Shards are written under a new name before the manifest naming them is
+ * saved, and the shards of the previous version are deleted after it has
+ * been replaced, so a crash leaves at worst unreferenced shards behind.
+ *
+ * @author Steen Manniche
+ */
+public class ErasureCodingStorageProvider extends DelegatingStorageProvider
+{
+    private static final Logger Log = Logger.getLogger( ErasureCodingStorageProvider.class.getName() );
+
+    public static final int DEFAULT_DATA_SHARDS = 4;
+    public static final int DEFAULT_PARITY_SHARDS = 2;
+    public static final int DEFAULT_CELL_SIZE = 64 * 1024;
+    public static final long DEFAULT_MIN_OBJECT_SIZE = 1024 * 1024;
+
+    private static final byte[] MAGIC = { 'X', 'O', 'R', 'E' };
+    private static final byte VERSION = 1;
+    private static final byte[] ESCAPE = { 'X', 'O', 'R', 'E', 0 };
+    private static final int PIPE_DEPTH = 4;
+
+    /**
+     * Read in place of a manifest from an escaped object; it has no shards.
+     */
+    private static final Manifest ESCAPED = new Manifest( -1, 0, 0, 0, "" );
+
+    private final String root;
+    private final List<String> shardPaths;
+    private final FanOutLayout layout;
+    private final ReedSolomon code;
+    private final int cellSize;
+    private final long minObjectSize;
+    private final StripedLock objectLocks = new StripedLock();
+    private final ExecutorService executor;
+
+    /**
+     * Reads the number of data shards from {@code xor.erasure.data_shards}
+     * (default 4), the number of parity shards from
+     * {@code xor.erasure.parity_shards} (default 2), the cell size from
+     * {@code xor.erasure.cell_size} (bytes, default 64KB) and the size of
+     * the smallest coded object from {@code xor.erasure.min_object_size}
+     * (bytes, default 1MB).
+     */
+    public ErasureCodingStorageProvider( StorageProvider delegate, String root, List<String> shardPaths )
+    {
+        this( delegate, root, shardPaths,
+              Integer.getInteger( "xor.erasure.data_shards", DEFAULT_DATA_SHARDS ),
+              Integer.getInteger( "xor.erasure.parity_shards", DEFAULT_PARITY_SHARDS ),
+              Integer.getInteger( "xor.erasure.cell_size", DEFAULT_CELL_SIZE ),
+              Long.getLong( "xor.erasure.min_object_size", DEFAULT_MIN_OBJECT_SIZE ) );
+    }
+
+
+    /**
+     * @param delegate the storage holding manifests, shards and small objects
+     * @param root the storage path below which objects are coded, ending
+     * with a separator
+     * @param shardPaths the storage paths of the shards, each ending with a
+     * separator, preferably one per disk and at least as many as there are
+     * shards
+     * @param dataShards the number of shards holding the data of an object
+     * @param parityShards the number of shards that may be lost
+     * @param cellSize the number of bytes each shard holds of a stripe
+     * @param minObjectSize the length of the shortest object coded
+     */
+    public ErasureCodingStorageProvider( StorageProvider delegate, String root, List<String> shardPaths, int dataShards, int parityShards, int cellSize, long minObjectSize )
+    {
+        super( delegate );
+        if( shardPaths.isEmpty() )
+        {
+            throw new IllegalArgumentException( "At least one shard path is needed" );
+        }
+        if( cellSize < 1 )
+        {
+            throw new IllegalArgumentException( String.format( "Invalid cell size %s", cellSize ) );
+        }
+        this.root = root;
+        this.shardPaths = new ArrayList<String>( shardPaths );
+        this.layout = FanOutLayout.getConfigured();
+        this.code = new ReedSolomon( dataShards, parityShards );
+        this.cellSize = cellSize;
+        this.minObjectSize = minObjectSize;
+        if( shardPaths.size() < dataShards + parityShards )
+        {
+            Log.warning( String.format( "%s shards are spread over %s paths; losing one path loses several shards", dataShards + parityShards, shardPaths.size() ) );
+        }
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool( new ThreadFactory()
+        {
+            @Override
+            public Thread newThread( Runnable runnable )
+            {
+                Thread thread = new Thread( runnable, "xor-erasure-" + count.incrementAndGet() );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+    }
+
+
+    @Override
+    public URI save( byte[] object, String storagePath ) throws IOException
+    {
+        if( ! this.isCoded( storagePath, object.length ) )
+        {
+            return super.save( Headers.escape( object, MAGIC, ESCAPE ), storagePath );
+        }
+        return this.save( new ByteArrayInputStream( object ), object.length, storagePath );
+    }
+
+
+    @Override
+    public void save( byte[] object, URI uri, String storagePath ) throws IOException
+    {
+        if( ! this.isCoded( uri.getPath(), object.length ) )
+        {
+            this.replace( uri, null, object.length, object, storagePath );
+            return;
+        }
+        this.save( new ByteArrayInputStream( object ), object.length, uri, storagePath );
+    }
+
+
+    @Override
+    public URI save( InputStream object, long length, String storagePath ) throws IOException
+    {
+        if( ! this.isCoded( storagePath, length ) )
+        {
+            PushbackInputStream in = new PushbackInputStream( object, MAGIC.length );
+            if( Headers.startsWith( in, MAGIC ) )
+            {
+                return super.save( Headers.prepend( ESCAPE, in ), ESCAPE.length + length, storagePath );
+            }
+            return super.save( in, length, storagePath );
+        }
+        Manifest manifest = this.storeShards( object, length );
+        URI uri;
+        try
+        {
+            uri = super.save( manifest.toBytes(), storagePath );
+        }
+        catch( IOException ex )
+        {
+            this.deleteShards( manifest );
+            throw ex;
+        }
+        try
+        {
+            this.saveCopies( uri, manifest );
+        }
+        catch( IOException ex )
+        {
+            this.deleteCopies( uri, manifest );
+            super.delete( uri );
+            this.deleteShards( manifest );
+            throw ex;
+        }
+        return uri;
+    }
+
+
+    @Override
+    public void save( InputStream object, long length, URI uri, String storagePath ) throws IOException
+    {
+        this.replace( uri, object, length, null, storagePath );
+    }
+
+
+    @Override
+    public BatchResult<URI> saveAll( List<byte[]> objects, String storagePath ) throws IOException
+    {
+        return BatchOperations.saveAll( this, objects, storagePath );
+    }
+
+
+    @Override
+    public BatchResult<Void> saveAll( List<byte[]> objects, List<URI> uris, String storagePath ) throws IOException
+    {
+        return BatchOperations.saveAll( this, objects, uris, storagePath );
+    }
+
+
+    @Override
+    public byte[] get( URI identifier ) throws IOException
+    {
+        Manifest manifest;
+        try
+        {
+            byte[] stored = super.get( identifier );
+            if( ! Headers.hasMagic( stored, MAGIC ) )
+            {
+                return stored;
+            }
+            if( Headers.hasMagic( stored, ESCAPE ) )
+            {
+                return Arrays.copyOfRange( stored, ESCAPE.length, stored.length );
+            }
+            manifest = Manifest.read( new DataInputStream( new ByteArrayInputStream( stored, MAGIC.length, stored.length - MAGIC.length ) ), identifier );
+        }
+        catch( FileNotFoundException ex )
+        {
+            manifest = this.readCopy( identifier );
+            if( null == manifest )
+            {
+                throw ex;
+            }
+        }
+        if( manifest.length > Integer.MAX_VALUE )
+        {
+            throw new IOException( String.format( "Object %s of %s bytes is too large for a byte array", identifier, manifest.length ) );
+        }
+        InputStream in = new DecodingInputStream( identifier, manifest );
+        try
+        {
+            return RepositoryUtilities.readFully( in, manifest.length );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+
+    @Override
+    public BatchResult<byte[]> getAll( List<URI> identifiers ) throws IOException
+    {
+        return BatchOperations.getAll( this, identifiers );
+    }
+
+
+    @Override
+    public InputStream getStream( URI identifier ) throws IOException
+    {
+        Manifest manifest = this.readManifest( identifier );
+        if( null == manifest )
+        {
+            return super.getStream( identifier );
+        }
+        if( ESCAPED == manifest )
+        {
+            InputStream stored = super.getStream( identifier );
+            if( Headers.read( stored, new byte[ ESCAPE.length ] ) < ESCAPE.length )
+            {
+                stored.close();
+                throw new EOFException( String.format( "Object %s ended within its escape", identifier ) );
+            }
+            return stored;
+        }
+        return new DecodingInputStream( identifier, manifest );
+    }
+
+
+    /**
+     * Reads the cells of the data shards that overlap the range. A stripe
+     * whose cells cannot all be read is reconstructed from the other
+     * shards.
+     */
+    @Override
+    public byte[] get( URI identifier, long offset, int length ) throws IOException
+    {
+        Manifest manifest = this.readManifest( identifier );
+        if( null == manifest )
+        {
+            return super.get( identifier, offset, length );
+        }
+        if( ESCAPED == manifest )
+        {
+            RepositoryUtilities.rangeLength( Long.MAX_VALUE, offset, length );
+            return super.get( identifier, ESCAPE.length + offset, length );
+        }
+        byte[] range = new byte[ RepositoryUtilities.rangeLength( manifest.length, offset, length ) ];
+        long stripeSize = (long) manifest.dataShards * manifest.cellSize;
+        int filled = 0;
+        while( filled < range.length )
+        {
+            long position = offset + filled;
+            long stripe = position / stripeSize;
+            int cell = (int) ( ( position % stripeSize ) / manifest.cellSize );
+            int within = (int) ( position % manifest.cellSize );
+            int count = Math.min( manifest.cellSize - within, range.length - filled );
+            byte[] part;
+            try
+            {
+                part = super.get( this.shardURI( manifest, cell ), stripe * manifest.cellSize + within, count );
+                if( part.length != count )
+                {
+                    throw new IOException( String.format( "Shard %s of %s is shorter than its manifest says", cell, identifier ) );
+                }
+            }
+            catch( IOException ex )
+            {
+                Log.fine( String.format( "Reconstructing stripe %s of %s: %s", stripe, identifier, ex.getMessage() ) );
+                byte[] data = this.reconstruct( identifier, manifest, stripe, cell );
+                part = Arrays.copyOfRange( data, within, within + count );
+            }
+            System.arraycopy( part, 0, range, filled, count );
+            filled += count;
+        }
+        return range;
+    }
+
+
+    @Override
+    public long getLength( URI identifier ) throws IOException
+    {
+        Manifest manifest = this.readManifest( identifier );
+        if( null == manifest )
+        {
+            return super.getLength( identifier );
+        }
+        if( ESCAPED == manifest )
+        {
+            return super.getLength( identifier ) - ESCAPE.length;
+        }
+        return manifest.length;
+    }
+
+
+    @Override
+    public void delete( URI identifier ) throws IOException
+    {
+        Lock lock = this.objectLocks.get( identifier );
+        lock.lock();
+        try
+        {
+            Manifest manifest = this.readManifest( identifier );
+            // the copies go first, so they cannot bring a deleted object back
+            this.deleteCopies( identifier, manifest );
+            try
+            {
+                super.delete( identifier );
+            }
+            catch( FileNotFoundException ex )
+            {
+                if( null == manifest )
+                {
+                    throw ex;
+                }
+            }
+            this.deleteShards( manifest );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public BatchResult<Void> deleteAll( List<URI> identifiers ) throws IOException
+    {
+        return BatchOperations.deleteAll( this, identifiers );
+    }
+
+
+    @Override
+    public void close()
+    {
+        this.executor.shutdown();
+        try
+        {
+            if( ! this.executor.awaitTermination( 1, TimeUnit.MINUTES ) )
+            {
+                Log.warning( "Gave up waiting for shard transfers" );
+            }
+        }
+        catch( InterruptedException ex )
+        {
+            Thread.currentThread().interrupt();
+        }
+        super.close();
+    }
+
+
+    /**
+     * Stores an object under an existing identifier, coded or not, and
+     * deletes the shards of the version it replaces.
+     */
+    private void replace( URI uri, InputStream stream, long length, byte[] object, String storagePath ) throws IOException
+    {
+        Lock lock = this.objectLocks.get( uri );
+        lock.lock();
+        try
+        {
+            Manifest previous = this.readManifest( uri );
+            if( null != object )
+            {
+                this.deleteCopies( uri, previous );
+                super.save( Headers.escape( object, MAGIC, ESCAPE ), uri, storagePath );
+            }
+            else if( ! this.isCoded( uri.getPath(), length ) )
+            {
+                this.deleteCopies( uri, previous );
+                PushbackInputStream in = new PushbackInputStream( stream, MAGIC.length );
+                if( Headers.startsWith( in, MAGIC ) )
+                {
+                    super.save( Headers.prepend( ESCAPE, in ), ESCAPE.length + length, uri, storagePath );
+                }
+                else
+                {
+                    super.save( in, length, uri, storagePath );
+                }
+            }
+            else
+            {
+                Manifest manifest = this.storeShards( stream, length );
+                try
+                {
+                    // the copies name the new shards, which are complete
+                    this.saveCopies( uri, manifest );
+                    super.save( manifest.toBytes(), uri, storagePath );
+                }
+                catch( IOException ex )
+                {
+                    this.deleteCopies( uri, manifest );
+                    if( null != previous )
+                    {
+                        this.saveCopies( uri, previous );
+                    }
+                    this.deleteShards( manifest );
+                    throw ex;
+                }
+            }
+            this.deleteShards( previous );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Codes {@code object} into shards, each written by its own thread.
+     * If any shard cannot be written, the shards written are deleted.
+     */
+    private Manifest storeShards( InputStream object, long length ) throws IOException
+    {
+        int dataShards = this.code.getDataShards();
+        int shards = dataShards + this.code.getParityShards();
+        final Manifest manifest = new Manifest( length, dataShards, this.code.getParityShards(), this.cellSize, UUID.randomUUID().toString().replace( "-", "" ) );
+        final long shardLength = manifest.getShardLength();
+
+        CellPipe[] pipes = new CellPipe[ shards ];
+        List<Future<Void>> writers = new ArrayList<Future<Void>>( shards );
+        for( int i = 0; i < shards; i++ )
+        {
+            final CellPipe pipe = new CellPipe();
+            final URI uri = this.shardURI( manifest, i );
+            final String path = this.shardDirectory( i, manifest.name + "." + i );
+            pipes[ i ] = pipe;
+            writers.add( this.executor.submit( new Callable<Void>()
+            {
+                @Override
+                public Void call() throws IOException
+                {
+                    try
+                    {
+                        ErasureCodingStorageProvider.super.save( new PipeInputStream( pipe ), shardLength, uri, path );
+                        return null;
+                    }
+                    finally
+                    {
+                        pipe.close();
+                    }
+                }
+            } ) );
+        }
+
+        IOException coding = null;
+        try
+        {
+            long remaining = length;
+            while( remaining > 0 )
+            {
+                byte[][] data = new byte[ dataShards ][];
+                for( int i = 0; i < dataShards; i++ )
+                {
+                    int count = (int) Math.min( this.cellSize, remaining );
+                    data[ i ] = Arrays.copyOf( RepositoryUtilities.readFully( object, count ), this.cellSize );
+                    remaining -= count;
+                }
+                byte[][] parity = new byte[ shards - dataShards ][ this.cellSize ];
+                this.code.encode( data, parity );
+                for( int i = 0; i < shards; i++ )
+                {
+                    pipes[ i ].put( i < dataShards ? data[ i ] : parity[ i - dataShards ] );
+                }
+            }
+            for( CellPipe pipe : pipes )
+            {
+                pipe.finish();
+            }
+        }
+        catch( IOException ex )
+        {
+            coding = ex;
+            for( CellPipe pipe : pipes )
+            {
+                pipe.fail( ex );
+            }
+        }
+
+        // a failed writer closes its pipe, so its own failure explains
+        // the failure to code better than the closed pipe does
+        IOException failure = null;
+        for( Future<Void> writer : writers )
+        {
+            try
+            {
+                writer.get();
+            }
+            catch( ExecutionException ex )
+            {
+                Throwable cause = ex.getCause();
+                if( null == failure && ( null == coding || cause.getCause() != coding ) )
+                {
+                    failure = cause instanceof IOException ? (IOException) cause : new IOException( cause.getMessage(), cause );
+                }
+            }
+            catch( InterruptedException ex )
+            {
+                Thread.currentThread().interrupt();
+                failure = new InterruptedIOException( "Interrupted while writing shards" );
+                break;
+            }
+        }
+        if( null == failure )
+        {
+            failure = coding;
+        }
+        if( null != failure )
+        {
+            this.deleteShards( manifest );
+            throw failure;
+        }
+        Log.fine( String.format( "Stored a %s byte object as %s shards of %s bytes", length, shards, shardLength ) );
+        return manifest;
+    }
+
+
+    /**
+     * Reads one stripe from any {@code dataShards} shards and decodes it.
+     *
+     * @return the data cell {@code cell} of the stripe
+     */
+    private byte[] reconstruct( URI identifier, Manifest manifest, long stripe, int cell ) throws IOException
+    {
+        int dataShards = manifest.dataShards;
+        int[] present = new int[ dataShards ];
+        byte[][] cells = new byte[ dataShards ][];
+        int found = 0;
+        IOException failure = null;
+        for( int i = 0; i < manifest.getShardCount() && found < dataShards; i++ )
+        {
+            try
+            {
+                byte[] read = super.get( this.shardURI( manifest, i ), stripe * manifest.cellSize, manifest.cellSize );
+                if( read.length == manifest.cellSize )
+                {
+                    present[ found ] = i;
+                    cells[ found ] = read;
+                    found++;
+                }
+            }
+            catch( IOException ex )
+            {
+                failure = ex;
+            }
+        }
+        if( found < dataShards )
+        {
+            throw new IOException( String.format( "Only %s of the %s shards needed to read %s are readable", found, dataShards, identifier ), failure );
+        }
+        byte[] data = new byte[ manifest.cellSize ];
+        ReedSolomon.combine( this.code( manifest ).decoder( present )[ cell ], cells, data );
+        return data;
+    }
+
+
+    /**
+     * Deletes the shards of {@code manifest}. Failures are logged; they only
+     * leave unreferenced shards behind.
+     */
+    private void deleteShards( Manifest manifest )
+    {
+        if( null == manifest )
+        {
+            return;
+        }
+        for( int i = 0; i < manifest.getShardCount(); i++ )
+        {
+            try
+            {
+                super.delete( this.shardURI( manifest, i ) );
+            }
+            catch( FileNotFoundException ex )
+            {
+                // never written, or lost
+            }
+            catch( IOException ex )
+            {
+                Log.log( Level.WARNING, String.format( "Could not delete shard %s of %s: %s", i, manifest.name, ex.getMessage() ), ex );
+            }
+        }
+    }
+
+
+    /**
+     * Stores a copy of the manifest of {@code identifier} next to each of
+     * its shards.
+     */
+    private void saveCopies( URI identifier, Manifest manifest ) throws IOException
+    {
+        byte[] bytes = manifest.toBytes();
+        for( int i = 0; i < manifest.getShardCount(); i++ )
+        {
+            String name = copyName( identifier, i );
+            super.save( bytes, this.shardURI( i, name ), this.shardDirectory( i, name ) );
+        }
+    }
+
+
+    /**
+     * Deletes the copies of {@code manifest} stored for {@code identifier}.
+     * Failures are logged; a copy left behind names shards that are
+     * deleted as well.
+     */
+    private void deleteCopies( URI identifier, Manifest manifest )
+    {
+        if( null == manifest )
+        {
+            return;
+        }
+        for( int i = 0; i < manifest.getShardCount(); i++ )
+        {
+            try
+            {
+                super.delete( this.shardURI( i, copyName( identifier, i ) ) );
+            }
+            catch( FileNotFoundException ex )
+            {
+                // never written, or lost
+            }
+            catch( IOException ex )
+            {
+                Log.log( Level.WARNING, String.format( "Could not delete manifest copy %s of %s: %s", i, identifier, ex.getMessage() ), ex );
+            }
+        }
+    }
+
+
+    /**
+     * Reads the manifest of {@code identifier} from the first readable of
+     * the copies stored with its shards.
+     *
+     * @return the manifest, or null if no copy is readable
+     */
+    private Manifest readCopy( URI identifier ) throws IOException
+    {
+        if( ! this.isCoded( identifier.getPath(), this.minObjectSize ) )
+        {
+            return null;
+        }
+        // a manifest has at least as many copies as the current code has shards
+        int shards = this.code.getDataShards() + this.code.getParityShards();
+        for( int i = 0; i < shards; i++ )
+        {
+            InputStream stored;
+            try
+            {
+                stored = super.getStream( this.shardURI( i, copyName( identifier, i ) ) );
+            }
+            catch( FileNotFoundException ex )
+            {
+                continue;
+            }
+            Manifest manifest = readManifest( stored, identifier );
+            if( null != manifest )
+            {
+                Log.warning( String.format( "The manifest of %s is lost, read copy %s of it", identifier, i ) );
+                return manifest;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * @return the manifest stored at {@code identifier} or, if nothing is
+     * stored there, in one of its copies. {@link #ESCAPED} if an escaped
+     * object is stored there, and null if no manifest is found or an uncoded
+     * object is stored there.
+     */
+    private Manifest readManifest( URI identifier ) throws IOException
+    {
+        InputStream stored;
+        try
+        {
+            stored = super.getStream( identifier );
+        }
+        catch( FileNotFoundException ex )
+        {
+            return this.readCopy( identifier );
+        }
+        return readManifest( stored, identifier );
+    }
+
+
+    /**
+     * Reads a manifest from {@code stored} and closes it.
+     *
+     * @return the manifest, {@link #ESCAPED} if {@code stored} holds an
+     * escaped object, or null if it holds another uncoded object
+     */
+    private static Manifest readManifest( InputStream stored, URI identifier ) throws IOException
+    {
+        DataInputStream in = new DataInputStream( stored );
+        try
+        {
+            byte[] magic = new byte[ MAGIC.length ];
+            try
+            {
+                in.readFully( magic );
+            }
+            catch( EOFException ex )
+            {
+                return null;
+            }
+            return Headers.hasMagic( magic, MAGIC ) ? Manifest.read( in, identifier ) : null;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+
+    /**
+     * @return the code an object was stored with, which need not be the
+     * code new objects are stored with
+     */
+    private ReedSolomon code( Manifest manifest )
+    {
+        if( manifest.dataShards == this.code.getDataShards() && manifest.parityShards == this.code.getParityShards() )
+        {
+            return this.code;
+        }
+        return new ReedSolomon( manifest.dataShards, manifest.parityShards );
+    }
+
+
+    private boolean isCoded( String storagePath, long length )
+    {
+        return length >= this.minObjectSize && null != storagePath && storagePath.startsWith( this.root );
+    }
+
+
+    private String shardPath( int shard )
+    {
+        return this.shardPaths.get( shard % this.shardPaths.size() );
+    }
+
+
+    private URI shardURI( Manifest manifest, int shard ) throws IOException
+    {
+        return this.shardURI( shard, manifest.name + "." + shard );
+    }
+
+
+    /**
+     * @return the identifier of the file {@code name} stored with shard
+     * {@code shard}
+     */
+    private URI shardURI( int shard, String name ) throws IOException
+    {
+        try
+        {
+            return RepositoryUtilities.generateURI( this.delegate.getScheme(), this.shardPath( shard ), name, this.layout );
+        }
+        catch( URISyntaxException ex )
+        {
+            throw new IOException( String.format( "Could not construct identifier of %s in shard path %s: %s", name, shard, ex.getMessage() ), ex );
+        }
+    }
+
+
+    private String shardDirectory( int shard, String name )
+    {
+        return this.shardPath( shard ) + this.layout.getRelativeDirectory( name );
+    }
+
+
+    /**
+     * @return the name of the copy of the manifest of {@code identifier}
+     * stored with shard {@code shard}
+     */
+    private static String copyName( URI identifier, int shard ) throws IOException
+    {
+        String key = UUID.nameUUIDFromBytes( identifier.toString().getBytes( "UTF-8" ) ).toString().replace( "-", "" );
+        return key + "." + shard + ".manifest";
+    }
+
+
+    /**
+     * The coding and shards of an object.
+     */
+    private static final class Manifest
+    {
+        private final long length;
+        private final int dataShards;
+        private final int parityShards;
+        private final int cellSize;
+        private final String name;
+
+        Manifest( long length, int dataShards, int parityShards, int cellSize, String name )
+        {
+            this.length = length;
+            this.dataShards = dataShards;
+            this.parityShards = parityShards;
+            this.cellSize = cellSize;
+            this.name = name;
+        }
+
+
+        int getShardCount()
+        {
+            return this.dataShards + this.parityShards;
+        }
+
+
+        long getStripeCount()
+        {
+            long stripeSize = (long) this.dataShards * this.cellSize;
+            return ( this.length + stripeSize - 1 ) / stripeSize;
+        }
+
+
+        long getShardLength()
+        {
+            return this.getStripeCount() * this.cellSize;
+        }
+
+
+        byte[] toBytes() throws IOException
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream( 64 );
+            DataOutputStream out = new DataOutputStream( bytes );
+            out.write( MAGIC );
+            out.writeByte( VERSION );
+            out.writeLong( this.length );
+            out.writeByte( this.dataShards - 1 );
+            out.writeByte( this.parityShards );
+            out.writeInt( this.cellSize );
+            out.writeUTF( this.name );
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+
+        /**
+         * Reads a manifest whose magic has been consumed from {@code in}.
+         *
+         * @return the manifest, or {@link #ESCAPED} if an escaped object
+         * follows the magic
+         */
+        static Manifest read( DataInputStream in, URI identifier ) throws IOException
+        {
+            byte version = in.readByte();
+            if( ESCAPE[ MAGIC.length ] == version )
+            {
+                return ESCAPED;
+            }
+            if( VERSION != version )
+            {
+                throw new IOException( String.format( "Manifest of %s has unknown version %s", identifier, version ) );
+            }
+            long length = in.readLong();
+            int dataShards = in.readUnsignedByte() + 1;
+            int parityShards = in.readUnsignedByte();
+            int cellSize = in.readInt();
+            return new Manifest( length, dataShards, parityShards, cellSize, in.readUTF() );
+        }
+    }
+
+
+    /**
+     * A short queue of cells between the thread coding an object and the
+     * thread transferring one of its shards.
+     */
+    private static final class CellPipe
+    {
+        private static final byte[] END = new byte[ 0 ];
+
+        private final BlockingQueue<byte[]> cells = new ArrayBlockingQueue<byte[]>( PIPE_DEPTH );
+        private volatile boolean closed;
+        private volatile IOException failure;
+
+        /**
+         * Waits for room for {@code cell}.
+         *
+         * @throws IOException if the other end has been closed
+         */
+        void put( byte[] cell ) throws IOException
+        {
+            try
+            {
+                while( ! this.cells.offer( cell, 100, TimeUnit.MILLISECONDS ) )
+                {
+                    if( this.closed )
+                    {
+                        throw new IOException( "The shard transfer has stopped" );
+                    }
+                }
+            }
+            catch( InterruptedException ex )
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException( "Interrupted while queueing a cell" );
+            }
+        }
+
+
+        /**
+         * Marks the end of the cells, unless the other end has been closed.
+         */
+        void finish() throws IOException
+        {
+            if( ! this.closed )
+            {
+                this.put( END );
+            }
+        }
+
+
+        /**
+         * Ends the cells with a failure, which {@link #take()} throws.
+         */
+        void fail( IOException ex )
+        {
+            this.failure = ex;
+            this.cells.clear();
+            this.cells.offer( END );
+        }
+
+
+        /**
+         * @return the next cell, or null after the last
+         */
+        byte[] take() throws IOException
+        {
+            byte[] cell;
+            try
+            {
+                cell = this.cells.take();
+            }
+            catch( InterruptedException ex )
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException( "Interrupted while waiting for a cell" );
+            }
+            if( END != cell )
+            {
+                return cell;
+            }
+            this.cells.offer( END );
+            if( null != this.failure )
+            {
+                throw new IOException( this.failure.getMessage(), this.failure );
+            }
+            return null;
+        }
+
+
+        void close()
+        {
+            this.closed = true;
+            this.cells.clear();
+        }
+    }
+
+
+    /**
+     * Reads the cells of a pipe as one stream.
+     */
+    private static final class PipeInputStream extends InputStream
+    {
+        private final CellPipe pipe;
+        private byte[] cell = new byte[ 0 ];
+        private int position;
+
+        PipeInputStream( CellPipe pipe )
+        {
+            this.pipe = pipe;
+        }
+
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] single = new byte[ 1 ];
+            int count = this.read( single, 0, 1 );
+            return -1 == count ? -1 : single[ 0 ] & 0xff;
+        }
+
+
+        @Override
+        public int read( byte[] buffer, int offset, int length ) throws IOException
+        {
+            if( 0 == length )
+            {
+                return 0;
+            }
+            if( null == this.cell )
+            {
+                return -1;
+            }
+            if( this.position == this.cell.length )
+            {
+                this.cell = this.pipe.take();
+                this.position = 0;
+                if( null == this.cell )
+                {
+                    return -1;
+                }
+            }
+            int count = Math.min( length, this.cell.length - this.position );
+            System.arraycopy( this.cell, this.position, buffer, offset, count );
+            this.position += count;
+            return count;
+        }
+    }
+
+
+    /**
+     * Decodes an object from {@code dataShards} of its shards, each read
+     * ahead by its own thread. The data shards are preferred, as they need
+     * no decoding.
+     */
+    private final class DecodingInputStream extends InputStream
+    {
+        private final Manifest manifest;
+        private final int[] present;
+        private final CellPipe[] pipes;
+        private final int[][] decoder;
+        private final byte[][] data;
+        private long remaining;
+        private int cell;
+        private int position;
+
+        DecodingInputStream( URI identifier, Manifest manifest ) throws IOException
+        {
+            this.manifest = manifest;
+            int dataShards = manifest.dataShards;
+            this.present = new int[ dataShards ];
+            this.pipes = new CellPipe[ dataShards ];
+            this.data = new byte[ dataShards ][];
+            this.remaining = manifest.length;
+            this.cell = dataShards;
+
+            int found = 0;
+            IOException failure = null;
+            for( int i = 0; i < manifest.getShardCount() && found < dataShards; i++ )
+            {
+                try
+                {
+                    InputStream shard = ErasureCodingStorageProvider.super.getStream( shardURI( manifest, i ) );
+                    this.present[ found ] = i;
+                    this.pipes[ found ] = this.readAhead( shard );
+                    found++;
+                }
+                catch( IOException ex )
+                {
+                    Log.warning( String.format( "Shard %s of %s is unreadable: %s", i, identifier, ex.getMessage() ) );
+                    failure = ex;
+                }
+            }
+            if( found < dataShards )
+            {
+                this.close();
+                throw new IOException( String.format( "Only %s of the %s shards needed to read %s are readable", found, dataShards, identifier ), failure );
+            }
+            this.decoder = this.present[ dataShards - 1 ] == dataShards - 1 ? null : code( manifest ).decoder( this.present );
+        }
+
+
+        private CellPipe readAhead( final InputStream shard )
+        {
+            final CellPipe pipe = new CellPipe();
+            final long stripes = this.manifest.getStripeCount();
+            final int size = this.manifest.cellSize;
+            executor.execute( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for( long i = 0; i < stripes; i++ )
+                        {
+                            pipe.put( RepositoryUtilities.readFully( shard, size ) );
+                        }
+                        pipe.finish();
+                    }
+                    catch( IOException ex )
+                    {
+                        pipe.fail( ex );
+                    }
+                    finally
+                    {
+                        try
+                        {
+                            shard.close();
+                        }
+                        catch( IOException ex )
+                        {
+                            Log.log( Level.FINE, String.format( "Could not close shard: %s", ex.getMessage() ), ex );
+                        }
+                    }
+                }
+            } );
+            return pipe;
+        }
+
+
+        /**
+         * Takes the next cell of every shard read and decodes the data
+         * cells missing among them.
+         */
+        private void nextStripe() throws IOException
+        {
+            int dataShards = this.manifest.dataShards;
+            byte[][] cells = new byte[ dataShards ][];
+            for( int i = 0; i < dataShards; i++ )
+            {
+                cells[ i ] = this.pipes[ i ].take();
+                if( null == cells[ i ] )
+                {
+                    throw new EOFException( String.format( "Shard %s of %s ended early", this.present[ i ], this.manifest.name ) );
+                }
+            }
+            if( null == this.decoder )
+            {
+                System.arraycopy( cells, 0, this.data, 0, dataShards );
+            }
+            else
+            {
+                for( int i = 0; i < dataShards; i++ )
+                {
+                    int index = Arrays.binarySearch( this.present, i );
+                    if( index >= 0 )
+                    {
+                        this.data[ i ] = cells[ index ];
+                    }
+                    else
+                    {
+                        this.data[ i ] = new byte[ this.manifest.cellSize ];
+                        ReedSolomon.combine( this.decoder[ i ], cells, this.data[ i ] );
+                    }
+                }
+            }
+            this.cell = 0;
+            this.position = 0;
+        }
+
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] single = new byte[ 1 ];
+            int count = this.read( single, 0, 1 );
+            return -1 == count ? -1 : single[ 0 ] & 0xff;
+        }
+
+
+        @Override
+        public int read( byte[] buffer, int offset, int length ) throws IOException
+        {
+            if( 0 == length )
+            {
+                return 0;
+            }
+            if( 0 == this.remaining )
+            {
+                return -1;
+            }
+            if( this.cell == this.manifest.dataShards )
+            {
+                this.nextStripe();
+            }
+            int count = (int) Math.min( Math.min( length, this.manifest.cellSize - this.position ), this.remaining );
+            System.arraycopy( this.data[ this.cell ], this.position, buffer, offset, count );
+            this.position += count;
+            this.remaining -= count;
+            if( this.position == this.manifest.cellSize )
+            {
+                this.cell++;
+                this.position = 0;
+            }
+            return count;
+        }
+
+
+        @Override
+        public void close()
+        {
+            this.remaining = 0;
+            for( CellPipe pipe : this.pipes )
+            {
+                if( null != pipe )
+                {
+                    pipe.close();
+                }
+            }
+        }
+    }
+}
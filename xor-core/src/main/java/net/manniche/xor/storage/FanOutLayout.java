@@ -0,0 +1,221 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.manniche.xor.storage;
+
+import java.io.File;
+
+
+/**
+ * Describes how objects are spread over subdirectories of a storage path.
+ * With a fan-out of {@code levels} levels of {@code width} directories, an
+ * object named {@code 123} is placed in e.g. {@code storagePath/3f/a0/123},
+ * where the directory names are derived from a hash of the object name. This
+ * keeps the number of entries in each directory small, even for stores with
+ * millions of objects.
+ *
+ * The {@link #FLAT} layout places every object directly in the storage path.
+ *
+ * @author Steen Manniche
+ */
+public final class FanOutLayout
+{
+    /**
+     * All objects are stored directly in the storage path.
+     */
+    public static final FanOutLayout FLAT = new FanOutLayout( 0, 1 );
+
+    private final int levels;
+    private final int width;
+    private final int bitsPerLevel;
+    private final String directoryFormat;
+
+    /**
+     * @param levels the number of directory levels between the storage path
+     * and the objects
+     * @param width the number of directories on each level, which must be a
+     * power of two no larger than 256
+     * @throws IllegalArgumentException if the layout would need more than 32
+     * bits of the name hash
+     */
+    public FanOutLayout( int levels, int width )
+    {
+        if( levels < 0 || width < 1 || width > 256 || Integer.bitCount( width ) != 1 )
+        {
+            throw new IllegalArgumentException( String.format( "Invalid fan-out layout: %s levels of %s directories", levels, width ) );
+        }
+        this.levels = levels;
+        this.width = width;
+        this.bitsPerLevel = Integer.numberOfTrailingZeros( width );
+        if( this.levels * this.bitsPerLevel > 32 )
+        {
+            throw new IllegalArgumentException( String.format( "Fan-out layout of %s levels of %s directories is too deep", levels, width ) );
+        }
+        this.directoryFormat = width > 16 ? "%02x" : "%x";
+    }
+
+
+    /**
+     * Returns the layout configured through the system properties
+     * {@code xor.storage.fanout_levels} and {@code xor.storage.fanout_width}.
+     * If no levels are configured, the {@link #FLAT} layout is returned. The
+     * width defaults to 256.
+     */
+    public static FanOutLayout getConfigured()
+    {
+        int levels = Integer.getInteger( "xor.storage.fanout_levels", 0 );
+        if( 0 == levels )
+        {
+            return FLAT;
+        }
+        return new FanOutLayout( levels, Integer.getInteger( "xor.storage.fanout_width", 256 ) );
+    }
+
+
+    public int getLevels()
+    {
+        return this.levels;
+    }
+
+
+    public int getWidth()
+    {
+        return this.width;
+    }
+
+
+    public boolean isFlat()
+    {
+        return 0 == this.levels;
+    }
+
+
+    /**
+     * Returns the directories, relative to the storage path, in which the
+     * object named {@code name} is placed, eg. {@code "3f/a0/"}. The flat
+     * layout returns the empty string.
+     */
+    public String getRelativeDirectory( String name )
+    {
+        if( this.isFlat() )
+        {
+            return "";
+        }
+        int hash = hash( name );
+        StringBuilder directory = new StringBuilder( this.levels * 3 );
+        for( int level = 0; level < this.levels; level++ )
+        {
+            int bucket = ( hash >>> ( level * this.bitsPerLevel ) ) & ( this.width - 1 );
+            directory.append( String.format( this.directoryFormat, bucket ) ).append( '/' );
+        }
+        return directory.toString();
+    }
+
+
+    /**
+     * @return the file in which the object named {@code name} is placed
+     * under the storage directory {@code root}
+     */
+    public File resolve( File root, String name )
+    {
+        return new File( new File( root, this.getRelativeDirectory( name ) ), name );
+    }
+
+
+    /**
+     * Finds the current location of {@code file} when a store is being
+     * migrated between the flat layout and this layout: if {@code file} does
+     * not exist, its sharded location (if {@code file} is in the flat
+     * location) or its flat location (if {@code file} is in the sharded
+     * location) is tried instead.
+     *
+     * @return the location at which the file exists, or {@code file} if it
+     * exists nowhere
+     */
+    public File locate( File file )
+    {
+        if( this.isFlat() || file.exists() )
+        {
+            return file;
+        }
+
+        String name = file.getName();
+        File sharded = this.resolve( file.getParentFile(), name );
+        if( sharded.exists() )
+        {
+            return sharded;
+        }
+
+        File root = file.getParentFile();
+        for( int level = 0; level < this.levels && null != root; level++ )
+        {
+            root = root.getParentFile();
+        }
+        if( null != root && this.resolve( root, name ).equals( file ) )
+        {
+            File flat = new File( root, name );
+            if( flat.exists() )
+            {
+                return flat;
+            }
+        }
+        return file;
+    }
+
+
+    /**
+     * 32 bit FNV-1a hash of the name.
+     */
+    private static int hash( String name )
+    {
+        int hash = 0x811c9dc5;
+        for( int i = 0; i < name.length(); i++ )
+        {
+            hash ^= name.charAt( i );
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+
+    @Override
+    public boolean equals( Object other )
+    {
+        if( !( other instanceof FanOutLayout ) )
+        {
+            return false;
+        }
+        FanOutLayout layout = (FanOutLayout) other;
+        return this.levels == layout.levels && ( this.isFlat() || this.width == layout.width );
+    }
+
+
+    @Override
+    public int hashCode()
+    {
+        return this.isFlat() ? 0 : 31 * this.levels + this.width;
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return String.format( "FanOutLayout[%s levels of %s directories]", this.levels, this.width );
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.manniche.xor.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Moves the objects of a flat storage directory into the subdirectories of a
+ * {@link FanOutLayout}. Storage implementations that look up objects through
+ * {@link FanOutLayout#locate(java.io.File)} find objects in either location,
+ * so a migration that was interrupted can be resumed later.
+ *
+ * A content addressed object is moved with two renames, one for its
+ * reference count and one for the object, and a save or delete of the
+ * object in between could lose the object or its count. A storage that is
+ * in use migrates itself by overriding {@link #move(java.io.File, java.io.File)}
+ * to hold the lock of the object around the move, as
+ * {@code FileStorage.migrate} does.
+ *
+ * Usage: {@code FanOutMigration <storage path> [levels] [width]}. Levels and
+ * width default to 2 and 256. Every storage path (eg. the object path and the
+ * content type path) must be migrated separately. Run this way, the
+ * migration takes no locks, and the repository must be stopped while it
+ * runs.
+ *
+ * @author Steen Manniche
+ */
+public class FanOutMigration
+{
+    private static final Logger Log = Logger.getLogger( FanOutMigration.class.getName() );
+
+    private final File root;
+    private final FanOutLayout layout;
+
+    public FanOutMigration( File root, FanOutLayout layout )
+    {
+        this.root = root;
+        this.layout = layout;
+    }
+
+
+    /**
+     * Moves every object found directly in the storage directory to its
+     * location in the fan-out layout. Hidden files and directories are left
+     * alone.
+     *
+     * @return the number of objects moved
+     * @throws IOException if the storage directory cannot be listed
+     */
+    public int migrate() throws IOException
+    {
+        String[] names = this.root.list();
+        if( null == names )
+        {
+            throw new IOException( String.format( "Could not list the storage directory %s", this.root ) );
+        }
+
+        Log.info( String.format( "Migrating up to %s objects in %s to %s", names.length, this.root, this.layout ) );
+        int moved = 0;
+        for( String name : names )
+        {
+            File object = new File( this.root, name );
+            if( name.startsWith( "." ) || ! object.isFile() )
+            {
+                continue;
+            }
+            if( this.move( object, this.layout.resolve( this.root, name ) ) )
+            {
+                moved++;
+                if( 0 == moved % 10000 )
+                {
+                    Log.info( String.format( "Moved %s objects", moved ) );
+                }
+            }
+        }
+        Log.info( String.format( "Moved %s objects from %s", moved, this.root ) );
+        return moved;
+    }
+
+
+    /**
+     * Moves {@code object}, and its reference count if it has one, to
+     * {@code target}.
+     *
+     * @return true if the object was moved
+     */
+    protected boolean move( File object, File target )
+    {
+        File directory = target.getParentFile();
+        if( ! directory.isDirectory() && ! directory.mkdirs() && ! directory.isDirectory() )
+        {
+            Log.severe( String.format( "Could not create directory %s, leaving %s in place", directory, object ) );
+            return false;
+        }
+
+        // content addressed objects carry their reference count with them
+        File count = new File( new File( this.root, ReferenceCounter.REFERENCE_DIRECTORY ), object.getName() );
+        File movedCount = null;
+        if( count.isFile() )
+        {
+            File countDirectory = new File( directory, ReferenceCounter.REFERENCE_DIRECTORY );
+            countDirectory.mkdirs();
+            movedCount = new File( countDirectory, object.getName() );
+            if( ! count.renameTo( movedCount ) )
+            {
+                Log.severe( String.format( "Could not move the reference count of %s, leaving it in place", object ) );
+                return false;
+            }
+        }
+
+        if( ! object.renameTo( target ) )
+        {
+            Log.severe( String.format( "Could not move %s to %s", object, target ) );
+            if( null != movedCount && ! movedCount.renameTo( count ) )
+            {
+                Log.severe( String.format( "Could not move the reference count of %s back to %s", object, count ) );
+            }
+            return false;
+        }
+        return true;
+    }
+
+
+    public static void main( String[] args )
+    {
+        if( args.length < 1 )
+        {
+            usage( null );
+        }
+        int levels = args.length > 1 ? parse( args[ 1 ], "levels" ) : 2;
+        int width = args.length > 2 ? parse( args[ 2 ], "width" ) : 256;
+
+        FanOutLayout layout = null;
+        try
+        {
+            layout = new FanOutLayout( levels, width );
+        }
+        catch( IllegalArgumentException ex )
+        {
+            usage( ex.getMessage() );
+        }
+        try
+        {
+            new FanOutMigration( new File( args[ 0 ] ), layout ).migrate();
+        }
+        catch( IOException ex )
+        {
+            Log.log( Level.SEVERE, ex.getMessage(), ex );
+            System.exit( 1 );
+        }
+    }
+
+
+    private static int parse( String argument, String name )
+    {
+        try
+        {
+            return Integer.parseInt( argument );
+        }
+        catch( NumberFormatException ex )
+        {
+            usage( String.format( "The %s must be a number, not '%s'", name, argument ) );
+            return 0;
+        }
+    }
+
+
+    private static void usage( String error )
+    {
+        if( null != error )
+        {
+            System.err.println( error );
+        }
+        System.err.println( "Usage: FanOutMigration <storage path> [levels] [width]" );
+        System.err.println( "Stop the repository before migrating its storage paths this way." );
+        System.exit( 1 );
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+
+/**
+ * Approximate access frequencies of a large number of keys in little
+ * memory, as a count-min sketch of small saturating counters. Counters are
+ * halved periodically so that keys that were popular a long time ago do not
+ * stay popular forever.
+ *
+ * Not thread safe; callers must synchronize.
+ *
+ * @author Steen Manniche
+ */
+final class FrequencySketch
+{
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = { 0x97cb3127, 0x7f4a7c15, 0x85ebca6b, 0xc2b2ae35 };
+
+    private final byte[][] counters;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param expectedKeys the number of distinct keys expected to be counted
+     */
+    FrequencySketch( int expectedKeys )
+    {
+        int width = Integer.highestOneBit( Math.max( 64, Math.min( expectedKeys, 1 << 24 ) ) - 1 ) << 1;
+        this.counters = new byte[ DEPTH ][ width ];
+        this.mask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+
+    /**
+     * @return the estimated number of times {@code key} has been counted,
+     * at most 15
+     */
+    int estimate( Object key )
+    {
+        int hash = spread( key.hashCode() );
+        int frequency = MAX_COUNT;
+        for( int i = 0; i < DEPTH; i++ )
+        {
+            frequency = Math.min( frequency, this.counters[ i ][ this.index( hash, i ) ] );
+        }
+        return frequency;
+    }
+
+
+    void increment( Object key )
+    {
+        int hash = spread( key.hashCode() );
+        for( int i = 0; i < DEPTH; i++ )
+        {
+            int index = this.index( hash, i );
+            if( this.counters[ i ][ index ] < MAX_COUNT )
+            {
+                this.counters[ i ][ index ]++;
+            }
+        }
+        if( ++this.additions == this.sampleSize )
+        {
+            this.age();
+        }
+    }
+
+
+    private void age()
+    {
+        for( byte[] row : this.counters )
+        {
+            for( int j = 0; j < row.length; j++ )
+            {
+                row[ j ] = (byte) ( row[ j ] >>> 1 );
+            }
+        }
+        this.additions = 0;
+    }
+
+
+    private int index( int hash, int row )
+    {
+        int h = ( hash ^ SEEDS[ row ] ) * 0x9e3779b9;
+        return ( h ^ ( h >>> 16 ) ) & this.mask;
+    }
+
+
+    private static int spread( int hash )
+    {
+        hash ^= hash >>> 17;
+        hash *= 0xed5ad4bb;
+        hash ^= hash >>> 11;
+        return hash;
+    }
+}
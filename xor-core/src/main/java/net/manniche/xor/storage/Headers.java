@@ -0,0 +1,180 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+
+
+/**
+ * Recognises, reads and writes the headers that the storage providers put
+ * in front of the objects they store, each starting with the magic bytes
+ * of its provider.
+ *
+ * @author Steen Manniche
+ */
+final class Headers
+{
+    private Headers()
+    {
+    }
+
+
+    /**
+     * @return true if {@code data} starts with {@code magic}
+     */
+    static boolean hasMagic( byte[] data, byte[] magic )
+    {
+        if( data.length < magic.length )
+        {
+            return false;
+        }
+        for( int i = 0; i < magic.length; i++ )
+        {
+            if( data[ i ] != magic[ i ] )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Reads until {@code buffer} is full or the stream ends, returning the
+     * number of bytes read, so that a stream shorter than a header can be
+     * told from one holding a header.
+     */
+    static int read( InputStream in, byte[] buffer ) throws IOException
+    {
+        int read = 0;
+        while( read < buffer.length )
+        {
+            int count = in.read( buffer, read, buffer.length - read );
+            if( -1 == count )
+            {
+                break;
+            }
+            read += count;
+        }
+        return read;
+    }
+
+
+    /**
+     * @return true if the next bytes of {@code in} are {@code magic}; the
+     * bytes are pushed back, so {@code in} must allow pushing back as many
+     * bytes as {@code magic} has
+     */
+    static boolean startsWith( PushbackInputStream in, byte[] magic ) throws IOException
+    {
+        byte[] prefix = new byte[ magic.length ];
+        int read = read( in, prefix );
+        in.unread( prefix, 0, read );
+        return read == magic.length && hasMagic( prefix, magic );
+    }
+
+
+    /**
+     * @return {@code object} prefixed with {@code escape} if it starts with
+     * {@code magic}, so that it cannot be taken for a header; otherwise
+     * {@code object} itself
+     */
+    static byte[] escape( byte[] object, byte[] magic, byte[] escape )
+    {
+        if( ! hasMagic( object, magic ) )
+        {
+            return object;
+        }
+        byte[] escaped = new byte[ escape.length + object.length ];
+        System.arraycopy( escape, 0, escaped, 0, escape.length );
+        System.arraycopy( object, 0, escaped, escape.length, object.length );
+        return escaped;
+    }
+
+
+    /**
+     * @return a stream of {@code header} followed by {@code object}. Closing
+     * it does not close the object stream, which belongs to the caller.
+     */
+    static InputStream prepend( byte[] header, InputStream object )
+    {
+        return new HeaderInputStream( object, header );
+    }
+
+
+    private static final class HeaderInputStream extends FilterInputStream
+    {
+        private final byte[] header;
+        private int position;
+
+        HeaderInputStream( InputStream object, byte[] header )
+        {
+            super( object );
+            this.header = header;
+        }
+
+
+        @Override
+        public int read() throws IOException
+        {
+            if( this.position < this.header.length )
+            {
+                return this.header[ this.position++ ] & 0xff;
+            }
+            return super.read();
+        }
+
+
+        @Override
+        public int read( byte[] buffer, int offset, int length ) throws IOException
+        {
+            if( this.position < this.header.length )
+            {
+                int count = Math.min( length, this.header.length - this.position );
+                System.arraycopy( this.header, this.position, buffer, offset, count );
+                this.position += count;
+                return count;
+            }
+            return super.read( buffer, offset, length );
+        }
+
+
+        @Override
+        public long skip( long n ) throws IOException
+        {
+            return Math.max( 0, this.read( new byte[ (int) Math.min( n, 8 * 1024 ) ] ) );
+        }
+
+
+        @Override
+        public boolean markSupported()
+        {
+            return false;
+        }
+
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
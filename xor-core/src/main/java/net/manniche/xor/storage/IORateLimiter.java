@@ -0,0 +1,103 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.InterruptedIOException;
+
+
+/**
+ * Token bucket limiting the throughput of background I/O, such as segment
+ * compaction, so that it does not starve foreground requests. Callers
+ * acquire the number of bytes they are about to read or write and are put
+ * to sleep once the budget of the last second has been used.
+ *
+ * @author Steen Manniche
+ */
+public final class IORateLimiter
+{
+    private static final long NANOS_PER_SECOND = 1000L * 1000L * 1000L;
+
+    private long bytesPerSecond;
+    private double available;
+    private long lastRefill;
+
+    /**
+     * @param bytesPerSecond the sustained I/O budget; at most one second
+     * worth of budget can be saved up for bursts
+     */
+    public IORateLimiter( long bytesPerSecond )
+    {
+        this.setBytesPerSecond( bytesPerSecond );
+        this.available = bytesPerSecond;
+        this.lastRefill = System.nanoTime();
+    }
+
+
+    public synchronized long getBytesPerSecond()
+    {
+        return this.bytesPerSecond;
+    }
+
+
+    /**
+     * Changes the budget, e.g. to let compaction run faster off-peak.
+     */
+    public synchronized void setBytesPerSecond( long bytesPerSecond )
+    {
+        if( bytesPerSecond <= 0 )
+        {
+            throw new IllegalArgumentException( String.format( "The I/O budget must be positive, was %s", bytesPerSecond ) );
+        }
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+
+    /**
+     * Takes {@code bytes} from the budget, sleeping until the budget allows
+     * it if necessary. Requests larger than the budget are let through and
+     * paid back afterwards.
+     *
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    public void acquire( long bytes ) throws InterruptedIOException
+    {
+        long wait;
+        synchronized( this )
+        {
+            long now = System.nanoTime();
+            this.available = Math.min( this.bytesPerSecond, this.available + (double) ( now - this.lastRefill ) * this.bytesPerSecond / NANOS_PER_SECOND );
+            this.lastRefill = now;
+            this.available -= bytes;
+            wait = this.available >= 0 ? 0 : (long) ( - this.available * NANOS_PER_SECOND / this.bytesPerSecond );
+        }
+
+        if( wait > 0 )
+        {
+            try
+            {
+                Thread.sleep( wait / 1000000, (int) ( wait % 1000000 ) );
+            }
+            catch( InterruptedException ex )
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException( "Interrupted while waiting for I/O budget" );
+            }
+        }
+    }
+}
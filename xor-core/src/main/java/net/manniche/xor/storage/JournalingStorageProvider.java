@@ -0,0 +1,618 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Makes the writes to a {@link SyncableStorageProvider} durable through a
+ * {@link WriteAheadJournal}. Each save and delete is journaled and applied
+ * to the underlying storage, and the call returns once the journal is
+ * durable to the requested {@link Durability}. The underlying storage is
+ * only forced to disk at checkpoints, when the journal has grown beyond the
+ * checkpoint size; after that the journal is emptied.
+ *
+ * On construction, the operations left in the journal by a crash are
+ * applied to the underlying storage again. Saves of unnamed objects and
+ * deletes on a {@link ReferenceCountedStorageProvider} are journaled with
+ * the reference count the object had afterwards, and replay restores that
+ * count instead of repeating the operation, so that a delete that already
+ * reached the storage does not release a shared object once more.
+ *
+ * Streamed saves are not copied into the journal. The content of the object
+ * is forced to disk directly, after which a marker is journaled, and the
+ * call returns once that marker is durable, so that older journaled
+ * versions of the object are not replayed over it. Unlike a journaled save,
+ * a streamed save cannot be replayed, so forcing the object also forces the
+ * directory it was renamed into where the storage moves objects into place,
+ * as {@code FileStorage} does. On a runtime that cannot force directories
+ * (before Java 7), a crash before the file system commits the directory may
+ * leave the previous version of the object, or none, in place.
+ *
+ * @author Steen Manniche
+ */
+public class JournalingStorageProvider extends DelegatingStorageProvider
+{
+    private static final Logger Log = Logger.getLogger( JournalingStorageProvider.class.getName() );
+
+    static final byte PUT = 1;
+    static final byte DELETE = 2;
+    static final byte SYNCED = 3;
+    static final byte REFERENCES = 4;
+
+    /**
+     * Default journal size in bytes at which a checkpoint is made.
+     */
+    public static final long DEFAULT_CHECKPOINT_SIZE = 64 * 1024 * 1024;
+
+    private static final byte[] NO_DATA = new byte[ 0 ];
+
+    private final SyncableStorageProvider storage;
+
+    /**
+     * The storage if its objects are reference counted, null otherwise.
+     */
+    private final ReferenceCountedStorageProvider counted;
+    private final WriteAheadJournal journal;
+    private final Durability durability;
+    private final long checkpointSize;
+
+    /**
+     * Appends and the corresponding writes to the storage hold the read
+     * lock; checkpoints hold the write lock.
+     */
+    private final ReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+
+    /**
+     * Keeps the journal order of operations on the same object identical to
+     * the order they are applied to the storage in.
+     */
+    private final StripedLock objectLocks = new StripedLock();
+
+    /**
+     * Journals to {@code journalFile} using the durability given by
+     * {@link Durability#getConfigured()} and the checkpoint size given by the
+     * system property {@code xor.journal.checkpoint_size}.
+     */
+    public JournalingStorageProvider( SyncableStorageProvider storage, File journalFile ) throws IOException
+    {
+        this( storage, new WriteAheadJournal( journalFile ), Durability.getConfigured(),
+              Long.getLong( "xor.journal.checkpoint_size", DEFAULT_CHECKPOINT_SIZE ) );
+    }
+
+
+    /**
+     * Opens the journal and replays any operations left in it.
+     *
+     * @param storage the storage the operations are applied to
+     * @param journal the journal, which must not have been read yet
+     * @param durability the durability of operations that do not ask for one
+     * @param checkpointSize journal size in bytes that triggers a checkpoint
+     * @throws IOException if the journal could not be replayed
+     */
+    public JournalingStorageProvider( SyncableStorageProvider storage, WriteAheadJournal journal, Durability durability, long checkpointSize ) throws IOException
+    {
+        super( storage );
+        this.storage = storage;
+        this.counted = storage instanceof ReferenceCountedStorageProvider && ( (ReferenceCountedStorageProvider) storage ).isReferenceCounted()
+                       ? (ReferenceCountedStorageProvider) storage : null;
+        this.journal = journal;
+        this.durability = durability;
+        this.checkpointSize = checkpointSize;
+        // checkpoints force everything written since the last one
+        storage.setSyncTracking( true );
+        this.replay();
+    }
+
+
+    @Override
+    public URI save( byte[] object, String storagePath ) throws IOException
+    {
+        return this.save( object, storagePath, this.durability );
+    }
+
+
+    /**
+     * Saves {@code object}, returning once it is as durable as requested.
+     */
+    public URI save( byte[] object, String storagePath, Durability durability ) throws IOException
+    {
+        URI uri;
+        long sequence;
+        this.checkpointLock.readLock().lock();
+        try
+        {
+            // the identifier is chosen by the storage, so the object has to
+            // be written before it can be journaled
+            uri = this.storage.save( object, storagePath );
+            sequence = this.appendSaved( uri, storagePath, object );
+        }
+        finally
+        {
+            this.checkpointLock.readLock().unlock();
+        }
+        this.commit( sequence, durability );
+        return uri;
+    }
+
+
+    @Override
+    public void save( byte[] object, URI uri, String storagePath ) throws IOException
+    {
+        this.save( object, uri, storagePath, this.durability );
+    }
+
+
+    /**
+     * Saves {@code object} as {@code uri}, returning once it is as durable
+     * as requested.
+     */
+    public void save( byte[] object, URI uri, String storagePath, Durability durability ) throws IOException
+    {
+        long sequence;
+        Lock lock = this.objectLocks.get( uri );
+        this.checkpointLock.readLock().lock();
+        lock.lock();
+        try
+        {
+            sequence = this.journal.append( PUT, uri.toString(), storagePath, object );
+            this.storage.save( object, uri, storagePath );
+        }
+        finally
+        {
+            lock.unlock();
+            this.checkpointLock.readLock().unlock();
+        }
+        this.commit( sequence, durability );
+    }
+
+
+    /**
+     * Saves the batch with a single commit, so the whole batch shares one
+     * fsync of the journal.
+     */
+    @Override
+    public BatchResult<URI> saveAll( List<byte[]> objects, String storagePath ) throws IOException
+    {
+        BatchResult<URI> result;
+        long sequence = 0;
+        this.checkpointLock.readLock().lock();
+        try
+        {
+            result = this.storage.saveAll( objects, storagePath );
+            for( int i = 0; i < objects.size(); i++ )
+            {
+                if( result.isSuccess( i ) )
+                {
+                    sequence = this.appendSaved( result.get( i ), storagePath, objects.get( i ) );
+                }
+            }
+        }
+        finally
+        {
+            this.checkpointLock.readLock().unlock();
+        }
+        this.commit( sequence, this.durability );
+        return result;
+    }
+
+
+    /**
+     * Saves the batch with a single commit, so the whole batch shares one
+     * fsync of the journal.
+     */
+    @Override
+    public BatchResult<Void> saveAll( List<byte[]> objects, List<URI> uris, String storagePath ) throws IOException
+    {
+        BatchOperations.checkSizes( objects, uris );
+        BatchResult<Void> result;
+        long sequence = 0;
+        this.checkpointLock.readLock().lock();
+        List<Lock> locks = this.objectLocks.lockAll( uris );
+        try
+        {
+            for( int i = 0; i < objects.size(); i++ )
+            {
+                sequence = this.journal.append( PUT, uris.get( i ).toString(), storagePath, objects.get( i ) );
+            }
+            result = this.storage.saveAll( objects, uris, storagePath );
+        }
+        finally
+        {
+            this.objectLocks.unlockAll( locks );
+            this.checkpointLock.readLock().unlock();
+        }
+        this.commit( sequence, this.durability );
+        return result;
+    }
+
+
+    @Override
+    public URI save( InputStream object, long length, String storagePath ) throws IOException
+    {
+        URI uri = this.storage.save( object, length, storagePath );
+        long sequence;
+        if( null == this.counted )
+        {
+            sequence = this.markSynced( uri, storagePath );
+        }
+        else
+        {
+            this.storage.sync( uri );
+            this.checkpointLock.readLock().lock();
+            try
+            {
+                sequence = this.appendSaved( uri, storagePath, NO_DATA );
+            }
+            finally
+            {
+                this.checkpointLock.readLock().unlock();
+            }
+        }
+        this.commit( sequence, this.durability );
+        return uri;
+    }
+
+
+    @Override
+    public void save( InputStream object, long length, URI uri, String storagePath ) throws IOException
+    {
+        // the checkpoint lock is always taken before an object lock
+        long sequence;
+        Lock lock = this.objectLocks.get( uri );
+        this.checkpointLock.readLock().lock();
+        lock.lock();
+        try
+        {
+            this.storage.save( object, length, uri, storagePath );
+            sequence = this.markSynced( uri, storagePath );
+        }
+        finally
+        {
+            lock.unlock();
+            this.checkpointLock.readLock().unlock();
+        }
+        this.commit( sequence, this.durability );
+    }
+
+
+    @Override
+    public void delete( URI identifier ) throws IOException
+    {
+        this.delete( identifier, this.durability );
+    }
+
+
+    /**
+     * Deletes the object identified by {@code identifier}, returning once
+     * the delete is as durable as requested.
+     */
+    public void delete( URI identifier, Durability durability ) throws IOException
+    {
+        long sequence;
+        Lock lock = this.objectLocks.get( identifier );
+        this.checkpointLock.readLock().lock();
+        lock.lock();
+        try
+        {
+            if( null == this.counted )
+            {
+                sequence = this.journal.append( DELETE, identifier.toString(), null, NO_DATA );
+                this.storage.delete( identifier );
+            }
+            else
+            {
+                this.storage.delete( identifier );
+                sequence = this.appendReferences( identifier, null, NO_DATA );
+            }
+        }
+        finally
+        {
+            lock.unlock();
+            this.checkpointLock.readLock().unlock();
+        }
+        this.commit( sequence, durability );
+    }
+
+
+    /**
+     * Deletes the batch with a single commit.
+     */
+    @Override
+    public BatchResult<Void> deleteAll( List<URI> identifiers ) throws IOException
+    {
+        BatchResult<Void> result;
+        long sequence = 0;
+        this.checkpointLock.readLock().lock();
+        List<Lock> locks = this.objectLocks.lockAll( identifiers );
+        try
+        {
+            if( null == this.counted )
+            {
+                for( URI identifier : identifiers )
+                {
+                    sequence = this.journal.append( DELETE, identifier.toString(), null, NO_DATA );
+                }
+                result = this.storage.deleteAll( identifiers );
+            }
+            else
+            {
+                result = this.storage.deleteAll( identifiers );
+                for( int i = 0; i < identifiers.size(); i++ )
+                {
+                    if( result.isSuccess( i ) )
+                    {
+                        sequence = this.appendReferences( identifiers.get( i ), null, NO_DATA );
+                    }
+                }
+            }
+        }
+        finally
+        {
+            this.objectLocks.unlockAll( locks );
+            this.checkpointLock.readLock().unlock();
+        }
+        this.commit( sequence, this.durability );
+        return result;
+    }
+
+
+    /**
+     * Forces the underlying storage to disk and empties the journal.
+     */
+    public void checkpoint() throws IOException
+    {
+        this.checkpointLock.writeLock().lock();
+        try
+        {
+            this.storage.sync();
+            this.journal.reset();
+        }
+        finally
+        {
+            this.checkpointLock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Makes a checkpoint and closes the journal and the underlying storage.
+     */
+    @Override
+    public void close()
+    {
+        try
+        {
+            this.checkpoint();
+            this.journal.close();
+        }
+        catch( IOException ex )
+        {
+            Log.log( Level.SEVERE, String.format( "Could not checkpoint the journal: %s", ex.getMessage() ), ex );
+        }
+        super.close();
+    }
+
+
+    private void commit( long sequence, Durability durability ) throws IOException
+    {
+        this.journal.await( sequence, durability );
+        if( this.journal.size() >= this.checkpointSize )
+        {
+            this.checkpointLock.writeLock().lock();
+            try
+            {
+                if( this.journal.size() >= this.checkpointSize )
+                {
+                    this.checkpoint();
+                }
+            }
+            finally
+            {
+                this.checkpointLock.writeLock().unlock();
+            }
+        }
+    }
+
+
+    /**
+     * Journals the save of an object whose identifier was chosen by the
+     * storage. The storage may have stored it as another reference to an
+     * existing object, so on a reference counted storage the resulting
+     * count is journaled along with the content.
+     */
+    private long appendSaved( URI uri, String storagePath, byte[] object ) throws IOException
+    {
+        if( null == this.counted )
+        {
+            return this.journal.append( PUT, uri.toString(), storagePath, object );
+        }
+        Lock lock = this.objectLocks.get( uri );
+        lock.lock();
+        try
+        {
+            return this.appendReferences( uri, storagePath, object );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    boolean isReferenceCounted()
+    {
+        return null != this.counted;
+    }
+
+
+    @Override
+    int getReferenceCount( URI identifier ) throws IOException
+    {
+        if( null == this.counted )
+        {
+            return super.getReferenceCount( identifier );
+        }
+        return this.counted.getReferenceCount( identifier );
+    }
+
+
+    /**
+     * Journals the current reference count of the object identified by
+     * {@code uri} followed by its content, if known. The caller holds the
+     * object lock, so the entries of an object are journaled in the order
+     * its counts were read.
+     */
+    private long appendReferences( URI uri, String storagePath, byte[] object ) throws IOException
+    {
+        int count = this.counted.getReferenceCount( uri );
+        byte[] data = ByteBuffer.allocate( 4 + object.length ).putInt( count ).put( object ).array();
+        return this.journal.append( REFERENCES, uri.toString(), storagePath, data );
+    }
+
+
+    /**
+     * Forces the content of a streamed object to disk and journals that it
+     * no longer needs replaying, returning the sequence of the marker.
+     */
+    private long markSynced( URI uri, String storagePath ) throws IOException
+    {
+        this.storage.sync( uri );
+        this.checkpointLock.readLock().lock();
+        try
+        {
+            return this.journal.append( SYNCED, uri.toString(), storagePath, NO_DATA );
+        }
+        finally
+        {
+            this.checkpointLock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Applies the last journaled operation on each object to the storage,
+     * then makes a checkpoint.
+     */
+    private void replay() throws IOException
+    {
+        List<WriteAheadJournal.Entry> entries = this.journal.read();
+        if( entries.isEmpty() )
+        {
+            return;
+        }
+
+        Map<String, WriteAheadJournal.Entry> last = new HashMap<String, WriteAheadJournal.Entry>();
+        Map<String, byte[]> contents = new HashMap<String, byte[]>();
+        for( WriteAheadJournal.Entry entry : entries )
+        {
+            last.put( entry.key, entry );
+            if( REFERENCES == entry.type && entry.data.length > 4 )
+            {
+                contents.put( entry.key, Arrays.copyOfRange( entry.data, 4, entry.data.length ) );
+            }
+        }
+        int replayed = 0;
+        for( WriteAheadJournal.Entry entry : entries )
+        {
+            if( last.get( entry.key ) != entry || SYNCED == entry.type )
+            {
+                continue;
+            }
+            URI uri;
+            try
+            {
+                uri = new URI( entry.key );
+            }
+            catch( URISyntaxException ex )
+            {
+                Log.log( Level.WARNING, String.format( "Skipping journal entry with malformed identifier %s", entry.key ), ex );
+                continue;
+            }
+            if( PUT == entry.type )
+            {
+                this.storage.save( entry.data, uri, entry.storagePath );
+            }
+            else if( REFERENCES == entry.type )
+            {
+                this.restoreReferences( uri, entry, contents.get( entry.key ) );
+            }
+            else
+            {
+                try
+                {
+                    this.storage.delete( uri );
+                }
+                catch( IOException ex )
+                {
+                    Log.log( Level.FINE, String.format( "Journaled delete of %s was already applied", uri ), ex );
+                }
+            }
+            replayed++;
+        }
+        Log.info( String.format( "Replayed %s operations from %s journal entries", replayed, entries.size() ) );
+        this.checkpoint();
+    }
+
+
+    /**
+     * Sets the reference count journaled in {@code entry}, storing the
+     * object again from {@code content} if it never reached the storage.
+     */
+    private void restoreReferences( URI uri, WriteAheadJournal.Entry entry, byte[] content ) throws IOException
+    {
+        int count = ByteBuffer.wrap( entry.data ).getInt();
+        if( null != this.counted )
+        {
+            this.counted.setReferenceCount( uri, content, count );
+        }
+        else if( count > 0 && null != content )
+        {
+            // the storage is no longer reference counted
+            this.storage.save( content, uri, entry.storagePath );
+        }
+        else if( 0 == count )
+        {
+            try
+            {
+                this.storage.delete( uri );
+            }
+            catch( IOException ex )
+            {
+                Log.log( Level.FINE, String.format( "Journaled delete of %s was already applied", uri ), ex );
+            }
+        }
+    }
+}
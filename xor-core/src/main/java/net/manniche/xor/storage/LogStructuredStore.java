@@ -0,0 +1,844 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+
+/**
+ * An embedded, log-structured store of sorted string keys and byte array
+ * values, kept in a directory of its own.
+ *
+ * Writes are appended to a {@link WriteAheadJournal} and applied to an
+ * in-memory sorted memtable. When the memtable has grown past its size it
+ * is written out as an immutable {@link SortedRun} and a new journal is
+ * started. Lookups and scans consult the memtable and then the runs from
+ * the newest to the oldest, so newer values shadow older ones. Runs are
+ * merged into one, dropping overwritten values and deletions, when
+ * {@link #merge()} is called or by the background merging started with
+ * {@link #start(long, java.util.concurrent.TimeUnit)} once there are too
+ * many of them.
+ *
+ * The runs making up the store and the oldest journal not yet written to a
+ * run are listed in a manifest, which is replaced atomically. Journals are
+ * replayed and files not listed in the manifest are removed when the store
+ * is opened.
+ *
+ * @author Steen Manniche
+ */
+public final class LogStructuredStore
+{
+    private static final Logger Log = Logger.getLogger( LogStructuredStore.class.getName() );
+
+    /**
+     * Marks a deleted key in the memtable and in runs. Compared by identity.
+     */
+    static final byte[] TOMBSTONE = new byte[ 0 ];
+
+    private static final byte BATCH = 1;
+    private static final String MANIFEST = "MANIFEST";
+    private static final String RUN_PREFIX = "run-";
+    private static final String LOG_PREFIX = "log-";
+
+    public static final long DEFAULT_MEMTABLE_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_MERGE_THRESHOLD = 4;
+
+    private final File directory;
+    private final long memtableSize;
+    private final int mergeThreshold;
+    private final Durability durability;
+
+    /**
+     * Held shared by reads and writes, and exclusively while the memtable,
+     * the journal or the runs are replaced.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // guarded by lock
+    private ConcurrentSkipListMap<String, byte[]> memtable = new ConcurrentSkipListMap<String, byte[]>();
+    private ConcurrentSkipListMap<String, byte[]> frozen;
+    private final List<SortedRun> runs = new ArrayList<SortedRun>();
+    private WriteAheadJournal journal;
+    private long logSequence;
+    private long flushedLog;
+
+    /**
+     * Orders appending to the journal and applying to the memtable, so that
+     * both see writes of the same key in the same order.
+     */
+    private final Object writeOrder = new Object();
+    private final Object flushLock = new Object();
+    private final Object mergeLock = new Object();
+    private final AtomicLong memtableBytes = new AtomicLong();
+    private final AtomicLong runSequence = new AtomicLong();
+    private final AtomicLong merges = new AtomicLong();
+
+    private final BackgroundTask merger = new BackgroundTask( "xor-index-merge", "Merging" )
+    {
+        @Override
+        protected void runOnce() throws IOException
+        {
+            if( getRunCount() >= mergeThreshold )
+            {
+                merge();
+            }
+        }
+    };
+
+    /**
+     * Opens the store in {@code directory} with the memtable size and merge
+     * threshold given by the system properties
+     * {@code xor.index.memtable_size} and {@code xor.index.merge_threshold},
+     * and the durability of {@link Durability#getConfigured()}.
+     */
+    public LogStructuredStore( File directory ) throws IOException
+    {
+        this( directory,
+              Long.getLong( "xor.index.memtable_size", DEFAULT_MEMTABLE_SIZE ),
+              Integer.getInteger( "xor.index.merge_threshold", DEFAULT_MERGE_THRESHOLD ),
+              Durability.getConfigured() );
+    }
+
+
+    /**
+     * @param directory the directory holding the journals, runs and manifest
+     * @param memtableSize the approximate number of bytes written to the
+     * memtable before it is written out as a run
+     * @param mergeThreshold the number of runs at which the background
+     * merging merges them
+     * @param durability how much a write must be on stable storage before it
+     * returns
+     */
+    public LogStructuredStore( File directory, long memtableSize, int mergeThreshold, Durability durability ) throws IOException
+    {
+        if( ! directory.isDirectory() && ! directory.mkdirs() )
+        {
+            throw new IOException( String.format( "Could not create store directory %s", directory ) );
+        }
+        this.directory = directory;
+        this.memtableSize = memtableSize;
+        this.mergeThreshold = Math.max( 2, mergeThreshold );
+        this.durability = durability;
+        this.open();
+    }
+
+
+    private void open() throws IOException
+    {
+        Set<String> live = new HashSet<String>();
+        File manifest = new File( this.directory, MANIFEST );
+        if( manifest.exists() )
+        {
+            BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( manifest ), "UTF-8" ) );
+            try
+            {
+                String line;
+                while( null != ( line = reader.readLine() ) )
+                {
+                    if( line.startsWith( "log " ) )
+                    {
+                        this.flushedLog = Long.parseLong( line.substring( 4 ) );
+                    }
+                    else if( line.startsWith( "run " ) )
+                    {
+                        String name = line.substring( 4 );
+                        this.runs.add( new SortedRun( new File( this.directory, name ) ) );
+                        live.add( name );
+                    }
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+
+        // runs of interrupted flushes and merges, and journals already in runs
+        long lastRun = -1;
+        List<Long> logs = new ArrayList<Long>();
+        for( File file : this.directory.listFiles() )
+        {
+            String name = file.getName();
+            if( name.startsWith( RUN_PREFIX ) )
+            {
+                lastRun = Math.max( lastRun, Long.parseLong( name.substring( RUN_PREFIX.length() ) ) );
+                if( ! live.contains( name ) )
+                {
+                    file.delete();
+                }
+            }
+            else if( name.startsWith( LOG_PREFIX ) )
+            {
+                long sequence = Long.parseLong( name.substring( LOG_PREFIX.length() ) );
+                if( sequence < this.flushedLog )
+                {
+                    file.delete();
+                }
+                else
+                {
+                    logs.add( sequence );
+                }
+            }
+            else if( name.endsWith( ".tmp" ) )
+            {
+                file.delete();
+            }
+        }
+        this.runSequence.set( lastRun + 1 );
+
+        Collections.sort( logs );
+        long replayed = 0;
+        for( long sequence : logs )
+        {
+            WriteAheadJournal log = new WriteAheadJournal( this.getLogFile( sequence ), 0 );
+            try
+            {
+                for( WriteAheadJournal.Entry entry : log.read() )
+                {
+                    this.apply( decode( entry.data ) );
+                    replayed++;
+                }
+            }
+            finally
+            {
+                log.close();
+            }
+        }
+        this.logSequence = logs.isEmpty() ? this.flushedLog : logs.get( logs.size() - 1 ) + 1;
+        this.journal = new WriteAheadJournal( this.getLogFile( this.logSequence ) );
+        Log.info( String.format( "Opened store in %s with %s runs, replayed %s journaled writes", this.directory, this.runs.size(), replayed ) );
+        if( ! this.memtable.isEmpty() )
+        {
+            this.flush();
+        }
+    }
+
+
+    /**
+     * @return the value of {@code key}, or null if the store does not hold it
+     */
+    public byte[] get( String key ) throws IOException
+    {
+        this.lock.readLock().lock();
+        try
+        {
+            byte[] value = this.memtable.get( key );
+            if( null == value && null != this.frozen )
+            {
+                value = this.frozen.get( key );
+            }
+            for( int i = 0; null == value && i < this.runs.size(); i++ )
+            {
+                value = this.runs.get( i ).get( key );
+            }
+            return TOMBSTONE == value ? null : value;
+        }
+        finally
+        {
+            this.lock.readLock().unlock();
+        }
+    }
+
+
+    public void put( String key, byte[] value ) throws IOException
+    {
+        this.write( Collections.singletonMap( key, value ) );
+    }
+
+
+    public void delete( String key ) throws IOException
+    {
+        this.write( Collections.singletonMap( key, (byte[]) null ) );
+    }
+
+
+    /**
+     * Applies a set of changes atomically: after a crash either all of them
+     * or none are found.
+     *
+     * @param changes the new value of each key, or null for keys to delete
+     */
+    public void write( Map<String, byte[]> changes ) throws IOException
+    {
+        byte[] record = encode( changes );
+        this.lock.readLock().lock();
+        try
+        {
+            long sequence;
+            synchronized( this.writeOrder )
+            {
+                sequence = this.journal.append( BATCH, "", null, record );
+                this.apply( changes );
+            }
+            this.journal.await( sequence, this.durability );
+        }
+        finally
+        {
+            this.lock.readLock().unlock();
+        }
+        if( this.memtableBytes.addAndGet( record.length + 48 * changes.size() ) >= this.memtableSize )
+        {
+            synchronized( this.flushLock )
+            {
+                // writers arriving while the memtable was flushed find it
+                // empty again
+                if( this.memtableBytes.get() >= this.memtableSize )
+                {
+                    this.flush();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @return the keys from {@code from}, inclusive, to {@code to},
+     * exclusive, with their values, in key order
+     * @param from the start of the range, the empty string to scan from the
+     * first key
+     * @param to the end of the range, or null to scan to the last key
+     */
+    public SortedMap<String, byte[]> scan( String from, String to ) throws IOException
+    {
+        SortedMap<String, byte[]> result = new TreeMap<String, byte[]>();
+        this.lock.readLock().lock();
+        try
+        {
+            List<Source> sources = new ArrayList<Source>();
+            sources.add( new MapSource( this.memtable.tailMap( from ) ) );
+            if( null != this.frozen )
+            {
+                sources.add( new MapSource( this.frozen.tailMap( from ) ) );
+            }
+            for( SortedRun run : this.runs )
+            {
+                sources.add( run.seek( from ) );
+            }
+            Source merged = new MergingSource( sources );
+            while( merged.next() && ( null == to || merged.key().compareTo( to ) < 0 ) )
+            {
+                if( TOMBSTONE != merged.value() )
+                {
+                    result.put( merged.key(), merged.value() );
+                }
+            }
+        }
+        finally
+        {
+            this.lock.readLock().unlock();
+        }
+        return result;
+    }
+
+
+    /**
+     * @return the keys starting with {@code prefix} with their values, in key
+     * order
+     */
+    public SortedMap<String, byte[]> scanPrefix( String prefix ) throws IOException
+    {
+        return this.scan( prefix, successor( prefix ) );
+    }
+
+
+    /**
+     * Writes the memtable out as a run, so that its journal can be removed.
+     */
+    public void flush() throws IOException
+    {
+        synchronized( this.flushLock )
+        {
+            ConcurrentSkipListMap<String, byte[]> flushing;
+            WriteAheadJournal flushedJournal;
+            this.lock.writeLock().lock();
+            try
+            {
+                if( this.memtable.isEmpty() )
+                {
+                    return;
+                }
+                flushing = this.memtable;
+                flushedJournal = this.journal;
+                this.journal = new WriteAheadJournal( this.getLogFile( this.logSequence + 1 ) );
+                this.logSequence++;
+                this.frozen = flushing;
+                this.memtable = new ConcurrentSkipListMap<String, byte[]>();
+                this.memtableBytes.set( 0 );
+            }
+            finally
+            {
+                this.lock.writeLock().unlock();
+            }
+
+            SortedRun run = SortedRun.write( this.newRunFile(), new MapSource( flushing ) );
+            long previouslyFlushed;
+            this.lock.writeLock().lock();
+            try
+            {
+                this.runs.add( 0, run );
+                this.frozen = null;
+                previouslyFlushed = this.flushedLog;
+                this.flushedLog = this.logSequence;
+                this.writeManifest();
+            }
+            finally
+            {
+                this.lock.writeLock().unlock();
+            }
+            flushedJournal.close();
+            for( long sequence = previouslyFlushed; sequence < this.flushedLog; sequence++ )
+            {
+                this.getLogFile( sequence ).delete();
+            }
+            Log.fine( String.format( "Flushed %s keys to %s", run.getCount(), run.getFile() ) );
+        }
+    }
+
+
+    /**
+     * Merges all runs into one, dropping overwritten values and deletions.
+     * Reads and writes continue while the runs are merged.
+     */
+    public void merge() throws IOException
+    {
+        synchronized( this.mergeLock )
+        {
+            List<SortedRun> merging;
+            this.lock.readLock().lock();
+            try
+            {
+                merging = new ArrayList<SortedRun>( this.runs );
+            }
+            finally
+            {
+                this.lock.readLock().unlock();
+            }
+            if( merging.size() < 2 )
+            {
+                return;
+            }
+
+            List<Source> sources = new ArrayList<Source>();
+            for( SortedRun run : merging )
+            {
+                sources.add( run.seek( null ) );
+            }
+            // the oldest run takes part, so no older value is left for a
+            // deletion to shadow
+            final Source merged = new MergingSource( sources );
+            SortedRun run = SortedRun.write( this.newRunFile(), new Source()
+            {
+                @Override
+                public boolean next() throws IOException
+                {
+                    while( merged.next() )
+                    {
+                        if( TOMBSTONE != merged.value() )
+                        {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+
+
+                @Override
+                public String key()
+                {
+                    return merged.key();
+                }
+
+
+                @Override
+                public byte[] value()
+                {
+                    return merged.value();
+                }
+            } );
+
+            this.lock.writeLock().lock();
+            try
+            {
+                this.runs.removeAll( merging );
+                this.runs.add( run );
+                this.writeManifest();
+            }
+            finally
+            {
+                this.lock.writeLock().unlock();
+            }
+            long before = 0;
+            for( SortedRun old : merging )
+            {
+                before += old.getCount();
+                old.close();
+                old.getFile().delete();
+            }
+            this.merges.incrementAndGet();
+            Log.info( String.format( "Merged %s runs of %s keys into %s with %s keys", merging.size(), before, run.getFile(), run.getCount() ) );
+        }
+    }
+
+
+    public int getRunCount()
+    {
+        this.lock.readLock().lock();
+        try
+        {
+            return this.runs.size();
+        }
+        finally
+        {
+            this.lock.readLock().unlock();
+        }
+    }
+
+
+    public long getMergeCount()
+    {
+        return this.merges.get();
+    }
+
+
+    /**
+     * Checks the number of runs with {@code delay} between checks, merging
+     * them in a background thread when there are
+     * {@code xor.index.merge_threshold} or more.
+     */
+    public void start( long delay, TimeUnit unit )
+    {
+        this.merger.start( delay, delay, unit );
+    }
+
+
+    /**
+     * Stops the background merging. A merge in progress is completed.
+     */
+    public void stop() throws InterruptedException
+    {
+        this.merger.stop();
+    }
+
+
+    /**
+     * Stops the background merging and writes the memtable out as a run, so
+     * that the next open has no journal to replay.
+     */
+    public void close() throws IOException
+    {
+        try
+        {
+            this.stop();
+        }
+        catch( InterruptedException ex )
+        {
+            Thread.currentThread().interrupt();
+        }
+        this.flush();
+        this.lock.writeLock().lock();
+        try
+        {
+            this.journal.close();
+            for( SortedRun run : this.runs )
+            {
+                run.close();
+            }
+        }
+        finally
+        {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+
+    private void apply( Map<String, byte[]> changes )
+    {
+        for( Map.Entry<String, byte[]> change : changes.entrySet() )
+        {
+            byte[] value = change.getValue();
+            this.memtable.put( change.getKey(), null == value ? TOMBSTONE : Arrays.copyOf( value, value.length ) );
+        }
+    }
+
+
+    private File newRunFile()
+    {
+        return new File( this.directory, String.format( "%s%016d", RUN_PREFIX, this.runSequence.getAndIncrement() ) );
+    }
+
+
+    private File getLogFile( long sequence )
+    {
+        return new File( this.directory, String.format( "%s%016d", LOG_PREFIX, sequence ) );
+    }
+
+
+    /**
+     * Lists the runs, newest first, and the oldest journal not yet in a run.
+     * Called with the write lock held.
+     */
+    private void writeManifest() throws IOException
+    {
+        File manifest = new File( this.directory, MANIFEST );
+        File temporary = new File( this.directory, MANIFEST + ".tmp" );
+        FileOutputStream stream = new FileOutputStream( temporary );
+        try
+        {
+            Writer out = new OutputStreamWriter( stream, "UTF-8" );
+            out.write( String.format( "log %s%n", this.flushedLog ) );
+            for( SortedRun run : this.runs )
+            {
+                out.write( String.format( "run %s%n", run.getFile().getName() ) );
+            }
+            out.flush();
+            stream.getFD().sync();
+        }
+        finally
+        {
+            stream.close();
+        }
+        if( ! temporary.renameTo( manifest ) && ! ( manifest.delete() && temporary.renameTo( manifest ) ) )
+        {
+            throw new IOException( String.format( "Could not replace %s with %s", manifest, temporary ) );
+        }
+    }
+
+
+    private static byte[] encode( Map<String, byte[]> changes ) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream( 64 * changes.size() );
+        DataOutputStream out = new DataOutputStream( bytes );
+        out.writeInt( changes.size() );
+        for( Map.Entry<String, byte[]> change : changes.entrySet() )
+        {
+            out.writeUTF( change.getKey() );
+            byte[] value = change.getValue();
+            if( null == value )
+            {
+                out.writeInt( -1 );
+            }
+            else
+            {
+                out.writeInt( value.length );
+                out.write( value );
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+
+    private static Map<String, byte[]> decode( byte[] record ) throws IOException
+    {
+        DataInputStream in = new DataInputStream( new ByteArrayInputStream( record ) );
+        int count = in.readInt();
+        Map<String, byte[]> changes = new LinkedHashMap<String, byte[]>( count * 2 );
+        for( int i = 0; i < count; i++ )
+        {
+            String key = in.readUTF();
+            int length = in.readInt();
+            byte[] value = null;
+            if( length >= 0 )
+            {
+                value = new byte[ length ];
+                in.readFully( value );
+            }
+            changes.put( key, value );
+        }
+        return changes;
+    }
+
+
+    /**
+     * @return the least string greater than every string starting with
+     * {@code prefix}, or null if there is none
+     */
+    static String successor( String prefix )
+    {
+        StringBuilder end = new StringBuilder( prefix );
+        while( end.length() > 0 )
+        {
+            char last = end.charAt( end.length() - 1 );
+            if( Character.MAX_VALUE != last )
+            {
+                end.setCharAt( end.length() - 1, (char) ( last + 1 ) );
+                return end.toString();
+            }
+            end.setLength( end.length() - 1 );
+        }
+        return null;
+    }
+
+
+    /**
+     * Sorted key/value pairs read one at a time.
+     */
+    interface Source
+    {
+        /**
+         * @return false if there are no more pairs
+         */
+        boolean next() throws IOException;
+
+        String key();
+
+        byte[] value();
+    }
+
+
+    private static final class MapSource implements Source
+    {
+        private final Iterator<Map.Entry<String, byte[]>> entries;
+        private Map.Entry<String, byte[]> entry;
+
+        MapSource( SortedMap<String, byte[]> map )
+        {
+            this.entries = map.entrySet().iterator();
+        }
+
+
+        @Override
+        public boolean next()
+        {
+            this.entry = this.entries.hasNext() ? this.entries.next() : null;
+            return null != this.entry;
+        }
+
+
+        @Override
+        public String key()
+        {
+            return this.entry.getKey();
+        }
+
+
+        @Override
+        public byte[] value()
+        {
+            return this.entry.getValue();
+        }
+    }
+
+
+    /**
+     * Merges sources given newest first into one, taking the value of each
+     * key from the newest source holding it.
+     */
+    private static final class MergingSource implements Source
+    {
+        private final List<Source> sources;
+        private final PriorityQueue<Integer> heads;
+        private boolean started;
+        private String key;
+        private byte[] value;
+
+        MergingSource( List<Source> sources )
+        {
+            this.sources = sources;
+            this.heads = new PriorityQueue<Integer>( Math.max( 1, sources.size() ), new Comparator<Integer>()
+            {
+                @Override
+                public int compare( Integer a, Integer b )
+                {
+                    int order = MergingSource.this.sources.get( a ).key().compareTo( MergingSource.this.sources.get( b ).key() );
+                    return 0 == order ? a.compareTo( b ) : order;
+                }
+            } );
+        }
+
+
+        @Override
+        public boolean next() throws IOException
+        {
+            if( ! this.started )
+            {
+                this.started = true;
+                for( int i = 0; i < this.sources.size(); i++ )
+                {
+                    this.advance( i );
+                }
+            }
+            Integer head = this.heads.poll();
+            if( null == head )
+            {
+                return false;
+            }
+            Source source = this.sources.get( head );
+            this.key = source.key();
+            this.value = source.value();
+            this.advance( head );
+            while( ! this.heads.isEmpty() && this.sources.get( this.heads.peek() ).key().equals( this.key ) )
+            {
+                this.advance( this.heads.poll() );
+            }
+            return true;
+        }
+
+
+        private void advance( int index ) throws IOException
+        {
+            if( this.sources.get( index ).next() )
+            {
+                this.heads.add( index );
+            }
+        }
+
+
+        @Override
+        public String key()
+        {
+            return this.key;
+        }
+
+
+        @Override
+        public byte[] value()
+        {
+            return this.value;
+        }
+    }
+}
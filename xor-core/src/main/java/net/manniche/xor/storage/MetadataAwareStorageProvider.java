@@ -0,0 +1,56 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import net.manniche.xor.types.ObjectRepositoryContentType;
+
+
+/**
+ * A {@link ContentTypeAwareStorageProvider} that keeps the metadata of each
+ * object with the object itself, so that it can be read without a separate
+ * lookup.
+ *
+ * @author Steen Manniche
+ */
+public interface MetadataAwareStorageProvider extends ContentTypeAwareStorageProvider
+{
+    /**
+     * As {@link StorageProvider#saveAll(java.util.List, java.lang.String)},
+     * for objects of the given content type.
+     */
+    public BatchResult<URI> saveAll( List<byte[]> objects, String storagePath, ObjectRepositoryContentType contentType ) throws IOException;
+
+    /**
+     * Reads the metadata of an object without reading the object.
+     *
+     * @return the metadata of the object, or null if it was stored without
+     * @throws IOException if the identifier does not identify an object
+     */
+    public ObjectMetadata getMetadata( URI identifier ) throws IOException;
+
+    /**
+     * Reads an object and its metadata in a single read.
+     *
+     * @throws IOException if the identifier does not identify an object
+     */
+    public StoredObject getWithMetadata( URI identifier ) throws IOException;
+}
@@ -0,0 +1,325 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+
+/**
+ * An index of the identifier, content type, size and timestamps of the
+ * objects of a repository, kept in a {@link LogStructuredStore}, so that
+ * objects can be found by content type, by modification time or by
+ * identifier prefix without walking the storage directories.
+ *
+ * Each object has a primary key holding its metadata, and a key for its
+ * content type and one for its modification time pointing back at the
+ * identifier:
+ * <pre>
+ *   o \0 identifier                       -> content type, length, created, modified
+ *   t \0 content type \0 identifier       -> (empty)
+ *   m \0 modified (hex) \0 identifier     -> (empty)
+ * </pre>
+ * The keys of an object are written in one atomic write of the store.
+ *
+ * @author Steen Manniche
+ */
+public class MetadataIndex
+{
+    private static final String OBJECT = "o\u0000";
+    private static final String CONTENT_TYPE = "t\u0000";
+    private static final String MODIFIED = "m\u0000";
+    private static final byte[] EMPTY = new byte[ 0 ];
+
+    private final LogStructuredStore store;
+    private final StripedLock objectLocks = new StripedLock();
+
+    /**
+     * Opens the index in {@code directory}, see
+     * {@link LogStructuredStore#LogStructuredStore(java.io.File)}.
+     */
+    public MetadataIndex( File directory ) throws IOException
+    {
+        this( new LogStructuredStore( directory ) );
+    }
+
+
+    public MetadataIndex( LogStructuredStore store )
+    {
+        this.store = store;
+    }
+
+
+    /**
+     * Records that the object identified by {@code identifier} was stored
+     * now. An object stored before keeps its creation time.
+     *
+     * @param contentType the name of the content type of the object, or null
+     * if it is not known
+     * @param length the length in bytes of the object
+     */
+    public void put( URI identifier, String contentType, long length ) throws IOException
+    {
+        String name = identifier.toString();
+        Lock lock = this.objectLocks.get( name );
+        lock.lock();
+        try
+        {
+            long now = System.currentTimeMillis();
+            Map<String, byte[]> changes = new HashMap<String, byte[]>();
+            ObjectMetadata previous = this.get( identifier );
+            if( null != previous )
+            {
+                removeKeys( name, previous, changes );
+            }
+            ObjectMetadata metadata = new ObjectMetadata( contentType, length, -1, null == previous ? now : previous.getCreated(), now );
+            changes.put( OBJECT + name, encode( metadata ) );
+            if( null != contentType )
+            {
+                changes.put( contentTypeKey( contentType, name ), EMPTY );
+            }
+            changes.put( modifiedKey( now, name ), EMPTY );
+            this.store.write( changes );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * As {@link #put(java.net.URI, java.lang.String, long)}, but leaves an
+     * object already in the index as it is.
+     *
+     * @return true if the object was added to the index
+     */
+    public boolean add( URI identifier, String contentType, long length ) throws IOException
+    {
+        Lock lock = this.objectLocks.get( identifier.toString() );
+        lock.lock();
+        try
+        {
+            if( null != this.get( identifier ) )
+            {
+                return false;
+            }
+            this.put( identifier, contentType, length );
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Removes the object identified by {@code identifier} from the index.
+     */
+    public void remove( URI identifier ) throws IOException
+    {
+        String name = identifier.toString();
+        Lock lock = this.objectLocks.get( name );
+        lock.lock();
+        try
+        {
+            ObjectMetadata previous = this.get( identifier );
+            if( null != previous )
+            {
+                Map<String, byte[]> changes = new HashMap<String, byte[]>();
+                removeKeys( name, previous, changes );
+                this.store.write( changes );
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return the indexed metadata of the object, or null if it is not in
+     * the index. The index does not hold checksums, so the checksum is -1.
+     */
+    public ObjectMetadata get( URI identifier ) throws IOException
+    {
+        byte[] value = this.store.get( OBJECT + identifier );
+        return null == value ? null : decode( value );
+    }
+
+
+    /**
+     * @return the identifiers of the objects stored with the content type
+     * named {@code contentType}, in identifier order
+     */
+    public List<URI> findByContentType( String contentType ) throws IOException
+    {
+        return toIdentifiers( this.store.scanPrefix( CONTENT_TYPE + contentType + "\u0000" ) );
+    }
+
+
+    /**
+     * @return the identifiers of the objects last stored from {@code from},
+     * inclusive, to {@code to}, exclusive, in order of modification
+     * @param from milliseconds since the epoch
+     * @param to milliseconds since the epoch
+     */
+    public List<URI> findModifiedBetween( long from, long to ) throws IOException
+    {
+        return toIdentifiers( this.store.scan( MODIFIED + hex( from ), MODIFIED + hex( to ) ) );
+    }
+
+
+    /**
+     * @return the metadata of the objects whose identifiers start with
+     * {@code prefix}, such as the URI of a storage directory, by identifier
+     */
+    public SortedMap<URI, ObjectMetadata> findByPrefix( String prefix ) throws IOException
+    {
+        SortedMap<URI, ObjectMetadata> result = new TreeMap<URI, ObjectMetadata>();
+        for( Map.Entry<String, byte[]> entry : this.store.scanPrefix( OBJECT + prefix ).entrySet() )
+        {
+            result.put( toURI( entry.getKey().substring( OBJECT.length() ) ), decode( entry.getValue() ) );
+        }
+        return result;
+    }
+
+
+    /**
+     * @return the store holding the index
+     */
+    public LogStructuredStore getStore()
+    {
+        return this.store;
+    }
+
+
+    /**
+     * Merges the runs of the store in the background, see
+     * {@link LogStructuredStore#start(long, java.util.concurrent.TimeUnit)}.
+     */
+    public void start( long delay, TimeUnit unit )
+    {
+        this.store.start( delay, unit );
+    }
+
+
+    public void close() throws IOException
+    {
+        this.store.close();
+    }
+
+
+    private static void removeKeys( String name, ObjectMetadata metadata, Map<String, byte[]> changes )
+    {
+        changes.put( OBJECT + name, null );
+        if( null != metadata.getContentType() )
+        {
+            changes.put( contentTypeKey( metadata.getContentType(), name ), null );
+        }
+        changes.put( modifiedKey( metadata.getModified(), name ), null );
+    }
+
+
+    private static String contentTypeKey( String contentType, String name )
+    {
+        return CONTENT_TYPE + contentType + "\u0000" + name;
+    }
+
+
+    private static String modifiedKey( long modified, String name )
+    {
+        return MODIFIED + hex( modified ) + "\u0000" + name;
+    }
+
+
+    /**
+     * Fixed width hex, so that times sort in key order.
+     */
+    private static String hex( long time )
+    {
+        return String.format( "%016x", Math.max( 0, time ) );
+    }
+
+
+    /**
+     * Takes the identifiers from the end of secondary keys.
+     */
+    private static List<URI> toIdentifiers( SortedMap<String, byte[]> keys ) throws IOException
+    {
+        List<URI> identifiers = new ArrayList<URI>( keys.size() );
+        for( String key : keys.keySet() )
+        {
+            identifiers.add( toURI( key.substring( key.lastIndexOf( '\u0000' ) + 1 ) ) );
+        }
+        return identifiers;
+    }
+
+
+    private static URI toURI( String name ) throws IOException
+    {
+        try
+        {
+            return new URI( name );
+        }
+        catch( URISyntaxException ex )
+        {
+            throw new IOException( String.format( "Index holds invalid identifier %s: %s", name, ex.getMessage() ), ex );
+        }
+    }
+
+
+    private static byte[] encode( ObjectMetadata metadata ) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream( 64 );
+        DataOutputStream out = new DataOutputStream( bytes );
+        out.writeBoolean( null != metadata.getContentType() );
+        out.writeUTF( null == metadata.getContentType() ? "" : metadata.getContentType() );
+        out.writeLong( metadata.getLength() );
+        out.writeLong( metadata.getCreated() );
+        out.writeLong( metadata.getModified() );
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+
+    private static ObjectMetadata decode( byte[] value ) throws IOException
+    {
+        DataInputStream in = new DataInputStream( new ByteArrayInputStream( value ) );
+        boolean hasContentType = in.readBoolean();
+        String contentType = in.readUTF();
+        return new ObjectMetadata( hasContentType ? contentType : null, in.readLong(), -1, in.readLong(), in.readLong() );
+    }
+}
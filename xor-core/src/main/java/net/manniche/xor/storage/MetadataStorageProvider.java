@@ -0,0 +1,431 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import net.manniche.xor.types.ObjectRepositoryContentType;
+import net.manniche.xor.utils.RepositoryUtilities;
+
+
+/**
+ * Keeps the metadata of each object (content type, length, checksum and
+ * timestamps) in a compact header in front of the object, instead of in a
+ * separate file. The metadata is read in the same read as the object, and
+ * can be read on its own with a short range read of the header.
+ *
+ * The header is laid out as:
+ * <pre>
+ *   magic "XORH" (4 bytes) | version (1 byte) | header length (2 bytes) |
+ *   flags (1 byte) | object length (8 bytes) | CRC32 (4 bytes) |
+ *   created (8 bytes) | modified (8 bytes) | content type (UTF)
+ * </pre>
+ * Objects without the header, stored before the provider was put in front
+ * of the storage, are returned unchanged and have no metadata.
+ *
+ * Streamed objects are stored without a checksum, since the header is
+ * written before the object has been read. Overwriting an object reads the
+ * header of the previous version to keep its creation time.
+ *
+ * @author Steen Manniche
+ */
+public class MetadataStorageProvider extends DelegatingStorageProvider implements MetadataAwareStorageProvider
+{
+    private static final byte[] MAGIC = { 'X', 'O', 'R', 'H' };
+    private static final byte VERSION = 1;
+
+    private static final byte HAS_CHECKSUM = 1;
+    private static final byte HAS_CONTENT_TYPE = 2;
+
+    /**
+     * Length of the header up to the content type.
+     */
+    static final int FIXED_SIZE = 36;
+    static final int MAX_HEADER_SIZE = 1024;
+
+    /**
+     * Number of bytes read when looking for the header on its own; enough
+     * for the header of any registered content type.
+     */
+    private static final int READ_AHEAD = 256;
+
+    public MetadataStorageProvider( StorageProvider delegate )
+    {
+        super( delegate );
+    }
+
+
+    @Override
+    public URI save( byte[] object, String storagePath ) throws IOException
+    {
+        return this.save( object, storagePath, null );
+    }
+
+
+    @Override
+    public URI save( byte[] object, String storagePath, ObjectRepositoryContentType contentType ) throws IOException
+    {
+        long now = System.currentTimeMillis();
+        byte[] stored = encode( object, contentType, now, now );
+        ContentTypeAwareStorageProvider typedStorage = this.getTypedDelegate( contentType );
+        return null == typedStorage ? super.save( stored, storagePath ) : typedStorage.save( stored, storagePath, contentType );
+    }
+
+
+    @Override
+    public void save( byte[] object, URI uri, String storagePath ) throws IOException
+    {
+        this.save( object, uri, storagePath, null );
+    }
+
+
+    @Override
+    public void save( byte[] object, URI uri, String storagePath, ObjectRepositoryContentType contentType ) throws IOException
+    {
+        long now = System.currentTimeMillis();
+        byte[] stored = encode( object, contentType, this.getCreated( uri, now ), now );
+        ContentTypeAwareStorageProvider typedStorage = this.getTypedDelegate( contentType );
+        if( null == typedStorage )
+        {
+            super.save( stored, uri, storagePath );
+        }
+        else
+        {
+            typedStorage.save( stored, uri, storagePath, contentType );
+        }
+    }
+
+
+    @Override
+    public URI save( InputStream object, long length, String storagePath ) throws IOException
+    {
+        long now = System.currentTimeMillis();
+        byte[] header = header( null, length, -1, now, now );
+        return super.save( Headers.prepend( header, object ), header.length + length, storagePath );
+    }
+
+
+    @Override
+    public void save( InputStream object, long length, URI uri, String storagePath ) throws IOException
+    {
+        long now = System.currentTimeMillis();
+        byte[] header = header( null, length, -1, this.getCreated( uri, now ), now );
+        super.save( Headers.prepend( header, object ), header.length + length, uri, storagePath );
+    }
+
+
+    @Override
+    public BatchResult<URI> saveAll( List<byte[]> objects, String storagePath ) throws IOException
+    {
+        return this.saveAll( objects, storagePath, null );
+    }
+
+
+    @Override
+    public BatchResult<URI> saveAll( List<byte[]> objects, String storagePath, ObjectRepositoryContentType contentType ) throws IOException
+    {
+        long now = System.currentTimeMillis();
+        List<byte[]> stored = new ArrayList<byte[]>( objects.size() );
+        for( byte[] object : objects )
+        {
+            stored.add( encode( object, contentType, now, now ) );
+        }
+        return super.saveAll( stored, storagePath );
+    }
+
+
+    /**
+     * Objects overwritten in a batch get a new creation time; reading the
+     * previous headers would cost a read per object.
+     */
+    @Override
+    public BatchResult<Void> saveAll( List<byte[]> objects, List<URI> uris, String storagePath ) throws IOException
+    {
+        long now = System.currentTimeMillis();
+        List<byte[]> stored = new ArrayList<byte[]>( objects.size() );
+        for( byte[] object : objects )
+        {
+            stored.add( encode( object, null, now, now ) );
+        }
+        return super.saveAll( stored, uris, storagePath );
+    }
+
+
+    @Override
+    public byte[] get( URI identifier ) throws IOException
+    {
+        return this.getWithMetadata( identifier ).getBytes();
+    }
+
+
+    @Override
+    public StoredObject getWithMetadata( URI identifier ) throws IOException
+    {
+        return decode( super.get( identifier ), identifier );
+    }
+
+
+    @Override
+    public BatchResult<byte[]> getAll( List<URI> identifiers ) throws IOException
+    {
+        BatchResult<byte[]> stored = super.getAll( identifiers );
+        BatchResult<byte[]> result = new BatchResult<byte[]>( stored.size() );
+        for( int i = 0; i < stored.size(); i++ )
+        {
+            try
+            {
+                result.succeeded( i, decode( stored.get( i ), identifiers.get( i ) ).getBytes() );
+            }
+            catch( IOException ex )
+            {
+                result.failed( i, ex );
+            }
+        }
+        return result;
+    }
+
+
+    @Override
+    public InputStream getStream( URI identifier ) throws IOException
+    {
+        PushbackInputStream stored = new PushbackInputStream( super.getStream( identifier ), FIXED_SIZE );
+        byte[] prefix = new byte[ FIXED_SIZE ];
+        int read = Headers.read( stored, prefix );
+        if( read < FIXED_SIZE || ! Headers.hasMagic( prefix, MAGIC ) )
+        {
+            stored.unread( prefix, 0, read );
+            return stored;
+        }
+        try
+        {
+            int headerLength = headerLength( prefix, identifier );
+            byte[] rest = new byte[ headerLength - FIXED_SIZE ];
+            if( Headers.read( stored, rest ) < rest.length )
+            {
+                throw new EOFException( String.format( "Header of object %s is truncated", identifier ) );
+            }
+        }
+        catch( IOException ex )
+        {
+            stored.close();
+            throw ex;
+        }
+        return stored;
+    }
+
+
+    @Override
+    public byte[] get( URI identifier, long offset, int length ) throws IOException
+    {
+        byte[] header = this.readHeader( identifier );
+        if( null == header )
+        {
+            return super.get( identifier, offset, length );
+        }
+        ObjectMetadata metadata = parse( header, identifier );
+        return super.get( identifier, header.length + offset, RepositoryUtilities.rangeLength( metadata.getLength(), offset, length ) );
+    }
+
+
+    @Override
+    public long getLength( URI identifier ) throws IOException
+    {
+        ObjectMetadata metadata = this.getMetadata( identifier );
+        return null == metadata ? super.getLength( identifier ) : metadata.getLength();
+    }
+
+
+    @Override
+    public ObjectMetadata getMetadata( URI identifier ) throws IOException
+    {
+        byte[] header = this.readHeader( identifier );
+        return null == header ? null : parse( header, identifier );
+    }
+
+
+    /**
+     * Reads the header of an object with range reads.
+     *
+     * @return the header, or null if the object was stored without
+     */
+    private byte[] readHeader( URI identifier ) throws IOException
+    {
+        byte[] prefix = super.get( identifier, 0, READ_AHEAD );
+        if( prefix.length < FIXED_SIZE || ! Headers.hasMagic( prefix, MAGIC ) )
+        {
+            return null;
+        }
+        int headerLength = headerLength( prefix, identifier );
+        if( headerLength > prefix.length )
+        {
+            prefix = super.get( identifier, 0, headerLength );
+            if( prefix.length < headerLength )
+            {
+                throw new EOFException( String.format( "Header of object %s is truncated", identifier ) );
+            }
+        }
+        return Arrays.copyOf( prefix, headerLength );
+    }
+
+
+    /**
+     * @return the creation time of the object stored at {@code uri}, or
+     * {@code now} if there is none or it was stored without a header
+     */
+    private long getCreated( URI uri, long now ) throws IOException
+    {
+        try
+        {
+            ObjectMetadata previous = this.getMetadata( uri );
+            return null == previous ? now : previous.getCreated();
+        }
+        catch( FileNotFoundException ex )
+        {
+            return now;
+        }
+    }
+
+
+    private ContentTypeAwareStorageProvider getTypedDelegate( ObjectRepositoryContentType contentType )
+    {
+        if( null != contentType && this.delegate instanceof ContentTypeAwareStorageProvider )
+        {
+            return (ContentTypeAwareStorageProvider) this.delegate;
+        }
+        return null;
+    }
+
+
+    static byte[] encode( byte[] object, ObjectRepositoryContentType contentType, long created, long modified ) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        crc.update( object );
+        byte[] header = header( null == contentType ? null : contentType.toString(), object.length, crc.getValue(), created, modified );
+        byte[] stored = Arrays.copyOf( header, header.length + object.length );
+        System.arraycopy( object, 0, stored, header.length, object.length );
+        return stored;
+    }
+
+
+    static StoredObject decode( byte[] stored, URI identifier ) throws IOException
+    {
+        if( stored.length < FIXED_SIZE || ! Headers.hasMagic( stored, MAGIC ) )
+        {
+            return new StoredObject( stored, null );
+        }
+        ObjectMetadata metadata = parse( stored, identifier );
+        int headerLength = headerLength( stored, identifier );
+        if( stored.length - headerLength != metadata.getLength() )
+        {
+            throw new EOFException( String.format( "Object %s has %s bytes, its header says %s", identifier, stored.length - headerLength, metadata.getLength() ) );
+        }
+        return new StoredObject( Arrays.copyOfRange( stored, headerLength, stored.length ), metadata );
+    }
+
+
+    /**
+     * @param checksum the CRC32 of the object, or -1 if it is not known
+     */
+    private static byte[] header( String contentType, long length, long checksum, long created, long modified ) throws IOException
+    {
+        byte flags = 0;
+        if( checksum >= 0 )
+        {
+            flags |= HAS_CHECKSUM;
+        }
+        if( null != contentType )
+        {
+            flags |= HAS_CONTENT_TYPE;
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream( FIXED_SIZE + 32 );
+        DataOutputStream out = new DataOutputStream( buffer );
+        out.write( MAGIC );
+        out.writeByte( VERSION );
+        out.writeShort( 0 );
+        out.writeByte( flags );
+        out.writeLong( length );
+        out.writeInt( (int) checksum );
+        out.writeLong( created );
+        out.writeLong( modified );
+        out.writeUTF( null == contentType ? "" : contentType );
+        out.flush();
+        byte[] header = buffer.toByteArray();
+        if( header.length > MAX_HEADER_SIZE )
+        {
+            throw new IllegalArgumentException( String.format( "Content type %s is too long to be stored in the object header", contentType ) );
+        }
+        ByteBuffer.wrap( header ).putShort( MAGIC.length + 1, (short) header.length );
+        return header;
+    }
+
+
+    /**
+     * Parses a header at the start of {@code data}, which must hold all of
+     * it.
+     */
+    private static ObjectMetadata parse( byte[] data, URI identifier ) throws IOException
+    {
+        int headerLength = headerLength( data, identifier );
+        ByteBuffer header = ByteBuffer.wrap( data, 0, headerLength );
+        header.position( MAGIC.length + 3 );
+        byte flags = header.get();
+        long length = header.getLong();
+        long checksum = header.getInt() & 0xffffffffL;
+        long created = header.getLong();
+        long modified = header.getLong();
+        String contentType = new DataInputStream( new ByteArrayInputStream( data, FIXED_SIZE, headerLength - FIXED_SIZE ) ).readUTF();
+        return new ObjectMetadata( 0 == ( flags & HAS_CONTENT_TYPE ) ? null : contentType,
+                                   length,
+                                   0 == ( flags & HAS_CHECKSUM ) ? -1 : checksum,
+                                   created,
+                                   modified );
+    }
+
+
+    /**
+     * Checks the version and length of the header at the start of
+     * {@code data}, which must hold at least {@link #FIXED_SIZE} bytes.
+     */
+    private static int headerLength( byte[] data, URI identifier ) throws IOException
+    {
+        if( VERSION != data[ MAGIC.length ] )
+        {
+            throw new IOException( String.format( "Object %s has a header of unknown version %s", identifier, data[ MAGIC.length ] ) );
+        }
+        int headerLength = ByteBuffer.wrap( data ).getShort( MAGIC.length + 1 ) & 0xffff;
+        if( headerLength < FIXED_SIZE + 2 || headerLength > MAX_HEADER_SIZE )
+        {
+            throw new IOException( String.format( "Object %s has a corrupt header of %s bytes", identifier, headerLength ) );
+        }
+        return headerLength;
+    }
+}
@@ -0,0 +1,1627 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.manniche.xor.utils.RepositoryUtilities;
+
+
+/**
+ * Keeps a copy of every object in each of a number of directories, usually
+ * on separate mounts, so that the repository survives the loss of a disk
+ * and is not slowed down by a degraded one. Like the tiers of
+ * {@link TieredStorageProvider}, the replicas are directories of the same
+ * underlying storage: an object identified by {@code paths[0] + name} is
+ * kept at {@code paths[i] + name} in replica {@code i}, and clients only
+ * ever see the identifier of the first replica. Objects outside the first
+ * path are passed to the underlying storage unchanged.
+ *
+ * Writes and deletes go to all replicas in parallel and return once
+ * {@code writeQuorum} replicas have acknowledged them; the remaining
+ * replicas finish in the background. Operations on the same object are
+ * applied to the replicas in the order they were made. Streams longer than
+ * the buffer limit cannot be sent to all replicas at once; they are
+ * written to the first replica, which then counts as one acknowledgement,
+ * and copied from there to the others.
+ *
+ * If the underlying storage is content addressed and reference counts its
+ * objects, new objects are named by that storage rather than by the
+ * mirror, so that identical objects are still stored once in each replica.
+ * The object is saved to the first replica that takes it, and its name is
+ * then used for the others, each of which is saved to the same storage
+ * path and so counts its own references. Deletes release one reference in
+ * every replica.
+ *
+ * Reads go to the healthy replica with the lowest product of its average
+ * latency and the number of reads in progress. If it has not answered
+ * within the hedge delay, the read is also sent to the next replica, and
+ * the first answer is used. A replica that fails with anything but a
+ * missing object is avoided for 30 seconds. Replicas that may hold an
+ * older version of the object, because a write or delete acknowledged by
+ * others has not reached them yet or they wait to be repaired, are not
+ * read.
+ *
+ * Replicas that failed a write or delete are remembered and brought up to
+ * date by {@link #repair()}, run in the background by
+ * {@link #start(long, TimeUnit)}. Reference counted replicas are repaired
+ * by saving or deleting the object until they hold as many references as
+ * an up to date replica. They are saved to a state file whenever
+ * they change, so the repair continues after a restart. Reads never repair
+ * a replica that misses an object, as the object may have been deleted
+ * there on purpose. Operations still on their way to a replica when the
+ * process crashes are not known after the restart; that replica may hold
+ * the previous version of the object until it is written again.
+ *
+ * @author Steen Manniche
+ */
+public class MirroredStorageProvider extends DelegatingStorageProvider
+{
+    private static final Logger Log = Logger.getLogger( MirroredStorageProvider.class.getName() );
+
+    public static final long DEFAULT_HEDGE_DELAY = 50;
+    public static final long DEFAULT_BUFFER_LIMIT = 8 * 1024 * 1024;
+    public static final long DEFAULT_REPAIR_RATE = 32 * 1024 * 1024;
+
+    private static final long FAILURE_BACKOFF = TimeUnit.SECONDS.toNanos( 30 );
+
+    private final List<Replica> replicas;
+    private final File stateFile;
+    private final int writeQuorum;
+    private final long hedgeDelay;
+    private final long bufferLimit;
+    private final IORateLimiter limiter;
+    private final FanOutLayout layout;
+    private final ExecutorService executor;
+
+    /**
+     * True if the underlying storage names objects by their content and
+     * counts their references.
+     */
+    private final boolean counted;
+
+    /**
+     * The last operation made on each object that has not reached all
+     * replicas, and the replicas to repair. Both are guarded by
+     * {@code pending}.
+     */
+    private final Map<URI, Operation> pending = new HashMap<URI, Operation>();
+    private final Map<URI, Repair> repairs = new LinkedHashMap<URI, Repair>();
+
+    /**
+     * Counts the changes of {@code repairs}, guarded by {@code pending}, and
+     * the change last written to the state file, guarded by
+     * {@code stateLock}, so that an older state is never written over a
+     * newer one.
+     */
+    private long repairsVersion;
+    private long savedVersion;
+    private final Object stateLock = new Object();
+
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLong repaired = new AtomicLong();
+
+    private final BackgroundTask repairer = new BackgroundTask( "xor-mirror-repair", "Repair" )
+    {
+        @Override
+        protected void runOnce() throws IOException
+        {
+            repair();
+        }
+    };
+
+    /**
+     * Reads the write quorum from {@code xor.mirror.write_quorum} (default a
+     * majority of the replicas), the hedge delay from
+     * {@code xor.mirror.hedge_delay} (milliseconds, default 50), the buffer
+     * limit from {@code xor.mirror.buffer_limit} (bytes, default 8MB) and
+     * the I/O budget of repairs from {@code xor.mirror.repair_rate} (bytes
+     * per second, default 32MB).
+     */
+    public MirroredStorageProvider( StorageProvider delegate, List<String> paths, File stateFile ) throws IOException
+    {
+        this( delegate, paths, stateFile,
+              Integer.getInteger( "xor.mirror.write_quorum", paths.size() / 2 + 1 ),
+              Long.getLong( "xor.mirror.hedge_delay", DEFAULT_HEDGE_DELAY ),
+              Long.getLong( "xor.mirror.buffer_limit", DEFAULT_BUFFER_LIMIT ),
+              new IORateLimiter( Long.getLong( "xor.mirror.repair_rate", DEFAULT_REPAIR_RATE ) ) );
+    }
+
+
+    /**
+     * @param delegate the storage holding the replicas
+     * @param paths the storage paths of the replicas, each ending with a
+     * separator; the first is the path seen by clients
+     * @param stateFile the file holding the replicas waiting to be repaired
+     * @param writeQuorum the number of replicas that must acknowledge a
+     * write or delete
+     * @param hedgeDelay the milliseconds to wait for a replica before a
+     * read is also sent to the next
+     * @param bufferLimit the length of the longest stream sent to all
+     * replicas at once
+     * @param limiter the I/O budget of repairs, may be null
+     */
+    public MirroredStorageProvider( StorageProvider delegate, List<String> paths, File stateFile, int writeQuorum, long hedgeDelay, long bufferLimit, IORateLimiter limiter ) throws IOException
+    {
+        super( delegate );
+        if( paths.isEmpty() )
+        {
+            throw new IllegalArgumentException( "At least one replica is needed" );
+        }
+        if( writeQuorum < 1 || writeQuorum > paths.size() )
+        {
+            throw new IllegalArgumentException( String.format( "The write quorum must be between 1 and %s, was %s", paths.size(), writeQuorum ) );
+        }
+        List<Replica> list = new ArrayList<Replica>( paths.size() );
+        for( int i = 0; i < paths.size(); i++ )
+        {
+            list.add( new Replica( i, paths.get( i ) ) );
+        }
+        this.replicas = Collections.unmodifiableList( list );
+        this.stateFile = stateFile;
+        this.writeQuorum = writeQuorum;
+        this.hedgeDelay = TimeUnit.MILLISECONDS.toNanos( hedgeDelay );
+        this.bufferLimit = bufferLimit;
+        this.limiter = limiter;
+        this.layout = FanOutLayout.getConfigured();
+        this.counted = isReferenceCounted( delegate );
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool( new ThreadFactory()
+        {
+            @Override
+            public Thread newThread( Runnable runnable )
+            {
+                Thread thread = new Thread( runnable, "xor-mirror-" + count.incrementAndGet() );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+        if( stateFile.exists() )
+        {
+            this.loadState();
+        }
+    }
+
+
+    @Override
+    public URI save( byte[] object, String storagePath ) throws IOException
+    {
+        if( ! this.isMirrored( storagePath ) )
+        {
+            return super.save( object, storagePath );
+        }
+        if( this.counted )
+        {
+            return this.add( storagePath, object, null, object.length );
+        }
+        URI uri = this.generateURI( storagePath );
+        this.replicate( uri, object );
+        return uri;
+    }
+
+
+    @Override
+    public void save( byte[] object, URI uri, String storagePath ) throws IOException
+    {
+        if( ! this.isMirrored( uri ) )
+        {
+            super.save( object, uri, storagePath );
+            return;
+        }
+        this.replicate( uri, object );
+    }
+
+
+    @Override
+    public URI save( InputStream object, long length, String storagePath ) throws IOException
+    {
+        if( ! this.isMirrored( storagePath ) )
+        {
+            return super.save( object, length, storagePath );
+        }
+        if( this.counted )
+        {
+            if( length <= this.bufferLimit )
+            {
+                return this.add( storagePath, RepositoryUtilities.readFully( object, length ), null, length );
+            }
+            return this.add( storagePath, null, object, length );
+        }
+        URI uri = this.generateURI( storagePath );
+        this.replicate( uri, object, length );
+        return uri;
+    }
+
+
+    @Override
+    public void save( InputStream object, long length, URI uri, String storagePath ) throws IOException
+    {
+        if( ! this.isMirrored( uri ) )
+        {
+            super.save( object, length, uri, storagePath );
+            return;
+        }
+        this.replicate( uri, object, length );
+    }
+
+
+    @Override
+    public BatchResult<URI> saveAll( List<byte[]> objects, String storagePath ) throws IOException
+    {
+        return BatchOperations.saveAll( this, objects, storagePath );
+    }
+
+
+    @Override
+    public BatchResult<Void> saveAll( List<byte[]> objects, List<URI> uris, String storagePath ) throws IOException
+    {
+        return BatchOperations.saveAll( this, objects, uris, storagePath );
+    }
+
+
+    @Override
+    public byte[] get( URI identifier ) throws IOException
+    {
+        return this.read( identifier, new Read<byte[]>()
+        {
+            @Override
+            public byte[] from( URI location ) throws IOException
+            {
+                return MirroredStorageProvider.super.get( location );
+            }
+        } );
+    }
+
+
+    @Override
+    public BatchResult<byte[]> getAll( List<URI> identifiers ) throws IOException
+    {
+        return BatchOperations.getAll( this, identifiers );
+    }
+
+
+    @Override
+    public byte[] get( URI identifier, final long offset, final int length ) throws IOException
+    {
+        if( offset < 0 || length < 0 )
+        {
+            throw new IllegalArgumentException( String.format( "Invalid range %s+%s", offset, length ) );
+        }
+        return this.read( identifier, new Read<byte[]>()
+        {
+            @Override
+            public byte[] from( URI location ) throws IOException
+            {
+                return MirroredStorageProvider.super.get( location, offset, length );
+            }
+        } );
+    }
+
+
+    @Override
+    public long getLength( URI identifier ) throws IOException
+    {
+        return this.read( identifier, new Read<Long>()
+        {
+            @Override
+            public Long from( URI location ) throws IOException
+            {
+                return MirroredStorageProvider.super.getLength( location );
+            }
+        } );
+    }
+
+
+    /**
+     * Opens the object in the preferred replica, falling back to the others
+     * in turn. Streams are not hedged, as the losing stream would hold its
+     * file open until it was closed.
+     */
+    @Override
+    public InputStream getStream( URI identifier ) throws IOException
+    {
+        if( ! this.isMirrored( identifier ) )
+        {
+            return super.getStream( identifier );
+        }
+        IOException failure = null;
+        for( Replica replica : this.preferred( identifier ) )
+        {
+            long start = System.nanoTime();
+            try
+            {
+                InputStream stream = super.getStream( this.locate( identifier, replica ) );
+                replica.answered( System.nanoTime() - start );
+                return stream;
+            }
+            catch( FileNotFoundException ex )
+            {
+                replica.answered( System.nanoTime() - start );
+            }
+            catch( IOException ex )
+            {
+                replica.failed( ex );
+                failure = ex;
+            }
+        }
+        throw this.unreadable( identifier, failure );
+    }
+
+
+    @Override
+    public void delete( final URI identifier ) throws IOException
+    {
+        if( ! this.isMirrored( identifier ) )
+        {
+            super.delete( identifier );
+            return;
+        }
+        Operation operation = this.begin( identifier, true, -1 );
+        for( final Replica replica : this.replicas )
+        {
+            this.submit( operation, replica, new Callable<Boolean>()
+            {
+                @Override
+                public Boolean call() throws IOException
+                {
+                    try
+                    {
+                        MirroredStorageProvider.super.delete( locate( identifier, replica ) );
+                        return true;
+                    }
+                    catch( FileNotFoundException ex )
+                    {
+                        return false;
+                    }
+                }
+            } );
+        }
+        operation.awaitQuorum();
+    }
+
+
+    @Override
+    public BatchResult<Void> deleteAll( List<URI> identifiers ) throws IOException
+    {
+        return BatchOperations.deleteAll( this, identifiers );
+    }
+
+
+    /**
+     * Brings the replicas that missed a write or delete up to date with the
+     * others, copying objects from a replica that has them.
+     *
+     * @return the number of objects repaired
+     */
+    public int repair()
+    {
+        List<URI> divergent;
+        synchronized( this.pending )
+        {
+            divergent = new ArrayList<URI>( this.repairs.keySet() );
+        }
+        int count = 0;
+        for( URI identifier : divergent )
+        {
+            if( this.repairer.isStopping() )
+            {
+                break;
+            }
+            try
+            {
+                if( this.repair( identifier ) )
+                {
+                    count++;
+                }
+            }
+            catch( IOException ex )
+            {
+                Log.log( Level.WARNING, String.format( "Could not repair %s: %s", identifier, ex.getMessage() ), ex );
+            }
+        }
+        if( count > 0 )
+        {
+            Log.info( String.format( "Repaired %s objects, %s are still divergent", count, this.getDivergentCount() ) );
+        }
+        return count;
+    }
+
+
+    /**
+     * Waits until the writes and deletes made so far have reached all
+     * replicas.
+     */
+    public void awaitReplication() throws InterruptedIOException
+    {
+        List<Operation> operations;
+        synchronized( this.pending )
+        {
+            operations = new ArrayList<Operation>( this.pending.values() );
+        }
+        for( Operation operation : operations )
+        {
+            operation.awaitCompletion();
+        }
+    }
+
+
+    /**
+     * @return the number of objects known to differ between the replicas
+     */
+    public int getDivergentCount()
+    {
+        synchronized( this.pending )
+        {
+            return this.repairs.size();
+        }
+    }
+
+
+    /**
+     * @return the number of objects repaired since the provider was created
+     */
+    public long getRepairedCount()
+    {
+        return this.repaired.get();
+    }
+
+
+    /**
+     * @return the number of reads that were also sent to another replica
+     * because the first was slow
+     */
+    public long getHedgedCount()
+    {
+        return this.hedged.get();
+    }
+
+
+    /**
+     * @return true if replica {@code index} has not failed within the last
+     * 30 seconds
+     */
+    public boolean isHealthy( int index )
+    {
+        return this.replicas.get( index ).isHealthy();
+    }
+
+
+    /**
+     * Runs {@link #repair()} in a background thread with {@code delay}
+     * between the end of one run and the start of the next.
+     */
+    public void start( long delay, TimeUnit unit )
+    {
+        this.repairer.start( delay, delay, unit );
+    }
+
+
+    /**
+     * Stops the background repair. An object being repaired is repaired
+     * completely.
+     */
+    public void stop() throws InterruptedException
+    {
+        this.repairer.stop();
+    }
+
+
+    /**
+     * Stops the background repair and waits for writes still on their way
+     * to the slower replicas.
+     */
+    @Override
+    public void close()
+    {
+        try
+        {
+            this.stop();
+            this.executor.shutdown();
+            if( ! this.executor.awaitTermination( 1, TimeUnit.MINUTES ) )
+            {
+                Log.warning( "Gave up waiting for writes to the replicas" );
+            }
+        }
+        catch( InterruptedException ex )
+        {
+            Thread.currentThread().interrupt();
+        }
+        this.saveState();
+        int divergent = this.getDivergentCount();
+        if( divergent > 0 )
+        {
+            Log.warning( String.format( "Closing with %s objects not repaired", divergent ) );
+        }
+        super.close();
+    }
+
+
+    private void replicate( final URI identifier, final byte[] object ) throws IOException
+    {
+        Operation operation = this.begin( identifier, false, -1 );
+        for( final Replica replica : this.replicas )
+        {
+            this.submit( operation, replica, new Callable<Boolean>()
+            {
+                @Override
+                public Boolean call() throws IOException
+                {
+                    URI location = locate( identifier, replica );
+                    MirroredStorageProvider.super.save( object, location, directory( location ) );
+                    return true;
+                }
+            } );
+        }
+        operation.awaitQuorum();
+    }
+
+
+    private void replicate( final URI identifier, InputStream object, long length ) throws IOException
+    {
+        if( length <= this.bufferLimit )
+        {
+            this.replicate( identifier, RepositoryUtilities.readFully( object, length ) );
+            return;
+        }
+        final Replica first = this.replicas.get( 0 );
+        Operation operation = this.begin( identifier, false, first.index );
+        try
+        {
+            URI location = this.locate( identifier, first );
+            super.save( object, length, location, this.directory( location ) );
+        }
+        catch( IOException ex )
+        {
+            first.failed( ex );
+            this.abandon( operation, ex );
+            throw ex;
+        }
+        catch( RuntimeException ex )
+        {
+            this.abandon( operation, new IOException( ex.getMessage(), ex ) );
+            throw ex;
+        }
+        this.finished( operation, first, true, null );
+        for( final Replica replica : this.replicas.subList( 1, this.replicas.size() ) )
+        {
+            this.submit( operation, replica, new Callable<Boolean>()
+            {
+                @Override
+                public Boolean call() throws IOException
+                {
+                    copy( identifier, first, replica, false, false );
+                    return true;
+                }
+            } );
+        }
+        operation.awaitQuorum();
+    }
+
+
+    /**
+     * Adds a reference to an object in a reference counted storage, which
+     * names it. The first replica that takes the object names it, and is
+     * the first to acknowledge it; the others are then saved to the same
+     * storage path and must give the object the same name. A stream is only
+     * offered to one replica, and copied from there to the others.
+     *
+     * The first replica is written before the operation is ordered after
+     * the earlier operations on the object, as its name is not known until
+     * then. That does no harm, as the references added and released are
+     * counted however the operations are ordered.
+     */
+    private URI add( final String storagePath, final byte[] object, InputStream stream, long length ) throws IOException
+    {
+        IOException failure = null;
+        for( final Replica first : this.replicas )
+        {
+            URI uri;
+            long start = System.nanoTime();
+            try
+            {
+                String path = this.place( storagePath, first );
+                URI location = null == stream ? super.save( object, path ) : super.save( stream, length, path );
+                first.answered( System.nanoTime() - start );
+                uri = this.identify( location, first );
+            }
+            catch( IOException ex )
+            {
+                first.failed( ex );
+                if( null != stream )
+                {
+                    // the stream cannot be read again
+                    throw ex;
+                }
+                failure = ex;
+                continue;
+            }
+            Operation operation = this.begin( uri, false, first.index );
+            this.finished( operation, first, true, null );
+            for( final Replica replica : this.replicas )
+            {
+                if( replica == first )
+                {
+                    continue;
+                }
+                final URI identifier = uri;
+                this.submit( operation, replica, new Callable<Boolean>()
+                {
+                    @Override
+                    public Boolean call() throws IOException
+                    {
+                        if( null == object )
+                        {
+                            copy( identifier, first, replica, false, true );
+                        }
+                        else
+                        {
+                            confirm( locate( identifier, replica ), MirroredStorageProvider.super.save( object, place( storagePath, replica ) ) );
+                        }
+                        return true;
+                    }
+                } );
+            }
+            operation.awaitQuorum();
+            return uri;
+        }
+        throw failure;
+    }
+
+
+    /**
+     * Repairs one object, as an operation ordered after the writes and
+     * deletes of the object made before it.
+     *
+     * @return true if all replicas of the object are up to date
+     */
+    private boolean repair( URI identifier ) throws IOException
+    {
+        Repair repair;
+        synchronized( this.pending )
+        {
+            repair = this.repairs.remove( identifier );
+            if( null != repair )
+            {
+                // saved once the repair has finished
+                this.repairsVersion++;
+            }
+        }
+        if( null == repair )
+        {
+            return false;
+        }
+        Operation operation = this.begin( identifier, repair.deleting, repair.source, repair.stale, true );
+        IOException failure = null;
+        for( Replica replica : repair.stale )
+        {
+            try
+            {
+                if( this.counted && repair.source >= 0 )
+                {
+                    this.reconcile( identifier, this.replicas.get( repair.source ), replica, ! repair.deleting );
+                }
+                else if( repair.deleting )
+                {
+                    try
+                    {
+                        super.delete( this.locate( identifier, replica ) );
+                    }
+                    catch( FileNotFoundException ex )
+                    {
+                        // already gone
+                    }
+                }
+                else
+                {
+                    this.copy( identifier, this.replicas.get( repair.source ), replica, true, false );
+                }
+                this.finished( operation, replica, true, null );
+            }
+            catch( IOException ex )
+            {
+                failure = ex;
+                this.finished( operation, replica, false, ex );
+            }
+            catch( RuntimeException ex )
+            {
+                failure = new IOException( ex.getMessage(), ex );
+                this.finished( operation, replica, false, failure );
+            }
+        }
+        if( null != failure )
+        {
+            throw failure;
+        }
+        this.repaired.incrementAndGet();
+        return true;
+    }
+
+
+    /**
+     * Saves or deletes the object in a reference counted replica until it
+     * holds as many references as an up to date replica, however many
+     * writes and deletes it missed. A replica that already holds as many
+     * references is given the content again if it missed a write, which
+     * may have replaced the object under its identifier.
+     */
+    private void reconcile( URI identifier, Replica from, Replica to, boolean writing ) throws IOException
+    {
+        URI target = this.locate( identifier, to );
+        int expected = getReferenceCount( this.delegate, this.locate( identifier, from ) );
+        int actual = getReferenceCount( this.delegate, target );
+        if( actual == expected && writing && expected > 0 )
+        {
+            this.copy( identifier, from, to, true, false );
+        }
+        for( ; actual < expected; actual++ )
+        {
+            this.copy( identifier, from, to, true, true );
+        }
+        for( ; actual > expected; actual-- )
+        {
+            super.delete( target );
+        }
+    }
+
+
+    /**
+     * Copies an object from one replica to another.
+     *
+     * @param throttled true if the copy is kept within the I/O budget of
+     * repairs
+     * @param reference true if the copy adds a reference to the object in a
+     * reference counted replica, rather than replacing it
+     */
+    private void copy( URI identifier, Replica from, Replica to, boolean throttled, boolean reference ) throws IOException
+    {
+        URI source = this.locate( identifier, from );
+        URI target = this.locate( identifier, to );
+        long length = super.getLength( source );
+        if( throttled && null != this.limiter )
+        {
+            this.limiter.acquire( length );
+        }
+        InputStream in = super.getStream( source );
+        try
+        {
+            if( reference )
+            {
+                this.confirm( target, super.save( in, length, this.storagePath( target ) ) );
+            }
+            else
+            {
+                super.save( in, length, target, this.directory( target ) );
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Registers a new operation on an object and waits for the previous
+     * one to reach all replicas.
+     */
+    private Operation begin( URI identifier, boolean deleting, int source ) throws IOException
+    {
+        return this.begin( identifier, deleting, source, this.replicas, false );
+    }
+
+
+    private Operation begin( URI identifier, boolean deleting, int source, List<Replica> targets, boolean repair ) throws IOException
+    {
+        Operation operation = new Operation( identifier, deleting, source, targets, repair );
+        Operation previous;
+        synchronized( this.pending )
+        {
+            previous = this.pending.put( identifier, operation );
+        }
+        if( null != previous )
+        {
+            try
+            {
+                previous.awaitCompletion();
+            }
+            catch( InterruptedIOException ex )
+            {
+                this.abandon( operation, ex );
+                throw ex;
+            }
+        }
+        return operation;
+    }
+
+
+    private void submit( final Operation operation, final Replica replica, final Callable<Boolean> task )
+    {
+        try
+        {
+            this.executor.execute( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    long start = System.nanoTime();
+                    try
+                    {
+                        boolean changed = task.call();
+                        replica.answered( System.nanoTime() - start );
+                        finished( operation, replica, changed, null );
+                    }
+                    catch( IOException ex )
+                    {
+                        replica.failed( ex );
+                        finished( operation, replica, false, ex );
+                    }
+                    catch( Exception ex )
+                    {
+                        Log.log( Level.SEVERE, String.format( "Replica %s failed: %s", replica.path, ex.getMessage() ), ex );
+                        finished( operation, replica, false, new IOException( ex.getMessage(), ex ) );
+                    }
+                }
+            } );
+        }
+        catch( RejectedExecutionException ex )
+        {
+            this.finished( operation, replica, false, new IOException( "The storage is closed", ex ) );
+        }
+    }
+
+
+    /**
+     * Fails the replicas of an operation that were never sent the
+     * operation.
+     */
+    private void abandon( Operation operation, IOException failure )
+    {
+        for( Replica replica : operation.targets )
+        {
+            if( operation.isWaiting( replica ) )
+            {
+                this.finished( operation, replica, false, failure );
+            }
+        }
+    }
+
+
+    private void finished( Operation operation, Replica replica, boolean changed, IOException failure )
+    {
+        if( ! operation.finished( replica, changed, failure ) )
+        {
+            return;
+        }
+        boolean saved = false;
+        synchronized( this.pending )
+        {
+            if( this.pending.get( operation.identifier ) == operation )
+            {
+                this.pending.remove( operation.identifier );
+            }
+            List<Replica> failed = operation.getFailed();
+            int source = operation.getSource();
+            Repair previous = this.repairs.get( operation.identifier );
+            if( failed.isEmpty() )
+            {
+                // a replica that missed a reference still misses it
+                saved = ( ! this.counted && null != this.repairs.remove( operation.identifier ) ) || operation.isRepair();
+            }
+            else if( operation.deleting ? operation.getAcknowledged() > 0 || operation.isRepair() : source >= 0 )
+            {
+                if( this.counted && null != previous && ! operation.isRepair() )
+                {
+                    for( Replica stale : previous.stale )
+                    {
+                        if( ! failed.contains( stale ) )
+                        {
+                            failed.add( stale );
+                        }
+                    }
+                    for( Replica current : this.replicas )
+                    {
+                        if( failed.contains( this.replicas.get( source ) ) && ! failed.contains( current ) )
+                        {
+                            source = current.index;
+                        }
+                    }
+                }
+                this.repairs.put( operation.identifier, new Repair( operation.deleting, source, failed ) );
+                saved = true;
+            }
+            if( saved )
+            {
+                this.repairsVersion++;
+            }
+        }
+        if( saved )
+        {
+            this.saveState();
+        }
+        operation.complete();
+    }
+
+
+    private <T> T read( URI identifier, final Read<T> read ) throws IOException
+    {
+        if( ! this.isMirrored( identifier ) )
+        {
+            return read.from( identifier );
+        }
+        List<Replica> order = this.preferred( identifier );
+        CompletionService<T> service = new ExecutorCompletionService<T>( this.executor );
+        Map<Future<T>, Replica> running = new HashMap<Future<T>, Replica>();
+        IOException failure = null;
+        int next = 0;
+        try
+        {
+            running.put( service.submit( this.reader( identifier, order.get( next ), read ) ), order.get( next ) );
+            next++;
+            while( ! running.isEmpty() )
+            {
+                Future<T> done;
+                if( next < order.size() )
+                {
+                    done = service.poll( this.hedgeDelay, TimeUnit.NANOSECONDS );
+                    if( null == done )
+                    {
+                        this.hedged.incrementAndGet();
+                        running.put( service.submit( this.reader( identifier, order.get( next ), read ) ), order.get( next ) );
+                        next++;
+                        continue;
+                    }
+                }
+                else
+                {
+                    done = service.take();
+                }
+                running.remove( done );
+                try
+                {
+                    T value = done.get();
+                    for( Future<T> slower : running.keySet() )
+                    {
+                        // not interrupted, which would close channels
+                        // shared with other reads
+                        slower.cancel( false );
+                    }
+                    return value;
+                }
+                catch( ExecutionException ex )
+                {
+                    Throwable cause = ex.getCause();
+                    if( cause instanceof FileNotFoundException )
+                    {
+                        // another replica may still have it
+                    }
+                    else if( cause instanceof IOException )
+                    {
+                        failure = (IOException) cause;
+                    }
+                    else if( cause instanceof RuntimeException )
+                    {
+                        throw (RuntimeException) cause;
+                    }
+                    else
+                    {
+                        throw new IOException( cause.getMessage(), cause );
+                    }
+                }
+                if( running.isEmpty() && next < order.size() )
+                {
+                    running.put( service.submit( this.reader( identifier, order.get( next ), read ) ), order.get( next ) );
+                    next++;
+                }
+            }
+        }
+        catch( InterruptedException ex )
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( String.format( "Interrupted while reading %s", identifier ) );
+        }
+        catch( RejectedExecutionException ex )
+        {
+            throw new IOException( "The storage is closed", ex );
+        }
+        throw this.unreadable( identifier, failure );
+    }
+
+
+    private <T> Callable<T> reader( final URI identifier, final Replica replica, final Read<T> read )
+    {
+        return new Callable<T>()
+        {
+            @Override
+            public T call() throws IOException
+            {
+                replica.inFlight.incrementAndGet();
+                long start = System.nanoTime();
+                try
+                {
+                    T value = read.from( locate( identifier, replica ) );
+                    replica.answered( System.nanoTime() - start );
+                    return value;
+                }
+                catch( FileNotFoundException ex )
+                {
+                    replica.answered( System.nanoTime() - start );
+                    throw ex;
+                }
+                catch( IOException ex )
+                {
+                    replica.failed( ex );
+                    throw ex;
+                }
+                finally
+                {
+                    replica.inFlight.decrementAndGet();
+                }
+            }
+        };
+    }
+
+
+    /**
+     * @return the exception to throw when no replica could be read
+     */
+    private IOException unreadable( URI identifier, IOException failure )
+    {
+        if( null == failure )
+        {
+            return new FileNotFoundException( String.format( "No object identified by %s", identifier ) );
+        }
+        return failure;
+    }
+
+
+    /**
+     * @return the replicas holding the current version of {@code identifier},
+     * healthy before failed and then by increasing latency and load. If no
+     * replica is known to be current, all replicas are returned.
+     */
+    private List<Replica> preferred( URI identifier )
+    {
+        List<Replica> order = new ArrayList<Replica>( this.replicas );
+        synchronized( this.pending )
+        {
+            Operation operation = this.pending.get( identifier );
+            if( null != operation )
+            {
+                order.removeAll( operation.getBehind() );
+            }
+            Repair repair = this.repairs.get( identifier );
+            if( null != repair )
+            {
+                order.removeAll( repair.stale );
+            }
+        }
+        if( order.isEmpty() )
+        {
+            order.addAll( this.replicas );
+        }
+        Collections.sort( order, new Comparator<Replica>()
+        {
+            @Override
+            public int compare( Replica a, Replica b )
+            {
+                boolean healthy = a.isHealthy();
+                if( healthy != b.isHealthy() )
+                {
+                    return healthy ? -1 : 1;
+                }
+                long difference = a.cost() - b.cost();
+                return difference < 0 ? -1 : ( difference > 0 ? 1 : 0 );
+            }
+        } );
+        return order;
+    }
+
+
+    private boolean isMirrored( String storagePath )
+    {
+        return null != storagePath && storagePath.startsWith( this.replicas.get( 0 ).path );
+    }
+
+
+    private boolean isMirrored( URI identifier )
+    {
+        return this.isMirrored( identifier.getPath() );
+    }
+
+
+    /**
+     * @return the location of {@code identifier} in {@code replica}
+     */
+    private URI locate( URI identifier, Replica replica ) throws IOException
+    {
+        if( 0 == replica.index )
+        {
+            return identifier;
+        }
+        String path = identifier.getPath();
+        try
+        {
+            return new URI( identifier.getScheme(), null, replica.path + path.substring( this.replicas.get( 0 ).path.length() ), null );
+        }
+        catch( URISyntaxException ex )
+        {
+            throw new IOException( String.format( "Could not construct the location of %s in %s: %s", identifier, replica.path, ex.getMessage() ), ex );
+        }
+    }
+
+
+    private String directory( URI location )
+    {
+        String path = location.getPath();
+        return path.substring( 0, path.lastIndexOf( '/' ) + 1 );
+    }
+
+
+    /**
+     * @return the identifier clients see for the object at {@code location}
+     * in {@code replica}
+     */
+    private URI identify( URI location, Replica replica ) throws IOException
+    {
+        String path = location.getPath();
+        if( ! path.startsWith( replica.path ) )
+        {
+            throw new IOException( String.format( "The storage placed an object at %s, outside the replica %s", location, replica.path ) );
+        }
+        try
+        {
+            return new URI( location.getScheme(), null, this.replicas.get( 0 ).path + path.substring( replica.path.length() ), null );
+        }
+        catch( URISyntaxException ex )
+        {
+            throw new IOException( String.format( "Could not construct the identifier of %s: %s", location, ex.getMessage() ), ex );
+        }
+    }
+
+
+    /**
+     * @return the storage path in {@code replica} of the storage path
+     * {@code storagePath} of the first
+     */
+    private String place( String storagePath, Replica replica )
+    {
+        return replica.path + storagePath.substring( this.replicas.get( 0 ).path.length() );
+    }
+
+
+    /**
+     * @return the storage path that the object at {@code location} was
+     * saved to, below the directories of the fan-out layout
+     */
+    private String storagePath( URI location )
+    {
+        String directory = this.directory( location );
+        String name = location.getPath().substring( directory.length() );
+        return directory.substring( 0, directory.length() - this.layout.getRelativeDirectory( name ).length() );
+    }
+
+
+    /**
+     * Checks that a reference counted replica gave an object the name it
+     * has in the others, releasing the reference it added otherwise.
+     */
+    private void confirm( URI location, URI stored ) throws IOException
+    {
+        if( location.equals( stored ) )
+        {
+            return;
+        }
+        super.delete( stored );
+        throw new IOException( String.format( "The storage named the copy of %s %s; the replicas must use the configured fan-out layout", location, stored ) );
+    }
+
+
+    /**
+     * Names a new object. The name is chosen here rather than by the
+     * underlying storage, so that all replicas can be written at once, and
+     * is placed in the {@link FanOutLayout#getConfigured() configured
+     * fan-out layout} like the names the storage chooses.
+     */
+    private URI generateURI( String storagePath ) throws IOException
+    {
+        try
+        {
+            return RepositoryUtilities.generateURI( this.getScheme(), storagePath, UUID.randomUUID().toString().replace( "-", "" ), this.layout );
+        }
+        catch( URISyntaxException ex )
+        {
+            throw new IOException( String.format( "Could not construct an identifier in %s: %s", storagePath, ex.getMessage() ), ex );
+        }
+    }
+
+
+    /**
+     * Writes the replicas waiting to be repaired as lines of the operation
+     * to repair ({@code put} or {@code delete}), the index of the replica to
+     * copy from, the indexes of the stale replicas and the identifier. A
+     * failure is logged, and the state is written again on the next change.
+     */
+    private void saveState()
+    {
+        synchronized( this.stateLock )
+        {
+            List<String> lines = new ArrayList<String>();
+            long version;
+            synchronized( this.pending )
+            {
+                version = this.repairsVersion;
+                if( version == this.savedVersion )
+                {
+                    return;
+                }
+                for( Map.Entry<URI, Repair> entry : this.repairs.entrySet() )
+                {
+                    Repair repair = entry.getValue();
+                    StringBuilder stale = new StringBuilder();
+                    for( Replica replica : repair.stale )
+                    {
+                        stale.append( 0 == stale.length() ? "" : "," ).append( replica.index );
+                    }
+                    lines.add( String.format( "%s %s %s %s", repair.deleting ? "delete" : "put", repair.source, stale, entry.getKey() ) );
+                }
+            }
+            try
+            {
+                StateFiles.write( this.stateFile, lines );
+                this.savedVersion = version;
+            }
+            catch( IOException ex )
+            {
+                Log.log( Level.WARNING, String.format( "Could not save the replicas to repair to %s: %s", this.stateFile, ex.getMessage() ), ex );
+            }
+        }
+    }
+
+
+    private void loadState() throws IOException
+    {
+        for( String line : StateFiles.read( this.stateFile ) )
+        {
+            String[] fields = line.split( " ", 4 );
+            try
+            {
+                if( fields.length != 4 || ! ( "put".equals( fields[ 0 ] ) || "delete".equals( fields[ 0 ] ) ) )
+                {
+                    throw new IllegalArgumentException( line );
+                }
+                int source = Integer.parseInt( fields[ 1 ] );
+                List<Replica> stale = new ArrayList<Replica>();
+                for( String index : fields[ 2 ].split( "," ) )
+                {
+                    stale.add( this.replicas.get( Integer.parseInt( index ) ) );
+                }
+                if( source >= this.replicas.size() )
+                {
+                    throw new IllegalArgumentException( line );
+                }
+                this.repairs.put( new URI( fields[ 3 ] ), new Repair( "delete".equals( fields[ 0 ] ), source, stale ) );
+            }
+            catch( URISyntaxException ex )
+            {
+                Log.warning( String.format( "Skipping malformed line in %s: %s", this.stateFile, line ) );
+            }
+            catch( RuntimeException ex )
+            {
+                // malformed numbers, or replicas that are no longer configured
+                Log.warning( String.format( "Skipping malformed line in %s: %s", this.stateFile, line ) );
+            }
+        }
+        this.repairsVersion = this.savedVersion = 0;
+        Log.info( String.format( "Loaded %s objects to repair from %s", this.repairs.size(), this.stateFile ) );
+    }
+
+
+    private interface Read<T>
+    {
+        T from( URI location ) throws IOException;
+    }
+
+
+    /**
+     * A replica directory and what is known about its speed and health.
+     */
+    private static final class Replica
+    {
+        private final int index;
+        private final String path;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile long latency;
+        private volatile long failedAt;
+        private volatile boolean failed;
+
+        Replica( int index, String path )
+        {
+            this.index = index;
+            this.path = path;
+        }
+
+
+        /**
+         * Adds the time of an answer to the moving average latency.
+         */
+        void answered( long nanos )
+        {
+            long average = this.latency;
+            this.latency = 0 == average ? nanos : average + ( nanos - average ) / 8;
+        }
+
+
+        void failed( IOException ex )
+        {
+            if( ! this.isHealthy() )
+            {
+                this.failedAt = System.nanoTime();
+                return;
+            }
+            Log.warning( String.format( "Replica %s failed, avoiding it for %s seconds: %s", this.path, TimeUnit.NANOSECONDS.toSeconds( FAILURE_BACKOFF ), ex.getMessage() ) );
+            this.failedAt = System.nanoTime();
+            this.failed = true;
+        }
+
+
+        boolean isHealthy()
+        {
+            return ! this.failed || System.nanoTime() - this.failedAt > FAILURE_BACKOFF;
+        }
+
+
+        long cost()
+        {
+            return ( this.latency + 1 ) * ( this.inFlight.get() + 1 );
+        }
+    }
+
+
+    /**
+     * The replicas of an object that should be brought up to date, and the
+     * replica to copy it from.
+     */
+    private static final class Repair
+    {
+        private final boolean deleting;
+        private final int source;
+        private final List<Replica> stale;
+
+        Repair( boolean deleting, int source, List<Replica> stale )
+        {
+            this.deleting = deleting;
+            this.source = source;
+            this.stale = new ArrayList<Replica>( stale );
+        }
+    }
+
+
+    /**
+     * A write or delete of an object on its way to the replicas.
+     */
+    private final class Operation
+    {
+        private final URI identifier;
+        private final boolean deleting;
+        private final List<Replica> targets;
+        private final boolean repair;
+        private final Map<Replica, IOException> results = new HashMap<Replica, IOException>();
+        private int source;
+        private int acknowledged;
+        private int changed;
+        private boolean completed;
+
+        Operation( URI identifier, boolean deleting, int source, List<Replica> targets, boolean repair )
+        {
+            this.identifier = identifier;
+            this.deleting = deleting;
+            this.source = source;
+            this.targets = targets;
+            this.repair = repair;
+        }
+
+
+        /**
+         * @return true if this was the last replica to finish
+         */
+        synchronized boolean finished( Replica replica, boolean change, IOException failure )
+        {
+            this.results.put( replica, failure );
+            if( null == failure )
+            {
+                this.acknowledged++;
+                if( change )
+                {
+                    this.changed++;
+                }
+                // a reference counted replica that took a delete holds as
+                // many references as the others should
+                if( this.source < 0 && ( ! this.deleting || counted ) )
+                {
+                    this.source = replica.index;
+                }
+            }
+            this.notifyAll();
+            return this.results.size() == this.targets.size();
+        }
+
+
+        synchronized boolean isWaiting( Replica replica )
+        {
+            return ! this.results.containsKey( replica );
+        }
+
+
+        synchronized int getAcknowledged()
+        {
+            return this.acknowledged;
+        }
+
+
+        synchronized int getSource()
+        {
+            return this.source;
+        }
+
+
+        boolean isRepair()
+        {
+            return this.repair;
+        }
+
+
+        /**
+         * @return the targets that have not acknowledged the operation once
+         * another target has, or at once for a repair, whose targets are
+         * all stale
+         */
+        synchronized List<Replica> getBehind()
+        {
+            List<Replica> behind = new ArrayList<Replica>();
+            if( this.acknowledged > 0 || this.repair )
+            {
+                for( Replica target : this.targets )
+                {
+                    if( ! this.results.containsKey( target ) || null != this.results.get( target ) )
+                    {
+                        behind.add( target );
+                    }
+                }
+            }
+            return behind;
+        }
+
+
+        synchronized List<Replica> getFailed()
+        {
+            List<Replica> failed = new ArrayList<Replica>();
+            for( Map.Entry<Replica, IOException> result : this.results.entrySet() )
+            {
+                if( null != result.getValue() )
+                {
+                    failed.add( result.getKey() );
+                }
+            }
+            return failed;
+        }
+
+
+        /**
+         * Waits until the write quorum has acknowledged the operation, or
+         * until too many replicas have failed for it to do so. A delete
+         * that found no replica holding the object waits for all replicas
+         * before reporting the object missing.
+         */
+        synchronized void awaitQuorum() throws IOException
+        {
+            try
+            {
+                int tolerated = this.targets.size() - writeQuorum;
+                while( this.acknowledged < writeQuorum && this.results.size() - this.acknowledged <= tolerated )
+                {
+                    this.wait();
+                }
+                if( this.acknowledged < writeQuorum )
+                {
+                    IOException cause = null;
+                    for( IOException failure : this.results.values() )
+                    {
+                        if( null != failure )
+                        {
+                            cause = failure;
+                        }
+                    }
+                    throw new IOException( String.format( "Only %s of %s replicas acknowledged %s, %s were needed: %s",
+                                                          this.acknowledged, this.targets.size(), this.identifier, writeQuorum, cause.getMessage() ), cause );
+                }
+                if( this.deleting && 0 == this.changed )
+                {
+                    while( this.results.size() < this.targets.size() && 0 == this.changed )
+                    {
+                        this.wait();
+                    }
+                    if( 0 == this.changed )
+                    {
+                        throw new FileNotFoundException( String.format( "No object identified by %s", this.identifier ) );
+                    }
+                }
+            }
+            catch( InterruptedException ex )
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException( String.format( "Interrupted while waiting for the replicas of %s", this.identifier ) );
+            }
+        }
+
+
+        synchronized void complete()
+        {
+            this.completed = true;
+            this.notifyAll();
+        }
+
+
+        /**
+         * Waits until all replicas have finished the operation and the
+         * outcome has been recorded.
+         */
+        synchronized void awaitCompletion() throws InterruptedIOException
+        {
+            try
+            {
+                while( ! this.completed )
+                {
+                    this.wait();
+                }
+            }
+            catch( InterruptedException ex )
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException( String.format( "Interrupted while waiting for the replicas of %s", this.identifier ) );
+            }
+        }
+    }
+}
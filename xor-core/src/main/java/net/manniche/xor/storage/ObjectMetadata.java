@@ -0,0 +1,99 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+
+/**
+ * The metadata kept with a stored object by a
+ * {@link MetadataAwareStorageProvider}: its content type, length, checksum
+ * and timestamps.
+ *
+ * @author Steen Manniche
+ */
+public final class ObjectMetadata
+{
+    private final String contentType;
+    private final long length;
+    private final long checksum;
+    private final long created;
+    private final long modified;
+
+    /**
+     * @param contentType the name of the content type of the object, or null
+     * if it was stored without one
+     * @param length the length in bytes of the object
+     * @param checksum the CRC32 of the object, or -1 if it was streamed into
+     * storage without one
+     * @param created the time the object was first stored, in milliseconds
+     * @param modified the time the object was last stored, in milliseconds
+     */
+    public ObjectMetadata( String contentType, long length, long checksum, long created, long modified )
+    {
+        this.contentType = contentType;
+        this.length = length;
+        this.checksum = checksum;
+        this.created = created;
+        this.modified = modified;
+    }
+
+
+    /**
+     * @return the name of the content type of the object, or null if it was
+     * stored without one
+     */
+    public String getContentType()
+    {
+        return this.contentType;
+    }
+
+
+    public long getLength()
+    {
+        return this.length;
+    }
+
+
+    /**
+     * @return the CRC32 of the object, or -1 if it was streamed into storage
+     * without one
+     */
+    public long getChecksum()
+    {
+        return this.checksum;
+    }
+
+
+    public long getCreated()
+    {
+        return this.created;
+    }
+
+
+    public long getModified()
+    {
+        return this.modified;
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return String.format( "ObjectMetadata[contentType=%s, length=%s, checksum=%s, created=%s, modified=%s]", this.contentType, this.length, this.checksum, this.created, this.modified );
+    }
+}
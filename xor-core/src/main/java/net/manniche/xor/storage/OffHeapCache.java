@@ -0,0 +1,518 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+
+/**
+ * Cache of object data held outside the Java heap, so that it can grow to
+ * many gigabytes without adding to garbage collection pauses. Only the index
+ * of the cache lives on the heap.
+ *
+ * Memory is taken from a {@link SlabAllocator} in slabs, and each slab is
+ * carved into equally sized chunks for one size class. Size classes grow by
+ * a factor of 1.25 from 64 bytes to the slab size, so an object wastes at
+ * most a fifth of its chunk. When a size class has no free chunk and the
+ * memory budget is spent, the least recently used object of that class is
+ * evicted. A size class holding no objects when the budget is spent takes
+ * the slab holding the fewest objects from another size class, evicting
+ * those objects, so that slabs follow the sizes of the objects cached.
+ *
+ * Objects larger than a slab are not cached. Reads of different size
+ * classes do not contend with each other.
+ *
+ * @author Steen Manniche
+ */
+public class OffHeapCache
+{
+    private static final Logger Log = Logger.getLogger( OffHeapCache.class.getName() );
+
+    /**
+     * Default size of the slabs memory is allocated in.
+     */
+    public static final int DEFAULT_SLAB_SIZE = 4 * 1024 * 1024;
+
+    private static final int MIN_CHUNK_SIZE = 64;
+    private static final double GROWTH_FACTOR = 1.25;
+
+    private final SlabAllocator allocator;
+    private final SizeClass[] classes;
+    private final ConcurrentHashMap<String, SizeClass> index = new ConcurrentHashMap<String, SizeClass>();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final ReentrantLock rebalancing = new ReentrantLock();
+
+    /**
+     * @param capacity the off-heap memory budget in bytes
+     */
+    public OffHeapCache( long capacity )
+    {
+        this( capacity, DEFAULT_SLAB_SIZE );
+    }
+
+
+    /**
+     * @param capacity the off-heap memory budget in bytes
+     * @param slabSize the size of the slabs memory is allocated in, which is
+     * also the size of the largest object that can be cached
+     */
+    public OffHeapCache( long capacity, int slabSize )
+    {
+        this.allocator = new SlabAllocator( capacity, slabSize );
+        List<SizeClass> sizes = new ArrayList<SizeClass>();
+        int chunkSize = MIN_CHUNK_SIZE;
+        while( chunkSize < slabSize / 2 )
+        {
+            sizes.add( new SizeClass( chunkSize ) );
+            chunkSize = Math.max( chunkSize + 8, (int) ( chunkSize * GROWTH_FACTOR ) + 7 & ~7 );
+        }
+        sizes.add( new SizeClass( slabSize / 2 ) );
+        sizes.add( new SizeClass( slabSize ) );
+        this.classes = sizes.toArray( new SizeClass[ sizes.size() ] );
+    }
+
+
+    /**
+     * Creates the cache configured by the {@code xor.cache.offheap_capacity}
+     * and {@code xor.cache.slab_size} system properties. A slab size that is
+     * not positive is replaced by the default, and a capacity smaller than
+     * one slab is raised to one slab, with a warning, so that a bad setting
+     * does not keep the server from starting.
+     *
+     * @return the configured cache, or null if no off-heap capacity is
+     * configured
+     */
+    public static OffHeapCache getConfigured()
+    {
+        long capacity = Long.getLong( "xor.cache.offheap_capacity", 0 );
+        if( capacity <= 0 )
+        {
+            return null;
+        }
+        int slabSize = Integer.getInteger( "xor.cache.slab_size", DEFAULT_SLAB_SIZE );
+        if( slabSize <= 0 )
+        {
+            Log.warning( String.format( "xor.cache.slab_size is %s, using slabs of %s bytes", slabSize, DEFAULT_SLAB_SIZE ) );
+            slabSize = DEFAULT_SLAB_SIZE;
+        }
+        if( capacity < slabSize )
+        {
+            Log.warning( String.format( "xor.cache.offheap_capacity of %s bytes is less than one slab, caching up to %s bytes", capacity, slabSize ) );
+            capacity = slabSize;
+        }
+        return new OffHeapCache( capacity, slabSize );
+    }
+
+
+    /**
+     * @return a copy of the cached object, or null if it is not cached
+     */
+    public byte[] get( URI identifier )
+    {
+        String key = identifier.toString();
+        SizeClass sizeClass = this.index.get( key );
+        byte[] object = null == sizeClass ? null : sizeClass.read( key );
+        if( null == object )
+        {
+            this.misses.incrementAndGet();
+        }
+        else
+        {
+            this.hits.incrementAndGet();
+        }
+        return object;
+    }
+
+
+    /**
+     * Returns a stamp to pass to {@link #put(java.net.URI, byte[], long)}
+     * when the object to cache is about to be read from storage.
+     */
+    public long getStamp()
+    {
+        return this.invalidations.get();
+    }
+
+
+    /**
+     * Copies {@code object} into the cache, unless an object has been
+     * invalidated since {@code stamp} was taken, in which case the data may
+     * already be stale.
+     *
+     * @return true if the object was cached
+     */
+    public boolean put( URI identifier, byte[] object, long stamp )
+    {
+        SizeClass sizeClass = this.getSizeClass( object.length );
+        if( null == sizeClass )
+        {
+            return false;
+        }
+        String key = identifier.toString();
+        SizeClass previous;
+        synchronized( sizeClass )
+        {
+            // publish before checking the stamp, so that a concurrent
+            // invalidate either fails the check or finds the entry
+            previous = this.index.put( key, sizeClass );
+            if( stamp != this.invalidations.get() || !sizeClass.write( key, object ) )
+            {
+                if( null == previous )
+                {
+                    this.index.remove( key, sizeClass );
+                }
+                else
+                {
+                    this.index.put( key, previous );
+                }
+                return false;
+            }
+        }
+        if( null != previous && previous != sizeClass )
+        {
+            previous.remove( key );
+        }
+        return true;
+    }
+
+
+    /**
+     * Removes the object from the cache, and prevents data read before this
+     * call from being cached.
+     */
+    public void invalidate( URI identifier )
+    {
+        this.invalidations.incrementAndGet();
+        String key = identifier.toString();
+        SizeClass sizeClass = this.index.get( key );
+        if( null != sizeClass )
+        {
+            sizeClass.remove( key );
+        }
+    }
+
+
+    public long getHitCount()
+    {
+        return this.hits.get();
+    }
+
+
+    public long getMissCount()
+    {
+        return this.misses.get();
+    }
+
+
+    public long getEvictionCount()
+    {
+        return this.evictions.get();
+    }
+
+
+    /**
+     * @return the number of objects not cached because no memory could be
+     * found for them
+     */
+    public long getRejectionCount()
+    {
+        return this.rejections.get();
+    }
+
+
+    /**
+     * @return the number of objects cached
+     */
+    public int getCount()
+    {
+        return this.index.size();
+    }
+
+
+    /**
+     * @return the number of bytes of off-heap memory allocated so far
+     */
+    public long getAllocated()
+    {
+        return this.allocator.getAllocated();
+    }
+
+
+    /**
+     * Takes the slab holding the fewest objects from the size classes other
+     * than {@code taker}, evicting the objects in it. Called with the lock of
+     * {@code taker} held; a size class finding another one taking a slab
+     * gives up instead of waiting, so no two size classes wait for each
+     * other's lock.
+     *
+     * @return the slab, or null if none could be taken
+     */
+    private ByteBuffer reclaimSlab( SizeClass taker )
+    {
+        if( !this.rebalancing.tryLock() )
+        {
+            return null;
+        }
+        try
+        {
+            SizeClass victim = null;
+            ByteBuffer slab = null;
+            int fewest = Integer.MAX_VALUE;
+            for( SizeClass sizeClass : this.classes )
+            {
+                if( sizeClass == taker )
+                {
+                    continue;
+                }
+                synchronized( sizeClass )
+                {
+                    for( Map.Entry<ByteBuffer, Integer> use : sizeClass.getSlabUse().entrySet() )
+                    {
+                        if( use.getValue() < fewest )
+                        {
+                            victim = sizeClass;
+                            slab = use.getKey();
+                            fewest = use.getValue();
+                        }
+                    }
+                }
+            }
+            if( null == victim )
+            {
+                return null;
+            }
+            synchronized( victim )
+            {
+                victim.release( slab );
+            }
+            return slab;
+        }
+        finally
+        {
+            this.rebalancing.unlock();
+        }
+    }
+
+
+    private SizeClass getSizeClass( int length )
+    {
+        for( SizeClass sizeClass : this.classes )
+        {
+            if( length <= sizeClass.chunkSize )
+            {
+                return sizeClass;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * A chunk of a slab holding one object.
+     */
+    private static final class Chunk
+    {
+        final ByteBuffer slab;
+        final int offset;
+        int length;
+
+        Chunk( ByteBuffer slab, int offset )
+        {
+            this.slab = slab;
+            this.offset = offset;
+        }
+    }
+
+
+    /**
+     * The chunks of one size, with their own free list and LRU order.
+     */
+    private final class SizeClass
+    {
+        final int chunkSize;
+        private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+        private final List<Chunk> free = new ArrayList<Chunk>();
+        private final LinkedHashMap<String, Chunk> entries = new LinkedHashMap<String, Chunk>( 16, 0.75f, true );
+
+        SizeClass( int chunkSize )
+        {
+            this.chunkSize = chunkSize;
+        }
+
+
+        synchronized byte[] read( String key )
+        {
+            Chunk chunk = this.entries.get( key );
+            if( null == chunk )
+            {
+                index.remove( key, this );
+                return null;
+            }
+            byte[] object = new byte[ chunk.length ];
+            ByteBuffer view = chunk.slab.duplicate();
+            view.position( chunk.offset );
+            view.get( object );
+            return object;
+        }
+
+
+        /**
+         * Must be called with the lock held.
+         */
+        boolean write( String key, byte[] object )
+        {
+            Chunk chunk = this.entries.remove( key );
+            if( null == chunk )
+            {
+                chunk = this.allocate();
+                if( null == chunk )
+                {
+                    return false;
+                }
+            }
+            ByteBuffer view = chunk.slab.duplicate();
+            view.position( chunk.offset );
+            view.put( object );
+            chunk.length = object.length;
+            this.entries.put( key, chunk );
+            return true;
+        }
+
+
+        synchronized void remove( String key )
+        {
+            Chunk chunk = this.entries.remove( key );
+            if( null != chunk )
+            {
+                this.free.add( chunk );
+                index.remove( key, this );
+            }
+        }
+
+
+        /**
+         * Must be called with the lock held.
+         *
+         * @return the number of objects in each slab of this size class
+         */
+        Map<ByteBuffer, Integer> getSlabUse()
+        {
+            // slabs are compared by identity, not by content
+            Map<ByteBuffer, Integer> use = new IdentityHashMap<ByteBuffer, Integer>();
+            for( ByteBuffer slab : this.slabs )
+            {
+                use.put( slab, 0 );
+            }
+            for( Chunk chunk : this.entries.values() )
+            {
+                use.put( chunk.slab, use.get( chunk.slab ) + 1 );
+            }
+            return use;
+        }
+
+
+        /**
+         * Must be called with the lock held. Evicts the objects in
+         * {@code slab} and gives the slab up.
+         */
+        void release( ByteBuffer slab )
+        {
+            Iterator<ByteBuffer> slabs = this.slabs.iterator();
+            while( slabs.hasNext() )
+            {
+                if( slabs.next() == slab )
+                {
+                    slabs.remove();
+                }
+            }
+            Iterator<Map.Entry<String, Chunk>> entries = this.entries.entrySet().iterator();
+            while( entries.hasNext() )
+            {
+                Map.Entry<String, Chunk> entry = entries.next();
+                if( entry.getValue().slab == slab )
+                {
+                    entries.remove();
+                    index.remove( entry.getKey(), this );
+                    evictions.incrementAndGet();
+                }
+            }
+            Iterator<Chunk> chunks = this.free.iterator();
+            while( chunks.hasNext() )
+            {
+                if( chunks.next().slab == slab )
+                {
+                    chunks.remove();
+                }
+            }
+        }
+
+
+        private Chunk allocate()
+        {
+            if( this.free.isEmpty() )
+            {
+                ByteBuffer slab = allocator.allocate();
+                if( null == slab && this.entries.isEmpty() )
+                {
+                    // the memory budget went to other size classes
+                    slab = reclaimSlab( this );
+                }
+                if( null != slab )
+                {
+                    this.slabs.add( slab );
+                    for( int offset = 0; offset + this.chunkSize <= slab.capacity(); offset += this.chunkSize )
+                    {
+                        this.free.add( new Chunk( slab, offset ) );
+                    }
+                }
+                else
+                {
+                    Iterator<Map.Entry<String, Chunk>> eldest = this.entries.entrySet().iterator();
+                    if( !eldest.hasNext() )
+                    {
+                        rejections.incrementAndGet();
+                        return null;
+                    }
+                    Map.Entry<String, Chunk> victim = eldest.next();
+                    eldest.remove();
+                    index.remove( victim.getKey(), this );
+                    evictions.incrementAndGet();
+                    return victim.getValue();
+                }
+            }
+            return this.free.remove( this.free.size() - 1 );
+        }
+    }
+}
@@ -0,0 +1,886 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Logger;
+import net.manniche.xor.utils.RepositoryUtilities;
+
+
+/**
+ * Spreads the objects stored below a storage path over several roots,
+ * usually one per disk, so that the throughput of the repository grows
+ * with the number of disks. An object identified by {@code path + name} is
+ * kept at {@code root + name}, where the root is chosen by a
+ * {@link ConsistentHashRing} over {@code name}; clients only ever see the
+ * identifier below the storage path. Objects outside the storage path are
+ * passed to the underlying storage unchanged.
+ *
+ * The roots objects were placed by are saved in a state file. When the
+ * provider is opened with other roots, reads look for an object at its
+ * new root first and at its old root second, and {@link #migrate()}, run
+ * in the background by {@link #start(long, TimeUnit)}, moves the objects
+ * whose root has changed, about {@code 1 / roots} of them when a root is
+ * added. When all have been moved, the new roots are saved as the state.
+ * A storage path without a state file is taken to hold all objects, so
+ * enabling partitioning of an existing repository spreads its objects over
+ * the roots, whether or not the storage path is itself one of them.
+ *
+ * If the underlying storage is content addressed and reference counts its
+ * objects, new objects are named by the hex encoded SHA-256 digest of
+ * their content, as the storage names them, and saved to the storage path
+ * at their root, so that identical objects are still stored once and
+ * counted. A stream is first saved at the first root, as its digest is not
+ * known before, and its reference is then moved to its root. References
+ * are moved by saving the object at the new root and deleting it at the
+ * old, once for each reference; a delete releases one reference wherever
+ * the object is found first.
+ *
+ * The migration finds objects by walking the root directories, and so
+ * needs an underlying storage keeping each object in a file named by its
+ * identifier, such as {@code FileStorage}. Files and directories whose
+ * names start with a '.' are skipped.
+ *
+ * @author Steen Manniche
+ */
+public class PartitionedStorageProvider extends DelegatingStorageProvider
+{
+    private static final Logger Log = Logger.getLogger( PartitionedStorageProvider.class.getName() );
+
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+    public static final long DEFAULT_RATE = 32 * 1024 * 1024;
+
+    private final String path;
+    private final File stateFile;
+    private final IORateLimiter limiter;
+    private final ConsistentHashRing ring;
+    private final FanOutLayout layout;
+
+    /**
+     * True if the underlying storage names objects by their content and
+     * counts their references.
+     */
+    private final boolean counted;
+
+    /**
+     * The ring the objects were placed by before the roots changed, or null
+     * when all objects are at their root.
+     */
+    private volatile ConsistentHashRing previous;
+
+    private final StripedLock objectLocks = new StripedLock();
+    private final AtomicLong moved = new AtomicLong();
+    private final BackgroundTask migrator = new BackgroundTask( "xor-partitioning", "Migration" )
+    {
+        @Override
+        protected void runOnce() throws IOException
+        {
+            migrate();
+        }
+    };
+
+    /**
+     * Reads the number of points of each root on the ring from
+     * {@code xor.partitioning.virtual_nodes} (default 128) and the I/O budget
+     * of migrations from {@code xor.partitioning.rate} (bytes per second,
+     * default 32MB).
+     */
+    public PartitionedStorageProvider( StorageProvider delegate, String path, List<String> roots, File stateFile ) throws IOException
+    {
+        this( delegate, path, roots, stateFile,
+              Integer.getInteger( "xor.partitioning.virtual_nodes", DEFAULT_VIRTUAL_NODES ),
+              new IORateLimiter( Long.getLong( "xor.partitioning.rate", DEFAULT_RATE ) ) );
+    }
+
+
+    /**
+     * @param delegate the storage holding the roots
+     * @param path the storage path seen by clients, ending with a separator
+     * @param roots the storage paths of the roots, each ending with a
+     * separator
+     * @param stateFile the file holding the roots the objects were placed by
+     * @param virtualNodes the number of points of each root on the ring
+     * @param limiter the I/O budget of migrations, may be null
+     */
+    public PartitionedStorageProvider( StorageProvider delegate, String path, List<String> roots, File stateFile, int virtualNodes, IORateLimiter limiter ) throws IOException
+    {
+        super( delegate );
+        this.path = path;
+        this.stateFile = stateFile;
+        this.limiter = limiter;
+        this.ring = new ConsistentHashRing( roots, virtualNodes );
+        this.layout = FanOutLayout.getConfigured();
+        this.counted = isReferenceCounted( delegate );
+
+        List<String> placed;
+        if( stateFile.exists() )
+        {
+            placed = this.loadState();
+        }
+        else if( new File( path ).isDirectory() )
+        {
+            placed = new ArrayList<String>();
+            placed.add( path );
+        }
+        else
+        {
+            // nothing has been stored yet
+            placed = roots;
+        }
+        if( placed.equals( roots ) )
+        {
+            this.saveState();
+        }
+        else
+        {
+            Log.info( String.format( "Objects placed on %s will be migrated to %s", placed, roots ) );
+            this.previous = new ConsistentHashRing( placed, virtualNodes );
+        }
+    }
+
+
+    @Override
+    public URI save( byte[] object, String storagePath ) throws IOException
+    {
+        if( ! this.isPartitioned( storagePath ) )
+        {
+            return super.save( object, storagePath );
+        }
+        if( this.counted )
+        {
+            return this.add( object, storagePath );
+        }
+        URI uri = this.generateURI( storagePath, UUID.randomUUID().toString().replace( "-", "" ) );
+        this.save( object, uri, storagePath );
+        return uri;
+    }
+
+
+    @Override
+    public void save( byte[] object, URI uri, String storagePath ) throws IOException
+    {
+        if( ! this.isPartitioned( uri.getPath() ) )
+        {
+            super.save( object, uri, storagePath );
+            return;
+        }
+        Lock lock = this.objectLocks.get( uri );
+        lock.lock();
+        try
+        {
+            URI location = this.locate( uri, this.ring );
+            super.save( object, location, directory( location ) );
+            this.replaced( uri );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public URI save( InputStream object, long length, String storagePath ) throws IOException
+    {
+        if( ! this.isPartitioned( storagePath ) )
+        {
+            return super.save( object, length, storagePath );
+        }
+        if( this.counted )
+        {
+            return this.add( object, length, storagePath );
+        }
+        URI uri = this.generateURI( storagePath, UUID.randomUUID().toString().replace( "-", "" ) );
+        this.save( object, length, uri, storagePath );
+        return uri;
+    }
+
+
+    @Override
+    public void save( InputStream object, long length, URI uri, String storagePath ) throws IOException
+    {
+        if( ! this.isPartitioned( uri.getPath() ) )
+        {
+            super.save( object, length, uri, storagePath );
+            return;
+        }
+        Lock lock = this.objectLocks.get( uri );
+        lock.lock();
+        try
+        {
+            URI location = this.locate( uri, this.ring );
+            super.save( object, length, location, directory( location ) );
+            this.replaced( uri );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public BatchResult<URI> saveAll( List<byte[]> objects, String storagePath ) throws IOException
+    {
+        return BatchOperations.saveAll( this, objects, storagePath );
+    }
+
+
+    @Override
+    public BatchResult<Void> saveAll( List<byte[]> objects, List<URI> uris, String storagePath ) throws IOException
+    {
+        return BatchOperations.saveAll( this, objects, uris, storagePath );
+    }
+
+
+    @Override
+    public byte[] get( URI identifier ) throws IOException
+    {
+        List<URI> locations = this.locate( identifier );
+        for( int i = 0; ; i++ )
+        {
+            try
+            {
+                return super.get( locations.get( i ) );
+            }
+            catch( FileNotFoundException ex )
+            {
+                if( i == locations.size() - 1 )
+                {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+
+    @Override
+    public BatchResult<byte[]> getAll( List<URI> identifiers ) throws IOException
+    {
+        return BatchOperations.getAll( this, identifiers );
+    }
+
+
+    @Override
+    public InputStream getStream( URI identifier ) throws IOException
+    {
+        List<URI> locations = this.locate( identifier );
+        for( int i = 0; ; i++ )
+        {
+            try
+            {
+                return super.getStream( locations.get( i ) );
+            }
+            catch( FileNotFoundException ex )
+            {
+                if( i == locations.size() - 1 )
+                {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+
+    @Override
+    public byte[] get( URI identifier, long offset, int length ) throws IOException
+    {
+        List<URI> locations = this.locate( identifier );
+        for( int i = 0; ; i++ )
+        {
+            try
+            {
+                return super.get( locations.get( i ), offset, length );
+            }
+            catch( FileNotFoundException ex )
+            {
+                if( i == locations.size() - 1 )
+                {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+
+    @Override
+    public long getLength( URI identifier ) throws IOException
+    {
+        List<URI> locations = this.locate( identifier );
+        for( int i = 0; ; i++ )
+        {
+            try
+            {
+                return super.getLength( locations.get( i ) );
+            }
+            catch( FileNotFoundException ex )
+            {
+                if( i == locations.size() - 1 )
+                {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+
+    @Override
+    public void delete( URI identifier ) throws IOException
+    {
+        Lock lock = this.objectLocks.get( identifier );
+        lock.lock();
+        try
+        {
+            FileNotFoundException missing = null;
+            boolean deleted = false;
+            for( URI location : this.locate( identifier ) )
+            {
+                if( deleted && this.counted )
+                {
+                    // the other copy holds references of its own
+                    break;
+                }
+                try
+                {
+                    super.delete( location );
+                    deleted = true;
+                }
+                catch( FileNotFoundException ex )
+                {
+                    missing = ex;
+                }
+            }
+            if( ! deleted )
+            {
+                throw missing;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public BatchResult<Void> deleteAll( List<URI> identifiers ) throws IOException
+    {
+        return BatchOperations.deleteAll( this, identifiers );
+    }
+
+
+    @Override
+    boolean isReferenceCounted()
+    {
+        return this.counted;
+    }
+
+
+    /**
+     * @return the references to the object at its root and, while its
+     * references are being moved there, at its old root
+     */
+    @Override
+    int getReferenceCount( URI identifier ) throws IOException
+    {
+        if( ! this.counted )
+        {
+            return super.getReferenceCount( identifier );
+        }
+        int count = 0;
+        for( URI location : this.locate( identifier ) )
+        {
+            count += getReferenceCount( this.delegate, location );
+        }
+        return count;
+    }
+
+
+    /**
+     * Moves the objects whose root has changed to their new root. When all
+     * have been moved, the new roots are saved as the state.
+     *
+     * @return the number of objects moved
+     * @throws IOException if an object could not be moved; objects moved so
+     * far stay moved, and the next migration tries again
+     */
+    public long migrate() throws IOException
+    {
+        ConsistentHashRing placed = this.previous;
+        if( null == placed )
+        {
+            return 0;
+        }
+        Set<String> roots = new LinkedHashSet<String>( placed.getNodes() );
+        roots.addAll( this.ring.getNodes() );
+        long count = 0;
+        for( String root : roots )
+        {
+            File directory = new File( root );
+            count += this.migrate( root, directory );
+            if( this.migrator.isStopping() )
+            {
+                Log.info( String.format( "Migration stopped after moving %s objects", count ) );
+                return count;
+            }
+        }
+        this.previous = null;
+        this.saveState();
+        Log.info( String.format( "Moved %s objects, all objects are placed on %s", count, this.ring.getNodes() ) );
+        return count;
+    }
+
+
+    /**
+     * @return true if objects are still being moved to new roots
+     */
+    public boolean isMigrating()
+    {
+        return null != this.previous;
+    }
+
+
+    /**
+     * @return the number of objects moved since the provider was created
+     */
+    public long getMovedCount()
+    {
+        return this.moved.get();
+    }
+
+
+    /**
+     * Runs {@link #migrate()} in a background thread with {@code delay}
+     * between the end of one run and the start of the next, until all
+     * objects have been moved.
+     */
+    public void start( long delay, TimeUnit unit )
+    {
+        this.migrator.start( 0, delay, unit );
+    }
+
+
+    /**
+     * Stops the background migration. An object being moved is moved
+     * completely.
+     */
+    public void stop() throws InterruptedException
+    {
+        this.migrator.stop();
+    }
+
+
+    @Override
+    public void close()
+    {
+        try
+        {
+            this.stop();
+        }
+        catch( InterruptedException ex )
+        {
+            Thread.currentThread().interrupt();
+        }
+        super.close();
+    }
+
+
+    private long migrate( String root, File directory ) throws IOException
+    {
+        File[] files = directory.listFiles();
+        if( null == files )
+        {
+            return 0;
+        }
+        long count = 0;
+        for( File file : files )
+        {
+            if( this.migrator.isStopping() )
+            {
+                break;
+            }
+            if( file.getName().startsWith( "." ) )
+            {
+                continue;
+            }
+            if( file.isDirectory() )
+            {
+                // a root below the storage path is walked on its own
+                if( ! this.isRoot( file ) )
+                {
+                    count += this.migrate( root, file );
+                }
+            }
+            else if( this.move( root, file.getPath().substring( root.length() ).replace( File.separatorChar, '/' ) ) )
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+
+    /**
+     * Moves the object {@code name} found at {@code root} to its root, if
+     * that is another root. A copy already at its root was written after
+     * the roots changed, so the copy found is deleted instead.
+     *
+     * @return true if the object was moved
+     */
+    private boolean move( String root, String name ) throws IOException
+    {
+        String target = this.ring.node( name );
+        if( target.equals( root ) )
+        {
+            return false;
+        }
+        URI identifier = this.toURI( this.path, name );
+        Lock lock = this.objectLocks.get( identifier );
+        lock.lock();
+        try
+        {
+            URI from = this.toURI( root, name );
+            URI to = this.toURI( target, name );
+            long length;
+            try
+            {
+                length = super.getLength( from );
+            }
+            catch( FileNotFoundException ex )
+            {
+                // deleted or moved since the directory was listed
+                return false;
+            }
+            if( this.counted )
+            {
+                this.transfer( from, to, getReferenceCount( this.delegate, from ), true );
+                this.moved.incrementAndGet();
+                return true;
+            }
+            if( ! this.exists( to ) )
+            {
+                if( null != this.limiter )
+                {
+                    this.limiter.acquire( length );
+                }
+                InputStream in = super.getStream( from );
+                try
+                {
+                    super.save( in, length, to, directory( to ) );
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+            super.delete( from );
+            this.moved.incrementAndGet();
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Adds a reference to an object in a reference counted storage, saving
+     * it to the storage path at the root of its digest.
+     */
+    private URI add( byte[] object, String storagePath ) throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance( "SHA-256" );
+        }
+        catch( NoSuchAlgorithmException ex )
+        {
+            throw new IllegalStateException( "SHA-256 is not available", ex );
+        }
+        URI uri = this.generateURI( storagePath, RepositoryUtilities.toHex( digest.digest( object ) ) );
+        Lock lock = this.objectLocks.get( uri );
+        lock.lock();
+        try
+        {
+            URI location = this.locate( uri, this.ring );
+            this.confirm( location, super.save( object, this.storagePath( location ) ) );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        return uri;
+    }
+
+
+    /**
+     * Adds a reference to an object in a reference counted storage, saving
+     * it at the first root and moving the reference to the root of the name
+     * the storage gave it.
+     */
+    private URI add( InputStream object, long length, String storagePath ) throws IOException
+    {
+        String first = this.ring.getNodes().get( 0 );
+        URI staged = super.save( object, length, first + storagePath.substring( this.path.length() ) );
+        if( ! staged.getPath().startsWith( first ) )
+        {
+            throw new IOException( String.format( "The storage placed an object at %s, outside the root %s", staged, first ) );
+        }
+        URI uri = this.toURI( this.path, staged.getPath().substring( first.length() ) );
+        Lock lock = this.objectLocks.get( uri );
+        lock.lock();
+        try
+        {
+            URI location = this.locate( uri, this.ring );
+            if( ! location.equals( staged ) )
+            {
+                this.transfer( staged, location, 1, false );
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        return uri;
+    }
+
+
+    /**
+     * Moves references to an object in a reference counted storage from one
+     * root to another, adding each at the target before releasing it at the
+     * source. Must be called with the lock of the object held.
+     *
+     * @param throttled true if the copies are kept within the I/O budget of
+     * migrations
+     */
+    private void transfer( URI from, URI to, int references, boolean throttled ) throws IOException
+    {
+        long length = super.getLength( from );
+        for( int i = 0; i < references; i++ )
+        {
+            if( throttled && null != this.limiter )
+            {
+                this.limiter.acquire( length );
+            }
+            InputStream in = super.getStream( from );
+            try
+            {
+                this.confirm( to, super.save( in, length, this.storagePath( to ) ) );
+            }
+            finally
+            {
+                in.close();
+            }
+            super.delete( from );
+        }
+    }
+
+
+    /**
+     * Checks that the storage gave an object the name it has at its root,
+     * releasing the reference it added otherwise.
+     */
+    private void confirm( URI location, URI stored ) throws IOException
+    {
+        if( location.equals( stored ) )
+        {
+            return;
+        }
+        super.delete( stored );
+        throw new IOException( String.format( "The storage named the object at %s %s; the roots must use the configured fan-out layout", location, stored ) );
+    }
+
+
+    /**
+     * Deletes the copy at the old root of an object just written to its
+     * root, so a migration cannot bring the old version back. Must be
+     * called with the lock of the object held.
+     */
+    private void replaced( URI identifier ) throws IOException
+    {
+        ConsistentHashRing placed = this.previous;
+        if( null == placed )
+        {
+            return;
+        }
+        URI old = this.locate( identifier, placed );
+        if( ! old.equals( this.locate( identifier, this.ring ) ) && this.exists( old ) )
+        {
+            super.delete( old );
+        }
+    }
+
+
+    private boolean isRoot( File directory )
+    {
+        String name = directory.getPath() + File.separator;
+        ConsistentHashRing placed = this.previous;
+        return this.ring.getNodes().contains( name ) || ( null != placed && placed.getNodes().contains( name ) );
+    }
+
+
+    private boolean exists( URI location ) throws IOException
+    {
+        try
+        {
+            super.getLength( location );
+            return true;
+        }
+        catch( FileNotFoundException ex )
+        {
+            return false;
+        }
+    }
+
+
+    /**
+     * @return the locations that may hold {@code identifier}, the most
+     * likely first
+     */
+    private List<URI> locate( URI identifier ) throws IOException
+    {
+        List<URI> locations = new ArrayList<URI>( 2 );
+        if( ! this.isPartitioned( identifier.getPath() ) )
+        {
+            locations.add( identifier );
+            return locations;
+        }
+        locations.add( this.locate( identifier, this.ring ) );
+        ConsistentHashRing placed = this.previous;
+        if( null != placed )
+        {
+            URI old = this.locate( identifier, placed );
+            if( ! old.equals( locations.get( 0 ) ) )
+            {
+                locations.add( old );
+            }
+        }
+        return locations;
+    }
+
+
+    /**
+     * @return the location of {@code identifier} at the root given by
+     * {@code ring}
+     */
+    private URI locate( URI identifier, ConsistentHashRing ring ) throws IOException
+    {
+        String name = identifier.getPath().substring( this.path.length() );
+        return this.toURI( ring.node( name ), name );
+    }
+
+
+    private URI toURI( String root, String name ) throws IOException
+    {
+        try
+        {
+            return new URI( this.getScheme(), null, root + name, null );
+        }
+        catch( URISyntaxException ex )
+        {
+            throw new IOException( String.format( "Could not construct the identifier of %s in %s: %s", name, root, ex.getMessage() ), ex );
+        }
+    }
+
+
+    private boolean isPartitioned( String storagePath )
+    {
+        return null != storagePath && storagePath.startsWith( this.path );
+    }
+
+
+    private static String directory( URI location )
+    {
+        String path = location.getPath();
+        return path.substring( 0, path.lastIndexOf( '/' ) + 1 );
+    }
+
+
+    /**
+     * @return the storage path that the object at {@code location} is
+     * saved to, below the directories of the fan-out layout
+     */
+    private String storagePath( URI location )
+    {
+        String directory = directory( location );
+        String name = location.getPath().substring( directory.length() );
+        return directory.substring( 0, directory.length() - this.layout.getRelativeDirectory( name ).length() );
+    }
+
+
+    /**
+     * Names a new object. The name is chosen here rather than by the
+     * underlying storage, as it decides the root the object is stored at:
+     * at random, or by the digest of the content if the storage is content
+     * addressed. It is placed in the {@link FanOutLayout#getConfigured()
+     * configured fan-out layout} below the root, like the names the storage
+     * chooses.
+     */
+    private URI generateURI( String storagePath, String name ) throws IOException
+    {
+        try
+        {
+            return RepositoryUtilities.generateURI( this.getScheme(), storagePath, name, this.layout );
+        }
+        catch( URISyntaxException ex )
+        {
+            throw new IOException( String.format( "Could not construct an identifier in %s: %s", storagePath, ex.getMessage() ), ex );
+        }
+    }
+
+
+    /**
+     * Writes the roots objects are placed by, one per line.
+     */
+    private void saveState() throws IOException
+    {
+        StateFiles.write( this.stateFile, this.ring.getNodes() );
+    }
+
+
+    private List<String> loadState() throws IOException
+    {
+        List<String> roots = new ArrayList<String>();
+        for( String line : StateFiles.read( this.stateFile ) )
+        {
+            if( ! line.isEmpty() )
+            {
+                roots.add( line );
+            }
+        }
+        return roots;
+    }
+}
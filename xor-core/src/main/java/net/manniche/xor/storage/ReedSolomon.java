@@ -0,0 +1,288 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.util.Arrays;
+
+
+/**
+ * A systematic Reed-Solomon code over GF(2^8) with {@code dataShards} data
+ * and {@code parityShards} parity shards. Any {@code dataShards} of the
+ * shards are enough to reconstruct the data.
+ *
+ * The encoding matrix is a Vandermonde matrix multiplied by the inverse of
+ * its top square, so that the data shards are stored unchanged and every
+ * square submatrix is invertible. The field uses the polynomial
+ * x^8 + x^4 + x^3 + x^2 + 1, and multiplication is looked up in a full
+ * 256 by 256 table.
+ *
+ * Instances are immutable and may be shared between threads.
+ *
+ * @author Steen Manniche
+ */
+final class ReedSolomon
+{
+    private static final int POLYNOMIAL = 0x11d;
+
+    private static final int[] LOG = new int[ 256 ];
+    private static final int[] EXP = new int[ 512 ];
+    private static final byte[][] MULTIPLY = new byte[ 256 ][ 256 ];
+
+    static
+    {
+        int value = 1;
+        for( int i = 0; i < 255; i++ )
+        {
+            EXP[ i ] = value;
+            LOG[ value ] = i;
+            value <<= 1;
+            if( value >= 256 )
+            {
+                value ^= POLYNOMIAL;
+            }
+        }
+        for( int i = 255; i < EXP.length; i++ )
+        {
+            EXP[ i ] = EXP[ i - 255 ];
+        }
+        for( int a = 1; a < 256; a++ )
+        {
+            for( int b = 1; b < 256; b++ )
+            {
+                MULTIPLY[ a ][ b ] = (byte) EXP[ LOG[ a ] + LOG[ b ] ];
+            }
+        }
+    }
+
+    private final int dataShards;
+    private final int parityShards;
+
+    /**
+     * The encoding matrix, one row per shard. The first
+     * {@code dataShards} rows are the identity.
+     */
+    private final int[][] matrix;
+
+    ReedSolomon( int dataShards, int parityShards )
+    {
+        if( dataShards < 1 || parityShards < 0 || dataShards + parityShards > 256 )
+        {
+            throw new IllegalArgumentException( String.format( "Unsupported code of %s data and %s parity shards", dataShards, parityShards ) );
+        }
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        int[][] vandermonde = new int[ dataShards + parityShards ][ dataShards ];
+        for( int row = 0; row < vandermonde.length; row++ )
+        {
+            for( int column = 0; column < dataShards; column++ )
+            {
+                vandermonde[ row ][ column ] = power( row, column );
+            }
+        }
+        int[][] top = new int[ dataShards ][];
+        System.arraycopy( vandermonde, 0, top, 0, dataShards );
+        this.matrix = multiply( vandermonde, invert( top ) );
+    }
+
+
+    int getDataShards()
+    {
+        return this.dataShards;
+    }
+
+
+    int getParityShards()
+    {
+        return this.parityShards;
+    }
+
+
+    /**
+     * Computes the parity cells of a stripe.
+     *
+     * @param data the {@code dataShards} data cells, all of the same length
+     * @param parity the {@code parityShards} cells to fill, of the same
+     * length as the data cells
+     */
+    void encode( byte[][] data, byte[][] parity )
+    {
+        for( int i = 0; i < this.parityShards; i++ )
+        {
+            combine( this.matrix[ this.dataShards + i ], data, parity[ i ] );
+        }
+    }
+
+
+    /**
+     * Computes the matrix that reconstructs the data cells of a stripe
+     * from the cells of the shards in {@code present}.
+     *
+     * @param present the indexes of {@code dataShards} distinct shards
+     * @return one row of coefficients per data shard, to be given to
+     * {@link #combine(int[], byte[][], byte[])} with the cells of the
+     * present shards in the same order
+     */
+    int[][] decoder( int[] present )
+    {
+        if( present.length != this.dataShards )
+        {
+            throw new IllegalArgumentException( String.format( "Decoding needs %s shards, %s were given", this.dataShards, present.length ) );
+        }
+        int[][] rows = new int[ this.dataShards ][];
+        for( int i = 0; i < present.length; i++ )
+        {
+            rows[ i ] = this.matrix[ present[ i ] ];
+        }
+        return invert( rows );
+    }
+
+
+    /**
+     * Sets {@code out} to the sum of {@code cells} weighted by
+     * {@code coefficients}.
+     */
+    static void combine( int[] coefficients, byte[][] cells, byte[] out )
+    {
+        Arrays.fill( out, (byte) 0 );
+        for( int i = 0; i < cells.length; i++ )
+        {
+            int coefficient = coefficients[ i ];
+            if( 0 == coefficient )
+            {
+                continue;
+            }
+            byte[] cell = cells[ i ];
+            if( 1 == coefficient )
+            {
+                for( int b = 0; b < out.length; b++ )
+                {
+                    out[ b ] ^= cell[ b ];
+                }
+            }
+            else
+            {
+                byte[] table = MULTIPLY[ coefficient ];
+                for( int b = 0; b < out.length; b++ )
+                {
+                    out[ b ] ^= table[ cell[ b ] & 0xff ];
+                }
+            }
+        }
+    }
+
+
+    private static int power( int base, int exponent )
+    {
+        if( 0 == exponent )
+        {
+            return 1;
+        }
+        if( 0 == base )
+        {
+            return 0;
+        }
+        return EXP[ ( LOG[ base ] * exponent ) % 255 ];
+    }
+
+
+    private static int multiply( int a, int b )
+    {
+        return MULTIPLY[ a ][ b ] & 0xff;
+    }
+
+
+    private static int inverse( int a )
+    {
+        return EXP[ 255 - LOG[ a ] ];
+    }
+
+
+    private static int[][] multiply( int[][] left, int[][] right )
+    {
+        int[][] product = new int[ left.length ][ right[ 0 ].length ];
+        for( int row = 0; row < left.length; row++ )
+        {
+            for( int column = 0; column < right[ 0 ].length; column++ )
+            {
+                int value = 0;
+                for( int i = 0; i < right.length; i++ )
+                {
+                    value ^= multiply( left[ row ][ i ], right[ i ][ column ] );
+                }
+                product[ row ][ column ] = value;
+            }
+        }
+        return product;
+    }
+
+
+    /**
+     * Inverts a square matrix by Gauss-Jordan elimination.
+     *
+     * @throws IllegalArgumentException if the matrix is singular
+     */
+    private static int[][] invert( int[][] square )
+    {
+        int size = square.length;
+        int[][] work = new int[ size ][ 2 * size ];
+        for( int row = 0; row < size; row++ )
+        {
+            System.arraycopy( square[ row ], 0, work[ row ], 0, size );
+            work[ row ][ size + row ] = 1;
+        }
+        for( int column = 0; column < size; column++ )
+        {
+            int pivot = column;
+            while( pivot < size && 0 == work[ pivot ][ column ] )
+            {
+                pivot++;
+            }
+            if( pivot == size )
+            {
+                throw new IllegalArgumentException( "The matrix is singular" );
+            }
+            int[] swap = work[ pivot ];
+            work[ pivot ] = work[ column ];
+            work[ column ] = swap;
+
+            int scale = inverse( work[ column ][ column ] );
+            for( int i = 0; i < 2 * size; i++ )
+            {
+                work[ column ][ i ] = multiply( work[ column ][ i ], scale );
+            }
+            for( int row = 0; row < size; row++ )
+            {
+                int factor = work[ row ][ column ];
+                if( row != column && 0 != factor )
+                {
+                    for( int i = 0; i < 2 * size; i++ )
+                    {
+                        work[ row ][ i ] ^= multiply( factor, work[ column ][ i ] );
+                    }
+                }
+            }
+        }
+        int[][] inverted = new int[ size ][ size ];
+        for( int row = 0; row < size; row++ )
+        {
+            System.arraycopy( work[ row ], size, inverted[ row ], 0, size );
+        }
+        return inverted;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.IOException;
+import java.net.URI;
+
+
+/**
+ * A {@link SyncableStorageProvider} whose stored files may be shared by
+ * several identifiers, such as a content addressed store. A delete only
+ * removes one reference, so applying the same delete twice releases a
+ * reference too many. Callers that have to repeat operations, such as
+ * {@link JournalingStorageProvider} replaying its journal after a crash,
+ * instead restore the reference count the object had afterwards.
+ *
+ * @author Steen Manniche
+ */
+public interface ReferenceCountedStorageProvider extends SyncableStorageProvider
+{
+
+    /**
+     * @return true if deletes release references rather than removing
+     * objects, that is, if the reference counts have to be restored when
+     * operations are repeated
+     */
+    public abstract boolean isReferenceCounted();
+
+    /**
+     * @return the number of references to the object identified by
+     * {@code identifier}, or 0 if it is not stored
+     * @throws IOException if the count could not be read
+     */
+    public abstract int getReferenceCount( URI identifier ) throws IOException;
+
+    /**
+     * Sets the number of references to the object identified by
+     * {@code identifier}. A count of 0 removes the object. If the object is
+     * not stored and {@code count} is positive, it is stored with the
+     * content {@code object}.
+     *
+     * @param object the content of the object, or null if it is not known
+     * @throws IOException if the count could not be written, or the object
+     * is missing and no content was given
+     */
+    public abstract void setReferenceCount( URI identifier, byte[] object, int count ) throws IOException;
+}
@@ -0,0 +1,199 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.manniche.xor.storage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+
+/**
+ * Persistent reference counts for files that are shared between several
+ * stored objects, such as content addressed objects that have been stored
+ * more than once.
+ *
+ * A file without a reference count is considered to have exactly one
+ * reference, so counts are only written to disk for files that are actually
+ * shared. The counts are kept in the directory {@value #REFERENCE_DIRECTORY}
+ * next to the counted files. A count is written to a temporary file that
+ * is renamed over the old count, so a crash leaves either of them.
+ *
+ * A count that cannot be read, such as one torn by a crash while counts
+ * were still rewritten in place, is reported as {@link #UNKNOWN} and left
+ * alone by {@link #increment(File)} and {@link #decrement(File)}, so the
+ * file is kept until {@link #set(File, int)} records a recount.
+ *
+ * The ReferenceCounter does not synchronize access to the counts; callers
+ * must ensure that the counts of a given file are not modified concurrently,
+ * and that checking for the existence of a file and changing its count
+ * happens atomically.
+ *
+ * @author Steen Manniche
+ */
+public final class ReferenceCounter
+{
+    private static final Logger Log = Logger.getLogger( ReferenceCounter.class.getName() );
+
+    public static final String REFERENCE_DIRECTORY = ".refcounts";
+
+    /**
+     * The count of a file whose count is damaged. It is high enough that
+     * the file is never deleted by removing references.
+     */
+    public static final int UNKNOWN = Integer.MAX_VALUE;
+
+    /**
+     * Adds a reference to {@code file}, which must already exist.
+     *
+     * @return the number of references to the file after the increment
+     */
+    public int increment( File file ) throws IOException
+    {
+        File countFile = this.countFile( file );
+        int count = this.read( countFile );
+        if( UNKNOWN == count )
+        {
+            return UNKNOWN;
+        }
+        count++;
+        this.write( countFile, count );
+        Log.fine( String.format( "%s now has %s references", file, count ) );
+        return count;
+    }
+
+
+    /**
+     * Removes a reference to {@code file}. When this method returns 0, the
+     * last reference was removed and the caller should delete the file.
+     *
+     * @return the number of references left to the file
+     */
+    public int decrement( File file ) throws IOException
+    {
+        File countFile = this.countFile( file );
+        int count = this.read( countFile );
+        if( UNKNOWN == count )
+        {
+            return UNKNOWN;
+        }
+        count--;
+        if( count <= 1 )
+        {
+            // one (or no) reference is implied by the absence of a count
+            countFile.delete();
+        }
+        else
+        {
+            this.write( countFile, count );
+        }
+        Log.fine( String.format( "%s now has %s references", file, count ) );
+        return Math.max( count, 0 );
+    }
+
+
+    /**
+     * Sets the number of references to {@code file}. Unlike
+     * {@link #increment(File)} and {@link #decrement(File)}, setting the
+     * same count twice has the same effect as setting it once.
+     */
+    public void set( File file, int count ) throws IOException
+    {
+        File countFile = this.countFile( file );
+        if( count <= 1 )
+        {
+            countFile.delete();
+        }
+        else
+        {
+            this.write( countFile, count );
+        }
+        Log.fine( String.format( "%s now has %s references", file, count ) );
+    }
+
+
+    /**
+     * @return the number of references to {@code file}
+     */
+    public int count( File file ) throws IOException
+    {
+        return this.read( this.countFile( file ) );
+    }
+
+
+    private File countFile( File file )
+    {
+        return new File( new File( file.getParentFile(), REFERENCE_DIRECTORY ), file.getName() );
+    }
+
+
+    private int read( File countFile ) throws IOException
+    {
+        if( ! countFile.isFile() )
+        {
+            return 1;
+        }
+        DataInputStream in = new DataInputStream( new FileInputStream( countFile ) );
+        try
+        {
+            return in.readInt();
+        }
+        catch( EOFException ex )
+        {
+            Log.severe( String.format( "Reference count %s is damaged, keeping the counted file until it is recounted", countFile ) );
+            return UNKNOWN;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+
+    private void write( File countFile, int count ) throws IOException
+    {
+        File directory = countFile.getParentFile();
+        if( ! directory.isDirectory() && ! directory.mkdirs() && ! directory.isDirectory() )
+        {
+            throw new IOException( String.format( "Could not create reference count directory %s", directory ) );
+        }
+        File temporary = new File( directory, countFile.getName() + ".tmp" );
+        DataOutputStream out = new DataOutputStream( new FileOutputStream( temporary, false ) );
+        try
+        {
+            out.writeInt( count );
+        }
+        finally
+        {
+            out.close();
+        }
+        // where a file cannot be renamed over another, the old count is
+        // deleted first
+        if( ! temporary.renameTo( countFile ) && ! ( countFile.delete() && temporary.renameTo( countFile ) ) )
+        {
+            temporary.delete();
+            throw new IOException( String.format( "Could not replace reference count %s", countFile ) );
+        }
+    }
+}
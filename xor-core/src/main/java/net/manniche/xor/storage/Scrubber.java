@@ -0,0 +1,312 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+
+/**
+ * Walks the object files under a set of storage directories and verifies
+ * the checksums written by {@link ChecksummingStorageProvider}, so that bit
+ * rot and torn writes are found before a client asks for the damaged
+ * object. The files are read at a bounded rate by a low priority thread,
+ * so foreground requests are not slowed down noticeably.
+ *
+ * Corrupt files are logged and, unless disabled, moved to the
+ * {@code .quarantine} directory of their storage directory, after which the
+ * object is reported as missing instead of being served. Files and
+ * directories whose names start with a '.', such as journals, temporary
+ * files and the quarantine itself, are skipped. A file without a valid
+ * checksum trailer is corrupt if the storage is {@link ChecksummingStorageProvider#isChecksummed(java.util.List)
+ * checksummed}; otherwise it is counted as stored before checksumming was
+ * enabled and skipped.
+ *
+ * The default budget can be set with the system property
+ * {@code xor.scrub.rate} (bytes per second, default 4MB), and quarantining
+ * with {@code xor.scrub.quarantine} (default true).
+ *
+ * @author Steen Manniche
+ */
+public class Scrubber
+{
+    private static final Logger Log = Logger.getLogger( Scrubber.class.getName() );
+
+    public static final long DEFAULT_RATE = 4 * 1024 * 1024;
+    public static final String QUARANTINE = ".quarantine";
+
+    private static final int READ_SIZE = 64 * 1024;
+
+    private final List<File> roots;
+    private final IORateLimiter limiter;
+    private final boolean quarantine;
+    private final boolean checksummed;
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong unchecksummed = new AtomicLong();
+    private final AtomicLong corrupt = new AtomicLong();
+    private final List<File> quarantined = Collections.synchronizedList( new ArrayList<File>() );
+    private final BackgroundTask scrubber = new BackgroundTask( "xor-scrubber", "Scrubbing" )
+    {
+        @Override
+        protected void runOnce() throws IOException
+        {
+            scrub();
+        }
+    };
+
+    public Scrubber( List<File> roots, boolean checksummed )
+    {
+        this( roots,
+              new IORateLimiter( Long.getLong( "xor.scrub.rate", DEFAULT_RATE ) ),
+              Boolean.parseBoolean( System.getProperty( "xor.scrub.quarantine", "true" ) ),
+              checksummed );
+    }
+
+
+    /**
+     * Skips files without a checksum trailer.
+     */
+    public Scrubber( List<File> roots, IORateLimiter limiter, boolean quarantine )
+    {
+        this( roots, limiter, quarantine, false );
+    }
+
+
+    /**
+     * @param roots the storage directories to walk
+     * @param limiter the I/O budget of the scrubbing, may be null
+     * @param quarantine whether corrupt files are moved out of the way
+     * @param checksummed true if every object file should have a checksum
+     * trailer, in which case a file without one is corrupt
+     */
+    public Scrubber( List<File> roots, IORateLimiter limiter, boolean quarantine, boolean checksummed )
+    {
+        this.roots = new ArrayList<File>( roots );
+        this.limiter = limiter;
+        this.quarantine = quarantine;
+        this.checksummed = checksummed;
+    }
+
+
+    /**
+     * Verifies every object file under the storage directories once.
+     *
+     * @return the number of corrupt files found
+     */
+    public long scrub() throws IOException
+    {
+        long found = 0;
+        for( File root : this.roots )
+        {
+            found += this.scrub( root, root );
+        }
+        Log.info( String.format( "Scrubbed %s objects, %s corrupt objects found so far", this.scanned.get(), this.corrupt.get() ) );
+        if( this.unchecksummed.get() > 0 )
+        {
+            Log.info( String.format( "%s objects without a checksum found so far", this.unchecksummed.get() ) );
+        }
+        return found;
+    }
+
+
+    private long scrub( File root, File directory ) throws IOException
+    {
+        File[] files = directory.listFiles();
+        if( null == files )
+        {
+            return 0;
+        }
+        long found = 0;
+        for( File file : files )
+        {
+            if( this.scrubber.isStopping() )
+            {
+                break;
+            }
+            if( file.getName().startsWith( "." ) )
+            {
+                continue;
+            }
+            if( file.isDirectory() )
+            {
+                found += this.scrub( root, file );
+            }
+            else if( ! this.verify( file ) )
+            {
+                found++;
+                this.corrupt.incrementAndGet();
+                Log.severe( String.format( "Object file %s is corrupt", file ) );
+                if( this.quarantine )
+                {
+                    this.quarantine( root, file );
+                }
+            }
+        }
+        return found;
+    }
+
+
+    /**
+     * @return false if {@code file} has a checksum trailer that does not
+     * match its contents, or has none although the storage is checksummed
+     */
+    private boolean verify( File file ) throws IOException
+    {
+        RandomAccessFile data;
+        try
+        {
+            data = new RandomAccessFile( file, "r" );
+        }
+        catch( FileNotFoundException ex )
+        {
+            // deleted since it was listed
+            return true;
+        }
+        try
+        {
+            long length = data.length();
+            byte[] trailer = new byte[ ChecksummingStorageProvider.TRAILER_SIZE ];
+            if( length >= trailer.length )
+            {
+                data.seek( length - trailer.length );
+                data.readFully( trailer );
+            }
+            if( length < trailer.length || ! ChecksummingStorageProvider.isTrailer( trailer, 0, length ) )
+            {
+                if( this.checksummed )
+                {
+                    this.scanned.incrementAndGet();
+                    Log.warning( String.format( "%s has no valid checksum trailer", file ) );
+                    return false;
+                }
+                this.unchecksummed.incrementAndGet();
+                Log.fine( String.format( "%s has no checksum", file ) );
+                return true;
+            }
+            this.scanned.incrementAndGet();
+
+            CRC32 crc = new CRC32();
+            byte[] buffer = new byte[ READ_SIZE ];
+            long remaining = length - trailer.length;
+            data.seek( 0 );
+            while( remaining > 0 )
+            {
+                int count = (int) Math.min( buffer.length, remaining );
+                if( null != this.limiter )
+                {
+                    this.limiter.acquire( count );
+                }
+                data.readFully( buffer, 0, count );
+                crc.update( buffer, 0, count );
+                remaining -= count;
+            }
+            return (int) crc.getValue() == ChecksummingStorageProvider.trailerChecksum( trailer, 0 );
+        }
+        finally
+        {
+            data.close();
+        }
+    }
+
+
+    private void quarantine( File root, File file )
+    {
+        File directory = new File( root, QUARANTINE );
+        directory.mkdirs();
+        String relative = file.getAbsolutePath().substring( root.getAbsolutePath().length() + 1 );
+        File target = new File( directory, relative.replace( File.separatorChar, '_' ) );
+        if( file.renameTo( target ) )
+        {
+            this.quarantined.add( target );
+            Log.warning( String.format( "Moved corrupt object file %s to %s", file, target ) );
+        }
+        else
+        {
+            Log.warning( String.format( "Could not move corrupt object file %s to %s", file, target ) );
+        }
+    }
+
+
+    /**
+     * @return the number of checksummed files verified
+     */
+    public long getScannedCount()
+    {
+        return this.scanned.get();
+    }
+
+
+    /**
+     * @return the number of files without a checksum found in a storage
+     * that is not checksummed
+     */
+    public long getUnchecksummedCount()
+    {
+        return this.unchecksummed.get();
+    }
+
+
+    /**
+     * @return the number of corrupt files found
+     */
+    public long getCorruptCount()
+    {
+        return this.corrupt.get();
+    }
+
+
+    /**
+     * @return the files moved to quarantine
+     */
+    public List<File> getQuarantined()
+    {
+        synchronized( this.quarantined )
+        {
+            return new ArrayList<File>( this.quarantined );
+        }
+    }
+
+
+    /**
+     * Runs {@link #scrub()} in a background thread with {@code delay}
+     * between the end of one pass and the start of the next.
+     */
+    public void start( long delay, TimeUnit unit )
+    {
+        this.scrubber.start( delay, delay, unit );
+    }
+
+
+    /**
+     * Stops the background scrubbing after the file being verified.
+     */
+    public void stop() throws InterruptedException
+    {
+        this.scrubber.stop();
+    }
+}
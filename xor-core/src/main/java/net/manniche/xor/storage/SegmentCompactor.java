@@ -0,0 +1,118 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Background compaction of a {@link SegmentStorage}. Sealed segments where
+ * the share of live bytes has dropped below a threshold are rewritten, least
+ * live first, while the storage keeps serving reads and writes. The copying
+ * is throttled by an {@link IORateLimiter}.
+ *
+ * The default threshold and budget can be set with the system properties
+ * {@code xor.segment.compaction_threshold} (a fraction, default 0.5) and
+ * {@code xor.segment.compaction_rate} (bytes per second, default 8MB).
+ *
+ * @author Steen Manniche
+ */
+public class SegmentCompactor
+{
+    public static final double DEFAULT_THRESHOLD = 0.5;
+    public static final long DEFAULT_RATE = 8 * 1024 * 1024;
+
+    private final SegmentStorage storage;
+    private final double threshold;
+    private final IORateLimiter limiter;
+    private final BackgroundTask compactor = new BackgroundTask( "xor-segment-compactor", "Compaction" )
+    {
+        @Override
+        protected void runOnce() throws IOException
+        {
+            compact();
+        }
+    };
+
+    public SegmentCompactor( SegmentStorage storage )
+    {
+        this( storage,
+              Double.parseDouble( System.getProperty( "xor.segment.compaction_threshold", Double.toString( DEFAULT_THRESHOLD ) ) ),
+              new IORateLimiter( Long.getLong( "xor.segment.compaction_rate", DEFAULT_RATE ) ) );
+    }
+
+
+    /**
+     * @param storage the storage to compact
+     * @param threshold segments with a smaller share of live bytes are compacted
+     * @param limiter the I/O budget of the compaction
+     */
+    public SegmentCompactor( SegmentStorage storage, double threshold, IORateLimiter limiter )
+    {
+        this.storage = storage;
+        this.threshold = threshold;
+        this.limiter = limiter;
+    }
+
+
+    /**
+     * Compacts all segments currently below the threshold.
+     *
+     * @return the number of bytes reclaimed
+     * @throws IOException if a segment could not be compacted; segments
+     * compacted so far stay compacted
+     */
+    public long compact() throws IOException
+    {
+        long reclaimed = 0;
+        List<Long> candidates = this.storage.getCompactionCandidates( this.threshold );
+        for( Long id : candidates )
+        {
+            if( this.compactor.isStopping() )
+            {
+                break;
+            }
+            reclaimed += this.storage.compact( id, this.limiter );
+        }
+        return reclaimed;
+    }
+
+
+    /**
+     * Runs {@link #compact()} in a background thread with {@code delay}
+     * between the end of one run and the start of the next.
+     */
+    public void start( long delay, TimeUnit unit )
+    {
+        this.compactor.start( delay, delay, unit );
+    }
+
+
+    /**
+     * Stops the background compaction. A run in progress finishes the
+     * segment it is working on; the thread is not interrupted, as an
+     * interrupt would close the file channels of the storage.
+     */
+    public void stop() throws InterruptedException
+    {
+        this.compactor.stop();
+    }
+}
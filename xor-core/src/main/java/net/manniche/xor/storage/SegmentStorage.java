@@ -0,0 +1,927 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.manniche.xor.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import net.manniche.xor.exceptions.ObjectNotFoundException;
+import net.manniche.xor.utils.RepositoryUtilities;
+
+
+/**
+ * Log structured storage for small objects. Instead of creating a file per
+ * object, objects are appended as records to large segment files, and an
+ * in-memory index maps the URI of each object to the segment, offset and
+ * length of its data. Deletes are appended as tombstone records.
+ *
+ * When the active segment grows beyond the segment size, it is sealed and a
+ * hint file listing the records of the segment is written next to it. On
+ * startup the index is rebuilt from the hint files of the sealed segments,
+ * and only the segments without hints (normally just the active one) are
+ * scanned record by record. A torn record at the tail of the active segment
+ * is truncated away.
+ *
+ * Overwrites and deletes leave the superseded records behind as garbage. The
+ * number of live bytes is tracked per segment, and sealed segments can be
+ * rewritten with {@link #compact(long, IORateLimiter)}, normally from a
+ * {@link SegmentCompactor}.
+ *
+ * The URIs handed out by SegmentStorage are generated from the storage path
+ * as for the FileStorage, but only serve as keys: all objects live
+ * in the segment directory given at construction.
+ *
+ * Record layout: magic (4 bytes), type (1), key length (4), data length (4),
+ * key (UTF-8), data, CRC32 of type through data (4).
+ *
+ * @author Steen Manniche
+ */
+public class SegmentStorage extends AbstractStorageProvider implements SyncableStorageProvider
+{
+    private static final Logger Log = Logger.getLogger( SegmentStorage.class.getName() );
+
+    private static final String SCHEME = "file";
+    private static final String SEGMENT_SUFFIX = ".segment";
+    private static final String HINT_SUFFIX = ".hint";
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    static final int RECORD_MAGIC = 0x584f5231;
+    static final byte PUT = 1;
+    static final byte DELETE = 2;
+    static final int HEADER_SIZE = 13;
+    static final int TRAILER_SIZE = 4;
+
+    /**
+     * Default size at which the active segment is sealed and a new one started.
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final File directory;
+    private final long segmentSize;
+    private final Map<String, Location> index;
+    private final Map<Long, Segment> segments;
+    private final AtomicLong sequence;
+
+    // guarded by this
+    private Segment active;
+    private List<HintEntry> activeHints;
+    private boolean closed;
+
+    /**
+     * Opens (or creates) the segment store in {@code directory} with the
+     * default segment size.
+     *
+     * @throws IOException if the segments cannot be read
+     */
+    public SegmentStorage( File directory ) throws IOException
+    {
+        this( directory, DEFAULT_SEGMENT_SIZE );
+    }
+
+
+    /**
+     * Opens (or creates) the segment store in {@code directory}, recovering
+     * the index from existing segments.
+     *
+     * @param directory the directory holding the segment files
+     * @param segmentSize size in bytes at which a segment is sealed
+     * @throws IOException if the segments cannot be read
+     */
+    public SegmentStorage( File directory, long segmentSize ) throws IOException
+    {
+        if( ! directory.isDirectory() && ! directory.mkdirs() )
+        {
+            throw new IOException( String.format( "Could not create segment directory %s", directory ) );
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.index = new ConcurrentHashMap<String, Location>();
+        this.segments = new ConcurrentHashMap<Long, Segment>();
+        // identifiers are unique across restarts as long as the clock does not go backwards
+        this.sequence = new AtomicLong( System.currentTimeMillis() << 20 );
+        this.recover();
+    }
+
+
+    @Override
+    public URI save( byte[] object, String storagePath ) throws IOException
+    {
+        URI uri;
+        try
+        {
+            uri = RepositoryUtilities.generateURI( SCHEME, storagePath, Long.toHexString( this.sequence.incrementAndGet() ) );
+        }
+        catch( URISyntaxException ex )
+        {
+            String error = String.format( "Could not construct identifier from %s: %s", storagePath, ex.getMessage() );
+            Log.log( Level.SEVERE, error, ex );
+            throw new IOException( error, ex );
+        }
+        this.save( object, uri, storagePath );
+        return uri;
+    }
+
+
+    @Override
+    public void save( byte[] object, URI uri, String storagePath ) throws IOException
+    {
+        String key = uri.toString();
+        synchronized( this )
+        {
+            this.apply( PUT, key, this.append( PUT, key, object ) );
+        }
+    }
+
+
+    /**
+     * Appends the whole batch while holding the write lock once.
+     */
+    @Override
+    public synchronized BatchResult<Void> saveAll( List<byte[]> objects, List<URI> uris, String storagePath ) throws IOException
+    {
+        return super.saveAll( objects, uris, storagePath );
+    }
+
+
+    @Override
+    public synchronized BatchResult<URI> saveAll( List<byte[]> objects, String storagePath ) throws IOException
+    {
+        return super.saveAll( objects, storagePath );
+    }
+
+
+    @Override
+    public byte[] get( URI identifier ) throws IOException
+    {
+        while( true )
+        {
+            Location location = this.locate( identifier );
+            byte[] data = new byte[ location.length ];
+            Segment segment = this.segments.get( location.segment );
+            // a segment retired by compaction after the lookup means the object has moved
+            if( null != segment && segment.read( ByteBuffer.wrap( data ), location.offset ) )
+            {
+                return data;
+            }
+        }
+    }
+
+
+    /**
+     * Reads only the requested range of the record.
+     */
+    @Override
+    public byte[] get( URI identifier, long offset, int length ) throws IOException
+    {
+        while( true )
+        {
+            Location location = this.locate( identifier );
+            byte[] data = new byte[ RepositoryUtilities.rangeLength( location.length, offset, length ) ];
+            if( 0 == data.length )
+            {
+                return data;
+            }
+            Segment segment = this.segments.get( location.segment );
+            if( null != segment && segment.read( ByteBuffer.wrap( data ), location.offset + offset ) )
+            {
+                return data;
+            }
+        }
+    }
+
+
+    @Override
+    public long getLength( URI identifier ) throws IOException
+    {
+        return this.locate( identifier ).length;
+    }
+
+
+    @Override
+    public void delete( URI identifier ) throws IOException
+    {
+        String key = identifier.toString();
+        synchronized( this )
+        {
+            if( ! this.index.containsKey( key ) )
+            {
+                throw new ObjectNotFoundException( String.format( "No object identified by %s", identifier ) );
+            }
+            this.apply( DELETE, key, this.append( DELETE, key, new byte[ 0 ] ) );
+        }
+    }
+
+
+    @Override
+    public String getScheme()
+    {
+        return SCHEME;
+    }
+
+
+    /**
+     * Forces the active segment to disk. Sealed segments were forced when
+     * they were sealed, so this makes every object durable.
+     */
+    @Override
+    public void sync( URI identifier ) throws IOException
+    {
+        this.sync();
+    }
+
+
+    @Override
+    public synchronized void sync() throws IOException
+    {
+        this.active.channel.force( false );
+    }
+
+
+    /**
+     * The active segment is all that is ever unsynced, so nothing has to be
+     * tracked.
+     */
+    @Override
+    public void setSyncTracking( boolean enabled )
+    {
+    }
+
+
+    /**
+     * Forces the active segment to disk and closes all segments. Closing a
+     * closed store does nothing.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if( this.closed )
+        {
+            return;
+        }
+        this.closed = true;
+        try
+        {
+            this.active.channel.force( false );
+        }
+        catch( IOException ex )
+        {
+            Log.log( Level.WARNING, String.format( "Could not force %s to disk: %s", this.active.file, ex.getMessage() ), ex );
+        }
+        for( Segment segment : this.segments.values() )
+        {
+            segment.close();
+        }
+        this.segments.clear();
+        this.index.clear();
+    }
+
+
+    /**
+     * @return the number of objects in the store
+     */
+    public int size()
+    {
+        return this.index.size();
+    }
+
+
+    private Location locate( URI identifier ) throws ObjectNotFoundException
+    {
+        Location location = this.index.get( identifier.toString() );
+        if( null == location )
+        {
+            throw new ObjectNotFoundException( String.format( "No object identified by %s", identifier ) );
+        }
+        return location;
+    }
+
+
+    /**
+     * Rewrites the live records of the sealed segment {@code id} at the end
+     * of the log and removes the segment. Each record is only copied if the
+     * index still points at it, and the index entry is swapped while the
+     * write lock is held, so concurrent saves and deletes always win over
+     * the copy. Readers of the old location retry against the new one.
+     *
+     * @param limiter I/O budget for the copying, may be null
+     * @return the number of bytes reclaimed
+     */
+    public long compact( long id, IORateLimiter limiter ) throws IOException
+    {
+        Segment victim = this.segments.get( id );
+        synchronized( this )
+        {
+            if( null == victim || victim == this.active )
+            {
+                throw new IllegalArgumentException( String.format( "Segment %s is not a sealed segment", id ) );
+            }
+        }
+
+        List<HintEntry> entries = this.readHints( victim );
+        if( null == entries )
+        {
+            entries = this.scan( victim, false );
+        }
+        boolean olderSegments = Collections.min( this.segments.keySet() ) < id;
+        long copied = 0;
+        for( HintEntry entry : entries )
+        {
+            if( PUT == entry.type )
+            {
+                Location location = this.index.get( entry.key );
+                if( null == location || location.segment != id || location.offset != entry.offset )
+                {
+                    continue;
+                }
+                if( null != limiter )
+                {
+                    limiter.acquire( entry.recordLength );
+                }
+                byte[] data = new byte[ entry.length ];
+                if( ! victim.read( ByteBuffer.wrap( data ), entry.offset ) )
+                {
+                    throw new IOException( String.format( "Segment %s was retired during compaction", victim.file ) );
+                }
+                if( null != limiter )
+                {
+                    limiter.acquire( entry.recordLength );
+                }
+                synchronized( this )
+                {
+                    if( this.index.get( entry.key ) == location )
+                    {
+                        this.apply( PUT, entry.key, this.append( PUT, entry.key, data ) );
+                        copied += entry.recordLength;
+                    }
+                }
+            }
+            else if( olderSegments && ! this.index.containsKey( entry.key ) )
+            {
+                // an older segment may still hold a record the tombstone must shadow
+                if( null != limiter )
+                {
+                    limiter.acquire( entry.recordLength );
+                }
+                synchronized( this )
+                {
+                    if( ! this.index.containsKey( entry.key ) )
+                    {
+                        Location tombstone = this.append( DELETE, entry.key, new byte[ 0 ] );
+                        copied += tombstone.recordLength;
+                    }
+                }
+            }
+        }
+
+        synchronized( this )
+        {
+            // the copies must be durable before the originals go away
+            this.active.channel.force( false );
+            this.segments.remove( id );
+        }
+        hintFile( victim ).delete();
+        victim.retire();
+        long reclaimed = victim.size - copied;
+        Log.info( String.format( "Compacted segment %s, reclaimed %s bytes", victim.file.getName(), reclaimed ) );
+        return reclaimed;
+    }
+
+
+    /**
+     * Returns the sealed segments whose share of live bytes is below
+     * {@code liveness}, least live first.
+     */
+    public List<Long> getCompactionCandidates( double liveness )
+    {
+        List<Segment> candidates = new ArrayList<Segment>();
+        Segment current;
+        synchronized( this )
+        {
+            current = this.active;
+        }
+        for( Segment segment : this.segments.values() )
+        {
+            if( segment != current && segment.getLiveness() < liveness )
+            {
+                candidates.add( segment );
+            }
+        }
+        Collections.sort( candidates, new Comparator<Segment>()
+        {
+            @Override
+            public int compare( Segment a, Segment b )
+            {
+                return Double.compare( a.getLiveness(), b.getLiveness() );
+            }
+        } );
+        List<Long> ids = new ArrayList<Long>( candidates.size() );
+        for( Segment segment : candidates )
+        {
+            ids.add( segment.id );
+        }
+        return ids;
+    }
+
+
+    /**
+     * @return the number of bytes held by live records
+     */
+    public long getLiveBytes()
+    {
+        long live = 0;
+        for( Segment segment : this.segments.values() )
+        {
+            live += segment.liveBytes.get();
+        }
+        return live;
+    }
+
+
+    /**
+     * @return the size in bytes of all segments
+     */
+    public long getTotalBytes()
+    {
+        long total = 0;
+        for( Segment segment : this.segments.values() )
+        {
+            total += segment.size;
+        }
+        return total;
+    }
+
+
+    /**
+     * Appends a record to the active segment. The caller must hold the lock
+     * on this and update the index.
+     */
+    private Location append( byte type, String key, byte[] data ) throws IOException
+    {
+        byte[] keyBytes = key.getBytes( UTF8 );
+        ByteBuffer record = ByteBuffer.allocate( HEADER_SIZE + keyBytes.length + data.length + TRAILER_SIZE );
+        record.putInt( RECORD_MAGIC ).put( type ).putInt( keyBytes.length ).putInt( data.length ).put( keyBytes ).put( data );
+        CRC32 crc = new CRC32();
+        crc.update( record.array(), 4, record.position() - 4 );
+        record.putInt( (int) crc.getValue() );
+        record.flip();
+
+        if( this.active.size > 0 && this.active.size + record.remaining() > this.segmentSize )
+        {
+            this.roll();
+        }
+
+        long position = this.active.size;
+        while( record.hasRemaining() )
+        {
+            this.active.channel.write( record, position + record.position() );
+        }
+        this.active.size += record.limit();
+
+        long dataOffset = position + HEADER_SIZE + keyBytes.length;
+        this.activeHints.add( new HintEntry( type, key, dataOffset, data.length ) );
+        return new Location( this.active.id, dataOffset, data.length, record.limit() );
+    }
+
+
+    /**
+     * Updates the index and the live byte counts of the affected segments.
+     * Tombstones never count as live.
+     */
+    private void apply( byte type, String key, Location location )
+    {
+        Location previous;
+        if( PUT == type )
+        {
+            previous = this.index.put( key, location );
+            this.segments.get( location.segment ).liveBytes.addAndGet( location.recordLength );
+        }
+        else
+        {
+            previous = this.index.remove( key );
+        }
+        if( null != previous )
+        {
+            Segment segment = this.segments.get( previous.segment );
+            if( null != segment )
+            {
+                segment.liveBytes.addAndGet( - previous.recordLength );
+            }
+        }
+    }
+
+
+    /**
+     * Seals the active segment, writes its hint file and starts a new segment.
+     */
+    private void roll() throws IOException
+    {
+        Segment sealed = this.active;
+        sealed.channel.force( false );
+        this.writeHints( sealed, this.activeHints );
+        this.startSegment( sealed.id + 1 );
+        Log.info( String.format( "Sealed segment %s at %s bytes", sealed.file.getName(), sealed.size ) );
+    }
+
+
+    private void startSegment( long id ) throws IOException
+    {
+        Segment segment = new Segment( id, new File( this.directory, segmentName( id ) ) );
+        this.segments.put( id, segment );
+        this.active = segment;
+        this.activeHints = new ArrayList<HintEntry>();
+    }
+
+
+    private void recover() throws IOException
+    {
+        String[] names = this.directory.list();
+        List<Long> ids = new ArrayList<Long>();
+        for( String name : names )
+        {
+            if( name.endsWith( SEGMENT_SUFFIX ) )
+            {
+                ids.add( Long.parseLong( name.substring( 0, name.length() - SEGMENT_SUFFIX.length() ), 16 ) );
+            }
+        }
+        Long[] sorted = ids.toArray( new Long[ ids.size() ] );
+        Arrays.sort( sorted );
+
+        for( int i = 0; i < sorted.length; i++ )
+        {
+            long id = sorted[ i ];
+            Segment segment = new Segment( id, new File( this.directory, segmentName( id ) ) );
+            this.segments.put( id, segment );
+            boolean last = i == sorted.length - 1;
+            List<HintEntry> entries = last ? null : this.readHints( segment );
+            if( null == entries )
+            {
+                entries = this.scan( segment, last );
+            }
+            for( HintEntry entry : entries )
+            {
+                this.apply( entry.type, entry.key, new Location( segment.id, entry.offset, entry.length, entry.recordLength ) );
+            }
+            if( last )
+            {
+                this.active = segment;
+                this.activeHints = entries;
+            }
+        }
+
+        if( null == this.active )
+        {
+            this.startSegment( 0 );
+        }
+        Log.info( String.format( "Recovered %s objects from %s segments in %s", this.index.size(), this.segments.size(), this.directory ) );
+    }
+
+
+    /**
+     * Reads the records of {@code segment}. A damaged record ends the scan;
+     * in the active segment it is truncated away.
+     *
+     * @return the hint entries of the valid records
+     */
+    private List<HintEntry> scan( Segment segment, boolean truncateDamagedTail ) throws IOException
+    {
+        List<HintEntry> hints = new ArrayList<HintEntry>();
+        DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( segment.file ), 64 * 1024 ) );
+        long position = 0;
+        try
+        {
+            while( position < segment.size )
+            {
+                HintEntry entry = readRecord( in, position, segment.size );
+                if( null == entry )
+                {
+                    break;
+                }
+                hints.add( entry );
+                position = entry.offset + entry.length + TRAILER_SIZE;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        if( position < segment.size )
+        {
+            Log.warning( String.format( "Damaged record at offset %s of %s (%s bytes)", position, segment.file, segment.size ) );
+            if( truncateDamagedTail )
+            {
+                segment.channel.truncate( position );
+                segment.size = position;
+            }
+        }
+        return hints;
+    }
+
+
+    /**
+     * @return the record starting at {@code position}, or null if the record
+     * is incomplete or damaged
+     */
+    private static HintEntry readRecord( DataInputStream in, long position, long segmentSize ) throws IOException
+    {
+        try
+        {
+            if( RECORD_MAGIC != in.readInt() )
+            {
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            CheckedInputStream checked = new CheckedInputStream( in, crc );
+            DataInputStream record = new DataInputStream( checked );
+            byte type = record.readByte();
+            int keyLength = record.readInt();
+            int dataLength = record.readInt();
+            if( ( PUT != type && DELETE != type ) || keyLength < 0 || dataLength < 0
+                || position + HEADER_SIZE + keyLength + (long) dataLength + TRAILER_SIZE > segmentSize )
+            {
+                return null;
+            }
+            byte[] key = new byte[ keyLength ];
+            record.readFully( key );
+            long skipped = 0;
+            byte[] buffer = new byte[ 8192 ];
+            while( skipped < dataLength )
+            {
+                int read = record.read( buffer, 0, (int) Math.min( buffer.length, dataLength - skipped ) );
+                if( -1 == read )
+                {
+                    return null;
+                }
+                skipped += read;
+            }
+            int expected = (int) crc.getValue();
+            if( expected != in.readInt() )
+            {
+                return null;
+            }
+            return new HintEntry( type, new String( key, UTF8 ), position + HEADER_SIZE + keyLength, dataLength );
+        }
+        catch( EOFException ex )
+        {
+            return null;
+        }
+    }
+
+
+    private void writeHints( Segment segment, List<HintEntry> hints ) throws IOException
+    {
+        File temporary = new File( this.directory, segmentName( segment.id ) + HINT_SUFFIX + ".tmp" );
+        CRC32 crc = new CRC32();
+        DataOutputStream out = new DataOutputStream( new CheckedOutputStream( new BufferedOutputStream( new FileOutputStream( temporary ) ), crc ) );
+        try
+        {
+            out.writeInt( hints.size() );
+            for( HintEntry entry : hints )
+            {
+                out.writeByte( entry.type );
+                out.writeUTF( entry.key );
+                out.writeLong( entry.offset );
+                out.writeInt( entry.length );
+            }
+            out.writeLong( crc.getValue() );
+        }
+        finally
+        {
+            out.close();
+        }
+        if( ! temporary.renameTo( hintFile( segment ) ) )
+        {
+            Log.warning( String.format( "Could not write hint file for %s, it will be scanned on recovery", segment.file ) );
+        }
+    }
+
+
+    /**
+     * Reads the hint file of {@code segment}.
+     *
+     * @return the records of the segment, or null if the segment has no valid
+     * hint file and must be scanned
+     */
+    private List<HintEntry> readHints( Segment segment ) throws IOException
+    {
+        File hints = hintFile( segment );
+        if( ! hints.isFile() )
+        {
+            return null;
+        }
+
+        List<HintEntry> entries = new ArrayList<HintEntry>();
+        CRC32 crc = new CRC32();
+        DataInputStream in = new DataInputStream( new CheckedInputStream( new BufferedInputStream( new FileInputStream( hints ) ), crc ) );
+        try
+        {
+            int count = in.readInt();
+            for( int i = 0; i < count; i++ )
+            {
+                entries.add( new HintEntry( in.readByte(), in.readUTF(), in.readLong(), in.readInt() ) );
+            }
+            long expected = crc.getValue();
+            if( expected != in.readLong() )
+            {
+                Log.warning( String.format( "Hint file %s is damaged, scanning the segment instead", hints ) );
+                return null;
+            }
+        }
+        catch( EOFException ex )
+        {
+            Log.warning( String.format( "Hint file %s is truncated, scanning the segment instead", hints ) );
+            return null;
+        }
+        finally
+        {
+            in.close();
+        }
+        return entries;
+    }
+
+
+    private File hintFile( Segment segment )
+    {
+        return new File( this.directory, segmentName( segment.id ) + HINT_SUFFIX );
+    }
+
+
+    private static String segmentName( long id )
+    {
+        return String.format( "%016x%s", id, SEGMENT_SUFFIX );
+    }
+
+
+    /**
+     * Position of the data of an object within a segment.
+     */
+    private static final class Location
+    {
+        final long segment;
+        final long offset;
+        final int length;
+        final int recordLength;
+
+        Location( long segment, long offset, int length, int recordLength )
+        {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.recordLength = recordLength;
+        }
+    }
+
+
+    private static final class HintEntry
+    {
+        final byte type;
+        final String key;
+        final long offset;
+        final int length;
+        final int recordLength;
+
+        HintEntry( byte type, String key, long offset, int length )
+        {
+            this.type = type;
+            this.key = key;
+            this.offset = offset;
+            this.length = length;
+            this.recordLength = HEADER_SIZE + key.getBytes( UTF8 ).length + length + TRAILER_SIZE;
+        }
+    }
+
+
+    private static final class Segment
+    {
+        final long id;
+        final File file;
+        final FileChannel channel;
+        final AtomicLong liveBytes = new AtomicLong();
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+        volatile long size;
+        // guarded by lock
+        private boolean retired;
+
+        Segment( long id, File file ) throws IOException
+        {
+            this.id = id;
+            this.file = file;
+            this.channel = new RandomAccessFile( file, "rw" ).getChannel();
+            this.size = this.channel.size();
+        }
+
+
+        double getLiveness()
+        {
+            long total = this.size;
+            return 0 == total ? 1.0 : (double) this.liveBytes.get() / total;
+        }
+
+
+        /**
+         * @return false if the segment has been retired by compaction
+         */
+        boolean read( ByteBuffer buffer, long position ) throws IOException
+        {
+            this.lock.readLock().lock();
+            try
+            {
+                if( this.retired )
+                {
+                    return false;
+                }
+                while( buffer.hasRemaining() )
+                {
+                    if( -1 == this.channel.read( buffer, position + buffer.position() ) )
+                    {
+                        throw new EOFException( String.format( "Unexpected end of %s at %s", this.file, position + buffer.position() ) );
+                    }
+                }
+                return true;
+            }
+            finally
+            {
+                this.lock.readLock().unlock();
+            }
+        }
+
+
+        /**
+         * Waits for ongoing reads, then closes and deletes the segment.
+         */
+        void retire()
+        {
+            this.lock.writeLock().lock();
+            try
+            {
+                this.retired = true;
+                this.close();
+                if( ! this.file.delete() )
+                {
+                    Log.warning( String.format( "Could not delete compacted segment %s", this.file ) );
+                }
+            }
+            finally
+            {
+                this.lock.writeLock().unlock();
+            }
+        }
+
+
+        void close()
+        {
+            try
+            {
+                this.channel.close();
+            }
+            catch( IOException ex )
+            {
+                Log.log( Level.WARNING, String.format( "Could not close %s: %s", this.file, ex.getMessage() ), ex );
+            }
+        }
+    }
+}
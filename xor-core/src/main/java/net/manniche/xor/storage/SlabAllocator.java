@@ -0,0 +1,81 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Hands out fixed size slabs of off-heap memory until a memory budget is
+ * spent. The slabs are direct buffers, so the data they hold is neither
+ * scanned nor copied by the garbage collector. Slabs are never returned to
+ * the allocator; {@link OffHeapCache} reuses the chunks within them.
+ *
+ * @author Steen Manniche
+ */
+final class SlabAllocator
+{
+    private final int slabSize;
+    private final int maxSlabs;
+    private int allocated;
+
+    /**
+     * @param capacity the memory budget in bytes
+     * @param slabSize the size of each slab in bytes
+     */
+    SlabAllocator( long capacity, int slabSize )
+    {
+        if( slabSize <= 0 || capacity < slabSize )
+        {
+            throw new IllegalArgumentException( String.format( "Cannot allocate slabs of %s bytes from a capacity of %s bytes", slabSize, capacity ) );
+        }
+        this.slabSize = slabSize;
+        this.maxSlabs = (int) Math.min( Integer.MAX_VALUE, capacity / slabSize );
+    }
+
+
+    /**
+     * @return a new slab, or null if the budget is spent
+     */
+    synchronized ByteBuffer allocate()
+    {
+        if( this.allocated == this.maxSlabs )
+        {
+            return null;
+        }
+        ByteBuffer slab = ByteBuffer.allocateDirect( this.slabSize );
+        this.allocated++;
+        return slab;
+    }
+
+
+    int getSlabSize()
+    {
+        return this.slabSize;
+    }
+
+
+    /**
+     * @return the number of bytes of off-heap memory allocated so far
+     */
+    synchronized long getAllocated()
+    {
+        return (long) this.allocated * this.slabSize;
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * An immutable file of key/value records sorted by key, written by a
+ * {@link LogStructuredStore} when it flushes its memtable or merges runs.
+ *
+ * File layout:
+ * <pre>
+ *   records: key (UTF) | value length (4 bytes, -1 for a deletion) | value
+ *   index:   count (4 bytes) | key (UTF) | record offset (8 bytes) ...
+ *   footer:  index offset (8 bytes) | record count (8 bytes) | magic "XORL"
+ * </pre>
+ * The index holds every {@link #INDEX_INTERVAL}th key and is kept in memory,
+ * so a lookup reads at most one interval of records.
+ *
+ * @author Steen Manniche
+ */
+final class SortedRun
+{
+    private static final int MAGIC = 0x584f524c;
+    private static final int FOOTER_SIZE = 20;
+    static final int INDEX_INTERVAL = 16;
+
+    private final File file;
+    private final FileChannel channel;
+    private final long indexOffset;
+    private final long count;
+    private final String[] indexKeys;
+    private final long[] indexOffsets;
+
+    SortedRun( File file ) throws IOException
+    {
+        this.file = file;
+        this.channel = new RandomAccessFile( file, "r" ).getChannel();
+        try
+        {
+            long size = this.channel.size();
+            ByteBuffer footer = ByteBuffer.allocate( FOOTER_SIZE );
+            if( size < FOOTER_SIZE || readFully( this.channel, footer, size - FOOTER_SIZE ) < FOOTER_SIZE || MAGIC != footer.getInt( 16 ) )
+            {
+                throw new IOException( String.format( "%s is not a sorted run", file ) );
+            }
+            this.indexOffset = footer.getLong( 0 );
+            this.count = footer.getLong( 8 );
+            DataInputStream in = this.open( this.indexOffset, size - FOOTER_SIZE );
+            int entries = in.readInt();
+            this.indexKeys = new String[ entries ];
+            this.indexOffsets = new long[ entries ];
+            for( int i = 0; i < entries; i++ )
+            {
+                this.indexKeys[ i ] = in.readUTF();
+                this.indexOffsets[ i ] = in.readLong();
+            }
+        }
+        catch( IOException ex )
+        {
+            this.channel.close();
+            throw ex;
+        }
+    }
+
+
+    /**
+     * Writes the pairs of {@code source}, which must be sorted by key, to
+     * {@code file} and forces it to disk. Pairs whose value is
+     * {@link LogStructuredStore#TOMBSTONE} are written as deletions.
+     */
+    static SortedRun write( File file, LogStructuredStore.Source source ) throws IOException
+    {
+        FileOutputStream stream = new FileOutputStream( file );
+        try
+        {
+            CountingOutputStream counter = new CountingOutputStream( stream );
+            DataOutputStream out = new DataOutputStream( new BufferedOutputStream( counter, 64 * 1024 ) );
+            List<String> indexKeys = new ArrayList<String>();
+            List<Long> indexOffsets = new ArrayList<Long>();
+            long count = 0;
+            while( source.next() )
+            {
+                if( 0 == count % INDEX_INTERVAL )
+                {
+                    out.flush();
+                    indexKeys.add( source.key() );
+                    indexOffsets.add( counter.written );
+                }
+                out.writeUTF( source.key() );
+                byte[] value = source.value();
+                if( LogStructuredStore.TOMBSTONE == value )
+                {
+                    out.writeInt( -1 );
+                }
+                else
+                {
+                    out.writeInt( value.length );
+                    out.write( value );
+                }
+                count++;
+            }
+            out.flush();
+            long indexOffset = counter.written;
+            out.writeInt( indexKeys.size() );
+            for( int i = 0; i < indexKeys.size(); i++ )
+            {
+                out.writeUTF( indexKeys.get( i ) );
+                out.writeLong( indexOffsets.get( i ) );
+            }
+            out.writeLong( indexOffset );
+            out.writeLong( count );
+            out.writeInt( MAGIC );
+            out.flush();
+            stream.getFD().sync();
+        }
+        finally
+        {
+            stream.close();
+        }
+        return new SortedRun( file );
+    }
+
+
+    File getFile()
+    {
+        return this.file;
+    }
+
+
+    long getCount()
+    {
+        return this.count;
+    }
+
+
+    long getSize() throws IOException
+    {
+        return this.channel.size();
+    }
+
+
+    /**
+     * @return the value of {@code key}, {@link LogStructuredStore#TOMBSTONE}
+     * if it was deleted, or null if the run does not hold it
+     */
+    byte[] get( String key ) throws IOException
+    {
+        Cursor cursor = this.seek( key );
+        if( cursor.next() && cursor.key().equals( key ) )
+        {
+            return cursor.value();
+        }
+        return null;
+    }
+
+
+    /**
+     * @return a cursor positioned before the first key not less than
+     * {@code from}, or before the first key if {@code from} is null
+     */
+    Cursor seek( String from ) throws IOException
+    {
+        int block = 0;
+        if( null != from )
+        {
+            block = Arrays.binarySearch( this.indexKeys, from );
+            if( block < 0 )
+            {
+                block = Math.max( 0, -block - 2 );
+            }
+        }
+        long offset = 0 == this.indexOffsets.length ? this.indexOffset : this.indexOffsets[ block ];
+        return new Cursor( this.open( offset, this.indexOffset ), from );
+    }
+
+
+    void close() throws IOException
+    {
+        this.channel.close();
+    }
+
+
+    private DataInputStream open( long from, long to )
+    {
+        return new DataInputStream( new BufferedInputStream( new ChannelInputStream( this.channel, from, to ), 8 * 1024 ) );
+    }
+
+
+    private static int readFully( FileChannel channel, ByteBuffer buffer, long position ) throws IOException
+    {
+        while( buffer.hasRemaining() )
+        {
+            if( -1 == channel.read( buffer, position + buffer.position() ) )
+            {
+                break;
+            }
+        }
+        return buffer.position();
+    }
+
+
+    /**
+     * Reads the records of a run in key order, skipping those before the key
+     * it was positioned at.
+     */
+    static final class Cursor implements LogStructuredStore.Source
+    {
+        private final DataInputStream in;
+        private final String from;
+        private String key;
+        private byte[] value;
+
+        private Cursor( DataInputStream in, String from )
+        {
+            this.in = in;
+            this.from = from;
+        }
+
+
+        /**
+         * @return false if there are no more records
+         */
+        @Override
+        public boolean next() throws IOException
+        {
+            do
+            {
+                try
+                {
+                    this.key = this.in.readUTF();
+                }
+                catch( EOFException ex )
+                {
+                    this.key = null;
+                    this.value = null;
+                    return false;
+                }
+                int length = this.in.readInt();
+                if( length < 0 )
+                {
+                    this.value = LogStructuredStore.TOMBSTONE;
+                }
+                else
+                {
+                    this.value = new byte[ length ];
+                    this.in.readFully( this.value );
+                }
+            }
+            while( null != this.from && this.key.compareTo( this.from ) < 0 );
+            return true;
+        }
+
+
+        @Override
+        public String key()
+        {
+            return this.key;
+        }
+
+
+        @Override
+        public byte[] value()
+        {
+            return this.value;
+        }
+    }
+
+
+    /**
+     * Reads a region of a channel with positional reads, so that cursors
+     * over the same run do not interfere.
+     */
+    private static final class ChannelInputStream extends InputStream
+    {
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        ChannelInputStream( FileChannel channel, long position, long end )
+        {
+            this.channel = channel;
+            this.position = position;
+            this.end = end;
+        }
+
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] one = new byte[ 1 ];
+            return -1 == this.read( one, 0, 1 ) ? -1 : one[ 0 ] & 0xff;
+        }
+
+
+        @Override
+        public int read( byte[] buffer, int offset, int length ) throws IOException
+        {
+            if( this.position >= this.end )
+            {
+                return -1;
+            }
+            ByteBuffer target = ByteBuffer.wrap( buffer, offset, (int) Math.min( length, this.end - this.position ) );
+            int count = this.channel.read( target, this.position );
+            if( count > 0 )
+            {
+                this.position += count;
+            }
+            return count;
+        }
+    }
+
+
+    private static final class CountingOutputStream extends FilterOutputStream
+    {
+        private long written;
+
+        CountingOutputStream( OutputStream out )
+        {
+            super( out );
+        }
+
+
+        @Override
+        public void write( int b ) throws IOException
+        {
+            this.out.write( b );
+            this.written++;
+        }
+
+
+        @Override
+        public void write( byte[] buffer, int offset, int length ) throws IOException
+        {
+            this.out.write( buffer, offset, length );
+            this.written += length;
+        }
+    }
+}
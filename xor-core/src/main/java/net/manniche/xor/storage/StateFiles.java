@@ -0,0 +1,99 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Reads and writes the small state files of the storage providers, holding
+ * one entry per line in UTF-8.
+ *
+ * @author Steen Manniche
+ */
+final class StateFiles
+{
+    private StateFiles()
+    {
+    }
+
+
+    /**
+     * Replaces {@code file} with {@code lines}. The lines are written to a
+     * temporary file and synced before the temporary file is renamed over
+     * {@code file}, so a crash leaves either the old or the new state.
+     * Where a file cannot be renamed over another, the old state is deleted
+     * first.
+     */
+    static void write( File file, List<String> lines ) throws IOException
+    {
+        File saved = new File( file.getPath() + ".tmp" );
+        FileOutputStream out = new FileOutputStream( saved );
+        try
+        {
+            Writer writer = new OutputStreamWriter( out, "UTF-8" );
+            for( String line : lines )
+            {
+                writer.write( String.format( "%s%n", line ) );
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+        if( ! saved.renameTo( file ) && ! ( file.delete() && saved.renameTo( file ) ) )
+        {
+            throw new IOException( String.format( "Could not replace %s with %s", file, saved ) );
+        }
+    }
+
+
+    /**
+     * @return the lines of {@code file}
+     */
+    static List<String> read( File file ) throws IOException
+    {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ), "UTF-8" ) );
+        try
+        {
+            String line;
+            while( null != ( line = reader.readLine() ) )
+            {
+                lines.add( line );
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Factory for the executors that run storage I/O on behalf of the
+ * asynchronous operations. The executors are bounded in both threads and
+ * queued tasks. When the queue is full, the submitting thread runs the task
+ * itself, which slows producers down to the pace of the disk instead of
+ * queueing without limit. Once an executor is shut down, it refuses new
+ * tasks with a {@link RejectedExecutionException}, rather than dropping
+ * them and leaving their futures incomplete.
+ *
+ * @author Steen Manniche
+ */
+public final class StorageExecutors
+{
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+    private StorageExecutors()
+    {
+    }
+
+
+    /**
+     * Creates an I/O executor sized by the system properties
+     * {@code xor.storage.io_threads} (default twice the number of processors)
+     * and {@code xor.storage.io_queue} (default 1024).
+     */
+    public static ExecutorService newIOExecutor()
+    {
+        return newIOExecutor( Integer.getInteger( "xor.storage.io_threads", 2 * Runtime.getRuntime().availableProcessors() ),
+                              Integer.getInteger( "xor.storage.io_queue", DEFAULT_QUEUE_SIZE ) );
+    }
+
+
+    /**
+     * @param threads the number of I/O threads
+     * @param queueSize the number of tasks that may wait for a thread
+     */
+    public static ExecutorService newIOExecutor( int threads, int queueSize )
+    {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS,
+                                                              new ArrayBlockingQueue<Runnable>( queueSize ),
+                                                              new ThreadFactory()
+                                                              {
+                                                                  @Override
+                                                                  public Thread newThread( Runnable runnable )
+                                                                  {
+                                                                      Thread thread = new Thread( runnable, "xor-storage-io-" + count.incrementAndGet() );
+                                                                      thread.setDaemon( true );
+                                                                      return thread;
+                                                                  }
+                                                              },
+                                                              new CallerRunsUnlessShutdown() );
+        executor.allowCoreThreadTimeOut( true );
+        return executor;
+    }
+
+
+    /**
+     * Runs the tasks a full executor has no room for in the submitting
+     * thread, and refuses the tasks of a shut down executor.
+     */
+    private static final class CallerRunsUnlessShutdown implements RejectedExecutionHandler
+    {
+        @Override
+        public void rejectedExecution( Runnable task, ThreadPoolExecutor executor )
+        {
+            if( executor.isShutdown() )
+            {
+                throw new RejectedExecutionException( "The storage I/O executor is shut down" );
+            }
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * The result of an asynchronous storage operation, which runs listeners
+ * when the operation completes, so that a caller can go on with the result
+ * without a thread waiting in {@link #get()}.
+ *
+ * @author Steen Manniche
+ */
+public class StorageFuture<V> extends FutureTask<V>
+{
+    private static final Logger Log = Logger.getLogger( StorageFuture.class.getName() );
+
+    private List<Runnable> listeners = new ArrayList<Runnable>(); // null once done
+
+    public StorageFuture( Callable<V> operation )
+    {
+        super( operation );
+    }
+
+
+    /**
+     * Runs {@code task} on {@code executor}.
+     *
+     * @return the future of {@code task}
+     * @throws java.util.concurrent.RejectedExecutionException if the
+     * executor does not accept the task
+     */
+    public static <V> StorageFuture<V> submit( Executor executor, Callable<V> task )
+    {
+        StorageFuture<V> future = new StorageFuture<V>( task );
+        executor.execute( future );
+        return future;
+    }
+
+
+    /**
+     * Runs {@code listener} once the operation has completed, failed or been
+     * cancelled, in the thread completing it, or at once in the calling
+     * thread if it already has. The listener should only hand the result
+     * on, as it holds up the thread that ran the operation. Exceptions
+     * thrown by the listener are logged.
+     */
+    public void addListener( Runnable listener )
+    {
+        synchronized( this )
+        {
+            // get() returns before done() has taken the listeners
+            if( null != this.listeners && ! this.isDone() )
+            {
+                this.listeners.add( listener );
+                return;
+            }
+        }
+        inform( listener );
+    }
+
+
+    @Override
+    protected void done()
+    {
+        List<Runnable> completed;
+        synchronized( this )
+        {
+            completed = this.listeners;
+            this.listeners = null;
+        }
+        for( Runnable listener : completed )
+        {
+            inform( listener );
+        }
+    }
+
+
+    private static void inform( Runnable listener )
+    {
+        try
+        {
+            listener.run();
+        }
+        catch( RuntimeException ex )
+        {
+            Log.log( Level.WARNING, String.format( "Listener of a storage operation failed: %s", ex.getMessage() ), ex );
+        }
+    }
+}
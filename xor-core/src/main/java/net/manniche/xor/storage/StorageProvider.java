@@ -20,7 +20,9 @@
 package net.manniche.xor.storage;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.util.List;
 import net.manniche.xor.types.ObjectRepositoryService;
 
 
@@ -68,6 +70,37 @@ public interface StorageProvider extends ObjectRepositoryService{
     public abstract void save( byte[] object, URI url, String storagePath) throws IOException;
 
 
+    /**
+     * Streaming variant of {@link #save(byte[], java.lang.String)}. Exactly
+     * {@code length} bytes are read from {@code object}, allowing objects that
+     * are larger than the available memory to be stored. The stream is not
+     * closed by the storage implementation.
+     *
+     * @param object the stream from which the object is read
+     * @param length the number of bytes to read from {@code object}
+     * @param storagePath the path to store this object at
+     * @return an URI uniquely identifying the object for retrieval
+     * @throws IOException if the object cannot be stored or if the stream
+     * ends before {@code length} bytes have been read
+     */
+    public abstract URI save( InputStream object, long length, String storagePath ) throws IOException;
+
+
+    /**
+     * Streaming variant of {@link #save(byte[], java.net.URI, java.lang.String)}.
+     * Exactly {@code length} bytes are read from {@code object}. The stream is
+     * not closed by the storage implementation.
+     *
+     * @param object the stream from which the object is read
+     * @param length the number of bytes to read from {@code object}
+     * @param uri the URI that the object should be identified with
+     * @param storagePath the path to store this object at
+     * @throws IOException if the object cannot be stored or if the stream
+     * ends before {@code length} bytes have been read
+     */
+    public abstract void save( InputStream object, long length, URI uri, String storagePath ) throws IOException;
+
+
     /**
      * Retrieves an object stored in the storage implementation, identified by
      * {@code identifier}. The object is returned as a byte[]
@@ -79,6 +112,47 @@ public interface StorageProvider extends ObjectRepositoryService{
     public abstract byte[] get( URI identifier) throws IOException;
 
 
+    /**
+     * Streaming variant of {@link #get(java.net.URI)}. The caller is
+     * responsible for closing the returned stream.
+     *
+     * @param identifier uniquely identifying the object to be retrieved
+     * @return a stream positioned at the beginning of the object
+     * @throws IOException if the object cannot be retrieved or if the identifier does not identifies an object
+     */
+    public abstract InputStream getStream( URI identifier ) throws IOException;
+
+
+    /**
+     * Returns the length in bytes of the object identified by
+     * {@code identifier}, ie. the number of bytes that can be read from the
+     * stream returned by {@link #getStream(java.net.URI)}.
+     *
+     * @param identifier uniquely identifying the object
+     * @return the length of the object in bytes
+     * @throws IOException if the identifier does not identifies an object
+     */
+    public abstract long getLength( URI identifier ) throws IOException;
+
+
+    /**
+     * Retrieves at most {@code length} bytes of the object identified by
+     * {@code identifier}, starting at byte {@code offset}, without reading
+     * the rest of the object where the implementation allows it. Fewer bytes
+     * are returned if the object ends before {@code offset + length}, and
+     * none if {@code offset} is at or beyond the end of the object.
+     *
+     * @param identifier uniquely identifying the object to be retrieved
+     * @param offset the position in the object of the first byte to return
+     * @param length the maximum number of bytes to return
+     * @return the requested range of the object as a byte[]
+     * @throws IOException if the identifier does not identifies an object
+     * @throws IllegalArgumentException if {@code offset} or {@code length}
+     * is negative
+     */
+    public abstract byte[] get( URI identifier, long offset, int length ) throws IOException;
+
+
     /**
      * Deletes an object in in the storage implementation, identified by 
      * {@code identifier}. If the object is found and successfully deleted, 
@@ -91,6 +165,57 @@ public interface StorageProvider extends ObjectRepositoryService{
     public abstract void delete( URI identifier) throws IOException;
 
 
+    /**
+     * Stores each of {@code objects} as by {@link #save(byte[], java.lang.String)}.
+     * Implementations can share directory checks, locking and syncing across
+     * the batch. A failure to store one object does not prevent the others
+     * from being stored.
+     *
+     * @param objects the objects to store
+     * @param storagePath the path to store the objects at
+     * @return the URIs of the objects, in the order of {@code objects}, or the
+     * reason each object that could not be stored failed
+     * @throws IOException if the batch as a whole could not be carried out
+     */
+    public abstract BatchResult<URI> saveAll( List<byte[]> objects, String storagePath ) throws IOException;
+
+
+    /**
+     * Stores each of {@code objects} with the URI at the same position in
+     * {@code uris}, as by {@link #save(byte[], java.net.URI, java.lang.String)}.
+     *
+     * @param objects the objects to store
+     * @param uris the URIs to identify the objects with
+     * @param storagePath the path to store the objects at
+     * @return the outcome of storing each object
+     * @throws IOException if the batch as a whole could not be carried out
+     */
+    public abstract BatchResult<Void> saveAll( List<byte[]> objects, List<URI> uris, String storagePath ) throws IOException;
+
+
+    /**
+     * Retrieves each of the objects identified by {@code identifiers}, as by
+     * {@link #get(java.net.URI)}.
+     *
+     * @param identifiers uniquely identifying the objects to be retrieved
+     * @return the objects, in the order of {@code identifiers}, or the reason
+     * each object that could not be retrieved failed
+     * @throws IOException if the batch as a whole could not be carried out
+     */
+    public abstract BatchResult<byte[]> getAll( List<URI> identifiers ) throws IOException;
+
+
+    /**
+     * Deletes each of the objects identified by {@code identifiers}, as by
+     * {@link #delete(java.net.URI)}.
+     *
+     * @param identifiers uniquely identifying the objects to be deleted
+     * @return the outcome of deleting each object
+     * @throws IOException if the batch as a whole could not be carried out
+     */
+    public abstract BatchResult<Void> deleteAll( List<URI> identifiers ) throws IOException;
+
+
     /**
      * Returns the uri scheme for this storage provider
      *
@@ -0,0 +1,53 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+
+/**
+ * An object read from a {@link MetadataAwareStorageProvider} together with
+ * its metadata.
+ *
+ * @author Steen Manniche
+ */
+public final class StoredObject
+{
+    private final byte[] bytes;
+    private final ObjectMetadata metadata;
+
+    public StoredObject( byte[] bytes, ObjectMetadata metadata )
+    {
+        this.bytes = bytes;
+        this.metadata = metadata;
+    }
+
+
+    public byte[] getBytes()
+    {
+        return this.bytes;
+    }
+
+
+    /**
+     * @return the metadata of the object, or null if it was stored without
+     */
+    public ObjectMetadata getMetadata()
+    {
+        return this.metadata;
+    }
+}
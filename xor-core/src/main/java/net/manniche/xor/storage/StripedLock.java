@@ -0,0 +1,129 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * A fixed number of locks shared by any number of keys. Operations on the
+ * same key always take the same lock and are thereby ordered, while
+ * operations on different keys only contend if their keys happen to hash to
+ * the same stripe.
+ *
+ * @author Steen Manniche
+ */
+public final class StripedLock
+{
+    private final Lock[] stripes;
+
+    /**
+     * Creates sixteen stripes per available processor, or the number given
+     * by the system property {@code xor.storage.lock_stripes}, rounded up to
+     * a power of two.
+     */
+    public StripedLock()
+    {
+        this( Integer.getInteger( "xor.storage.lock_stripes", 16 * Runtime.getRuntime().availableProcessors() ) );
+    }
+
+
+    /**
+     * @param stripes the number of locks, rounded up to a power of two
+     */
+    public StripedLock( int stripes )
+    {
+        int size = stripes <= 1 ? 1 : Integer.highestOneBit( stripes - 1 ) << 1;
+        this.stripes = new Lock[ size ];
+        for( int i = 0; i < size; i++ )
+        {
+            this.stripes[ i ] = new ReentrantLock();
+        }
+    }
+
+
+    /**
+     * @return the lock guarding {@code key}
+     */
+    public Lock get( Object key )
+    {
+        return this.stripes[ this.index( key ) ];
+    }
+
+
+    /**
+     * Returns the distinct locks guarding {@code keys}, in a global order.
+     * Taking them in the returned order, as {@link #lockAll(java.util.Collection)}
+     * does, cannot deadlock against another thread doing the same.
+     */
+    public List<Lock> getAll( Collection<?> keys )
+    {
+        SortedSet<Integer> indexes = new TreeSet<Integer>();
+        for( Object key : keys )
+        {
+            indexes.add( this.index( key ) );
+        }
+        List<Lock> locks = new ArrayList<Lock>( indexes.size() );
+        for( int index : indexes )
+        {
+            locks.add( this.stripes[ index ] );
+        }
+        return locks;
+    }
+
+
+    /**
+     * Takes the locks guarding {@code keys}.
+     *
+     * @return the locks taken, to be passed to {@link #unlockAll(java.util.List)}
+     */
+    public List<Lock> lockAll( Collection<?> keys )
+    {
+        List<Lock> locks = this.getAll( keys );
+        for( Lock lock : locks )
+        {
+            lock.lock();
+        }
+        return locks;
+    }
+
+
+    public void unlockAll( List<Lock> locks )
+    {
+        for( int i = locks.size() - 1; i >= 0; i-- )
+        {
+            locks.get( i ).unlock();
+        }
+    }
+
+
+    private int index( Object key )
+    {
+        int hash = key.hashCode();
+        hash ^= ( hash >>> 20 ) ^ ( hash >>> 12 );
+        hash ^= ( hash >>> 7 ) ^ ( hash >>> 4 );
+        return hash & ( this.stripes.length - 1 );
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.IOException;
+import java.net.URI;
+
+
+/**
+ * A {@link StorageProvider} that can force the objects it has written to
+ * stable storage on request, rather than on every write.
+ *
+ * @author Steen Manniche
+ */
+public interface SyncableStorageProvider extends StorageProvider
+{
+
+    /**
+     * Forces the object identified by {@code identifier} to stable storage,
+     * along with its entry in the directory it was moved or created in.
+     *
+     * @throws IOException if the object could not be forced to disk
+     */
+    public abstract void sync( URI identifier ) throws IOException;
+
+    /**
+     * Forces every object written since the last call to sync() to stable
+     * storage, along with the directory entries of the objects written or
+     * deleted since then.
+     *
+     * @throws IOException if the objects could not be forced to disk
+     */
+    public abstract void sync() throws IOException;
+
+    /**
+     * Turns on or off remembering the objects written, for storage that
+     * has to remember them to force them in {@link #sync()}. Storage that
+     * is never synced should not collect every object written to it, so
+     * callers that sync, such as {@link JournalingStorageProvider}, turn
+     * tracking on. While it is off, sync() only forces the objects written
+     * while it was on.
+     */
+    public abstract void setSyncTracking( boolean enabled );
+}
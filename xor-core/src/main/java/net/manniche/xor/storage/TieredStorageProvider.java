@@ -0,0 +1,858 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.manniche.xor.server.RepositoryObserver;
+import net.manniche.xor.types.CoreRepositoryAction;
+import net.manniche.xor.types.DigitalObject;
+import net.manniche.xor.types.ObjectIdentifier;
+import net.manniche.xor.types.ObjectRepositoryContentType;
+
+
+/**
+ * Keeps recently used objects in a small, fast hot tier and moves the rest
+ * to a large, slow cold tier. Both tiers are directories of the same
+ * underlying storage: an object identified by {@code hotPath + name} is
+ * kept at {@code coldPath + name} while it is cold, and clients only ever
+ * see the hot identifier.
+ *
+ * New objects are written to the hot tier. The provider should be
+ * registered as a {@link RepositoryObserver} with the repository server;
+ * {@link CoreRepositoryAction#REQUEST} notifications mark hot objects as
+ * recently used and count requests of cold objects. {@link #migrate()},
+ * run in the background by {@link #start(long, TimeUnit)}, promotes cold
+ * objects requested {@code promoteAfter} times and then demotes the least
+ * recently used hot objects until the hot tier is below 90% of its
+ * capacity. Objects are copied before the old copy is deleted, and reads
+ * look in both tiers, so an object is readable while it moves. An object
+ * that cannot be demoted is marked as recently used, so that the next
+ * migration tries the objects behind it first rather than stopping at it
+ * again.
+ *
+ * The recency order of the hot tier is saved to a state file after every
+ * migration and on close. Objects written after the state was last saved,
+ * or before tiering was enabled, are found by walking the hot tier
+ * directory in the first migration, and are taken to be the least recently
+ * used. The walk needs an underlying storage keeping each object in a file
+ * named by its identifier, such as {@code FileStorage}; files and
+ * directories whose names start with a '.' are skipped.
+ *
+ * @author Steen Manniche
+ */
+public class TieredStorageProvider extends DelegatingStorageProvider implements RepositoryObserver
+{
+    private static final Logger Log = Logger.getLogger( TieredStorageProvider.class.getName() );
+
+    public static final long DEFAULT_HOT_CAPACITY = 8L * 1024 * 1024 * 1024;
+    public static final int DEFAULT_PROMOTE_AFTER = 2;
+    public static final long DEFAULT_RATE = 32 * 1024 * 1024;
+
+    private static final double LOW_WATERMARK = 0.9;
+
+    private final String hotPath;
+    private final String coldPath;
+    private final File stateFile;
+    private final long hotCapacity;
+    private final int promoteAfter;
+    private final IORateLimiter limiter;
+
+    /**
+     * Hot objects and their lengths, least recently used first.
+     */
+    private final LinkedHashMap<URI, Long> hot = new LinkedHashMap<URI, Long>( 1024, 0.75f, true );
+    private long hotBytes;
+
+    private final FrequencySketch coldRequests = new FrequencySketch( 64 * 1024 );
+    private final Set<URI> promotions = new LinkedHashSet<URI>();
+    private final StripedLock objectLocks = new StripedLock();
+
+    /**
+     * Set once the hot tier directory has been walked for objects missing
+     * from the state.
+     */
+    private volatile boolean reconciled;
+
+    private final BackgroundTask migrator = new BackgroundTask( "xor-tiering", "Migration" )
+    {
+        @Override
+        protected void runOnce() throws IOException
+        {
+            migrate();
+        }
+    };
+
+    /**
+     * Reads the capacity of the hot tier from {@code xor.tiering.hot_capacity}
+     * (bytes, default 8GB), the number of requests that promote a cold
+     * object from {@code xor.tiering.promote_after} (default 2) and the I/O
+     * budget of migrations from {@code xor.tiering.rate} (bytes per second,
+     * default 32MB).
+     */
+    public TieredStorageProvider( StorageProvider delegate, String hotPath, String coldPath, File stateFile ) throws IOException
+    {
+        this( delegate, hotPath, coldPath, stateFile,
+              Long.getLong( "xor.tiering.hot_capacity", DEFAULT_HOT_CAPACITY ),
+              Integer.getInteger( "xor.tiering.promote_after", DEFAULT_PROMOTE_AFTER ),
+              new IORateLimiter( Long.getLong( "xor.tiering.rate", DEFAULT_RATE ) ) );
+    }
+
+
+    /**
+     * @param delegate the storage holding both tiers
+     * @param hotPath the storage path of the hot tier, ending with a separator
+     * @param coldPath the storage path of the cold tier, ending with a separator
+     * @param stateFile the file holding the recency order of the hot tier
+     * @param hotCapacity the number of bytes kept in the hot tier
+     * @param promoteAfter the number of requests that promote a cold object
+     * @param limiter the I/O budget of migrations, may be null
+     */
+    public TieredStorageProvider( StorageProvider delegate, String hotPath, String coldPath, File stateFile, long hotCapacity, int promoteAfter, IORateLimiter limiter ) throws IOException
+    {
+        super( delegate );
+        this.hotPath = hotPath;
+        this.coldPath = coldPath;
+        this.stateFile = stateFile;
+        this.hotCapacity = hotCapacity;
+        this.promoteAfter = promoteAfter;
+        this.limiter = limiter;
+        if( stateFile.exists() )
+        {
+            this.loadState();
+        }
+    }
+
+
+    @Override
+    public URI save( byte[] object, String storagePath ) throws IOException
+    {
+        URI uri = super.save( object, storagePath );
+        this.track( uri, object.length );
+        return uri;
+    }
+
+
+    @Override
+    public void save( byte[] object, URI uri, String storagePath ) throws IOException
+    {
+        Lock lock = this.objectLocks.get( uri );
+        lock.lock();
+        try
+        {
+            super.save( object, uri, storagePath );
+            this.replaced( uri, object.length );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public URI save( InputStream object, long length, String storagePath ) throws IOException
+    {
+        URI uri = super.save( object, length, storagePath );
+        this.track( uri, length );
+        return uri;
+    }
+
+
+    @Override
+    public void save( InputStream object, long length, URI uri, String storagePath ) throws IOException
+    {
+        Lock lock = this.objectLocks.get( uri );
+        lock.lock();
+        try
+        {
+            super.save( object, length, uri, storagePath );
+            this.replaced( uri, length );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public BatchResult<URI> saveAll( List<byte[]> objects, String storagePath ) throws IOException
+    {
+        return BatchOperations.saveAll( this, objects, storagePath );
+    }
+
+
+    @Override
+    public BatchResult<Void> saveAll( List<byte[]> objects, List<URI> uris, String storagePath ) throws IOException
+    {
+        return BatchOperations.saveAll( this, objects, uris, storagePath );
+    }
+
+
+    @Override
+    public byte[] get( URI identifier ) throws IOException
+    {
+        List<URI> locations = this.locate( identifier );
+        for( int i = 0; ; i++ )
+        {
+            try
+            {
+                return super.get( locations.get( i ) );
+            }
+            catch( FileNotFoundException ex )
+            {
+                if( i == locations.size() - 1 )
+                {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+
+    @Override
+    public BatchResult<byte[]> getAll( List<URI> identifiers ) throws IOException
+    {
+        return BatchOperations.getAll( this, identifiers );
+    }
+
+
+    @Override
+    public InputStream getStream( URI identifier ) throws IOException
+    {
+        List<URI> locations = this.locate( identifier );
+        for( int i = 0; ; i++ )
+        {
+            try
+            {
+                return super.getStream( locations.get( i ) );
+            }
+            catch( FileNotFoundException ex )
+            {
+                if( i == locations.size() - 1 )
+                {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+
+    @Override
+    public byte[] get( URI identifier, long offset, int length ) throws IOException
+    {
+        List<URI> locations = this.locate( identifier );
+        for( int i = 0; ; i++ )
+        {
+            try
+            {
+                return super.get( locations.get( i ), offset, length );
+            }
+            catch( FileNotFoundException ex )
+            {
+                if( i == locations.size() - 1 )
+                {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+
+    @Override
+    public long getLength( URI identifier ) throws IOException
+    {
+        List<URI> locations = this.locate( identifier );
+        for( int i = 0; ; i++ )
+        {
+            try
+            {
+                return super.getLength( locations.get( i ) );
+            }
+            catch( FileNotFoundException ex )
+            {
+                if( i == locations.size() - 1 )
+                {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+
+    @Override
+    public void delete( URI identifier ) throws IOException
+    {
+        Lock lock = this.objectLocks.get( identifier );
+        lock.lock();
+        try
+        {
+            FileNotFoundException missing = null;
+            boolean deleted = false;
+            for( URI location : this.locate( identifier ) )
+            {
+                try
+                {
+                    if( this.exists( location ) )
+                    {
+                        super.delete( location );
+                        deleted = true;
+                    }
+                }
+                catch( FileNotFoundException ex )
+                {
+                    missing = ex;
+                }
+            }
+            this.untrack( identifier );
+            if( ! deleted )
+            {
+                throw null != missing ? missing : new FileNotFoundException( String.format( "No object identified by %s", identifier ) );
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public BatchResult<Void> deleteAll( List<URI> identifiers ) throws IOException
+    {
+        return BatchOperations.deleteAll( this, identifiers );
+    }
+
+
+    /**
+     * Records requests: hot objects become the most recently used, cold
+     * objects are queued for promotion once they have been requested often
+     * enough.
+     */
+    @Override
+    public void notifyMe( ObjectIdentifier identifier, DigitalObject object, CoreRepositoryAction action, ObjectRepositoryContentType contentType )
+    {
+        URI uri = identifier.getURI();
+        if( CoreRepositoryAction.REQUEST != action || null == this.toCold( uri ) )
+        {
+            return;
+        }
+        synchronized( this.hot )
+        {
+            if( null != this.hot.get( uri ) )
+            {
+                return;
+            }
+        }
+        boolean promote;
+        synchronized( this.coldRequests )
+        {
+            this.coldRequests.increment( uri );
+            promote = this.coldRequests.estimate( uri ) >= this.promoteAfter;
+        }
+        if( promote )
+        {
+            synchronized( this.promotions )
+            {
+                this.promotions.add( uri );
+            }
+        }
+    }
+
+
+    /**
+     * Promotes the cold objects queued for promotion, then demotes the
+     * least recently used hot objects until the hot tier is below its low
+     * watermark. Objects that cannot be demoted are skipped.
+     *
+     * @return the number of bytes moved between the tiers
+     * @throws IOException if an object could not be moved, after the
+     * demotion has gone on with the other objects; objects moved so far
+     * stay moved
+     */
+    public long migrate() throws IOException
+    {
+        if( ! this.reconciled )
+        {
+            this.reconcile();
+        }
+        long moved = 0;
+        List<URI> promote;
+        synchronized( this.promotions )
+        {
+            promote = new ArrayList<URI>( this.promotions );
+            this.promotions.clear();
+        }
+        for( URI uri : promote )
+        {
+            if( this.migrator.isStopping() )
+            {
+                break;
+            }
+            moved += this.promote( uri );
+        }
+
+        long target = (long) ( this.hotCapacity * LOW_WATERMARK );
+        boolean demoting;
+        synchronized( this.hot )
+        {
+            demoting = this.hotBytes > this.hotCapacity;
+        }
+        Set<URI> failed = new HashSet<URI>();
+        IOException failure = null;
+        while( demoting && ! this.migrator.isStopping() )
+        {
+            URI victim;
+            synchronized( this.hot )
+            {
+                if( this.hotBytes <= target || this.hot.isEmpty() )
+                {
+                    break;
+                }
+                victim = this.hot.keySet().iterator().next();
+            }
+            if( failed.contains( victim ) )
+            {
+                // every object left has failed
+                break;
+            }
+            try
+            {
+                moved += this.demote( victim );
+            }
+            catch( IOException ex )
+            {
+                Log.log( Level.WARNING, String.format( "Could not demote %s, demoting the next object instead: %s", victim, ex.getMessage() ), ex );
+                failed.add( victim );
+                failure = null == failure ? ex : failure;
+                synchronized( this.hot )
+                {
+                    // moves it to the most recently used end
+                    this.hot.get( victim );
+                }
+            }
+        }
+        this.saveState();
+        if( moved > 0 )
+        {
+            Log.info( String.format( "Moved %s bytes between the tiers, %s bytes are hot", moved, this.getHotBytes() ) );
+        }
+        if( null != failure )
+        {
+            throw failure;
+        }
+        return moved;
+    }
+
+
+    /**
+     * @return the number of bytes in the hot tier known to the provider
+     */
+    public long getHotBytes()
+    {
+        synchronized( this.hot )
+        {
+            return this.hotBytes;
+        }
+    }
+
+
+    /**
+     * @return true if {@code identifier} is in the hot tier
+     */
+    public boolean isHot( URI identifier )
+    {
+        synchronized( this.hot )
+        {
+            return this.hot.containsKey( identifier );
+        }
+    }
+
+
+    /**
+     * Runs {@link #migrate()} in a background thread with {@code delay}
+     * between the end of one run and the start of the next.
+     */
+    public void start( long delay, TimeUnit unit )
+    {
+        this.migrator.start( delay, delay, unit );
+    }
+
+
+    /**
+     * Stops the background migration. An object being moved is moved
+     * completely.
+     */
+    public void stop() throws InterruptedException
+    {
+        this.migrator.stop();
+    }
+
+
+    @Override
+    public void close()
+    {
+        try
+        {
+            this.stop();
+        }
+        catch( InterruptedException ex )
+        {
+            Thread.currentThread().interrupt();
+        }
+        try
+        {
+            this.saveState();
+        }
+        catch( IOException ex )
+        {
+            Log.log( Level.WARNING, String.format( "Could not save the tiering state: %s", ex.getMessage() ), ex );
+        }
+        super.close();
+    }
+
+
+    /**
+     * Tracks the objects in the hot tier directory that are missing from
+     * the state, oldest first and ahead of the objects already tracked.
+     */
+    private void reconcile() throws IOException
+    {
+        long start = System.currentTimeMillis();
+        List<File> files = new ArrayList<File>();
+        this.list( new File( this.hotPath ), files );
+        if( this.migrator.isStopping() )
+        {
+            return;
+        }
+        Collections.sort( files, new Comparator<File>()
+        {
+            @Override
+            public int compare( File first, File second )
+            {
+                long difference = first.lastModified() - second.lastModified();
+                return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+            }
+        } );
+
+        int found = 0;
+        synchronized( this.hot )
+        {
+            Map<URI, Long> tracked = new LinkedHashMap<URI, Long>( this.hot );
+            this.hot.clear();
+            this.hotBytes = 0;
+            for( File file : files )
+            {
+                String name = file.getPath().substring( this.hotPath.length() ).replace( File.separatorChar, '/' );
+                URI uri;
+                try
+                {
+                    uri = new URI( this.getScheme(), null, this.hotPath + name, null );
+                }
+                catch( URISyntaxException ex )
+                {
+                    Log.warning( String.format( "Could not construct identifier of %s: %s", file, ex.getMessage() ) );
+                    continue;
+                }
+                if( ! tracked.containsKey( uri ) && file.isFile() )
+                {
+                    this.track( uri, file.length() );
+                    found++;
+                }
+            }
+            for( Map.Entry<URI, Long> entry : tracked.entrySet() )
+            {
+                this.track( entry.getKey(), entry.getValue() );
+            }
+        }
+        this.reconciled = true;
+        Log.info( String.format( "Found %s untracked objects in %s in %s ms", found, this.hotPath, System.currentTimeMillis() - start ) );
+    }
+
+
+    private void list( File directory, List<File> files )
+    {
+        File[] children = directory.listFiles();
+        if( null == children )
+        {
+            return;
+        }
+        for( File child : children )
+        {
+            if( this.migrator.isStopping() )
+            {
+                return;
+            }
+            if( child.getName().startsWith( "." ) || ( child.getPath() + File.separator ).equals( this.coldPath ) )
+            {
+                continue;
+            }
+            if( child.isDirectory() )
+            {
+                this.list( child, files );
+            }
+            else
+            {
+                files.add( child );
+            }
+        }
+    }
+
+
+    private long promote( URI uri ) throws IOException
+    {
+        Lock lock = this.objectLocks.get( uri );
+        lock.lock();
+        try
+        {
+            URI cold = this.toCold( uri );
+            if( this.exists( cold ) )
+            {
+                long length = this.move( cold, uri );
+                this.track( uri, length );
+                return length;
+            }
+            if( this.exists( uri ) )
+            {
+                // hot, but written before the state was last saved
+                this.track( uri, super.getLength( uri ) );
+            }
+            return 0;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    private long demote( URI uri ) throws IOException
+    {
+        Lock lock = this.objectLocks.get( uri );
+        lock.lock();
+        try
+        {
+            if( ! this.exists( uri ) )
+            {
+                this.untrack( uri );
+                return 0;
+            }
+            long length = this.move( uri, this.toCold( uri ) );
+            this.untrack( uri );
+            return length;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Copies an object and deletes the original. Must be called with the
+     * lock of the object held.
+     *
+     * @return the length of the object
+     */
+    private long move( URI from, URI to ) throws IOException
+    {
+        long length = super.getLength( from );
+        if( null != this.limiter )
+        {
+            this.limiter.acquire( length );
+        }
+        InputStream in = super.getStream( from );
+        try
+        {
+            String path = to.getPath();
+            super.save( in, length, to, path.substring( 0, path.lastIndexOf( '/' ) + 1 ) );
+        }
+        finally
+        {
+            in.close();
+        }
+        super.delete( from );
+        return length;
+    }
+
+
+    /**
+     * Tracks an object just written to the hot tier under {@code uri},
+     * removing a cold copy left by an earlier version.
+     */
+    private void replaced( URI uri, long length ) throws IOException
+    {
+        URI cold = this.toCold( uri );
+        if( null != cold && this.exists( cold ) )
+        {
+            super.delete( cold );
+        }
+        this.track( uri, length );
+    }
+
+
+    private boolean exists( URI location ) throws IOException
+    {
+        try
+        {
+            super.getLength( location );
+            return true;
+        }
+        catch( FileNotFoundException ex )
+        {
+            return false;
+        }
+    }
+
+
+    /**
+     * @return the locations that may hold {@code identifier}, the most
+     * likely first
+     */
+    private List<URI> locate( URI identifier )
+    {
+        List<URI> locations = new ArrayList<URI>( 2 );
+        URI cold = this.toCold( identifier );
+        if( null == cold )
+        {
+            locations.add( identifier );
+        }
+        else if( this.isHot( identifier ) )
+        {
+            locations.add( identifier );
+            locations.add( cold );
+        }
+        else
+        {
+            locations.add( cold );
+            locations.add( identifier );
+        }
+        return locations;
+    }
+
+
+    /**
+     * @return the location of {@code identifier} in the cold tier, or null
+     * if it is not stored in the hot tier path and is never moved
+     */
+    private URI toCold( URI identifier )
+    {
+        String path = identifier.getPath();
+        if( null == path || ! path.startsWith( this.hotPath ) )
+        {
+            return null;
+        }
+        try
+        {
+            return new URI( identifier.getScheme(), null, this.coldPath + path.substring( this.hotPath.length() ), null );
+        }
+        catch( URISyntaxException ex )
+        {
+            Log.warning( String.format( "Could not construct cold identifier of %s: %s", identifier, ex.getMessage() ) );
+            return null;
+        }
+    }
+
+
+    private void track( URI uri, long length )
+    {
+        if( null == this.toCold( uri ) )
+        {
+            return;
+        }
+        synchronized( this.hot )
+        {
+            Long previous = this.hot.put( uri, length );
+            this.hotBytes += length - ( null == previous ? 0 : previous );
+        }
+    }
+
+
+    private void untrack( URI uri )
+    {
+        synchronized( this.hot )
+        {
+            Long previous = this.hot.remove( uri );
+            if( null != previous )
+            {
+                this.hotBytes -= previous;
+            }
+        }
+    }
+
+
+    /**
+     * Writes the hot objects, least recently used first, as lines of
+     * length and identifier.
+     */
+    private void saveState() throws IOException
+    {
+        List<Map.Entry<URI, Long>> entries;
+        synchronized( this.hot )
+        {
+            entries = new ArrayList<Map.Entry<URI, Long>>( this.hot.entrySet() );
+        }
+        List<String> lines = new ArrayList<String>( entries.size() );
+        for( Map.Entry<URI, Long> entry : entries )
+        {
+            lines.add( String.format( "%s %s", entry.getValue(), entry.getKey() ) );
+        }
+        StateFiles.write( this.stateFile, lines );
+    }
+
+
+    private void loadState() throws IOException
+    {
+        for( String line : StateFiles.read( this.stateFile ) )
+        {
+            int separator = line.indexOf( ' ' );
+            try
+            {
+                this.track( new URI( line.substring( separator + 1 ) ), Long.parseLong( line.substring( 0, Math.max( 0, separator ) ) ) );
+            }
+            catch( URISyntaxException ex )
+            {
+                Log.warning( String.format( "Skipping malformed line in %s: %s", this.stateFile, line ) );
+            }
+            catch( NumberFormatException ex )
+            {
+                Log.warning( String.format( "Skipping malformed line in %s: %s", this.stateFile, line ) );
+            }
+        }
+        Log.info( String.format( "Loaded %s hot objects, %s bytes, from %s", this.hot.size(), this.hotBytes, this.stateFile ) );
+    }
+}
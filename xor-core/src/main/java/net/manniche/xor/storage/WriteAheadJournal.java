@@ -0,0 +1,423 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+
+/**
+ * Append only journal of storage operations with group commit. Writers
+ * append their records and then wait for the journal to be forced to disk.
+ * Only one writer at a time forces the journal; the writers arriving while
+ * it does so are covered by the next force, so concurrent writers share
+ * fsyncs instead of paying for one each.
+ *
+ * Record layout: magic (4 bytes), type (1), key, storage path and data as
+ * length prefixed fields, CRC32 of type through data (4).
+ *
+ * @author Steen Manniche
+ */
+public final class WriteAheadJournal
+{
+    private static final Logger Log = Logger.getLogger( WriteAheadJournal.class.getName() );
+
+    private static final int RECORD_MAGIC = 0x584f524a;
+
+    /**
+     * Default time a batched commit waits for other writers to join it.
+     */
+    public static final long DEFAULT_COMMIT_WINDOW_MICROS = 200;
+
+    /**
+     * A journaled operation.
+     */
+    public static final class Entry
+    {
+        public final byte type;
+        public final String key;
+        public final String storagePath;
+        public final byte[] data;
+
+        public Entry( byte type, String key, String storagePath, byte[] data )
+        {
+            this.type = type;
+            this.key = key;
+            this.storagePath = storagePath;
+            this.data = data;
+        }
+    }
+
+    private final File file;
+    private final FileChannel channel;
+    private final long commitWindowMicros;
+
+    // guarded by channel
+    private long appended;
+    private long position;
+
+    /**
+     * Records whose force failed. They must never be reported durable, even
+     * after a later force succeeds, since the failed force may have dropped
+     * their pages from the page cache.
+     */
+    private static final class FailedCommit
+    {
+        final long first;
+        final long last;
+        final IOException cause;
+
+        FailedCommit( long first, long last, IOException cause )
+        {
+            this.first = first;
+            this.last = last;
+            this.cause = cause;
+        }
+    }
+
+    private final Object commitLock = new Object();
+    // guarded by commitLock
+    private long durable;
+    private boolean committing;
+    private final List<FailedCommit> failedCommits = new ArrayList<FailedCommit>();
+
+    public WriteAheadJournal( File file ) throws IOException
+    {
+        this( file, Long.getLong( "xor.journal.commit_window", DEFAULT_COMMIT_WINDOW_MICROS ) );
+    }
+
+
+    /**
+     * Opens the journal in {@code file}, creating it if necessary. Existing
+     * records must be read with {@link #read()} before new ones are appended.
+     *
+     * @param commitWindowMicros how long a {@link Durability#BATCHED batched}
+     * commit waits for other writers before forcing the journal
+     */
+    public WriteAheadJournal( File file, long commitWindowMicros ) throws IOException
+    {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if( ! parent.isDirectory() && ! parent.mkdirs() )
+        {
+            throw new IOException( String.format( "Could not create journal directory %s", parent ) );
+        }
+        this.file = file;
+        this.channel = new RandomAccessFile( file, "rw" ).getChannel();
+        this.commitWindowMicros = commitWindowMicros;
+        this.position = this.channel.size();
+    }
+
+
+    /**
+     * Reads the records of the journal. A torn or damaged record ends the
+     * journal and is truncated away together with anything following it.
+     */
+    public List<Entry> read() throws IOException
+    {
+        List<Entry> entries = new ArrayList<Entry>();
+        long valid = 0;
+        long journalSize = this.file.length();
+        DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( this.file ), 64 * 1024 ) );
+        try
+        {
+            while( true )
+            {
+                Entry entry = readRecord( in, journalSize - valid );
+                if( null == entry )
+                {
+                    break;
+                }
+                entries.add( entry );
+                valid += recordLength( entry );
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        synchronized( this.channel )
+        {
+            if( valid < this.channel.size() )
+            {
+                Log.warning( String.format( "Truncating damaged journal tail of %s at offset %s", this.file, valid ) );
+                this.channel.truncate( valid );
+            }
+            this.position = valid;
+        }
+        return entries;
+    }
+
+
+    /**
+     * Appends a record to the journal. The record is not durable until
+     * {@link #await(long, Durability)} has returned for it.
+     *
+     * @return the sequence number of the record
+     */
+    public long append( byte type, String key, String storagePath, byte[] data ) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream( data.length + 64 );
+        DataOutputStream out = new DataOutputStream( bytes );
+        out.writeInt( RECORD_MAGIC );
+        writeFields( out, new Entry( type, key, null == storagePath ? "" : storagePath, data ) );
+        byte[] record = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update( record, 4, record.length - 4 );
+        out.writeInt( (int) crc.getValue() );
+        ByteBuffer buffer = ByteBuffer.wrap( bytes.toByteArray() );
+
+        synchronized( this.channel )
+        {
+            while( buffer.hasRemaining() )
+            {
+                this.channel.write( buffer, this.position + buffer.position() );
+            }
+            this.position += buffer.limit();
+            return ++this.appended;
+        }
+    }
+
+
+    /**
+     * Waits until the record with sequence number {@code sequence} is on
+     * stable storage. If no other writer is forcing the journal, the calling
+     * thread does so on behalf of everybody who has appended so far.
+     *
+     * @throws IOException if the journal could not be forced with the
+     * record; every writer whose record was covered by the failed force
+     * gets the exception
+     */
+    public void await( long sequence, Durability durability ) throws IOException
+    {
+        if( Durability.NONE == durability )
+        {
+            return;
+        }
+
+        synchronized( this.commitLock )
+        {
+            while( this.durable < sequence && this.committing )
+            {
+                try
+                {
+                    this.commitLock.wait();
+                }
+                catch( InterruptedException ex )
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException( "Interrupted while waiting for the journal to be committed" );
+                }
+            }
+            this.checkCommitted( sequence );
+            if( this.durable >= sequence )
+            {
+                return;
+            }
+            this.committing = true;
+        }
+
+        long target = 0;
+        IOException failure = null;
+        try
+        {
+            if( Durability.BATCHED == durability && this.commitWindowMicros > 0 )
+            {
+                pause( this.commitWindowMicros );
+            }
+            synchronized( this.channel )
+            {
+                target = this.appended;
+            }
+            this.channel.force( false );
+        }
+        catch( IOException ex )
+        {
+            failure = ex;
+            throw ex;
+        }
+        finally
+        {
+            synchronized( this.commitLock )
+            {
+                if( null == failure )
+                {
+                    this.durable = Math.max( this.durable, target );
+                }
+                else if( target > this.durable )
+                {
+                    Log.severe( String.format( "Could not force records %s to %s of %s: %s", this.durable + 1, target, this.file, failure.getMessage() ) );
+                    this.failedCommits.add( new FailedCommit( this.durable + 1, target, failure ) );
+                }
+                this.committing = false;
+                this.commitLock.notifyAll();
+            }
+        }
+    }
+
+
+    /**
+     * Must be called with the commit lock held.
+     *
+     * @throws IOException if the record with sequence number
+     * {@code sequence} was covered by a force that failed
+     */
+    private void checkCommitted( long sequence ) throws IOException
+    {
+        for( FailedCommit failed : this.failedCommits )
+        {
+            if( sequence >= failed.first && sequence <= failed.last )
+            {
+                throw new IOException( String.format( "Record %s of %s could not be forced to disk: %s", sequence, this.file, failed.cause.getMessage() ), failed.cause );
+            }
+        }
+    }
+
+
+    /**
+     * Empties the journal. The caller must ensure that no records are
+     * appended concurrently, and that all journaled operations have been
+     * made durable elsewhere; writers waiting for a commit are released.
+     */
+    public void reset() throws IOException
+    {
+        synchronized( this.channel )
+        {
+            this.channel.truncate( 0 );
+            this.channel.force( false );
+            this.position = 0;
+        }
+        synchronized( this.commitLock )
+        {
+            this.durable = this.appended;
+            this.failedCommits.clear();
+            this.commitLock.notifyAll();
+        }
+    }
+
+
+    /**
+     * @return the size of the journal in bytes
+     */
+    public long size()
+    {
+        synchronized( this.channel )
+        {
+            return this.position;
+        }
+    }
+
+
+    public void close() throws IOException
+    {
+        this.channel.close();
+    }
+
+
+    /**
+     * Reads the next record, or returns null if it is incomplete or
+     * damaged. A data length larger than the {@code remaining} bytes of the
+     * journal is damage, and is not allocated.
+     */
+    private static Entry readRecord( DataInputStream in, long remaining ) throws IOException
+    {
+        try
+        {
+            if( RECORD_MAGIC != in.readInt() )
+            {
+                return null;
+            }
+            byte type = in.readByte();
+            String key = in.readUTF();
+            String storagePath = in.readUTF();
+            int length = in.readInt();
+            if( length < 0 || length > remaining )
+            {
+                return null;
+            }
+            byte[] data = new byte[ length ];
+            in.readFully( data );
+            Entry entry = new Entry( type, key, storagePath, data );
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream( length + 64 );
+            writeFields( new DataOutputStream( bytes ), entry );
+            CRC32 crc = new CRC32();
+            crc.update( bytes.toByteArray() );
+            if( (int) crc.getValue() != in.readInt() )
+            {
+                return null;
+            }
+            return entry;
+        }
+        catch( EOFException ex )
+        {
+            return null;
+        }
+    }
+
+
+    private static void writeFields( DataOutputStream out, Entry entry ) throws IOException
+    {
+        out.writeByte( entry.type );
+        out.writeUTF( entry.key );
+        out.writeUTF( entry.storagePath );
+        out.writeInt( entry.data.length );
+        out.write( entry.data );
+        out.flush();
+    }
+
+
+    private static long recordLength( Entry entry ) throws IOException
+    {
+        // magic + type + two modified UTF-8 strings + data length + data + crc
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( bytes );
+        out.writeUTF( entry.key );
+        out.writeUTF( entry.storagePath );
+        return 4 + 1 + bytes.size() + 4 + entry.data.length + 4;
+    }
+
+
+    private static void pause( long micros ) throws InterruptedIOException
+    {
+        try
+        {
+            Thread.sleep( micros / 1000, (int) ( micros % 1000 ) * 1000 );
+        }
+        catch( InterruptedException ex )
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while waiting for the commit window" );
+        }
+    }
+}
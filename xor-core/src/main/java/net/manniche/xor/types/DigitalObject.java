@@ -20,6 +20,7 @@
 package net.manniche.xor.types;
 
 import java.io.IOException;
+import java.io.InputStream;
 import net.manniche.xor.exceptions.RepositoryServiceException;
 
 
@@ -28,7 +29,9 @@ import net.manniche.xor.exceptions.RepositoryServiceException;
  * carry no notion of the type of data carried with the DigitalObject type.
  *
  * DigitalObjects only honour the contract that it must be possible to retrieve
- * the data in the DigitalObject as a byte[]
+ * the data in the DigitalObject as a byte[] or as a stream of known length.
+ * Objects that are too large to be held in memory should be read through
+ * {@link #getInputStream()}.
  * 
  * @author Steen Manniche
  */
@@ -43,4 +46,22 @@ public interface DigitalObject {
      */
     public byte[] getBytes() throws RepositoryServiceException;
 
+
+    /**
+     * Returns the data of the DigitalObject as a stream. Implementations
+     * backed by storage may only allow the stream to be retrieved once. The
+     * caller is responsible for closing the stream.
+     *
+     * @throws RepositoryServiceException if the data could not be opened for reading
+     * @return a stream over the data of the object
+     */
+    public InputStream getInputStream() throws RepositoryServiceException;
+
+
+    /**
+     * @throws RepositoryServiceException if the length of the data could not be determined
+     * @return the number of bytes in the DigitalObject
+     */
+    public long getLength() throws RepositoryServiceException;
+
 }
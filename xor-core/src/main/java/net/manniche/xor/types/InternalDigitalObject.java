@@ -18,6 +18,8 @@
 
 package net.manniche.xor.types;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.io.Serializable;
 
 
@@ -47,4 +49,16 @@ public final class InternalDigitalObject implements DigitalObject, Serializable{
     {
         return this.internal_input;
     }
+
+    @Override
+    public InputStream getInputStream()
+    {
+        return new ByteArrayInputStream( this.internal_input );
+    }
+
+    @Override
+    public long getLength()
+    {
+        return this.internal_input.length;
+    }
 }
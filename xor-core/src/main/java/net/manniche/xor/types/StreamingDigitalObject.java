@@ -0,0 +1,98 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.types;
+
+import java.io.IOException;
+import java.io.InputStream;
+import net.manniche.xor.exceptions.RepositoryServiceException;
+import net.manniche.xor.utils.RepositoryUtilities;
+
+
+/**
+ * A {@link net.manniche.xor.types.DigitalObject} whose data is read from a
+ * stream of known length, typically opened directly on the underlying
+ * {@link net.manniche.xor.storage.StorageProvider storage}. The data is never
+ * held in memory unless {@link #getBytes()} is called.
+ *
+ * The stream can only be consumed once, ie. either {@link #getInputStream()}
+ * or {@link #getBytes()} can be called, but not both. StreamingDigitalObjects
+ * are not serializable and are intended for use within the server only.
+ *
+ * @author Steen Manniche
+ */
+public final class StreamingDigitalObject implements DigitalObject
+{
+    private final InputStream input;
+    private final long length;
+    private boolean consumed = false;
+
+    public StreamingDigitalObject( InputStream input, long length )
+    {
+        this.input = input;
+        this.length = length;
+    }
+
+
+    /**
+     * Reads the entire stream into a byte array and closes the stream.
+     */
+    @Override
+    public byte[] getBytes() throws RepositoryServiceException
+    {
+        InputStream data = this.getInputStream();
+        try
+        {
+            return RepositoryUtilities.readFully( data, this.length );
+        }
+        catch( IOException ex )
+        {
+            throw new RepositoryServiceException( String.format( "Could not read %s bytes from stream: %s", this.length, ex.getMessage() ), ex );
+        }
+        finally
+        {
+            try
+            {
+                data.close();
+            }
+            catch( IOException ex )
+            {
+                // nothing more to read, and nothing to do about it
+            }
+        }
+    }
+
+
+    @Override
+    public synchronized InputStream getInputStream() throws RepositoryServiceException
+    {
+        if( this.consumed )
+        {
+            throw new RepositoryServiceException( "The stream of this object has already been consumed" );
+        }
+        this.consumed = true;
+        return this.input;
+    }
+
+
+    @Override
+    public long getLength()
+    {
+        return this.length;
+    }
+}
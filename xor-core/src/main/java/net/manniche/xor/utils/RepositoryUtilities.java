@@ -19,11 +19,20 @@
 package net.manniche.xor.utils;
 
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URL;
+import java.nio.channels.FileChannel;
 import java.util.logging.Logger;
+import net.manniche.xor.storage.FanOutLayout;
 
 /**
  *
@@ -33,18 +42,241 @@ public class RepositoryUtilities {
 
     private static final Logger Log = Logger.getLogger( RepositoryUtilities.class.getName() );
 
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * File.toPath and FileChannel.open( Path, OpenOption... ) with the read
+     * option, looked up at runtime as Java 6 has no way to open a directory.
+     * Null if the runtime does not have them.
+     */
+    private static final Method TO_PATH;
+    private static final Method OPEN_CHANNEL;
+    private static final Object READ_OPTION;
+
+    static
+    {
+        Method toPath = null;
+        Method openChannel = null;
+        Object readOption = null;
+        try
+        {
+            Class<?> path = Class.forName( "java.nio.file.Path" );
+            Class<?> openOption = Class.forName( "java.nio.file.OpenOption" );
+            toPath = File.class.getMethod( "toPath" );
+            openChannel = FileChannel.class.getMethod( "open", path, Array.newInstance( openOption, 0 ).getClass() );
+            readOption = Array.newInstance( openOption, 1 );
+            Array.set( readOption, 0, Class.forName( "java.nio.file.StandardOpenOption" ).getField( "READ" ).get( null ) );
+        }
+        catch( Exception ex )
+        {
+            Log.warning( String.format( "This runtime cannot force directories to disk, renamed and deleted files are durable once the file system commits their directory: %s", ex ) );
+            toPath = null;
+            openChannel = null;
+        }
+        TO_PATH = toPath;
+        OPEN_CHANNEL = openChannel;
+        READ_OPTION = readOption;
+    }
+
     public static URI generateURI( String scheme, String path, String hash ) throws IOException, URISyntaxException
     {
-        URL id = null;
+        return generateURI( scheme, path, hash, FanOutLayout.FLAT );
+    }
+
+
+    /**
+     * Generates the URI of the object named {@code hash} in the storage
+     * {@code path}, placed in the subdirectories given by {@code layout}.
+     *
+     * @param scheme the scheme of the URI, eg. "file"
+     * @param path the (absolute) storage path, ending with a separator
+     * @param hash the name of the object. A leading '-' is removed
+     * @param layout the fan-out layout of the storage path
+     */
+    public static URI generateURI( String scheme, String path, String hash, FanOutLayout layout ) throws IOException, URISyntaxException
+    {
+        URI id = null;
         if( hash.startsWith( "-" ) )
         {
             hash = hash.substring( 1 );
         }
 
-
-        id = new URL( scheme, path, hash );
+        id = new URI( scheme, null, path + layout.getRelativeDirectory( hash ) + hash, null );
         Log.info( String.format( "Generated url '%s' from %s, %s and %s", id, scheme, path, hash ) );
-        return id.toURI();
+        return id;
+    }
+
+
+    /**
+     * @return the lowercase hexadecimal representation of {@code bytes}
+     */
+    public static String toHex( byte[] bytes )
+    {
+        char[] hex = new char[ bytes.length * 2 ];
+        for( int i = 0; i < bytes.length; i++ )
+        {
+            hex[ 2 * i ] = HEX_DIGITS[ ( bytes[ i ] >> 4 ) & 0xf ];
+            hex[ 2 * i + 1 ] = HEX_DIGITS[ bytes[ i ] & 0xf ];
+        }
+        return new String( hex );
+    }
+
+
+    /**
+     * Forces the entries of {@code directory} to disk, so that files renamed
+     * into it, created in it or deleted from it stay that way after a crash.
+     * Forcing the files themselves does not do this.
+     *
+     * @return false if the runtime cannot open directories (before Java 7),
+     * in which case the entries are durable once the file system commits
+     * the directory
+     * @throws IOException if the directory could not be forced to disk
+     */
+    public static boolean forceDirectory( File directory ) throws IOException
+    {
+        if( null == OPEN_CHANNEL )
+        {
+            return false;
+        }
+        FileChannel channel;
+        try
+        {
+            channel = (FileChannel) OPEN_CHANNEL.invoke( null, TO_PATH.invoke( directory ), READ_OPTION );
+        }
+        catch( InvocationTargetException ex )
+        {
+            if( ex.getCause() instanceof IOException )
+            {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException( String.format( "Could not open %s: %s", directory, ex.getCause() ), ex.getCause() );
+        }
+        catch( IllegalAccessException ex )
+        {
+            throw new IOException( String.format( "Could not open %s: %s", directory, ex ), ex );
+        }
+        try
+        {
+            channel.force( true );
+        }
+        finally
+        {
+            channel.close();
+        }
+        return true;
+    }
+
+
+    /**
+     * Copies exactly {@code length} bytes from {@code in} to {@code out}.
+     * Neither stream is closed.
+     *
+     * @throws EOFException if {@code in} ends before {@code length} bytes
+     * have been copied
+     */
+    public static void copy( InputStream in, OutputStream out, long length ) throws IOException
+    {
+        byte[] buffer = new byte[ (int) Math.min( COPY_BUFFER_SIZE, Math.max( length, 1 ) ) ];
+        long remaining = length;
+        while( remaining > 0 )
+        {
+            int read = in.read( buffer, 0, (int) Math.min( buffer.length, remaining ) );
+            if( -1 == read )
+            {
+                throw new EOFException( String.format( "Stream ended after %s of %s bytes", length - remaining, length ) );
+            }
+            out.write( buffer, 0, read );
+            remaining -= read;
+        }
+    }
+
+
+    /**
+     * Reads exactly {@code length} bytes from {@code in} into a new byte
+     * array. The stream is not closed.
+     *
+     * @throws EOFException if {@code in} ends before {@code length} bytes
+     * have been read
+     */
+    public static byte[] readFully( InputStream in, long length ) throws IOException
+    {
+        if( length > Integer.MAX_VALUE )
+        {
+            throw new IOException( String.format( "Cannot read %s bytes into a byte array", length ) );
+        }
+        byte[] data = new byte[ (int) length ];
+        int offset = 0;
+        while( offset < data.length )
+        {
+            int read = in.read( data, offset, data.length - offset );
+            if( -1 == read )
+            {
+                throw new EOFException( String.format( "Stream ended after %s of %s bytes", offset, length ) );
+            }
+            offset += read;
+        }
+        return data;
+    }
+
+
+    /**
+     * @return the number of bytes of a range read of {@code length} bytes
+     * from {@code offset} in an object of {@code objectLength} bytes
+     * @throws IllegalArgumentException if {@code offset} or {@code length}
+     * is negative
+     */
+    public static int rangeLength( long objectLength, long offset, int length )
+    {
+        if( offset < 0 || length < 0 )
+        {
+            throw new IllegalArgumentException( String.format( "Invalid range of %s bytes from %s", length, offset ) );
+        }
+        return (int) Math.max( 0, Math.min( length, objectLength - offset ) );
+    }
+
+
+    /**
+     * Skips {@code offset} bytes of {@code in} and reads up to
+     * {@code length} of the following bytes into a new byte array, fewer if
+     * the stream ends first. The stream is not closed.
+     *
+     * @throws IllegalArgumentException if {@code offset} or {@code length}
+     * is negative
+     */
+    public static byte[] readRange( InputStream in, long offset, int length ) throws IOException
+    {
+        rangeLength( Long.MAX_VALUE, offset, length );
+        long skipped = 0;
+        while( skipped < offset )
+        {
+            long count = in.skip( offset - skipped );
+            if( count <= 0 )
+            {
+                // skip may give up before the end; a read tells for sure
+                if( -1 == in.read() )
+                {
+                    return new byte[ 0 ];
+                }
+                count = 1;
+            }
+            skipped += count;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream( Math.min( length, COPY_BUFFER_SIZE ) );
+        byte[] buffer = new byte[ Math.min( Math.max( length, 1 ), COPY_BUFFER_SIZE ) ];
+        int remaining = length;
+        while( remaining > 0 )
+        {
+            int read = in.read( buffer, 0, Math.min( buffer.length, remaining ) );
+            if( -1 == read )
+            {
+                break;
+            }
+            out.write( buffer, 0, read );
+            remaining -= read;
+        }
+        return out.toByteArray();
     }
 
 }
@@ -6,8 +6,18 @@
 
 package net.manniche.xor.server;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 import mockit.NonStrictExpectations;
+import net.manniche.xor.storage.BatchOperations;
+import net.manniche.xor.storage.BatchResult;
+import net.manniche.xor.storage.MetadataIndex;
+import net.manniche.xor.storage.OffHeapCache;
 import net.manniche.xor.storage.StorageProvider;
 import java.net.URI;
 import net.manniche.xor.types.DefaultIdentifier;
@@ -98,6 +108,121 @@ public class RepositoryServerTest {
     }
 
 
+    @Test
+    public void storeObjectAsyncReturnsValidURI() throws Exception
+    {
+        new NonStrictExpectations(){{
+            mockStorage.save( (byte[]) any, anyString );returns( testURI );
+        }};
+
+        ObjectIdentifier result = instance.storeObjectAsync( data, ".", null, logMessage ).get();
+        assertEquals( predefinedId.getURI(), result.getURI() );
+    }
+
+
+    @Test
+    public void deleteNonExistingObjectAsyncFails() throws Exception
+    {
+        RepositoryServer throwingServer = new MockRepositoryImpl( new ThrowingStorageProviderStub() );
+        try
+        {
+            throwingServer.deleteObjectAsync( predefinedId, logMessage ).get();
+            fail( "deleting a non-existing object succeeded" );
+        }
+        catch( ExecutionException ex )
+        {
+            assertTrue( ex.getCause() instanceof IOException );
+        }
+    }
+
+
+    @Test
+    public void storeObjectsReportsFailuresPerItem() throws Exception
+    {
+        RepositoryServer throwingServer = new MockRepositoryImpl( new ThrowingStorageProviderStub() );
+        List<byte[]> batch = Arrays.asList( data, data );
+        BatchResult<ObjectIdentifier> result = throwingServer.storeObjects( batch, ".", null, logMessage );
+        assertEquals( 2, result.size() );
+        assertEquals( 2, result.getFailureCount() );
+        assertTrue( result.getFailure( 1 ) instanceof IOException );
+    }
+
+
+    @Test
+    public void getObjectIsServedFromCacheUntilDeleted() throws Exception
+    {
+        new NonStrictExpectations(){{
+            mockStorage.get( testURI );returns( data );
+        }};
+        OffHeapCache cache = new OffHeapCache( 64 * 1024, 16 * 1024 );
+        RepositoryServer cachingServer = new MockRepositoryImpl( mockStorage, cache );
+
+        assertArrayEquals( data, cachingServer.getObject( predefinedId ).getBytes() );
+        assertArrayEquals( data, cachingServer.getObject( predefinedId ).getBytes() );
+        assertEquals( 1, cache.getHitCount() );
+
+        cachingServer.deleteObject( predefinedId, logMessage );
+        assertEquals( 0, cache.getCount() );
+    }
+
+
+    @Test
+    public void backfillIndexAddsExistingObjectsOnce() throws Exception
+    {
+        File directory = File.createTempFile( "backfill", "" );
+        directory.delete();
+        new File( directory, "contenttypes" ).mkdirs();
+        String path = directory.getAbsolutePath() + File.separator;
+        write( new File( directory, "object" ) );
+        write( new File( directory, "contenttypes" + File.separator + "object" ) );
+        write( new File( directory, ".journal" ) );
+        MetadataIndex index = new MetadataIndex( new File( directory, ".index" ) );
+        try
+        {
+            MockRepositoryImpl indexingServer = new MockRepositoryImpl( mockStorage, index );
+            indexingServer.excludeFromIndex( path + "contenttypes" + File.separator );
+
+            assertEquals( 1, indexingServer.backfillIndex( path ) );
+            assertNotNull( index.get( new URI( "file", null, path + "object", null ) ) );
+            assertNull( index.get( new URI( "file", null, path + "contenttypes" + File.separator + "object", null ) ) );
+            assertEquals( 0, indexingServer.backfillIndex( path ) );
+        }
+        finally
+        {
+            index.close();
+            delete( directory );
+        }
+    }
+
+
+    private static void write( File file ) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( data );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+
+    private static void delete( File file )
+    {
+        File[] files = file.listFiles();
+        if( null != files )
+        {
+            for( File child : files )
+            {
+                delete( child );
+            }
+        }
+        file.delete();
+    }
+
+
     ////////////////////////////////////////////////////////////////////////////
     //////////// Below follows mocks and stubs for the test suite //////////////
 
@@ -108,6 +233,16 @@ public class RepositoryServerTest {
             super( storage );
         }
 
+        MockRepositoryImpl( StorageProvider storage, OffHeapCache cache )
+        {
+            super( storage, null, cache );
+        }
+
+        MockRepositoryImpl( StorageProvider storage, MetadataIndex index )
+        {
+            super( storage, null, null, index );
+        }
+
         @Override
         protected void addObserver( RepositoryObserver observer )
         {
@@ -142,15 +277,60 @@ public class RepositoryServerTest {
         { throw new IOException(); }
 
 
+        @Override
+        public URI save( InputStream object, long length, String storagePath ) throws IOException
+        { throw new IOException(); }
+
+
+        @Override
+        public void save( InputStream object, long length, URI url, String storagePath ) throws IOException
+        { throw new IOException(); }
+
+
         @Override
         public byte[] get( URI identifier ) throws IOException
         { throw new IOException(); }
 
 
+        @Override
+        public InputStream getStream( URI identifier ) throws IOException
+        { throw new IOException(); }
+
+
+        @Override
+        public long getLength( URI identifier ) throws IOException
+        { throw new IOException(); }
+
+
+        @Override
+        public byte[] get( URI identifier, long offset, int length ) throws IOException
+        { throw new IOException(); }
+
+
         @Override
         public void delete( URI identifier ) throws IOException
         { throw new IOException(); }
 
+
+        @Override
+        public BatchResult<URI> saveAll( List<byte[]> objects, String storagePath ) throws IOException
+        { return BatchOperations.saveAll( this, objects, storagePath ); }
+
+
+        @Override
+        public BatchResult<Void> saveAll( List<byte[]> objects, List<URI> uris, String storagePath ) throws IOException
+        { return BatchOperations.saveAll( this, objects, uris, storagePath ); }
+
+
+        @Override
+        public BatchResult<byte[]> getAll( List<URI> identifiers ) throws IOException
+        { return BatchOperations.getAll( this, identifiers ); }
+
+
+        @Override
+        public BatchResult<Void> deleteAll( List<URI> identifiers ) throws IOException
+        { return BatchOperations.deleteAll( this, identifiers ); }
+
         @Override
         public void close()
         {}
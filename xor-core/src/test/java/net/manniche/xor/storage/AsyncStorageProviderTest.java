@@ -0,0 +1,163 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class AsyncStorageProviderTest {
+
+    private File directory;
+    private AsyncStorageProvider instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        directory = TemporaryFiles.newPath( "async" );
+        // a tiny queue makes the submitting thread run some of the saves itself
+        instance = new AsyncStorageProvider( new SegmentStorage( directory ), StorageExecutors.newIOExecutor( 2, 2 ) );
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        instance.close();
+        TemporaryFiles.delete( directory );
+    }
+
+
+    @Test
+    public void testPipelinedSavesAndGets() throws Exception
+    {
+        List<Future<URI>> saves = new ArrayList<Future<URI>>();
+        for( int i = 0; i < 50; i++ )
+        {
+            saves.add( instance.saveAsync( ( "object " + i ).getBytes(), "/objects/" ) );
+        }
+        List<Future<byte[]>> gets = new ArrayList<Future<byte[]>>();
+        for( Future<URI> save : saves )
+        {
+            gets.add( instance.getAsync( save.get() ) );
+        }
+        for( int i = 0; i < gets.size(); i++ )
+        {
+            assertEquals( "object " + i, new String( gets.get( i ).get() ) );
+        }
+    }
+
+
+    @Test
+    public void testListenersChainOperationsWithoutWaiting() throws Exception
+    {
+        final int count = 50;
+        final CountDownLatch done = new CountDownLatch( count );
+        final AtomicReferenceArray<String> read = new AtomicReferenceArray<String>( count );
+        for( int i = 0; i < count; i++ )
+        {
+            final int position = i;
+            final StorageFuture<URI> save = instance.saveAsync( ( "object " + i ).getBytes(), "/objects/" );
+            save.addListener( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        final StorageFuture<byte[]> get = instance.getAsync( save.get() );
+                        get.addListener( new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                try
+                                {
+                                    read.set( position, new String( get.get() ) );
+                                }
+                                catch( Exception ex )
+                                {
+                                    read.set( position, ex.toString() );
+                                }
+                                done.countDown();
+                            }
+                        } );
+                    }
+                    catch( Exception ex )
+                    {
+                        read.set( position, ex.toString() );
+                        done.countDown();
+                    }
+                }
+            } );
+        }
+        assertTrue( done.await( 10, TimeUnit.SECONDS ) );
+        for( int i = 0; i < count; i++ )
+        {
+            assertEquals( "object " + i, read.get( i ) );
+        }
+    }
+
+
+    @Test
+    public void testListenerAddedAfterCompletionRunsAtOnce() throws Exception
+    {
+        StorageFuture<URI> save = instance.saveAsync( "object".getBytes(), "/objects/" );
+        save.get();
+        final AtomicBoolean ran = new AtomicBoolean();
+        save.addListener( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                ran.set( true );
+            }
+        } );
+        assertTrue( ran.get() );
+    }
+
+
+    @Test
+    public void testFailureIsReportedThroughFuture() throws Exception
+    {
+        Future<Void> delete = instance.deleteAsync( new URI( "file:/objects/missing" ) );
+        try
+        {
+            delete.get();
+            fail( "deleting a missing object succeeded" );
+        }
+        catch( ExecutionException ex )
+        {
+            assertTrue( ex.getCause() instanceof FileNotFoundException );
+        }
+    }
+
+
+    @Test( expected=RejectedExecutionException.class )
+    public void testOperationsAreRefusedAfterClose() throws Exception
+    {
+        instance.close();
+        instance.saveAsync( "late".getBytes(), "/objects/" );
+    }
+}
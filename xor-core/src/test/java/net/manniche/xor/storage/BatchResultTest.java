@@ -0,0 +1,53 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class BatchResultTest {
+
+    @Test
+    public void testSuccessesAndFailures() throws Exception
+    {
+        BatchResult<String> instance = new BatchResult<String>( 3 );
+        instance.succeeded( 0, "first" );
+        instance.failed( 1, new FileNotFoundException( "second" ) );
+        instance.succeeded( 2, "third" );
+
+        assertEquals( 3, instance.size() );
+        assertEquals( 1, instance.getFailureCount() );
+        assertEquals( "first", instance.get( 0 ) );
+        assertNull( instance.getValue( 1 ) );
+        assertFalse( instance.isSuccess( 1 ) );
+        try
+        {
+            instance.get( 1 );
+            fail( "the failure of the item was not rethrown" );
+        }
+        catch( IOException expected )
+        {
+            assertEquals( "second", expected.getMessage() );
+        }
+    }
+
+
+    @Test
+    public void testRetriedItemIsNoLongerFailed()
+    {
+        BatchResult<String> instance = new BatchResult<String>( 1 );
+        instance.failed( 0, new IOException() );
+        instance.succeeded( 0, "retried" );
+        assertFalse( instance.hasFailures() );
+    }
+}
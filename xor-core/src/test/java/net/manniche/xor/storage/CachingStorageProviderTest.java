@@ -0,0 +1,182 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class CachingStorageProviderTest {
+
+    private File directory;
+    private SegmentStorage storage;
+    private CachingStorageProvider instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        directory = TemporaryFiles.newPath( "cache" );
+        storage = new SegmentStorage( directory );
+        instance = new CachingStorageProvider( storage, 8 * 1024 );
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        instance.close();
+        TemporaryFiles.delete( directory );
+    }
+
+
+    @Test
+    public void testRepeatedGetIsServedFromCache() throws Exception
+    {
+        URI uri = instance.save( "cached".getBytes(), "/objects/" );
+        assertEquals( "cached", new String( instance.get( uri ) ) );
+        assertEquals( "cached", new String( instance.get( uri ) ) );
+
+        assertEquals( 1, instance.getMissCount() );
+        assertEquals( 1, instance.getHitCount() );
+        assertEquals( 6, instance.getSize() );
+    }
+
+
+    @Test
+    public void testCachedObjectCannotBeModifiedByCaller() throws Exception
+    {
+        URI uri = instance.save( "cached".getBytes(), "/objects/" );
+        instance.get( uri )[ 0 ] = 'X';
+        instance.get( uri )[ 0 ] = 'X';
+        assertEquals( "cached", new String( instance.get( uri ) ) );
+    }
+
+
+    @Test
+    public void testSaveAndDeleteInvalidate() throws Exception
+    {
+        URI uri = instance.save( "first".getBytes(), "/objects/" );
+        instance.get( uri );
+        instance.save( "second".getBytes(), uri, "/objects/" );
+        assertEquals( "second", new String( instance.get( uri ) ) );
+
+        instance.deleteAll( Arrays.asList( uri ) );
+        assertEquals( 0, instance.getSize() );
+        try
+        {
+            instance.get( uri );
+            fail( "deleted object was served from the cache" );
+        }
+        catch( FileNotFoundException expected )
+        {
+        }
+    }
+
+
+    @Test
+    public void testWriteToAnotherObjectDuringReadDoesNotPreventCaching() throws Exception
+    {
+        URI read = storage.save( "read".getBytes(), "/objects/" );
+        URI written = storage.save( "written".getBytes(), "/objects/" );
+        useStorageWritingDuringReads( written );
+
+        instance.get( read );
+        instance.get( read );
+        assertEquals( 1, instance.getHitCount() );
+    }
+
+
+    @Test
+    public void testObjectWrittenDuringReadIsNotCached() throws Exception
+    {
+        URI uri = storage.save( "first".getBytes(), "/objects/" );
+        useStorageWritingDuringReads( uri );
+
+        assertEquals( "first", new String( instance.get( uri ) ) );
+        assertEquals( "written", new String( instance.get( uri ) ) );
+        assertEquals( 0, instance.getHitCount() );
+    }
+
+
+    /**
+     * Replaces the cache by one whose storage saves {@code written} through
+     * the cache while it reads an object, as a concurrent client would.
+     */
+    private void useStorageWritingDuringReads( final URI written )
+    {
+        instance = new CachingStorageProvider( new DelegatingStorageProvider( storage )
+        {
+            @Override
+            public byte[] get( URI identifier ) throws IOException
+            {
+                byte[] object = super.get( identifier );
+                instance.save( "written".getBytes(), written, "/objects/" );
+                return object;
+            }
+        }, 8 * 1024 );
+    }
+
+
+    @Test
+    public void testSizeIsBoundedByBytes() throws Exception
+    {
+        // later objects are more popular and displace the earlier ones
+        for( int i = 0; i < 40; i++ )
+        {
+            URI uri = instance.save( new byte[ 1000 ], "/objects/" );
+            for( int j = 0; j <= i / 8; j++ )
+            {
+                instance.get( uri );
+            }
+        }
+        assertTrue( instance.getSize() <= instance.getCapacity() );
+        assertTrue( instance.getEvictionCount() > 0 );
+    }
+
+
+    @Test
+    public void testPopularObjectsSurviveScan() throws Exception
+    {
+        URI popular = instance.save( new byte[ 1000 ], "/objects/" );
+        for( int i = 0; i < 10; i++ )
+        {
+            instance.get( popular );
+        }
+        List<URI> scan = new ArrayList<URI>();
+        for( int i = 0; i < 40; i++ )
+        {
+            scan.add( instance.save( new byte[ 1000 ], "/objects/" ) );
+        }
+        instance.getAll( scan );
+
+        long hits = instance.getHitCount();
+        instance.get( popular );
+        assertEquals( hits + 1, instance.getHitCount() );
+        assertTrue( instance.getRejectionCount() > 0 );
+    }
+
+
+    @Test
+    public void testLargeObjectsAreNotCached() throws Exception
+    {
+        URI uri = storage.save( new byte[ 2 * 1024 ], "/objects/" );
+        assertEquals( 2 * 1024, instance.get( uri ).length );
+        assertEquals( 0, instance.getSize() );
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Random;
+import net.manniche.xor.exceptions.CorruptObjectException;
+import net.manniche.xor.utils.RepositoryUtilities;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class ChecksummingStorageProviderTest {
+
+    private File directory;
+    private SegmentStorage storage;
+    private ChecksummingStorageProvider instance;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        directory = TemporaryFiles.newPath( "checksumming" );
+        storage = new SegmentStorage( directory );
+        instance = new ChecksummingStorageProvider( storage, 1.0 );
+        data = new byte[ 20000 ];
+        new Random( 42 ).nextBytes( data );
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        instance.close();
+        TemporaryFiles.delete( directory );
+    }
+
+
+    private URI corrupt( URI uri ) throws Exception
+    {
+        byte[] stored = storage.get( uri );
+        stored[ 1234 ] ^= 0x10;
+        storage.save( stored, uri, "/objects/" );
+        return uri;
+    }
+
+
+    @Test
+    public void testChecksumIsStoredAndStripped() throws Exception
+    {
+        URI uri = instance.save( data, "/objects/" );
+
+        assertEquals( data.length + ChecksummingStorageProvider.TRAILER_SIZE, storage.getLength( uri ) );
+        assertTrue( Arrays.equals( data, instance.get( uri ) ) );
+        assertEquals( data.length, instance.getLength( uri ) );
+        assertEquals( 1, instance.getVerifiedCount() );
+    }
+
+
+    @Test
+    public void testStreamedSaveAndRead() throws Exception
+    {
+        URI uri = instance.save( new ByteArrayInputStream( data ), data.length, "/objects/" );
+
+        InputStream in = instance.getStream( uri );
+        assertTrue( Arrays.equals( data, RepositoryUtilities.readFully( in, data.length ) ) );
+        assertEquals( -1, in.read() );
+        in.close();
+        assertTrue( Arrays.equals( data, instance.get( uri ) ) );
+    }
+
+
+    @Test( expected=CorruptObjectException.class )
+    public void testCorruptObjectIsNotServed() throws Exception
+    {
+        URI uri = corrupt( instance.save( data, "/objects/" ) );
+        instance.get( uri );
+    }
+
+
+    @Test
+    public void testCorruptStreamFailsAtEnd() throws Exception
+    {
+        URI uri = corrupt( instance.save( data, "/objects/" ) );
+        InputStream in = instance.getStream( uri );
+        try
+        {
+            RepositoryUtilities.readFully( in, data.length );
+            in.read();
+            fail( "Corrupt object was streamed to the end" );
+        }
+        catch( CorruptObjectException ex )
+        {
+            assertEquals( 1, instance.getCorruptCount() );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+
+    @Test
+    public void testUnsampledReadsAreNotVerified() throws Exception
+    {
+        instance = new ChecksummingStorageProvider( storage, 0.25 );
+        URI uri = corrupt( instance.save( data, "/objects/" ) );
+        int failures = 0;
+        for( int i = 0; i < 8; i++ )
+        {
+            try
+            {
+                instance.get( uri );
+            }
+            catch( CorruptObjectException ex )
+            {
+                failures++;
+            }
+        }
+        assertEquals( 2, failures );
+    }
+
+
+    @Test
+    public void testObjectsWithoutChecksumAreReturnedUnchanged() throws Exception
+    {
+        URI uri = storage.save( data, "/objects/" );
+
+        assertTrue( Arrays.equals( data, instance.get( uri ) ) );
+        assertEquals( data.length, instance.getLength( uri ) );
+        InputStream in = instance.getStream( uri );
+        assertTrue( Arrays.equals( data, RepositoryUtilities.readFully( in, data.length ) ) );
+        assertEquals( -1, in.read() );
+        in.close();
+    }
+
+
+    @Test
+    public void testObjectsWithoutChecksumAreCorruptInChecksummedStorage() throws Exception
+    {
+        instance = new ChecksummingStorageProvider( storage, 0.0, true );
+        URI missing = storage.save( data, "/objects/" );
+        byte[] sealed = ChecksummingStorageProvider.seal( data );
+        URI damaged = storage.save( Arrays.copyOf( sealed, sealed.length - 1 ), "/objects/" );
+
+        for( URI uri : Arrays.asList( missing, damaged ) )
+        {
+            try
+            {
+                instance.get( uri );
+                fail( "an object without a valid trailer was served" );
+            }
+            catch( CorruptObjectException expected )
+            {
+            }
+            InputStream in = instance.getStream( uri );
+            try
+            {
+                RepositoryUtilities.readFully( in, data.length );
+                in.read();
+                fail( "an object without a valid trailer was streamed to the end" );
+            }
+            catch( CorruptObjectException expected )
+            {
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        assertEquals( 4, instance.getCorruptCount() );
+    }
+
+
+    @Test
+    public void testMarkerIsWrittenForStorageWithoutObjects() throws Exception
+    {
+        File empty = TemporaryFiles.newPath( "checksummed" );
+        File legacy = TemporaryFiles.newPath( "legacy" );
+        try
+        {
+            new File( empty, ".journal" ).mkdirs();
+            assertTrue( ChecksummingStorageProvider.isChecksummed( Arrays.asList( empty ) ) );
+            assertTrue( new File( empty, ChecksummingStorageProvider.MARKER ).isFile() );
+            ChecksummingStorageProvider.unmarkChecksummed( Arrays.asList( empty ) );
+            assertFalse( new File( empty, ChecksummingStorageProvider.MARKER ).exists() );
+
+            new File( legacy, "ab" ).mkdirs();
+            new FileOutputStream( new File( legacy, "ab/object" ) ).close();
+            assertFalse( ChecksummingStorageProvider.isChecksummed( Arrays.asList( legacy ) ) );
+            assertFalse( new File( legacy, ChecksummingStorageProvider.MARKER ).exists() );
+        }
+        finally
+        {
+            TemporaryFiles.delete( empty );
+            TemporaryFiles.delete( legacy );
+        }
+    }
+
+
+    @Test
+    public void testRangeDoesNotIncludeTrailer() throws Exception
+    {
+        URI uri = instance.save( data, "/objects/" );
+
+        assertTrue( Arrays.equals( Arrays.copyOfRange( data, 100, 200 ), instance.get( uri, 100, 100 ) ) );
+        assertEquals( 10, instance.get( uri, data.length - 10, 100 ).length );
+    }
+}
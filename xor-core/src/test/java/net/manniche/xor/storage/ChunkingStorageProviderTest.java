@@ -0,0 +1,196 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Random;
+import net.manniche.xor.utils.RepositoryUtilities;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class ChunkingStorageProviderTest {
+
+    private static final String CHUNKS = "/chunks/";
+
+    private File directory;
+    private File indexFile;
+    private SegmentStorage storage;
+    private ChunkingStorageProvider instance;
+    private byte[] large;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        directory = TemporaryFiles.newPath( "chunking" );
+        indexFile = TemporaryFiles.newPath( "chunks", ".index" );
+        storage = new SegmentStorage( directory );
+        instance = new ChunkingStorageProvider( storage, CHUNKS, indexFile, 64 * 1024 );
+        large = new byte[ 2 * 1024 * 1024 ];
+        new Random( 42 ).nextBytes( large );
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        instance.close();
+        TemporaryFiles.delete( directory );
+        indexFile.delete();
+    }
+
+
+    @Test
+    public void testLargeObjectIsStoredAsChunks() throws Exception
+    {
+        URI uri = instance.save( large, "/objects/" );
+
+        assertTrue( instance.getChunkCount() > 1 );
+        assertTrue( storage.getLength( uri ) < 4096 );
+        assertEquals( large.length, instance.getLength( uri ) );
+        assertTrue( Arrays.equals( large, instance.get( uri ) ) );
+    }
+
+
+    @Test
+    public void testSmallObjectIsPassedThrough() throws Exception
+    {
+        byte[] small = "small".getBytes();
+        URI uri = instance.save( small, "/objects/" );
+
+        assertEquals( 0, instance.getChunkCount() );
+        assertTrue( Arrays.equals( small, storage.get( uri ) ) );
+        assertTrue( Arrays.equals( small, instance.get( uri ) ) );
+    }
+
+
+    @Test
+    public void testSmallObjectLookingLikeManifestIsKeptApart() throws Exception
+    {
+        URI chunked = instance.save( large, "/objects/" );
+        int chunks = instance.getChunkCount();
+        // the manifest of another object, saved as a small object of its own
+        byte[] manifest = storage.get( chunked );
+
+        URI uri = instance.save( manifest, "/objects/" );
+        assertTrue( Arrays.equals( manifest, instance.get( uri ) ) );
+        assertEquals( manifest.length, instance.getLength( uri ) );
+        assertTrue( Arrays.equals( Arrays.copyOfRange( manifest, 2, 12 ), instance.get( uri, 2, 10 ) ) );
+        InputStream in = instance.getStream( uri );
+        assertTrue( Arrays.equals( manifest, RepositoryUtilities.readFully( in, manifest.length ) ) );
+        assertEquals( -1, in.read() );
+        in.close();
+
+        URI streamed = instance.save( new ByteArrayInputStream( manifest ), manifest.length, "/objects/" );
+        assertTrue( Arrays.equals( manifest, instance.get( streamed ) ) );
+
+        instance.save( "small".getBytes(), uri, "/objects/" );
+        instance.delete( streamed );
+        assertEquals( chunks, instance.getChunkCount() );
+        assertTrue( Arrays.equals( large, instance.get( chunked ) ) );
+    }
+
+
+    @Test
+    public void testModifiedVersionSharesChunks() throws Exception
+    {
+        instance.save( large, "/objects/" );
+        int chunks = instance.getChunkCount();
+
+        byte[] modified = new byte[ large.length + 10 ];
+        System.arraycopy( large, 0, modified, 0, 1000 );
+        System.arraycopy( large, 1000, modified, 1010, large.length - 1000 );
+        URI uri = instance.save( modified, "/objects/" );
+
+        assertTrue( instance.getChunkCount() - chunks <= 2 );
+        assertTrue( Arrays.equals( modified, instance.get( uri ) ) );
+    }
+
+
+    @Test
+    public void testChunkedObjectIsStreamed() throws Exception
+    {
+        URI uri = instance.save( large, "/objects/" );
+
+        InputStream in = instance.getStream( uri );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[ 5000 ];
+        int count;
+        while( -1 != ( count = in.read( buffer ) ) )
+        {
+            out.write( buffer, 0, count );
+        }
+        in.close();
+
+        assertTrue( Arrays.equals( large, out.toByteArray() ) );
+    }
+
+
+    @Test
+    public void testRangeAcrossChunks() throws Exception
+    {
+        URI uri = instance.save( large, "/objects/" );
+
+        int offset = 100 * 1024 - 7;
+        int length = 300 * 1024;
+        assertTrue( Arrays.equals( Arrays.copyOfRange( large, offset, offset + length ), instance.get( uri, offset, length ) ) );
+        assertTrue( Arrays.equals( Arrays.copyOfRange( large, large.length - 5, large.length ), instance.get( uri, large.length - 5, 100 ) ) );
+    }
+
+
+    @Test
+    public void testChunksAreDeletedWithLastReference() throws Exception
+    {
+        URI first = instance.save( large, "/objects/" );
+        URI second = instance.save( large, "/objects/" );
+        int chunks = instance.getChunkCount();
+
+        instance.delete( first );
+        assertEquals( chunks, instance.getChunkCount() );
+        assertTrue( Arrays.equals( large, instance.get( second ) ) );
+
+        instance.delete( second );
+        assertEquals( 0, instance.getChunkCount() );
+    }
+
+
+    @Test
+    public void testOverwriteReleasesPreviousChunks() throws Exception
+    {
+        URI uri = instance.save( large, "/objects/" );
+        instance.save( "small".getBytes(), uri, "/objects/" );
+
+        assertEquals( 0, instance.getChunkCount() );
+        assertTrue( Arrays.equals( "small".getBytes(), instance.get( uri ) ) );
+    }
+
+
+    @Test
+    public void testReferenceCountsSurviveReopen() throws Exception
+    {
+        URI uri = instance.save( large, "/objects/" );
+        int chunks = instance.getChunkCount();
+        instance.close();
+        storage = new SegmentStorage( directory );
+        instance = new ChunkingStorageProvider( storage, CHUNKS, indexFile, 64 * 1024 );
+
+        assertEquals( chunks, instance.getChunkCount() );
+        assertTrue( Arrays.equals( large, instance.get( uri ) ) );
+        instance.delete( uri );
+        assertEquals( 0, instance.getChunkCount() );
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import net.manniche.xor.types.ObjectRepositoryContentType;
+import net.manniche.xor.utils.RepositoryUtilities;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class CompressingStorageProviderTest {
+
+    private static final ObjectRepositoryContentType DUBLIN_CORE = new ObjectRepositoryContentType()
+    {
+        @Override
+        public String toString()
+        {
+            return "DUBLIN_CORE";
+        }
+    };
+
+    private File directory;
+    private SegmentStorage storage;
+    private CompressingStorageProvider instance;
+    private byte[] xml;
+    private byte[] random;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        directory = TemporaryFiles.newPath( "compressing" );
+        storage = new SegmentStorage( directory );
+        instance = new CompressingStorageProvider( storage, Collections.singleton( "DUBLIN_CORE" ) );
+
+        StringBuilder record = new StringBuilder( "<dc>" );
+        for( int i = 0; i < 200; i++ )
+        {
+            record.append( "<dc:title>Title number " ).append( i ).append( "</dc:title>" );
+        }
+        xml = record.append( "</dc>" ).toString().getBytes();
+        random = new byte[ 16 * 1024 ];
+        new Random( 42 ).nextBytes( random );
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        instance.close();
+        TemporaryFiles.delete( directory );
+    }
+
+
+    @Test
+    public void testDublinCoreIsCompressed() throws Exception
+    {
+        URI uri = instance.save( xml, "/objects/", DUBLIN_CORE );
+        assertTrue( storage.get( uri ).length < xml.length / 4 );
+        assertTrue( Arrays.equals( xml, instance.get( uri ) ) );
+        assertEquals( xml.length, instance.getLength( uri ) );
+    }
+
+
+    @Test
+    public void testIncompressibleObjectIsStoredRaw() throws Exception
+    {
+        URI uri = instance.save( random, "/objects/" );
+        assertEquals( CompressingStorageProvider.HEADER_SIZE + random.length, storage.get( uri ).length );
+        assertTrue( Arrays.equals( random, instance.get( uri ) ) );
+    }
+
+
+    @Test
+    public void testCompressedFormatIsNotSampled() throws Exception
+    {
+        byte[] gzip = new byte[ 4096 ];
+        gzip[ 0 ] = 0x1f;
+        gzip[ 1 ] = (byte) 0x8b;
+        URI uri = instance.save( gzip, "/objects/" );
+        assertEquals( CompressingStorageProvider.HEADER_SIZE + gzip.length, storage.get( uri ).length );
+    }
+
+
+    @Test
+    public void testRanges() throws Exception
+    {
+        URI compressed = instance.save( xml, "/objects/", DUBLIN_CORE );
+        URI raw = instance.save( random, "/objects/" );
+        URI plain = storage.save( xml, "/objects/" );
+
+        assertTrue( Arrays.equals( Arrays.copyOfRange( xml, 100, 300 ), instance.get( compressed, 100, 200 ) ) );
+        assertTrue( Arrays.equals( Arrays.copyOfRange( random, 100, 300 ), instance.get( raw, 100, 200 ) ) );
+        assertTrue( Arrays.equals( Arrays.copyOfRange( random, random.length - 50, random.length ), instance.get( raw, random.length - 50, 200 ) ) );
+        assertTrue( Arrays.equals( Arrays.copyOfRange( xml, 100, 300 ), instance.get( plain, 100, 200 ) ) );
+    }
+
+
+    @Test
+    public void testObjectsWithoutHeaderAreReturnedUnchanged() throws Exception
+    {
+        URI uri = storage.save( xml, "/objects/" );
+        assertTrue( Arrays.equals( xml, instance.get( uri ) ) );
+        assertEquals( xml.length, instance.getLength( uri ) );
+    }
+
+
+    @Test
+    public void testDamagedLengthIsNotAllocated() throws Exception
+    {
+        URI uri = instance.save( xml, "/objects/", DUBLIN_CORE );
+        byte[] stored = storage.get( uri );
+        ByteBuffer.wrap( stored ).putLong( CompressingStorageProvider.HEADER_SIZE - 8, Integer.MAX_VALUE );
+        storage.save( stored, uri, "/objects/" );
+        try
+        {
+            instance.get( uri );
+            fail( "a damaged length was allocated" );
+        }
+        catch( IOException expected )
+        {
+        }
+    }
+
+
+    @Test
+    public void testStreams() throws Exception
+    {
+        URI streamed = instance.save( new ByteArrayInputStream( random ), random.length, "/objects/" );
+        assertEquals( random.length, instance.getLength( streamed ) );
+        assertTrue( Arrays.equals( random, instance.get( streamed ) ) );
+
+        URI compressed = instance.save( xml, "/objects/" );
+        InputStream stream = instance.getStream( compressed );
+        try
+        {
+            assertTrue( Arrays.equals( xml, RepositoryUtilities.readFully( stream, xml.length ) ) );
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+}
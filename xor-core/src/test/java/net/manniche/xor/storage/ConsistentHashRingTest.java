@@ -0,0 +1,66 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class ConsistentHashRingTest {
+
+    private static final int KEYS = 30000;
+
+    @Test
+    public void testKeysAreSpreadEvenly()
+    {
+        ConsistentHashRing ring = new ConsistentHashRing( Arrays.asList( "/a/", "/b/", "/c/" ), 128 );
+        int[] counts = new int[ 3 ];
+        for( int i = 0; i < KEYS; i++ )
+        {
+            counts[ ring.owner( "object" + i ) ]++;
+        }
+        for( int count : counts )
+        {
+            assertTrue( Arrays.toString( counts ), count > KEYS / 3 * 0.8 && count < KEYS / 3 * 1.2 );
+        }
+    }
+
+
+    @Test
+    public void testAddedNodeOnlyTakesKeys()
+    {
+        ConsistentHashRing before = new ConsistentHashRing( Arrays.asList( "/a/", "/b/", "/c/" ), 128 );
+        ConsistentHashRing after = new ConsistentHashRing( Arrays.asList( "/a/", "/b/", "/c/", "/d/" ), 128 );
+        int moved = 0;
+        for( int i = 0; i < KEYS; i++ )
+        {
+            String key = "object" + i;
+            if( ! before.node( key ).equals( after.node( key ) ) )
+            {
+                assertEquals( "/d/", after.node( key ) );
+                moved++;
+            }
+        }
+        assertTrue( String.valueOf( moved ), moved > KEYS / 4 * 0.8 && moved < KEYS / 4 * 1.2 );
+    }
+
+
+    @Test
+    public void testOwnerDoesNotDependOnNodeOrder()
+    {
+        ConsistentHashRing ring = new ConsistentHashRing( Arrays.asList( "/a/", "/b/" ), 16 );
+        ConsistentHashRing reversed = new ConsistentHashRing( Arrays.asList( "/b/", "/a/" ), 16 );
+        for( int i = 0; i < 1000; i++ )
+        {
+            assertEquals( ring.node( "object" + i ), reversed.node( "object" + i ) );
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class CountingBloomFilterTest {
+
+    @Test
+    public void testNoFalseNegatives()
+    {
+        CountingBloomFilter instance = new CountingBloomFilter( 1000 );
+        for( int i = 0; i < 1000; i++ )
+        {
+            instance.add( "object" + i );
+        }
+        for( int i = 0; i < 1000; i++ )
+        {
+            assertTrue( instance.mightContain( "object" + i ) );
+        }
+    }
+
+
+    @Test
+    public void testFalsePositiveRate()
+    {
+        CountingBloomFilter instance = new CountingBloomFilter( 1000 );
+        for( int i = 0; i < 1000; i++ )
+        {
+            instance.add( "object" + i );
+        }
+        int falsePositives = 0;
+        for( int i = 0; i < 10000; i++ )
+        {
+            if( instance.mightContain( "missing" + i ) )
+            {
+                falsePositives++;
+            }
+        }
+        assertTrue( "false positives: " + falsePositives, falsePositives < 300 );
+    }
+
+
+    @Test
+    public void testRemove()
+    {
+        CountingBloomFilter instance = new CountingBloomFilter( 100 );
+        instance.add( "kept" );
+        instance.add( "removed" );
+        instance.remove( "removed" );
+
+        assertTrue( instance.mightContain( "kept" ) );
+        assertFalse( instance.mightContain( "removed" ) );
+    }
+
+
+    @Test
+    public void testKeyAddedTwiceSurvivesOneRemove()
+    {
+        CountingBloomFilter instance = new CountingBloomFilter( 100 );
+        instance.add( "twice" );
+        instance.add( "twice" );
+        instance.remove( "twice" );
+        assertTrue( instance.mightContain( "twice" ) );
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import net.manniche.xor.utils.RepositoryUtilities;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class ErasureCodingStorageProviderTest {
+
+    private File directory;
+    private SegmentStorage storage;
+    private LossyStorage lossy;
+    private ErasureCodingStorageProvider instance;
+
+    /**
+     * Records the shards written and loses the shards in some paths.
+     */
+    private static class LossyStorage extends DelegatingStorageProvider
+    {
+        private final List<URI> shards = Collections.synchronizedList( new ArrayList<URI>() );
+        private volatile List<String> lost = Collections.emptyList();
+
+        LossyStorage( StorageProvider delegate )
+        {
+            super( delegate );
+        }
+
+
+        private void check( URI uri ) throws IOException
+        {
+            for( String path : this.lost )
+            {
+                if( uri.getPath().startsWith( path ) )
+                {
+                    throw new FileNotFoundException( String.format( "%s is lost", uri ) );
+                }
+            }
+        }
+
+
+        @Override
+        public void save( InputStream object, long length, URI uri, String storagePath ) throws IOException
+        {
+            if( uri.getPath().startsWith( "/s" ) )
+            {
+                this.shards.add( uri );
+            }
+            super.save( object, length, uri, storagePath );
+        }
+
+
+        @Override
+        public InputStream getStream( URI identifier ) throws IOException
+        {
+            this.check( identifier );
+            return super.getStream( identifier );
+        }
+
+
+        @Override
+        public byte[] get( URI identifier, long offset, int length ) throws IOException
+        {
+            this.check( identifier );
+            return super.get( identifier, offset, length );
+        }
+    }
+
+
+    @Before
+    public void setUp() throws Exception
+    {
+        directory = TemporaryFiles.newPath( "erasure" );
+        storage = new SegmentStorage( directory );
+        lossy = new LossyStorage( storage );
+        List<String> paths = new ArrayList<String>();
+        for( int i = 0; i < 6; i++ )
+        {
+            paths.add( "/s" + i + "/" );
+        }
+        instance = new ErasureCodingStorageProvider( lossy, "/a/", paths, 4, 2, 100, 1000 );
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        instance.close();
+        TemporaryFiles.delete( directory );
+    }
+
+
+    private static byte[] object( int length )
+    {
+        byte[] object = new byte[ length ];
+        new Random( length ).nextBytes( object );
+        return object;
+    }
+
+
+    @Test
+    public void testLargeObjectIsStoredAsShards() throws Exception
+    {
+        byte[] object = object( 2345 );
+        URI uri = instance.save( object, "/a/" );
+
+        assertEquals( 6, lossy.shards.size() );
+        for( URI shard : lossy.shards )
+        {
+            // 2345 bytes are 6 stripes of 4 cells of 100 bytes
+            assertEquals( 600, storage.getLength( shard ) );
+        }
+        assertTrue( storage.getLength( uri ) < 100 );
+        assertTrue( Arrays.equals( object, instance.get( uri ) ) );
+        assertTrue( Arrays.equals( object, RepositoryUtilities.readFully( instance.getStream( uri ), 2345 ) ) );
+        assertEquals( 2345, instance.getLength( uri ) );
+    }
+
+
+    @Test
+    public void testSmallObjectIsPassedThrough() throws Exception
+    {
+        byte[] object = object( 999 );
+        URI uri = instance.save( object, "/a/" );
+
+        assertTrue( lossy.shards.isEmpty() );
+        assertTrue( Arrays.equals( object, storage.get( uri ) ) );
+        assertTrue( Arrays.equals( object, instance.get( uri ) ) );
+    }
+
+
+    @Test
+    public void testObjectOutsideRootIsPassedThrough() throws Exception
+    {
+        byte[] object = object( 2000 );
+        URI uri = instance.save( new ByteArrayInputStream( object ), 2000, "/b/" );
+
+        assertTrue( lossy.shards.isEmpty() );
+        assertTrue( Arrays.equals( object, storage.get( uri ) ) );
+    }
+
+
+    @Test
+    public void testUncodedObjectLookingLikeManifestIsKeptApart() throws Exception
+    {
+        byte[] object = object( 3000 );
+        URI coded = instance.save( object, "/a/" );
+        // the manifest of another object, saved as an uncoded object of its own
+        byte[] manifest = storage.get( coded );
+
+        URI uri = instance.save( manifest, "/a/" );
+        assertTrue( Arrays.equals( manifest, instance.get( uri ) ) );
+        assertEquals( manifest.length, instance.getLength( uri ) );
+        assertTrue( Arrays.equals( Arrays.copyOfRange( manifest, 3, 13 ), instance.get( uri, 3, 10 ) ) );
+        InputStream in = instance.getStream( uri );
+        assertTrue( Arrays.equals( manifest, RepositoryUtilities.readFully( in, manifest.length ) ) );
+        assertEquals( -1, in.read() );
+        in.close();
+
+        URI outside = instance.save( new ByteArrayInputStream( manifest ), manifest.length, "/b/" );
+        assertTrue( Arrays.equals( manifest, instance.get( outside ) ) );
+
+        instance.save( object( 10 ), uri, "/a/" );
+        instance.delete( outside );
+        for( URI shard : lossy.shards )
+        {
+            // 3000 bytes are 8 stripes of 4 cells of 100 bytes
+            assertEquals( 800, storage.getLength( shard ) );
+        }
+        assertTrue( Arrays.equals( object, instance.get( coded ) ) );
+    }
+
+
+    @Test
+    public void testObjectIsReconstructedWithoutTwoShards() throws Exception
+    {
+        byte[] object = object( 5000 );
+        URI uri = instance.save( new ByteArrayInputStream( object ), 5000, "/a/" );
+        lossy.lost = Arrays.asList( "/s1/", "/s4/" );
+
+        assertTrue( Arrays.equals( object, instance.get( uri ) ) );
+        assertTrue( Arrays.equals( Arrays.copyOfRange( object, 150, 1450 ), instance.get( uri, 150, 1300 ) ) );
+        assertTrue( Arrays.equals( Arrays.copyOfRange( object, 4990, 5000 ), instance.get( uri, 4990, 100 ) ) );
+    }
+
+
+    @Test
+    public void testObjectIsReadWithoutItsManifest() throws Exception
+    {
+        byte[] object = object( 5000 );
+        URI uri = instance.save( object, "/a/" );
+        storage.delete( uri );
+        lossy.lost = Arrays.asList( "/s0/", "/s3/" );
+
+        assertTrue( Arrays.equals( object, instance.get( uri ) ) );
+        assertEquals( 5000, instance.getLength( uri ) );
+        assertTrue( Arrays.equals( Arrays.copyOfRange( object, 150, 1450 ), instance.get( uri, 150, 1300 ) ) );
+
+        lossy.lost = Collections.emptyList();
+        instance.delete( uri );
+        for( URI shard : lossy.shards )
+        {
+            assertMissing( shard );
+        }
+        try
+        {
+            instance.get( uri );
+            fail( "The deleted object was read from a copy of its manifest" );
+        }
+        catch( FileNotFoundException ex )
+        {
+            // expected
+        }
+    }
+
+
+    @Test( expected=IOException.class )
+    public void testObjectIsLostWithoutThreeShards() throws Exception
+    {
+        URI uri = instance.save( object( 5000 ), "/a/" );
+        lossy.lost = Arrays.asList( "/s0/", "/s2/", "/s5/" );
+
+        instance.get( uri );
+    }
+
+
+    @Test
+    public void testReplacedAndDeletedShardsAreRemoved() throws Exception
+    {
+        URI uri = instance.save( object( 3000 ), "/a/" );
+        List<URI> first = new ArrayList<URI>( lossy.shards );
+        instance.save( object( 4000 ), uri, "/a/" );
+        assertTrue( Arrays.equals( object( 4000 ), instance.get( uri ) ) );
+        for( URI shard : first )
+        {
+            assertMissing( shard );
+        }
+
+        instance.delete( uri );
+        for( URI shard : lossy.shards )
+        {
+            assertMissing( shard );
+        }
+        assertMissing( uri );
+    }
+
+
+    private void assertMissing( URI uri ) throws IOException
+    {
+        try
+        {
+            storage.getLength( uri );
+            fail( String.format( "%s was not deleted", uri ) );
+        }
+        catch( FileNotFoundException ex )
+        {
+            // expected
+        }
+    }
+
+
+    @Test
+    public void testFailedShardWriteFailsTheSave() throws Exception
+    {
+        instance.close();
+        instance = new ErasureCodingStorageProvider( new DelegatingStorageProvider( lossy )
+        {
+            @Override
+            public void save( InputStream object, long length, URI uri, String storagePath ) throws IOException
+            {
+                if( uri.getPath().startsWith( "/s3/" ) )
+                {
+                    throw new IOException( "Disk failure" );
+                }
+                super.save( object, length, uri, storagePath );
+            }
+        }, "/a/", Arrays.asList( "/s0/", "/s1/", "/s2/", "/s3/", "/s4/", "/s5/" ), 4, 2, 100, 1000 );
+
+        try
+        {
+            instance.save( object( 20000 ), "/a/" );
+            fail( "The save succeeded" );
+        }
+        catch( IOException ex )
+        {
+            assertEquals( "Disk failure", ex.getMessage() );
+        }
+        for( URI shard : lossy.shards )
+        {
+            assertMissing( shard );
+        }
+    }
+}
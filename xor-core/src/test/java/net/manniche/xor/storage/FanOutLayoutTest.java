@@ -0,0 +1,104 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.File;
+import java.net.URI;
+import net.manniche.xor.utils.RepositoryUtilities;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class FanOutLayoutTest {
+
+    private File root;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        root = File.createTempFile( "fanout", "" );
+        root.delete();
+        root.mkdirs();
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        deleteRecursively( root );
+    }
+
+
+    @Test
+    public void testFlatLayoutHasNoSubdirectories()
+    {
+        assertEquals( "", FanOutLayout.FLAT.getRelativeDirectory( "12345" ) );
+        assertEquals( new File( root, "12345" ), FanOutLayout.FLAT.resolve( root, "12345" ) );
+    }
+
+
+    @Test
+    public void testTwoLevelsOf256Directories()
+    {
+        FanOutLayout instance = new FanOutLayout( 2, 256 );
+        String directory = instance.getRelativeDirectory( "12345" );
+        assertTrue( directory, directory.matches( "[0-9a-f]{2}/[0-9a-f]{2}/" ) );
+        assertEquals( directory, instance.getRelativeDirectory( "12345" ) );
+    }
+
+
+    @Test( expected=IllegalArgumentException.class )
+    public void testWidthMustBePowerOfTwo()
+    {
+        new FanOutLayout( 2, 100 );
+    }
+
+
+    @Test
+    public void testGenerateURIResolvesThroughLayout() throws Exception
+    {
+        FanOutLayout instance = new FanOutLayout( 2, 16 );
+        String path = root.getAbsolutePath() + File.separator;
+        URI uri = RepositoryUtilities.generateURI( "file", path, "-12345", instance );
+        assertEquals( instance.resolve( root, "12345" ), new File( uri ) );
+    }
+
+
+    @Test
+    public void testMigratedObjectsAreLocatedFromBothLocations() throws Exception
+    {
+        FanOutLayout instance = new FanOutLayout( 2, 256 );
+        File flat = new File( root, "12345" );
+        File sharded = instance.resolve( root, "12345" );
+        flat.createNewFile();
+
+        assertEquals( flat, instance.locate( sharded ) );
+        assertEquals( 1, new FanOutMigration( root, instance ).migrate() );
+        assertFalse( flat.exists() );
+        assertTrue( sharded.isFile() );
+        assertEquals( sharded, instance.locate( flat ) );
+    }
+
+
+    private static void deleteRecursively( File file )
+    {
+        File[] children = file.listFiles();
+        if( null != children )
+        {
+            for( File child : children )
+            {
+                deleteRecursively( child );
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class IORateLimiterTest {
+
+    @Test
+    public void testBurstWithinBudgetDoesNotWait() throws Exception
+    {
+        IORateLimiter instance = new IORateLimiter( 1024 * 1024 );
+        long start = System.currentTimeMillis();
+        instance.acquire( 512 * 1024 );
+        assertTrue( System.currentTimeMillis() - start < 100 );
+    }
+
+
+    @Test
+    public void testExceedingBudgetWaits() throws Exception
+    {
+        IORateLimiter instance = new IORateLimiter( 10 * 1024 );
+        long start = System.currentTimeMillis();
+        instance.acquire( 10 * 1024 );
+        instance.acquire( 2 * 1024 );
+        assertTrue( System.currentTimeMillis() - start >= 150 );
+    }
+
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testBudgetMustBePositive()
+    {
+        new IORateLimiter( 0 );
+    }
+}
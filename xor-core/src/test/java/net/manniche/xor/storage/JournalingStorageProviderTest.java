@@ -0,0 +1,215 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class JournalingStorageProviderTest {
+
+    private File file;
+    private MemoryStorage storage;
+    private JournalingStorageProvider instance;
+
+    /**
+     * Keeps objects in memory; objects that have not been synced are lost
+     * when the storage "crashes".
+     */
+    private static class MemoryStorage extends AbstractStorageProvider implements SyncableStorageProvider
+    {
+        Map<URI, byte[]> synced = new HashMap<URI, byte[]>();
+        Map<URI, byte[]> objects = new HashMap<URI, byte[]>();
+        int next;
+
+        MemoryStorage crash()
+        {
+            MemoryStorage restarted = new MemoryStorage();
+            restarted.objects.putAll( this.synced );
+            restarted.synced.putAll( this.synced );
+            return restarted;
+        }
+
+        public URI save( byte[] object, String storagePath ) throws IOException
+        {
+            URI uri = URI.create( "mem:" + storagePath + next++ );
+            this.save( object, uri, storagePath );
+            return uri;
+        }
+
+        public void save( byte[] object, URI uri, String storagePath ) throws IOException
+        {
+            this.objects.put( uri, object );
+        }
+
+        public byte[] get( URI identifier ) throws IOException
+        {
+            if( ! this.objects.containsKey( identifier ) )
+            {
+                throw new FileNotFoundException( identifier.toString() );
+            }
+            return this.objects.get( identifier );
+        }
+
+        public void delete( URI identifier ) throws IOException
+        {
+            this.get( identifier );
+            this.objects.remove( identifier );
+        }
+
+        public void sync( URI identifier ) throws IOException
+        {
+            this.synced.put( identifier, this.get( identifier ) );
+        }
+
+        public void sync() throws IOException
+        {
+            this.synced.clear();
+            this.synced.putAll( this.objects );
+        }
+
+        public void setSyncTracking( boolean enabled )
+        {
+        }
+
+        public String getScheme()
+        {
+            return "mem";
+        }
+
+        public void close()
+        {
+        }
+    }
+
+
+    @Before
+    public void setUp() throws Exception
+    {
+        file = File.createTempFile( "journal", ".log" );
+        storage = new MemoryStorage();
+        instance = new JournalingStorageProvider( storage, new WriteAheadJournal( file, 0 ), Durability.BATCHED, 1024 * 1024 );
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        file.delete();
+    }
+
+
+    private void crashAndRestart() throws IOException
+    {
+        storage = storage.crash();
+        instance = new JournalingStorageProvider( storage, new WriteAheadJournal( file, 0 ), Durability.BATCHED, 1024 * 1024 );
+    }
+
+
+    @Test
+    public void testAcknowledgedWritesSurviveCrash() throws Exception
+    {
+        URI generated = instance.save( "generated".getBytes(), "/objects/" );
+        URI given = new URI( "mem:/objects/given" );
+        instance.save( "old".getBytes(), given, "/objects/" );
+        instance.save( "new".getBytes(), given, "/objects/", Durability.PER_WRITE );
+        assertTrue( storage.synced.isEmpty() );
+
+        crashAndRestart();
+        assertEquals( "generated", new String( instance.get( generated ) ) );
+        assertEquals( "new", new String( instance.get( given ) ) );
+        assertEquals( 0, file.length() );
+    }
+
+
+    @Test
+    public void testDeletesAreReplayed() throws Exception
+    {
+        URI uri = new URI( "mem:/objects/deleted" );
+        instance.save( "data".getBytes(), uri, "/objects/" );
+        instance.checkpoint();
+        instance.delete( uri );
+
+        crashAndRestart();
+        try
+        {
+            instance.get( uri );
+            fail( "deleted object was resurrected" );
+        }
+        catch( FileNotFoundException expected )
+        {
+        }
+    }
+
+
+    @Test
+    public void testStreamedSaveIsNotOverwrittenByReplay() throws Exception
+    {
+        URI uri = new URI( "mem:/objects/streamed" );
+        instance.save( "journaled".getBytes(), uri, "/objects/" );
+        instance.save( new ByteArrayInputStream( "streamed".getBytes() ), 8, uri, "/objects/" );
+
+        crashAndRestart();
+        assertEquals( "streamed", new String( instance.get( uri ) ) );
+    }
+
+
+    @Test
+    public void testStreamedSaveIsCommitted() throws Exception
+    {
+        instance = new JournalingStorageProvider( storage, new WriteAheadJournal( file, 0 ), Durability.PER_WRITE, 1 );
+        URI uri = new URI( "mem:/objects/streamed" );
+        instance.save( new ByteArrayInputStream( "streamed".getBytes() ), 8, uri, "/objects/" );
+        URI generated = instance.save( new ByteArrayInputStream( "generated".getBytes() ), 9, "/objects/" );
+
+        // committing the marker checkpoints the full journal
+        assertEquals( 0, file.length() );
+        assertTrue( storage.synced.containsKey( uri ) );
+        assertTrue( storage.synced.containsKey( generated ) );
+    }
+
+
+    @Test
+    public void testBatchSurvivesCrash() throws Exception
+    {
+        URI given = new URI( "mem:/objects/given" );
+        BatchResult<URI> generated = instance.saveAll( Arrays.asList( "one".getBytes(), "two".getBytes() ), "/objects/" );
+        instance.saveAll( Arrays.asList( "three".getBytes() ), Arrays.asList( given ), "/objects/" );
+        BatchResult<Void> deleted = instance.deleteAll( Arrays.asList( generated.get( 0 ), new URI( "mem:/objects/missing" ) ) );
+        assertTrue( deleted.isSuccess( 0 ) );
+        assertFalse( deleted.isSuccess( 1 ) );
+
+        crashAndRestart();
+        BatchResult<byte[]> result = instance.getAll( Arrays.asList( generated.get( 0 ), generated.get( 1 ), given ) );
+        assertFalse( result.isSuccess( 0 ) );
+        assertEquals( "two", new String( result.get( 1 ) ) );
+        assertEquals( "three", new String( result.get( 2 ) ) );
+    }
+
+
+    @Test
+    public void testCheckpointWhenJournalIsFull() throws Exception
+    {
+        instance = new JournalingStorageProvider( storage, new WriteAheadJournal( file, 0 ), Durability.NONE, 1024 );
+        URI uri = instance.save( new byte[ 2048 ], "/objects/" );
+        assertEquals( 0, file.length() );
+        assertTrue( storage.synced.containsKey( uri ) );
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class LogStructuredStoreTest {
+
+    private File directory;
+    private LogStructuredStore instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        directory = File.createTempFile( "lsm", "" );
+        directory.delete();
+        instance = new LogStructuredStore( directory, 1024 * 1024, 4, Durability.NONE );
+    }
+
+
+    @After
+    public void tearDown() throws Exception
+    {
+        instance.close();
+        for( File file : directory.listFiles() )
+        {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+
+    @Test
+    public void testNewerValuesShadowOlderRuns() throws Exception
+    {
+        instance.put( "a", "first".getBytes() );
+        instance.put( "b", "kept".getBytes() );
+        instance.flush();
+        instance.put( "a", "second".getBytes() );
+        instance.delete( "b" );
+        instance.flush();
+        instance.put( "c", new byte[ 0 ] );
+
+        assertEquals( 2, instance.getRunCount() );
+        assertEquals( "second", new String( instance.get( "a" ) ) );
+        assertNull( instance.get( "b" ) );
+        assertEquals( 0, instance.get( "c" ).length );
+        assertNull( instance.get( "d" ) );
+    }
+
+
+    @Test
+    public void testScansMergeMemtableAndRuns() throws Exception
+    {
+        for( int i = 0; i < 100; i++ )
+        {
+            instance.put( String.format( "key%03d", i ), String.valueOf( i ).getBytes() );
+            if( 0 == i % 30 )
+            {
+                instance.flush();
+            }
+        }
+        instance.delete( "key050" );
+        instance.put( "key051", "new".getBytes() );
+
+        SortedMap<String, byte[]> range = instance.scan( "key045", "key055" );
+        assertEquals( Arrays.asList( "key045", "key046", "key047", "key048", "key049", "key051", "key052", "key053", "key054" ), new ArrayList<String>( range.keySet() ) );
+        assertEquals( "new", new String( range.get( "key051" ) ) );
+
+        assertEquals( 10, instance.scanPrefix( "key07" ).size() );
+        assertEquals( 99, instance.scanPrefix( "" ).size() );
+        assertTrue( instance.scanPrefix( "other" ).isEmpty() );
+    }
+
+
+    @Test
+    public void testMergeDropsOverwrittenValuesAndDeletions() throws Exception
+    {
+        for( int run = 0; run < 4; run++ )
+        {
+            Map<String, byte[]> changes = new HashMap<String, byte[]>();
+            for( int i = 0; i < 50; i++ )
+            {
+                changes.put( String.format( "key%03d", i ), ( run == 3 && i % 2 == 0 ) ? null : String.valueOf( run ).getBytes() );
+            }
+            instance.write( changes );
+            instance.flush();
+        }
+        assertEquals( 4, instance.getRunCount() );
+
+        instance.merge();
+        assertEquals( 1, instance.getRunCount() );
+        assertEquals( 1, instance.getMergeCount() );
+        assertEquals( 25, instance.scanPrefix( "key" ).size() );
+        assertNull( instance.get( "key010" ) );
+        assertEquals( "3", new String( instance.get( "key011" ) ) );
+        // the merged run, the journal and the manifest
+        assertEquals( 3, directory.list().length );
+    }
+
+
+    @Test
+    public void testFullMemtableIsFlushed() throws Exception
+    {
+        instance.close();
+        instance = new LogStructuredStore( directory, 1024, 4, Durability.NONE );
+        for( int i = 0; i < 100; i++ )
+        {
+            instance.put( String.format( "key%03d", i ), new byte[ 100 ] );
+        }
+        assertTrue( instance.getRunCount() >= 5 );
+        assertEquals( 100, instance.scanPrefix( "key" ).size() );
+    }
+
+
+    @Test
+    public void testJournalIsReplayedOnOpen() throws Exception
+    {
+        instance.put( "flushed", "1".getBytes() );
+        instance.flush();
+        instance.put( "journaled", "2".getBytes() );
+        instance.delete( "flushed" );
+
+        // opened again without closing, as after a crash
+        LogStructuredStore reopened = new LogStructuredStore( directory, 1024 * 1024, 4, Durability.NONE );
+        instance = reopened;
+        assertEquals( "2", new String( instance.get( "journaled" ) ) );
+        assertNull( instance.get( "flushed" ) );
+    }
+
+
+    @Test
+    public void testSuccessor() throws Exception
+    {
+        assertEquals( "ac", LogStructuredStore.successor( "ab" ) );
+        assertEquals( "b", LogStructuredStore.successor( "a\uffff" ) );
+        assertNull( LogStructuredStore.successor( "" ) );
+    }
+}
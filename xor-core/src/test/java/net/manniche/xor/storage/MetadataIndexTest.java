@@ -0,0 +1,123 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.SortedMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class MetadataIndexTest {
+
+    private File directory;
+    private MetadataIndex instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        directory = File.createTempFile( "index", "" );
+        directory.delete();
+        instance = new MetadataIndex( new LogStructuredStore( directory, 1024 * 1024, 4, Durability.NONE ) );
+    }
+
+
+    @After
+    public void tearDown() throws Exception
+    {
+        instance.close();
+        for( File file : directory.listFiles() )
+        {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+
+    @Test
+    public void testPutKeepsCreationTime() throws Exception
+    {
+        URI uri = new URI( "file:/objects/a" );
+        instance.put( uri, "DUBLIN_CORE", 100 );
+        ObjectMetadata first = instance.get( uri );
+        assertEquals( "DUBLIN_CORE", first.getContentType() );
+        assertEquals( 100, first.getLength() );
+        assertEquals( -1, first.getChecksum() );
+
+        Thread.sleep( 5 );
+        instance.put( uri, null, 200 );
+        ObjectMetadata second = instance.get( uri );
+        assertNull( second.getContentType() );
+        assertEquals( 200, second.getLength() );
+        assertEquals( first.getCreated(), second.getCreated() );
+        assertTrue( second.getModified() > first.getModified() );
+        assertTrue( instance.findByContentType( "DUBLIN_CORE" ).isEmpty() );
+    }
+
+
+    @Test
+    public void testFindByContentTypeAndPrefix() throws Exception
+    {
+        URI a = new URI( "file:/objects/a" );
+        URI b = new URI( "file:/objects/b" );
+        URI c = new URI( "file:/other/c" );
+        instance.put( b, "DUBLIN_CORE", 1 );
+        instance.put( a, "DUBLIN_CORE", 2 );
+        instance.put( c, "TEXT", 3 );
+        instance.getStore().flush();
+        instance.remove( b );
+
+        assertEquals( Arrays.asList( a ), instance.findByContentType( "DUBLIN_CORE" ) );
+        assertEquals( Arrays.asList( c ), instance.findByContentType( "TEXT" ) );
+        assertTrue( instance.findByContentType( "DUBLIN" ).isEmpty() );
+
+        SortedMap<URI, ObjectMetadata> objects = instance.findByPrefix( "file:/objects/" );
+        assertEquals( Collections.singleton( a ), objects.keySet() );
+        assertEquals( 2, objects.get( a ).getLength() );
+        assertNull( instance.get( b ) );
+    }
+
+
+    @Test
+    public void testFindModifiedBetween() throws Exception
+    {
+        URI old = new URI( "file:/objects/old" );
+        URI recent = new URI( "file:/objects/recent" );
+        instance.put( old, null, 1 );
+        Thread.sleep( 5 );
+        long since = System.currentTimeMillis();
+        instance.put( recent, null, 1 );
+
+        assertEquals( Arrays.asList( recent ), instance.findModifiedBetween( since, Long.MAX_VALUE ) );
+        assertEquals( Arrays.asList( old, recent ), instance.findModifiedBetween( 0, Long.MAX_VALUE ) );
+
+        Thread.sleep( 5 );
+        instance.put( old, null, 2 );
+        assertEquals( Arrays.asList( recent, old ), instance.findModifiedBetween( since, Long.MAX_VALUE ) );
+    }
+
+
+    @Test
+    public void testIndexSurvivesReopen() throws Exception
+    {
+        URI uri = new URI( "file:/objects/a" );
+        instance.put( uri, "DUBLIN_CORE", 100 );
+        instance.close();
+
+        instance = new MetadataIndex( new LogStructuredStore( directory, 1024 * 1024, 4, Durability.NONE ) );
+        assertEquals( 100, instance.get( uri ).getLength() );
+        assertEquals( Arrays.asList( uri ), instance.findByContentType( "DUBLIN_CORE" ) );
+    }
+}
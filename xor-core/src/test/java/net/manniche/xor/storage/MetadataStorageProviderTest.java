@@ -0,0 +1,165 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import net.manniche.xor.types.ObjectRepositoryContentType;
+import net.manniche.xor.utils.RepositoryUtilities;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class MetadataStorageProviderTest {
+
+    private static final ObjectRepositoryContentType DUBLIN_CORE = new ObjectRepositoryContentType()
+    {
+        @Override
+        public String toString()
+        {
+            return "DUBLIN_CORE";
+        }
+    };
+
+    private File directory;
+    private SegmentStorage storage;
+    private MetadataStorageProvider instance;
+    private byte[] object;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        directory = TemporaryFiles.newPath( "metadata" );
+        storage = new SegmentStorage( directory );
+        instance = new MetadataStorageProvider( storage );
+        object = new byte[ 4096 ];
+        new Random( 42 ).nextBytes( object );
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        instance.close();
+        TemporaryFiles.delete( directory );
+    }
+
+
+    @Test
+    public void testMetadataIsReadWithObject() throws Exception
+    {
+        long before = System.currentTimeMillis();
+        URI uri = instance.save( object, "/objects/", DUBLIN_CORE );
+
+        StoredObject stored = instance.getWithMetadata( uri );
+        assertTrue( Arrays.equals( object, stored.getBytes() ) );
+        ObjectMetadata metadata = stored.getMetadata();
+        assertEquals( "DUBLIN_CORE", metadata.getContentType() );
+        assertEquals( object.length, metadata.getLength() );
+        CRC32 crc = new CRC32();
+        crc.update( object );
+        assertEquals( crc.getValue(), metadata.getChecksum() );
+        assertTrue( metadata.getCreated() >= before );
+        assertEquals( metadata.getCreated(), metadata.getModified() );
+
+        assertEquals( "DUBLIN_CORE", instance.getMetadata( uri ).getContentType() );
+        assertTrue( Arrays.equals( object, instance.get( uri ) ) );
+        assertEquals( object.length, instance.getLength( uri ) );
+    }
+
+
+    @Test
+    public void testOverwriteKeepsCreationTime() throws Exception
+    {
+        URI uri = instance.save( object, "/objects/", DUBLIN_CORE );
+        ObjectMetadata first = instance.getMetadata( uri );
+        Thread.sleep( 5 );
+        instance.save( new byte[ 10 ], uri, "/objects/" );
+
+        ObjectMetadata second = instance.getMetadata( uri );
+        assertNull( second.getContentType() );
+        assertEquals( 10, second.getLength() );
+        assertEquals( first.getCreated(), second.getCreated() );
+        assertTrue( second.getModified() > first.getModified() );
+    }
+
+
+    @Test
+    public void testStreamedObjectHasNoChecksum() throws Exception
+    {
+        URI uri = instance.save( new ByteArrayInputStream( object ), object.length, "/objects/" );
+        assertEquals( -1, instance.getMetadata( uri ).getChecksum() );
+        assertEquals( object.length, instance.getMetadata( uri ).getLength() );
+
+        InputStream stream = instance.getStream( uri );
+        try
+        {
+            assertTrue( Arrays.equals( object, RepositoryUtilities.readFully( stream, object.length ) ) );
+            assertEquals( -1, stream.read() );
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+
+    @Test
+    public void testRanges() throws Exception
+    {
+        URI uri = instance.save( object, "/objects/", DUBLIN_CORE );
+        assertTrue( Arrays.equals( Arrays.copyOfRange( object, 100, 300 ), instance.get( uri, 100, 200 ) ) );
+        assertTrue( Arrays.equals( Arrays.copyOfRange( object, object.length - 50, object.length ), instance.get( uri, object.length - 50, 200 ) ) );
+    }
+
+
+    @Test
+    public void testBatchKeepsContentType() throws Exception
+    {
+        BatchResult<URI> saved = instance.saveAll( Arrays.asList( object, new byte[ 0 ] ), "/objects/", DUBLIN_CORE );
+        assertEquals( "DUBLIN_CORE", instance.getMetadata( saved.get( 0 ) ).getContentType() );
+        assertEquals( 0, instance.getMetadata( saved.get( 1 ) ).getLength() );
+
+        BatchResult<byte[]> read = instance.getAll( Arrays.asList( saved.get( 0 ), saved.get( 1 ) ) );
+        assertTrue( Arrays.equals( object, read.get( 0 ) ) );
+        assertEquals( 0, read.get( 1 ).length );
+    }
+
+
+    @Test
+    public void testObjectsWithoutHeaderAreReturnedUnchanged() throws Exception
+    {
+        URI plain = storage.save( object, "/objects/" );
+        URI tiny = storage.save( "DC".getBytes(), "/objects/" );
+
+        assertTrue( Arrays.equals( object, instance.get( plain ) ) );
+        assertNull( instance.getMetadata( plain ) );
+        assertNull( instance.getWithMetadata( tiny ).getMetadata() );
+        assertEquals( object.length, instance.getLength( plain ) );
+        assertTrue( Arrays.equals( Arrays.copyOfRange( object, 10, 20 ), instance.get( plain, 10, 10 ) ) );
+
+        InputStream stream = instance.getStream( tiny );
+        try
+        {
+            assertTrue( Arrays.equals( "DC".getBytes(), RepositoryUtilities.readFully( stream, 2 ) ) );
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class MirroredStorageProviderTest {
+
+    private File directory;
+    private File stateFile;
+    private SegmentStorage storage;
+    private FlakyStorage flaky;
+    private MirroredStorageProvider instance;
+
+    /**
+     * Fails the operations on one replica, or slows down those on the
+     * replicas with the comma separated paths.
+     */
+    private static class FlakyStorage extends DelegatingStorageProvider
+    {
+        private volatile String failing = "none";
+        private volatile String slow = "none";
+
+        FlakyStorage( StorageProvider delegate )
+        {
+            super( delegate );
+        }
+
+
+        private void check( URI uri ) throws IOException
+        {
+            if( uri.getPath().startsWith( this.failing ) )
+            {
+                throw new IOException( "Disk failure" );
+            }
+            for( String path : this.slow.split( "," ) )
+            {
+                if( uri.getPath().startsWith( path ) )
+                {
+                    try
+                    {
+                        Thread.sleep( 300 );
+                    }
+                    catch( InterruptedException ex )
+                    {
+                        throw new IOException( ex );
+                    }
+                    break;
+                }
+            }
+        }
+
+
+        @Override
+        public void save( byte[] object, URI uri, String storagePath ) throws IOException
+        {
+            this.check( uri );
+            super.save( object, uri, storagePath );
+        }
+
+
+        @Override
+        public byte[] get( URI identifier ) throws IOException
+        {
+            this.check( identifier );
+            return super.get( identifier );
+        }
+
+
+        @Override
+        public void delete( URI identifier ) throws IOException
+        {
+            this.check( identifier );
+            super.delete( identifier );
+        }
+    }
+
+
+    @Before
+    public void setUp() throws Exception
+    {
+        directory = TemporaryFiles.newPath( "mirrored" );
+        stateFile = TemporaryFiles.newPath( "mirrors", ".state" );
+        storage = new SegmentStorage( directory );
+        flaky = new FlakyStorage( storage );
+        instance = new MirroredStorageProvider( flaky, Arrays.asList( "/a/", "/b/", "/c/" ), stateFile, 2, 20, 100, null );
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        instance.close();
+        TemporaryFiles.delete( directory );
+        stateFile.delete();
+    }
+
+
+    private static byte[] object( int value, int length )
+    {
+        byte[] object = new byte[ length ];
+        Arrays.fill( object, (byte) value );
+        return object;
+    }
+
+
+    private static URI replica( URI uri, String path ) throws Exception
+    {
+        return new URI( uri.getScheme(), null, uri.getPath().replace( "/a/", path ), null );
+    }
+
+
+    private void awaitDivergent( int count ) throws Exception
+    {
+        instance.awaitReplication();
+        assertEquals( count, instance.getDivergentCount() );
+    }
+
+
+    private void restart() throws Exception
+    {
+        instance.close();
+        storage = new SegmentStorage( directory );
+        String failing = flaky.failing;
+        String slow = flaky.slow;
+        flaky = new FlakyStorage( storage );
+        flaky.failing = failing;
+        flaky.slow = slow;
+        instance = new MirroredStorageProvider( flaky, Arrays.asList( "/a/", "/b/", "/c/" ), stateFile, 2, 20, 100, null );
+    }
+
+
+    private static void assertMissing( StorageProvider provider, URI uri ) throws Exception
+    {
+        try
+        {
+            provider.get( uri );
+            fail( String.format( "%s was not deleted", uri ) );
+        }
+        catch( FileNotFoundException ex )
+        {
+            // expected
+        }
+    }
+
+
+    /**
+     * Overwrites an object while /c/ fails, and brings /c/ back with the
+     * previous version, which would answer first if it were read.
+     */
+    private URI overwriteWhileFailed() throws Exception
+    {
+        URI uri = instance.save( object( 1, 50 ), "/a/" );
+        awaitDivergent( 0 );
+        flaky.failing = "/c/";
+        instance.save( object( 2, 50 ), uri, "/a/" );
+        awaitDivergent( 1 );
+        flaky.failing = "none";
+        flaky.slow = "/a/,/b/";
+        return uri;
+    }
+
+
+    private URI deleteWhileFailed() throws Exception
+    {
+        URI uri = instance.save( object( 1, 50 ), "/a/" );
+        awaitDivergent( 0 );
+        flaky.failing = "/c/";
+        instance.delete( uri );
+        awaitDivergent( 1 );
+        flaky.failing = "none";
+        return uri;
+    }
+
+
+    @Test
+    public void testSaveWritesAllReplicas() throws Exception
+    {
+        URI uri = instance.save( object( 1, 50 ), "/a/" );
+        instance.save( object( 2, 50 ), uri, "/a/" );
+        awaitDivergent( 0 );
+
+        for( String path : new String[] { "/a/", "/b/", "/c/" } )
+        {
+            assertTrue( Arrays.equals( object( 2, 50 ), storage.get( replica( uri, path ) ) ) );
+        }
+        assertTrue( Arrays.equals( object( 2, 50 ), instance.get( uri ) ) );
+        assertEquals( 50, instance.getLength( uri ) );
+    }
+
+
+    @Test
+    public void testLongStreamIsCopiedFromFirstReplica() throws Exception
+    {
+        URI uri = instance.save( new ByteArrayInputStream( object( 3, 1000 ) ), 1000, "/a/" );
+        awaitDivergent( 0 );
+
+        for( String path : new String[] { "/a/", "/b/", "/c/" } )
+        {
+            assertTrue( Arrays.equals( object( 3, 1000 ), storage.get( replica( uri, path ) ) ) );
+        }
+    }
+
+
+    @Test
+    public void testWriteQuorumToleratesFailedReplica() throws Exception
+    {
+        flaky.failing = "/c/";
+        URI uri = instance.save( object( 1, 50 ), "/a/" );
+        awaitDivergent( 1 );
+        assertFalse( instance.isHealthy( 2 ) );
+
+        flaky.failing = "none";
+        assertEquals( 1, instance.repair() );
+
+        assertEquals( 0, instance.getDivergentCount() );
+        assertEquals( 1, instance.getRepairedCount() );
+        assertTrue( Arrays.equals( object( 1, 50 ), storage.get( replica( uri, "/c/" ) ) ) );
+    }
+
+
+    @Test( expected=IOException.class )
+    public void testWriteFailsWithoutQuorum() throws Exception
+    {
+        instance.close();
+        instance = new MirroredStorageProvider( flaky, Arrays.asList( "/a/", "/b/", "/c/" ), stateFile, 3, 20, 100, null );
+        flaky.failing = "/b/";
+        instance.save( object( 1, 50 ), "/a/" );
+    }
+
+
+    @Test
+    public void testMissingReplicaIsReadFromOthersAndNotRepaired() throws Exception
+    {
+        URI uri = instance.save( object( 1, 50 ), "/a/" );
+        awaitDivergent( 0 );
+        storage.delete( uri );
+        storage.delete( replica( uri, "/b/" ) );
+        // whichever replica is tried first, the others are asked before
+        // the slow read of the remaining copy answers
+        flaky.slow = "/c/";
+
+        assertTrue( Arrays.equals( object( 1, 50 ), instance.get( uri ) ) );
+        assertEquals( 0, instance.getDivergentCount() );
+        assertMissing( storage, uri );
+    }
+
+
+    @Test
+    public void testOverwriteWhileReplicaFailedIsNotReadFromIt() throws Exception
+    {
+        URI uri = overwriteWhileFailed();
+
+        assertTrue( Arrays.equals( object( 2, 50 ), instance.get( uri ) ) );
+
+        assertEquals( 1, instance.repair() );
+        assertTrue( Arrays.equals( object( 2, 50 ), storage.get( replica( uri, "/c/" ) ) ) );
+    }
+
+
+    @Test
+    public void testOverwriteWhileReplicaFailedIsRepairedAfterRestart() throws Exception
+    {
+        URI uri = overwriteWhileFailed();
+        restart();
+        assertEquals( 1, instance.getDivergentCount() );
+
+        assertTrue( Arrays.equals( object( 2, 50 ), instance.get( uri ) ) );
+
+        assertEquals( 1, instance.repair() );
+        assertTrue( Arrays.equals( object( 2, 50 ), storage.get( replica( uri, "/c/" ) ) ) );
+        restart();
+        assertEquals( 0, instance.getDivergentCount() );
+    }
+
+
+    @Test
+    public void testDeleteWhileReplicaFailedIsNotReadFromIt() throws Exception
+    {
+        URI uri = deleteWhileFailed();
+
+        assertMissing( instance, uri );
+        assertEquals( 1, instance.getDivergentCount() );
+
+        assertEquals( 1, instance.repair() );
+        assertMissing( storage, replica( uri, "/c/" ) );
+    }
+
+
+    @Test
+    public void testDeleteWhileReplicaFailedIsRepairedAfterRestart() throws Exception
+    {
+        URI uri = deleteWhileFailed();
+        restart();
+        assertEquals( 1, instance.getDivergentCount() );
+
+        assertMissing( instance, uri );
+        assertEquals( 1, instance.getDivergentCount() );
+
+        assertEquals( 1, instance.repair() );
+        assertMissing( storage, replica( uri, "/c/" ) );
+        restart();
+        assertEquals( 0, instance.getDivergentCount() );
+        assertMissing( instance, uri );
+    }
+
+
+    @Test
+    public void testSlowReplicaIsHedged() throws Exception
+    {
+        URI uri = instance.save( object( 1, 50 ), "/a/" );
+        awaitDivergent( 0 );
+        flaky.slow = "/";
+
+        assertTrue( Arrays.equals( object( 1, 50 ), instance.get( uri ) ) );
+        assertTrue( instance.getHedgedCount() > 0 );
+    }
+
+
+    @Test
+    public void testDeleteRemovesAllReplicas() throws Exception
+    {
+        URI uri = instance.save( object( 1, 50 ), "/a/" );
+        instance.delete( uri );
+        awaitDivergent( 0 );
+
+        for( String path : new String[] { "/a/", "/b/", "/c/" } )
+        {
+            assertMissing( storage, replica( uri, path ) );
+        }
+    }
+
+
+    @Test( expected=FileNotFoundException.class )
+    public void testDeleteOfMissingObject() throws Exception
+    {
+        instance.delete( new URI( "segment", null, "/a/missing", null ) );
+    }
+
+
+    @Test( expected=FileNotFoundException.class )
+    public void testGetOfMissingObject() throws Exception
+    {
+        instance.get( new URI( "segment", null, "/a/missing", null ) );
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.net.URI;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class OffHeapCacheTest {
+
+    private OffHeapCache instance;
+
+    @Before
+    public void setUp()
+    {
+        // two slabs of 4KB
+        instance = new OffHeapCache( 8 * 1024, 4 * 1024 );
+    }
+
+
+    @Test
+    public void testPutAndGet() throws Exception
+    {
+        URI uri = new URI( "file:/objects/1" );
+        assertNull( instance.get( uri ) );
+        assertTrue( instance.put( uri, "off heap".getBytes(), instance.getStamp() ) );
+        assertEquals( "off heap", new String( instance.get( uri ) ) );
+
+        assertEquals( 1, instance.getHitCount() );
+        assertEquals( 1, instance.getMissCount() );
+        assertEquals( 4 * 1024, instance.getAllocated() );
+    }
+
+
+    @Test
+    public void testReplaceWithDifferentSize() throws Exception
+    {
+        URI uri = new URI( "file:/objects/1" );
+        instance.put( uri, "small".getBytes(), instance.getStamp() );
+        byte[] large = new byte[ 1000 ];
+        Arrays.fill( large, (byte) 'x' );
+        instance.put( uri, large, instance.getStamp() );
+
+        assertArrayEquals( large, instance.get( uri ) );
+        assertEquals( 1, instance.getCount() );
+    }
+
+
+    @Test
+    public void testStalePutIsRejected() throws Exception
+    {
+        URI uri = new URI( "file:/objects/1" );
+        long stamp = instance.getStamp();
+        instance.invalidate( uri );
+        assertFalse( instance.put( uri, "stale".getBytes(), stamp ) );
+        assertNull( instance.get( uri ) );
+    }
+
+
+    @Test
+    public void testInvalidate() throws Exception
+    {
+        URI uri = new URI( "file:/objects/1" );
+        instance.put( uri, "cached".getBytes(), instance.getStamp() );
+        instance.invalidate( uri );
+        assertNull( instance.get( uri ) );
+        assertEquals( 0, instance.getCount() );
+    }
+
+
+    @Test
+    public void testEvictsLeastRecentlyUsedWithinBudget() throws Exception
+    {
+        // 2KB objects fill whole slabs two at a time
+        byte[] object = new byte[ 2 * 1024 ];
+        URI first = new URI( "file:/objects/0" );
+        instance.put( first, object, instance.getStamp() );
+        for( int i = 1; i < 8; i++ )
+        {
+            instance.get( first );
+            instance.put( new URI( "file:/objects/" + i ), object, instance.getStamp() );
+        }
+
+        assertEquals( 8 * 1024, instance.getAllocated() );
+        assertEquals( 4, instance.getCount() );
+        assertEquals( 4, instance.getEvictionCount() );
+        assertNotNull( instance.get( first ) );
+        assertNull( instance.get( new URI( "file:/objects/1" ) ) );
+    }
+
+
+    @Test
+    public void testSlabIsTakenFromAnotherSizeClass() throws Exception
+    {
+        // 64 byte objects fill both slabs
+        for( int i = 0; i < 128; i++ )
+        {
+            instance.put( new URI( "file:/objects/small/" + i ), new byte[ 64 ], instance.getStamp() );
+        }
+        URI large = new URI( "file:/objects/large" );
+
+        assertTrue( instance.put( large, new byte[ 3 * 1024 ], instance.getStamp() ) );
+        assertNotNull( instance.get( large ) );
+        assertEquals( 65, instance.getCount() );
+        assertEquals( 64, instance.getEvictionCount() );
+        assertEquals( 0, instance.getRejectionCount() );
+        assertEquals( 8 * 1024, instance.getAllocated() );
+    }
+
+
+    @Test
+    public void testObjectLargerThanSlabIsNotCached() throws Exception
+    {
+        assertFalse( instance.put( new URI( "file:/objects/1" ), new byte[ 5 * 1024 ], instance.getStamp() ) );
+        assertEquals( 0, instance.getAllocated() );
+    }
+
+
+    @Test
+    public void testConfiguredCapacityBelowOneSlabIsRaised() throws Exception
+    {
+        System.setProperty( "xor.cache.offheap_capacity", "1024" );
+        System.setProperty( "xor.cache.slab_size", "4096" );
+        try
+        {
+            OffHeapCache configured = OffHeapCache.getConfigured();
+            URI uri = new URI( "file:/objects/1" );
+            assertTrue( configured.put( uri, "configured".getBytes(), configured.getStamp() ) );
+            assertEquals( 4 * 1024, configured.getAllocated() );
+        }
+        finally
+        {
+            System.clearProperty( "xor.cache.offheap_capacity" );
+            System.clearProperty( "xor.cache.slab_size" );
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class ReedSolomonTest {
+
+    private static byte[][] shards( ReedSolomon code, int cellSize )
+    {
+        Random random = new Random( 42 );
+        byte[][] shards = new byte[ code.getDataShards() + code.getParityShards() ][ cellSize ];
+        for( int i = 0; i < code.getDataShards(); i++ )
+        {
+            random.nextBytes( shards[ i ] );
+        }
+        byte[][] data = Arrays.copyOfRange( shards, 0, code.getDataShards() );
+        byte[][] parity = Arrays.copyOfRange( shards, code.getDataShards(), shards.length );
+        code.encode( data, parity );
+        return shards;
+    }
+
+
+    @Test
+    public void testEveryChoiceOfShardsReconstructsTheData()
+    {
+        ReedSolomon code = new ReedSolomon( 4, 2 );
+        byte[][] shards = shards( code, 1000 );
+        int total = shards.length;
+        for( int mask = 0; mask < 1 << total; mask++ )
+        {
+            if( 4 != Integer.bitCount( mask ) )
+            {
+                continue;
+            }
+            int[] present = new int[ 4 ];
+            byte[][] cells = new byte[ 4 ][];
+            int found = 0;
+            for( int i = 0; i < total; i++ )
+            {
+                if( 0 != ( mask & ( 1 << i ) ) )
+                {
+                    present[ found ] = i;
+                    cells[ found ] = shards[ i ];
+                    found++;
+                }
+            }
+            int[][] decoder = code.decoder( present );
+            for( int i = 0; i < 4; i++ )
+            {
+                byte[] data = new byte[ 1000 ];
+                ReedSolomon.combine( decoder[ i ], cells, data );
+                assertTrue( String.format( "data shard %s from %s", i, Arrays.toString( present ) ), Arrays.equals( shards[ i ], data ) );
+            }
+        }
+    }
+
+
+    @Test
+    public void testParityOfZerosIsZero()
+    {
+        ReedSolomon code = new ReedSolomon( 3, 3 );
+        byte[][] parity = new byte[ 3 ][ 10 ];
+        code.encode( new byte[ 3 ][ 10 ], parity );
+
+        for( byte[] cell : parity )
+        {
+            assertTrue( Arrays.equals( new byte[ 10 ], cell ) );
+        }
+    }
+
+
+    @Test( expected=IllegalArgumentException.class )
+    public void testTooManyShards()
+    {
+        new ReedSolomon( 200, 57 );
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class ReferenceCounterTest {
+
+    private File directory;
+    private File object;
+    private ReferenceCounter instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        directory = File.createTempFile( "refcount", "" );
+        directory.delete();
+        directory.mkdirs();
+        object = new File( directory, "object" );
+        object.createNewFile();
+        instance = new ReferenceCounter();
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        new File( new File( directory, ReferenceCounter.REFERENCE_DIRECTORY ), "object" ).delete();
+        new File( directory, ReferenceCounter.REFERENCE_DIRECTORY ).delete();
+        object.delete();
+        directory.delete();
+    }
+
+
+    @Test
+    public void testUncountedFileHasOneReference() throws Exception
+    {
+        assertEquals( 1, instance.count( object ) );
+        assertEquals( 0, instance.decrement( object ) );
+    }
+
+
+    @Test
+    public void testIncrementAndDecrement() throws Exception
+    {
+        assertEquals( 2, instance.increment( object ) );
+        assertEquals( 3, instance.increment( object ) );
+        assertEquals( 3, new ReferenceCounter().count( object ) );
+        assertEquals( 2, instance.decrement( object ) );
+        assertEquals( 1, instance.decrement( object ) );
+        assertFalse( new File( new File( directory, ReferenceCounter.REFERENCE_DIRECTORY ), "object" ).exists() );
+        assertEquals( 0, instance.decrement( object ) );
+    }
+
+
+    @Test
+    public void testDamagedCountKeepsFileUntilRecounted() throws Exception
+    {
+        instance.increment( object );
+        File count = new File( new File( directory, ReferenceCounter.REFERENCE_DIRECTORY ), "object" );
+        // a count torn by a crash
+        new FileOutputStream( count ).close();
+
+        assertEquals( ReferenceCounter.UNKNOWN, instance.count( object ) );
+        assertEquals( ReferenceCounter.UNKNOWN, instance.decrement( object ) );
+        assertEquals( ReferenceCounter.UNKNOWN, instance.increment( object ) );
+        assertEquals( 0, count.length() );
+
+        instance.set( object, 2 );
+        assertEquals( 1, instance.decrement( object ) );
+        assertEquals( 0, instance.decrement( object ) );
+        assertEquals( 0, new File( directory, ReferenceCounter.REFERENCE_DIRECTORY ).list().length );
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class ScrubberTest {
+
+    private File root;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        root = File.createTempFile( "scrubber", "" );
+        root.delete();
+        new File( root, "ab" ).mkdirs();
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        deleteRecursively( root );
+    }
+
+
+    private static void deleteRecursively( File file )
+    {
+        File[] children = file.listFiles();
+        if( null != children )
+        {
+            for( File child : children )
+            {
+                deleteRecursively( child );
+            }
+        }
+        file.delete();
+    }
+
+
+    private File write( String name, byte[] contents ) throws Exception
+    {
+        File file = new File( root, name );
+        FileOutputStream out = new FileOutputStream( file );
+        out.write( contents );
+        out.close();
+        return file;
+    }
+
+
+    @Test
+    public void testCorruptFilesAreQuarantined() throws Exception
+    {
+        byte[] sealed = ChecksummingStorageProvider.seal( "an intact object".getBytes() );
+        byte[] damaged = ChecksummingStorageProvider.seal( "a damaged object".getBytes() );
+        damaged[ 3 ] ^= 1;
+        File intact = write( "ab/1", sealed );
+        File corrupt = write( "ab/2", damaged );
+        File legacy = write( "3", "an object without checksum".getBytes() );
+        File journal = write( ".journal", damaged );
+
+        Scrubber instance = new Scrubber( Collections.singletonList( root ), null, true );
+        assertEquals( 1, instance.scrub() );
+
+        assertEquals( 2, instance.getScannedCount() );
+        assertEquals( 1, instance.getCorruptCount() );
+        assertEquals( 1, instance.getUnchecksummedCount() );
+        assertTrue( intact.exists() );
+        assertTrue( legacy.exists() );
+        assertTrue( journal.exists() );
+        assertFalse( corrupt.exists() );
+        assertEquals( Collections.singletonList( new File( new File( root, Scrubber.QUARANTINE ), "ab_2" ) ), instance.getQuarantined() );
+
+        assertEquals( 0, instance.scrub() );
+    }
+
+
+    @Test
+    public void testFilesWithoutChecksumAreQuarantinedInChecksummedStorage() throws Exception
+    {
+        byte[] truncated = ChecksummingStorageProvider.seal( "a truncated object".getBytes() );
+        File intact = write( "1", ChecksummingStorageProvider.seal( "an intact object".getBytes() ) );
+        File damaged = write( "2", Arrays.copyOf( truncated, truncated.length - 1 ) );
+        File missing = write( "3", "an object without checksum".getBytes() );
+
+        Scrubber instance = new Scrubber( Collections.singletonList( root ), null, true, true );
+        assertEquals( 2, instance.scrub() );
+        assertTrue( intact.exists() );
+        assertFalse( damaged.exists() );
+        assertFalse( missing.exists() );
+        assertEquals( 0, instance.getUnchecksummedCount() );
+    }
+
+
+    @Test
+    public void testCorruptFilesAreKeptWithoutQuarantine() throws Exception
+    {
+        byte[] damaged = ChecksummingStorageProvider.seal( "a damaged object".getBytes() );
+        damaged[ 0 ] ^= 1;
+        File corrupt = write( "1", damaged );
+
+        Scrubber instance = new Scrubber( Collections.singletonList( root ), null, false );
+        assertEquals( 1, instance.scrub() );
+        assertTrue( corrupt.exists() );
+    }
+}
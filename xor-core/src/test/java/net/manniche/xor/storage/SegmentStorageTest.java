@@ -0,0 +1,189 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class SegmentStorageTest {
+
+    private File directory;
+    private SegmentStorage instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        directory = File.createTempFile( "segments", "" );
+        directory.delete();
+        instance = new SegmentStorage( directory, 256 );
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        instance.close();
+        for( File file : directory.listFiles() )
+        {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+
+    @Test
+    public void testSaveAndGet() throws Exception
+    {
+        byte[] data = "small object".getBytes();
+        URI uri = instance.save( data, "/objects/" );
+        assertEquals( "file", uri.getScheme() );
+        assertArrayEquals( data, instance.get( uri ) );
+        assertEquals( data.length, instance.getLength( uri ) );
+    }
+
+
+    @Test
+    public void testRangeRead() throws Exception
+    {
+        URI uri = instance.save( "0123456789".getBytes(), "/objects/" );
+        assertEquals( "345", new String( instance.get( uri, 3, 3 ) ) );
+        assertEquals( "89", new String( instance.get( uri, 8, 3 ) ) );
+        assertEquals( 0, instance.get( uri, 10, 3 ).length );
+    }
+
+
+    @Test
+    public void testOverwriteAndDelete() throws Exception
+    {
+        URI uri = new URI( "file:/objects/1" );
+        instance.save( "first".getBytes(), uri, "/objects/" );
+        instance.save( "second".getBytes(), uri, "/objects/" );
+        assertEquals( "second", new String( instance.get( uri ) ) );
+        instance.delete( uri );
+        try
+        {
+            instance.get( uri );
+            fail( "deleted object was still retrievable" );
+        }
+        catch( FileNotFoundException expected )
+        {
+        }
+    }
+
+
+    @Test
+    public void testRecoveryAcrossSealedSegments() throws Exception
+    {
+        URI[] uris = new URI[ 20 ];
+        for( int i = 0; i < uris.length; i++ )
+        {
+            uris[ i ] = instance.save( ( "object number " + i ).getBytes(), "/objects/" );
+        }
+        instance.delete( uris[ 3 ] );
+        assertTrue( directory.list().length > 2 );
+        instance.close();
+
+        instance = new SegmentStorage( directory, 256 );
+        assertEquals( 19, instance.size() );
+        assertEquals( "object number 7", new String( instance.get( uris[ 7 ] ) ) );
+        assertEquals( "object number 19", new String( instance.get( uris[ 19 ] ) ) );
+    }
+
+
+    @Test
+    public void testRecoveryTruncatesTornTail() throws Exception
+    {
+        URI kept = instance.save( "kept".getBytes(), "/objects/" );
+        URI torn = instance.save( "torn".getBytes(), "/objects/" );
+        instance.close();
+
+        File segment = new File( directory, directory.list()[ 0 ] );
+        RandomAccessFile file = new RandomAccessFile( segment, "rw" );
+        long length = file.length();
+        file.setLength( length - 3 );
+        file.close();
+
+        instance = new SegmentStorage( directory, 256 );
+        assertEquals( "kept", new String( instance.get( kept ) ) );
+        try
+        {
+            instance.get( torn );
+            fail( "torn record was recovered" );
+        }
+        catch( FileNotFoundException expected )
+        {
+        }
+        URI after = instance.save( "after".getBytes(), "/objects/" );
+        instance.close();
+        instance = new SegmentStorage( directory, 256 );
+        assertEquals( "after", new String( instance.get( after ) ) );
+    }
+
+
+    @Test
+    public void testCompactionReclaimsOverwrittenObjects() throws Exception
+    {
+        URI uri = new URI( "file:/objects/rewritten" );
+        URI[] kept = new URI[ 5 ];
+        for( int i = 0; i < kept.length; i++ )
+        {
+            kept[ i ] = instance.save( ( "kept " + i ).getBytes(), "/objects/" );
+        }
+        for( int i = 0; i < 40; i++ )
+        {
+            instance.save( ( "version " + i ).getBytes(), uri, "/objects/" );
+        }
+        long before = instance.getTotalBytes();
+        assertTrue( instance.getLiveBytes() < before / 2 );
+
+        long reclaimed = new SegmentCompactor( instance, 0.5, new IORateLimiter( 1024 * 1024 ) ).compact();
+        assertTrue( reclaimed > 0 );
+        assertEquals( before - reclaimed, instance.getTotalBytes() );
+        assertEquals( "version 39", new String( instance.get( uri ) ) );
+        for( int i = 0; i < kept.length; i++ )
+        {
+            assertEquals( "kept " + i, new String( instance.get( kept[ i ] ) ) );
+        }
+
+        instance.close();
+        instance = new SegmentStorage( directory, 256 );
+        assertEquals( 6, instance.size() );
+        assertEquals( "version 39", new String( instance.get( uri ) ) );
+        assertEquals( "kept 0", new String( instance.get( kept[ 0 ] ) ) );
+    }
+
+
+    @Test
+    public void testCompactionKeepsDeletesInPlace() throws Exception
+    {
+        URI deleted = instance.save( "deleted".getBytes(), "/objects/" );
+        for( int i = 0; i < 20; i++ )
+        {
+            instance.save( ( "filler " + i ).getBytes(), new URI( "file:/objects/filler" ), "/objects/" );
+        }
+        instance.delete( deleted );
+        for( int i = 0; i < 20; i++ )
+        {
+            instance.save( ( "filler " + i ).getBytes(), new URI( "file:/objects/filler" ), "/objects/" );
+        }
+        new SegmentCompactor( instance, 0.9, new IORateLimiter( 1024 * 1024 ) ).compact();
+
+        instance.close();
+        instance = new SegmentStorage( directory, 256 );
+        assertEquals( 1, instance.size() );
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class StripedLockTest {
+
+    @Test
+    public void testSameKeySameLock()
+    {
+        StripedLock instance = new StripedLock( 64 );
+        assertSame( instance.get( "object" ), instance.get( new String( "object" ) ) );
+    }
+
+
+    @Test
+    public void testDifferentKeysDoNotBlock() throws Exception
+    {
+        final StripedLock instance = new StripedLock( 1024 );
+        // find two keys on different stripes
+        String other = "b";
+        for( int i = 0; instance.get( "a" ) == instance.get( other ); i++ )
+        {
+            other = "b" + i;
+        }
+        final String otherKey = other;
+
+        instance.get( "a" ).lock();
+        try
+        {
+            final CountDownLatch locked = new CountDownLatch( 1 );
+            Thread thread = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    Lock lock = instance.get( otherKey );
+                    lock.lock();
+                    lock.unlock();
+                    locked.countDown();
+                }
+            };
+            thread.start();
+            assertTrue( locked.await( 5, TimeUnit.SECONDS ) );
+        }
+        finally
+        {
+            instance.get( "a" ).unlock();
+        }
+    }
+
+
+    @Test
+    public void testLockAllTakesEachStripeOnce()
+    {
+        StripedLock instance = new StripedLock( 1 );
+        List<Lock> locks = instance.lockAll( Arrays.asList( "a", "b", "c" ) );
+        assertEquals( 1, locks.size() );
+        instance.unlockAll( locks );
+        assertTrue( instance.get( "a" ).tryLock() );
+    }
+}
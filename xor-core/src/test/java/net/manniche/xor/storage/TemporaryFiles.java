@@ -0,0 +1,57 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Temporary directories and files for the tests of the storage providers.
+ *
+ * @author stm
+ */
+final class TemporaryFiles {
+
+    private TemporaryFiles()
+    {
+    }
+
+
+    /**
+     * @return a unique path in the temporary directory that does not exist
+     * yet, so that the storage under test creates it
+     */
+    static File newPath( String prefix ) throws IOException
+    {
+        return newPath( prefix, "" );
+    }
+
+
+    static File newPath( String prefix, String suffix ) throws IOException
+    {
+        File path = File.createTempFile( prefix, suffix );
+        path.delete();
+        return path;
+    }
+
+
+    /**
+     * Deletes {@code file} and, if it is a directory, everything below it.
+     */
+    static void delete( File file )
+    {
+        File[] files = file.listFiles();
+        if( null != files )
+        {
+            for( File child : files )
+            {
+                delete( child );
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Arrays;
+import net.manniche.xor.types.CoreRepositoryAction;
+import net.manniche.xor.types.DefaultIdentifier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class TieredStorageProviderTest {
+
+    private File directory;
+    private File stateFile;
+    private SegmentStorage storage;
+    private TieredStorageProvider instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        directory = TemporaryFiles.newPath( "tiered" );
+        stateFile = TemporaryFiles.newPath( "tiers", ".state" );
+        storage = new SegmentStorage( directory );
+        instance = new TieredStorageProvider( storage, "/hot/", "/cold/", stateFile, 3000, 2, null );
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        instance.close();
+        TemporaryFiles.delete( directory );
+        stateFile.delete();
+    }
+
+
+    private static byte[] object( int value )
+    {
+        byte[] object = new byte[ 1000 ];
+        Arrays.fill( object, (byte) value );
+        return object;
+    }
+
+
+    private void request( URI uri )
+    {
+        instance.notifyMe( new DefaultIdentifier( uri ), null, CoreRepositoryAction.REQUEST, null );
+    }
+
+
+    private static URI cold( URI uri ) throws Exception
+    {
+        return new URI( uri.getScheme(), null, uri.getPath().replace( "/hot/", "/cold/" ), null );
+    }
+
+
+    @Test
+    public void testNewObjectsAreHot() throws Exception
+    {
+        URI uri = instance.save( object( 1 ), "/hot/" );
+
+        assertTrue( instance.isHot( uri ) );
+        assertEquals( 1000, instance.getHotBytes() );
+        assertTrue( Arrays.equals( object( 1 ), storage.get( uri ) ) );
+    }
+
+
+    @Test
+    public void testLeastRecentlyRequestedObjectsAreDemoted() throws Exception
+    {
+        URI[] uris = new URI[ 4 ];
+        for( int i = 0; i < uris.length; i++ )
+        {
+            uris[ i ] = instance.save( object( i ), "/hot/" );
+        }
+        request( uris[ 0 ] );
+
+        instance.migrate();
+
+        assertTrue( instance.isHot( uris[ 0 ] ) );
+        assertFalse( instance.isHot( uris[ 1 ] ) );
+        assertFalse( instance.isHot( uris[ 2 ] ) );
+        assertTrue( instance.isHot( uris[ 3 ] ) );
+        assertEquals( 2000, instance.getHotBytes() );
+        assertTrue( Arrays.equals( object( 1 ), storage.get( cold( uris[ 1 ] ) ) ) );
+        for( int i = 0; i < uris.length; i++ )
+        {
+            assertTrue( Arrays.equals( object( i ), instance.get( uris[ i ] ) ) );
+            assertEquals( 1000, instance.getLength( uris[ i ] ) );
+        }
+    }
+
+
+    @Test( expected=FileNotFoundException.class )
+    public void testDemotedObjectIsRemovedFromHotTier() throws Exception
+    {
+        URI[] uris = new URI[ 4 ];
+        for( int i = 0; i < uris.length; i++ )
+        {
+            uris[ i ] = instance.save( object( i ), "/hot/" );
+        }
+        instance.migrate();
+
+        storage.get( uris[ 0 ] );
+    }
+
+
+    @Test
+    public void testRepeatedlyRequestedObjectIsPromoted() throws Exception
+    {
+        URI[] uris = new URI[ 4 ];
+        for( int i = 0; i < uris.length; i++ )
+        {
+            uris[ i ] = instance.save( object( i ), "/hot/" );
+        }
+        instance.migrate();
+        assertFalse( instance.isHot( uris[ 0 ] ) );
+
+        request( uris[ 0 ] );
+        instance.migrate();
+        assertFalse( instance.isHot( uris[ 0 ] ) );
+
+        request( uris[ 0 ] );
+        instance.migrate();
+        assertTrue( instance.isHot( uris[ 0 ] ) );
+        assertTrue( Arrays.equals( object( 0 ), storage.get( uris[ 0 ] ) ) );
+        assertTrue( Arrays.equals( object( 0 ), instance.get( uris[ 0 ] ) ) );
+    }
+
+
+    @Test
+    public void testDeleteRemovesColdObject() throws Exception
+    {
+        URI[] uris = new URI[ 4 ];
+        for( int i = 0; i < uris.length; i++ )
+        {
+            uris[ i ] = instance.save( object( i ), "/hot/" );
+        }
+        instance.migrate();
+
+        instance.delete( uris[ 0 ] );
+        try
+        {
+            instance.get( uris[ 0 ] );
+            fail( "Deleted object was returned" );
+        }
+        catch( FileNotFoundException ex )
+        {
+            // expected
+        }
+    }
+
+
+    @Test
+    public void testOverwriteOfColdObjectIsHot() throws Exception
+    {
+        URI[] uris = new URI[ 4 ];
+        for( int i = 0; i < uris.length; i++ )
+        {
+            uris[ i ] = instance.save( object( i ), "/hot/" );
+        }
+        instance.migrate();
+
+        instance.save( object( 9 ), uris[ 0 ], "/hot/" );
+
+        assertTrue( instance.isHot( uris[ 0 ] ) );
+        assertTrue( Arrays.equals( object( 9 ), instance.get( uris[ 0 ] ) ) );
+        try
+        {
+            storage.get( cold( uris[ 0 ] ) );
+            fail( "Stale cold copy was kept" );
+        }
+        catch( FileNotFoundException ex )
+        {
+            // expected
+        }
+    }
+
+
+    @Test
+    public void testObjectThatCannotBeDemotedIsSkipped() throws Exception
+    {
+        URI[] uris = new URI[ 4 ];
+        for( int i = 0; i < uris.length; i++ )
+        {
+            uris[ i ] = instance.save( object( i ), "/hot/" );
+        }
+        instance.close();
+        storage = new SegmentStorage( directory );
+        final URI unreadable = uris[ 0 ];
+        StorageProvider failing = new DelegatingStorageProvider( storage )
+        {
+            @Override
+            public InputStream getStream( URI identifier ) throws IOException
+            {
+                if( unreadable.equals( identifier ) )
+                {
+                    throw new IOException( "Bad sector" );
+                }
+                return super.getStream( identifier );
+            }
+        };
+        instance = new TieredStorageProvider( failing, "/hot/", "/cold/", stateFile, 3000, 2, null );
+
+        try
+        {
+            instance.migrate();
+            fail( "The failed demotion was not reported" );
+        }
+        catch( IOException ex )
+        {
+            // expected
+        }
+
+        assertTrue( instance.isHot( uris[ 0 ] ) );
+        assertFalse( instance.isHot( uris[ 1 ] ) );
+        assertFalse( instance.isHot( uris[ 2 ] ) );
+        assertTrue( instance.isHot( uris[ 3 ] ) );
+        assertEquals( 2000, instance.getHotBytes() );
+        assertTrue( Arrays.equals( object( 2 ), storage.get( cold( uris[ 2 ] ) ) ) );
+        assertEquals( 0, instance.migrate() );
+    }
+
+
+    @Test
+    public void testRecencyIsKeptAcrossRestarts() throws Exception
+    {
+        URI first = instance.save( object( 1 ), "/hot/" );
+        URI second = instance.save( object( 2 ), "/hot/" );
+        instance.close();
+        storage = new SegmentStorage( directory );
+        instance = new TieredStorageProvider( storage, "/hot/", "/cold/", stateFile, 3000, 2, null );
+
+        assertTrue( instance.isHot( first ) );
+        assertTrue( instance.isHot( second ) );
+        assertEquals( 2000, instance.getHotBytes() );
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class WriteAheadJournalTest {
+
+    private File file;
+    private WriteAheadJournal instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        file = File.createTempFile( "journal", ".log" );
+        instance = new WriteAheadJournal( file, 0 );
+    }
+
+
+    @After
+    public void tearDown() throws Exception
+    {
+        instance.close();
+        file.delete();
+    }
+
+
+    @Test
+    public void testAppendAndRead() throws Exception
+    {
+        assertEquals( 1, instance.append( JournalingStorageProvider.PUT, "file:/a", "/", "first".getBytes() ) );
+        assertEquals( 2, instance.append( JournalingStorageProvider.DELETE, "file:/b", null, new byte[ 0 ] ) );
+        instance.await( 2, Durability.PER_WRITE );
+        instance.close();
+
+        instance = new WriteAheadJournal( file, 0 );
+        List<WriteAheadJournal.Entry> entries = instance.read();
+        assertEquals( 2, entries.size() );
+        assertEquals( "file:/a", entries.get( 0 ).key );
+        assertEquals( "first", new String( entries.get( 0 ).data ) );
+        assertEquals( JournalingStorageProvider.DELETE, entries.get( 1 ).type );
+        assertEquals( "", entries.get( 1 ).storagePath );
+    }
+
+
+    @Test
+    public void testTornTailIsTruncated() throws Exception
+    {
+        instance.append( JournalingStorageProvider.PUT, "file:/a", "/", "kept".getBytes() );
+        instance.append( JournalingStorageProvider.PUT, "file:/b", "/", "torn".getBytes() );
+        instance.close();
+        RandomAccessFile raw = new RandomAccessFile( file, "rw" );
+        raw.setLength( raw.length() - 2 );
+        raw.close();
+
+        instance = new WriteAheadJournal( file, 0 );
+        assertEquals( 1, instance.read().size() );
+        long size = instance.size();
+        assertEquals( size, file.length() );
+        instance.append( JournalingStorageProvider.PUT, "file:/c", "/", "after".getBytes() );
+        instance.close();
+
+        instance = new WriteAheadJournal( file, 0 );
+        assertEquals( "file:/c", instance.read().get( 1 ).key );
+    }
+
+
+    @Test
+    public void testDamagedLengthIsNotAllocated() throws Exception
+    {
+        instance.append( JournalingStorageProvider.PUT, "file:/a", "/", "kept".getBytes() );
+        long kept = instance.size();
+        instance.append( JournalingStorageProvider.PUT, "file:/b", "/", "damaged".getBytes() );
+        instance.close();
+        RandomAccessFile raw = new RandomAccessFile( file, "rw" );
+        // magic, type, key and storage path precede the data length
+        raw.seek( kept + 4 + 1 + 2 + 7 + 2 + 1 );
+        raw.writeInt( Integer.MAX_VALUE );
+        raw.close();
+
+        instance = new WriteAheadJournal( file, 0 );
+        assertEquals( 1, instance.read().size() );
+        assertEquals( kept, file.length() );
+    }
+
+
+    @Test
+    public void testFailedForceFailsEveryRecordItCovered() throws Exception
+    {
+        long first = instance.append( JournalingStorageProvider.PUT, "file:/a", "/", new byte[ 10 ] );
+        long second = instance.append( JournalingStorageProvider.PUT, "file:/b", "/", new byte[ 10 ] );
+        // a closed channel fails to force
+        instance.close();
+
+        try
+        {
+            instance.await( first, Durability.PER_WRITE );
+            fail( "the force did not fail" );
+        }
+        catch( IOException expected )
+        {
+        }
+        // the second record was covered by the same failed force
+        try
+        {
+            instance.await( second, Durability.PER_WRITE );
+            fail( "a record of a failed commit was reported durable" );
+        }
+        catch( IOException expected )
+        {
+        }
+    }
+
+
+    @Test
+    public void testConcurrentWritersAreAllCommitted() throws Exception
+    {
+        final int writers = 8;
+        final CountDownLatch done = new CountDownLatch( writers );
+        final Exception[] failure = new Exception[ 1 ];
+        for( int i = 0; i < writers; i++ )
+        {
+            final String key = "file:/" + i;
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for( int j = 0; j < 20; j++ )
+                        {
+                            long sequence = instance.append( JournalingStorageProvider.PUT, key, "/", new byte[ 100 ] );
+                            instance.await( sequence, Durability.BATCHED );
+                        }
+                    }
+                    catch( Exception ex )
+                    {
+                        failure[ 0 ] = ex;
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        assertNull( failure[ 0 ] );
+        instance.close();
+
+        instance = new WriteAheadJournal( file, 0 );
+        assertEquals( writers * 20, instance.read().size() );
+    }
+}
@@ -25,4 +25,14 @@ public class InternalDigitalObjectTest {
         byte[] result = instance.getBytes();
         assertTrue( Arrays.equals( expResult, result ) );
     }
+
+    @Test
+    public void testGetInputStream() throws Exception
+    {
+        InternalDigitalObject instance = new InternalDigitalObject( testInput.getBytes() );
+        byte[] expResult = testInput.getBytes();
+        byte[] result = new byte[ (int) instance.getLength() ];
+        assertEquals( expResult.length, instance.getInputStream().read( result ) );
+        assertTrue( Arrays.equals( expResult, result ) );
+    }
 }
\ No newline at end of file
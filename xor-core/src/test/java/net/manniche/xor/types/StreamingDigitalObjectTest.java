@@ -0,0 +1,48 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.types;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import net.manniche.xor.exceptions.RepositoryServiceException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class StreamingDigitalObjectTest {
+
+    private static final byte[] testInput = "æøåöïüäß".getBytes();
+
+    @Test
+    public void testGetBytesReadsExactlyLength() throws Exception
+    {
+        byte[] padded = Arrays.copyOf( testInput, testInput.length + 10 );
+        StreamingDigitalObject instance = new StreamingDigitalObject( new ByteArrayInputStream( padded ), testInput.length );
+        assertTrue( Arrays.equals( testInput, instance.getBytes() ) );
+    }
+
+
+    @Test( expected=RepositoryServiceException.class )
+    public void testShortStreamFails() throws Exception
+    {
+        StreamingDigitalObject instance = new StreamingDigitalObject( new ByteArrayInputStream( testInput ), testInput.length + 1 );
+        instance.getBytes();
+    }
+
+
+    @Test( expected=RepositoryServiceException.class )
+    public void testStreamCanOnlyBeConsumedOnce() throws Exception
+    {
+        StreamingDigitalObject instance = new StreamingDigitalObject( new ByteArrayInputStream( testInput ), testInput.length );
+        assertEquals( testInput.length, instance.getLength() );
+        instance.getInputStream();
+        instance.getBytes();
+    }
+}
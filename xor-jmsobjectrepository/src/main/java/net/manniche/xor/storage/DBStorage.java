@@ -29,7 +29,7 @@ import javax.naming.ConfigurationException;
  * 
  * @author Steen Manniche
  */
-public abstract class DBStorage implements StorageProvider{
+public abstract class DBStorage extends AbstractStorageProvider{
 
     private final String driver;
     private final String url;
@@ -38,10 +38,24 @@ public abstract class DBStorage implements StorageProvider{
 
     public DBStorage( ) throws ConfigurationException
     {
-        this.driver = System.getProperty( "driver_name" );
-        this.url = System.getProperty( "url" );
-        this.user = System.getProperty( "user" );
-        this.passwd = System.getProperty( "passwd" );
+        this( System.getProperty( "driver_name" ), System.getProperty( "url" ),
+              System.getProperty( "user" ), System.getProperty( "passwd" ) );
+    }
+
+
+    /**
+     * @param driver the class name of the JDBC driver
+     * @param url the JDBC url of the database
+     * @param user the database user
+     * @param passwd the password of the database user
+     * @throws ConfigurationException if any of the values are missing
+     */
+    public DBStorage( String driver, String url, String user, String passwd ) throws ConfigurationException
+    {
+        this.driver = driver;
+        this.url = url;
+        this.user = user;
+        this.passwd = passwd;
 
         if( null == this.driver )
         {
@@ -62,6 +76,30 @@ public abstract class DBStorage implements StorageProvider{
     }
 
 
+    protected String getDriver()
+    {
+        return this.driver;
+    }
+
+
+    protected String getUrl()
+    {
+        return this.url;
+    }
+
+
+    protected String getUser()
+    {
+        return this.user;
+    }
+
+
+    protected String getPasswd()
+    {
+        return this.passwd;
+    }
+
+
     @Override
     public abstract URI save( byte[] object, String storagePath ) throws IOException;
 
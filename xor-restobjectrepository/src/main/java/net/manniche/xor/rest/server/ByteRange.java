@@ -0,0 +1,117 @@
+/*
+ *  This file is part of xor.
+ *  Copyright © 2009, Steen Manniche.
+ * 
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.manniche.xor.rest.server;
+
+
+/**
+ * A single byte range of an object, parsed from the value of an HTTP
+ * {@code Range} header such as {@code bytes=0-499}, {@code bytes=500-} or
+ * {@code bytes=-500}.
+ *
+ * @author Steen Manniche
+ */
+final class ByteRange
+{
+    private final long first;
+    private final long last;
+
+    private ByteRange( long first, long last )
+    {
+        this.first = first;
+        this.last = last;
+    }
+
+
+    /**
+     * @param header the value of the Range header, may be null
+     * @param length the length of the object
+     * @return the requested range, clamped to the object, or null if the
+     * whole object should be returned because there is no header, the
+     * header cannot be parsed or it asks for several ranges
+     * @throws IllegalArgumentException if the range does not overlap the
+     * object
+     */
+    static ByteRange parse( String header, long length )
+    {
+        if( null == header || ! header.startsWith( "bytes=" ) || header.indexOf( ',' ) >= 0 )
+        {
+            return null;
+        }
+        String spec = header.substring( "bytes=".length() ).trim();
+        int dash = spec.indexOf( '-' );
+        if( dash < 0 )
+        {
+            return null;
+        }
+        long first;
+        long last;
+        try
+        {
+            if( 0 == dash )
+            {
+                // the last n bytes
+                long suffix = Long.parseLong( spec.substring( 1 ) );
+                if( suffix <= 0 || 0 == length )
+                {
+                    throw new IllegalArgumentException( String.format( "Range %s is not satisfiable for %s bytes", header, length ) );
+                }
+                first = Math.max( 0, length - suffix );
+                last = length - 1;
+            }
+            else
+            {
+                first = Long.parseLong( spec.substring( 0, dash ) );
+                last = dash == spec.length() - 1 ? length - 1 : Math.min( length - 1, Long.parseLong( spec.substring( dash + 1 ) ) );
+            }
+        }
+        catch( NumberFormatException ex )
+        {
+            return null;
+        }
+        if( first < 0 || last < first )
+        {
+            if( first >= length )
+            {
+                throw new IllegalArgumentException( String.format( "Range %s is not satisfiable for %s bytes", header, length ) );
+            }
+            return null;
+        }
+        return new ByteRange( first, last );
+    }
+
+
+    long getFirst()
+    {
+        return this.first;
+    }
+
+
+    long getLast()
+    {
+        return this.last;
+    }
+
+
+    /**
+     * @return the number of bytes in the range
+     */
+    long getLength()
+    {
+        return this.last - this.first + 1;
+    }
+}
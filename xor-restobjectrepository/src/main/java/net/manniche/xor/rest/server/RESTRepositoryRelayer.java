@@ -34,10 +34,12 @@ import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.GET;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.PUT;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
+import net.manniche.xor.exceptions.ObjectNotFoundException;
 import net.manniche.xor.exceptions.RepositoryServiceException;
 import net.manniche.xor.types.ObjectRepositoryContentType;
 import net.manniche.xor.types.RepositoryAction;
@@ -48,7 +50,8 @@ import net.manniche.xor.types.RepositoryAction;
  * Retrieval operations:
  * GET: http://localhost/xor/objects/1234567890
  *
- * will retrive object with uri name 1234567890
+ * will retrive object with uri name 1234567890. A single HTTP Range, eg.
+ * "Range: bytes=0-1023", retrieves only that part of the object.
  *
  * Mutating operations:
  * POST: http://localhost/xor/objects/1234567890
@@ -83,20 +86,79 @@ public final class RESTRepositoryRelayer extends RepositoryServer implements RES
         this.metadataStoragePath = metadataStoragePath;
     }
 
+    /**
+     * Returns the object, or the part of it given by a single range in the
+     * Range header with status 206. Requests with several ranges are
+     * answered with the whole object.
+     */
     @Path( "object/{identifier}" )
     @GET
     @Produces( MediaType.APPLICATION_OCTET_STREAM )
+    public Response getRepositoryObject( @PathParam( "identifier" ) RESTObjectIdentifier identifier, @HeaderParam( "Range" ) String range )
+    {
+        if( null == range )
+        {
+            return Response.ok( this.getRepositoryObject( identifier ) ).header( "Accept-Ranges", "bytes" ).build();
+        }
+        RESTObjectIdentifier id = this.toStorageIdentifier( identifier );
+        try
+        {
+            long length = super.getObjectLength( id );
+            ByteRange requested;
+            try
+            {
+                requested = ByteRange.parse( range, length );
+            }
+            catch( IllegalArgumentException ex )
+            {
+                Log.fine( ex.getMessage() );
+                return Response.status( 416 ).header( "Content-Range", String.format( "bytes */%s", length ) ).build();
+            }
+            if( null == requested )
+            {
+                return Response.ok( this.getRepositoryObject( identifier ) ).header( "Accept-Ranges", "bytes" ).build();
+            }
+            // a range larger than a byte array is cut short, as clients
+            // must accept
+            int count = (int) Math.min( requested.getLength(), Integer.MAX_VALUE - 8 );
+            byte[] part = super.getObjectRange( id, requested.getFirst(), count ).getBytes();
+            String contentRange = String.format( "bytes %s-%s/%s", requested.getFirst(), requested.getFirst() + part.length - 1, length );
+            return Response.status( 206 ).entity( part ).header( "Content-Range", contentRange ).header( "Accept-Ranges", "bytes" ).build();
+        }
+        catch( ObjectNotFoundException ex )
+        {
+            Log.fine( ex.getMessage() );
+            throw new WebApplicationException( Response.Status.NOT_FOUND );
+        }
+        catch( IOException ex )
+        {
+            String error = String.format( "Failed to retrieve range %s of object identified by %s: %s", range, identifier, ex.getMessage() );
+            Logger.getLogger( RESTRepositoryRelayer.class.getName() ).log( Level.WARNING, error, ex );
+            throw new WebApplicationException( ex, Response.Status.NOT_FOUND );
+        }
+        catch( RepositoryServiceException ex )
+        {
+            String error = String.format( "Failed to retrieve range %s of object identified by %s: %s", range, identifier, ex.getMessage() );
+            Logger.getLogger( RESTRepositoryRelayer.class.getName() ).log( Level.SEVERE, error, ex );
+            throw new WebApplicationException( ex, Response.Status.INTERNAL_SERVER_ERROR );
+        }
+    }
+
+
     @Override
-    public DigitalObject getRepositoryObject( @PathParam( "identifier" ) RESTObjectIdentifier identifier )
+    public DigitalObject getRepositoryObject( RESTObjectIdentifier identifier )
     {
-        String uri = String.format( "%s://%s%s", storage.getScheme(), this.storagePath, identifier.getName() );
-        Log.info( uri );
+        RESTObjectIdentifier id = this.toStorageIdentifier( identifier );
         RESTDigitalObject digobj = null;
-        RESTObjectIdentifier id = new RESTObjectIdentifier( uri );
         try
         {
             digobj = ( RESTDigitalObject )super.getObject( id );
         }
+        catch( ObjectNotFoundException ex )
+        {
+            Log.fine( ex.getMessage() );
+            throw new WebApplicationException( Response.Status.NOT_FOUND );
+        }
         catch( IOException ex )
         {
             String error = String.format( "Failed to retrieve object identified by %s: %s", identifier, ex.getMessage() );
@@ -108,6 +170,14 @@ public final class RESTRepositoryRelayer extends RepositoryServer implements RES
         return digobj;
     }
 
+
+    private RESTObjectIdentifier toStorageIdentifier( RESTObjectIdentifier identifier )
+    {
+        String uri = String.format( "%s://%s%s", storage.getScheme(), this.storagePath, identifier.getName() );
+        Log.info( uri );
+        return new RESTObjectIdentifier( uri );
+    }
+
     // @GET
     // @Path( "objects/{query}" )
     // @Override
@@ -119,7 +189,7 @@ public final class RESTRepositoryRelayer extends RepositoryServer implements RES
     @PUT
     @Path( "object/" )
     @Override
-    public synchronized ObjectIdentifier storeRepositoryObject( DigitalObject object, ObjectRepositoryContentType contentType, String logmessage )
+    public ObjectIdentifier storeRepositoryObject( DigitalObject object, ObjectRepositoryContentType contentType, String logmessage )
     {
         ObjectIdentifier objectid = null;
         Log.info( String.format( "Storing object %s at %s", object, this.storagePath ) );
@@ -159,8 +229,9 @@ public final class RESTRepositoryRelayer extends RepositoryServer implements RES
 
     @DELETE
     @Override
-    public synchronized void deleteRepositoryObject( ObjectIdentifier identifier, String logmessage )
+    public void deleteRepositoryObject( ObjectIdentifier identifier, String logmessage )
     {
+        // the storage orders the operations on each object itself
         try
         {
             super.deleteObject( identifier, logmessage );
@@ -20,7 +20,6 @@ package net.manniche.xor.rest.server;
 
 import java.util.logging.Logger;
 import net.manniche.xor.storage.FileStorage;
-import net.manniche.xor.storage.StorageProvider;
 import org.apache.cxf.jaxrs.JAXRSServerFactoryBean;
 import org.apache.cxf.jaxrs.lifecycle.SingletonResourceProvider;
 
@@ -34,7 +33,9 @@ public class RESTServer{
         String sep = System.getProperty( "file.separator" );
         String storagePath = System.getProperty( "user.home" ) + sep + "objectstorage" + sep;
         String metadataStoragePath = System.getProperty( "user.home" ) + sep + "objectstorage" + sep + "contenttypes" + sep;
-        StorageProvider store = new FileStorage();
+        FileStorage store = new FileStorage();
+        // builds the membership filter in the background
+        store.addStoragePath( storagePath );
 
         JAXRSServerFactoryBean sf = new JAXRSServerFactoryBean();
         sf.setResourceClasses( RESTRepositoryRelayer.class );
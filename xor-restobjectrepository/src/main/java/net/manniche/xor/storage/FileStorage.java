@@ -17,18 +17,40 @@
  */
 package net.manniche.xor.storage;
 
-import java.io.ByteArrayOutputStream;
 import java.net.URISyntaxException;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import net.manniche.xor.exceptions.ObjectNotFoundException;
 import net.manniche.xor.utils.RepositoryUtilities;
 
 
@@ -36,7 +58,7 @@ import net.manniche.xor.utils.RepositoryUtilities;
  *
  * @author Steen Manniche
  */
-public class FileStorage implements StorageProvider
+public class FileStorage implements ReferenceCountedStorageProvider
 {
 
     private final static String SCHEME = "file";
@@ -45,15 +67,178 @@ public class FileStorage implements StorageProvider
 
     private final Set<String> storagePaths;
 
+    /**
+     * Objects of this size (in bytes) or larger are served from a memory
+     * mapped region of the file rather than read through the channel.
+     */
+    private static final long DEFAULT_MAPPED_READ_THRESHOLD = 4 * 1024 * 1024;
+    private final long mappedReadThreshold;
+
+    /**
+     * Digest used to name objects when storing in content addressed mode.
+     */
+    private static final String CONTENT_DIGEST = "SHA-256";
+    private final boolean contentAddressed;
+    private final ReferenceCounter references;
+
+    private final FanOutLayout layout;
+
+    /**
+     * Files written since the last {@link #sync()}, and directories whose
+     * entries changed since then, collected only while sync tracking is on.
+     */
+    private final Set<File> unsynced;
+    private final Set<File> unsyncedDirectories;
+    private volatile boolean syncTracking;
+
+    /**
+     * If true, every object is forced to disk before it is moved into place,
+     * and its directory after it has been moved or deleted.
+     */
+    private final boolean forceWrites;
+
+    /**
+     * Names of the stored objects, so that requests for objects that do not
+     * exist can be answered without touching the file system. Null if
+     * disabled.
+     */
+    private static final int DEFAULT_EXPECTED_OBJECTS = 1000000;
+    private final CountingBloomFilter objectNames;
+
+    /**
+     * Storage paths whose objects have all been added to {@link #objectNames}.
+     */
+    private final List<String> indexedPaths;
+
+    /**
+     * Storage paths whose objects are being added to {@link #objectNames}
+     * in the background.
+     */
+    private final List<String> indexingPaths;
+
+    /**
+     * Walks the storage paths being indexed, one after another, in a single
+     * low priority thread that ends when there is nothing left to index.
+     */
+    private final ExecutorService indexer;
+
+    /**
+     * Orders writes and deletes of the same object file, while writes of
+     * different objects proceed in parallel. Objects are locked by name,
+     * which is the same in the flat and in the sharded location, and are
+     * located once they are locked, as a {@link #migrate(java.lang.String)
+     * migration} may have moved them in the meantime.
+     */
+    private final StripedLock objectLocks;
+
+    /**
+     * Objects are written to temporary files named like this in the
+     * directory of the object, and renamed into place when complete.
+     */
+    private static final String TEMPORARY_PREFIX = ".xor-";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /**
+     * Temporary files last modified before this time were left behind by
+     * an earlier process, which crashed while writing them. It lies a few
+     * seconds before this FileStorage was created, as some file systems
+     * round modification times down to whole seconds.
+     */
+    private final long staleBefore;
+
+    /**
+     * Creates a FileStorage using the mapped read threshold given by the
+     * system property {@code xor.filestorage.mmap_threshold}, or 4 MB if the
+     * property is not set. If the system property
+     * {@code xor.filestorage.content_addressed} is {@code true}, objects are
+     * stored in content addressed mode. Objects are spread over
+     * subdirectories according to the {@link FanOutLayout#getConfigured()
+     * configured fan-out layout}. If {@code xor.filestorage.force_writes} is
+     * {@code true}, every object is forced to disk before it becomes visible,
+     * and its directory once it is in place or deleted.
+     * Lookups of missing objects are answered from a membership filter sized
+     * for {@code xor.filestorage.expected_objects} objects (one million by
+     * default), or from the file system if the property is 0.
+     */
     public FileStorage()
     {
-        this.storagePaths = new HashSet<String>( 2 );
+        this( Long.getLong( "xor.filestorage.mmap_threshold", DEFAULT_MAPPED_READ_THRESHOLD ),
+              Boolean.getBoolean( "xor.filestorage.content_addressed" ),
+              FanOutLayout.getConfigured() );
+    }
+
+
+    /**
+     * @param mappedReadThreshold objects of this size (in bytes) or larger
+     * are read through memory mapped regions. Use {@link Long#MAX_VALUE} to
+     * never map objects
+     */
+    public FileStorage( long mappedReadThreshold )
+    {
+        this( mappedReadThreshold, false );
+    }
+
+
+    /**
+     * @param mappedReadThreshold objects of this size (in bytes) or larger
+     * are read through memory mapped regions
+     * @param contentAddressed if true, objects stored without an URI are named
+     * by the SHA-256 digest of their content. Identical content is then only
+     * stored once and reference counted, so that the file is only removed
+     * when the last of the objects sharing it is deleted.
+     */
+    public FileStorage( long mappedReadThreshold, boolean contentAddressed )
+    {
+        this( mappedReadThreshold, contentAddressed, FanOutLayout.FLAT );
+    }
+
+
+    /**
+     * @param mappedReadThreshold objects of this size (in bytes) or larger
+     * are read through memory mapped regions
+     * @param contentAddressed if true, objects stored without an URI are named
+     * by the SHA-256 digest of their content
+     * @param layout the fan-out of subdirectories that objects stored without
+     * an URI are placed in. Objects are looked up in both the flat and the
+     * sharded location, so that objects are found in a store whose
+     * migration with {@link FanOutMigration} was interrupted. A store that
+     * is in use is migrated with {@link #migrate(java.lang.String)}.
+     */
+    public FileStorage( long mappedReadThreshold, boolean contentAddressed, FanOutLayout layout )
+    {
+        this.storagePaths = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+        this.mappedReadThreshold = mappedReadThreshold;
+        this.contentAddressed = contentAddressed;
+        this.references = new ReferenceCounter();
+        this.layout = layout;
+        this.unsynced = Collections.newSetFromMap( new ConcurrentHashMap<File, Boolean>() );
+        this.unsyncedDirectories = Collections.newSetFromMap( new ConcurrentHashMap<File, Boolean>() );
+        this.forceWrites = Boolean.getBoolean( "xor.filestorage.force_writes" );
+        int expectedObjects = Integer.getInteger( "xor.filestorage.expected_objects", DEFAULT_EXPECTED_OBJECTS );
+        this.objectNames = expectedObjects > 0 ? new CountingBloomFilter( expectedObjects ) : null;
+        this.indexedPaths = new CopyOnWriteArrayList<String>();
+        this.indexingPaths = new CopyOnWriteArrayList<String>();
+        ThreadPoolExecutor indexing = new ThreadPoolExecutor( 1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+        {
+            @Override
+            public Thread newThread( Runnable runnable )
+            {
+                Thread thread = new Thread( runnable, "xor-filestorage-index" );
+                thread.setDaemon( true );
+                thread.setPriority( Thread.MIN_PRIORITY );
+                return thread;
+            }
+        } );
+        indexing.allowCoreThreadTimeOut( true );
+        this.indexer = indexing;
+        this.objectLocks = new StripedLock();
+        this.staleBefore = System.currentTimeMillis() - 2000;
     }
 
 
     //TODO: this should be wrapped in a private static class instead. Or
     // something that prohibits the rest of the members in observing this.storagePath
-    private synchronized String setCacheOrCheckStoragePath( String storagePath )
+    private String setCacheOrCheckStoragePath( String storagePath )
     {
         if( !this.storagePaths.contains( storagePath ) )
         {
@@ -63,26 +248,239 @@ public class FileStorage implements StorageProvider
             if( !storage_dir.exists() )
             {
                 Log.info( String.format( "%s does not exist, creating it", storagePath ) );
+                File existing = storage_dir.getAbsoluteFile().getParentFile();
+                while( null != existing && ! existing.isDirectory() )
+                {
+                    existing = existing.getParentFile();
+                }
                 boolean could_create_dirs = storage_dir.mkdirs();
-                if( !could_create_dirs )
+                // another thread may have created it in the meantime
+                if( !could_create_dirs && !storage_dir.isDirectory() )
                 {
                     String error = String.format( "Could not create dir: %s, Please check permissions and disk space", storagePath );
                     Log.severe( error );
                     throw new IllegalStateException( error );
                 }
+                // the new directories must reach the disk along with the
+                // objects moved into them
+                try
+                {
+                    for( File created = storage_dir.getAbsoluteFile(); null != created && ! created.equals( existing ); created = created.getParentFile() )
+                    {
+                        this.directoryChanged( created.getParentFile() );
+                    }
+                }
+                catch( IOException ex )
+                {
+                    String error = String.format( "Could not force the parent directories of %s to disk: %s", storagePath, ex.getMessage() );
+                    Log.log( Level.SEVERE, error, ex );
+                    throw new IllegalStateException( error, ex );
+                }
+            }
+            if( null != this.objectNames )
+            {
+                // lookups below the path go to the file system until the
+                // objects already stored there are in the filter; the walk
+                // also deletes stale temporary files
+                this.startIndexing( storage_dir );
+            }
+            else
+            {
+                this.deleteStaleTemporaries( storage_dir );
+            }
+            if( this.storagePaths.add( storagePath ) )
+            {
+                Log.info( String.format( "Storing files at %s", storagePath ) );
             }
-            this.storagePaths.add( storagePath );
-            Log.info( String.format( "Storing files at %s", storagePath ) );
         }
         return storagePath;
     }
 
 
+    /**
+     * Creates {@code storagePath} if necessary and starts adding the objects
+     * already stored below it to the membership filter. Servers call this
+     * at startup for each of their storage paths, so that the filter is
+     * built in the background rather than when the first object is saved.
+     */
+    public void addStoragePath( String storagePath )
+    {
+        this.setCacheOrCheckStoragePath( storagePath );
+    }
+
+
+    /**
+     * @return true if lookups below {@code storagePath} are answered from
+     * the membership filter
+     */
+    public boolean isIndexed( String storagePath )
+    {
+        return null != this.objectNames && this.isIndexed( new File( storagePath ) );
+    }
+
+
+    /**
+     * Adds the objects below {@code directory} to the membership filter in
+     * the indexing thread, unless they are already added or being added.
+     */
+    private void startIndexing( final File directory )
+    {
+        final String path = directory.getAbsolutePath() + File.separator;
+        synchronized( this.indexingPaths )
+        {
+            if( this.isIndexed( directory ) || isBelow( directory, this.indexingPaths ) )
+            {
+                return;
+            }
+            this.indexingPaths.add( path );
+        }
+        this.indexer.execute( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    index( directory );
+                }
+                catch( RuntimeException ex )
+                {
+                    Log.log( Level.SEVERE, String.format( "Could not index %s: %s", directory, ex.getMessage() ), ex );
+                }
+                finally
+                {
+                    indexingPaths.remove( path );
+                }
+            }
+        } );
+    }
+
+
+    /**
+     * Adds the names of the objects already stored below {@code directory}
+     * to the membership filter, after which lookups below it are answered
+     * from the filter. This assumes that no one but this FileStorage adds
+     * objects to the directory. Objects saved while the directory is walked
+     * may be added twice, which only makes the filter answer that they
+     * might exist after they have been deleted.
+     */
+    private void index( File directory )
+    {
+        long start = System.currentTimeMillis();
+        int count = this.addNames( directory );
+        this.indexedPaths.add( directory.getAbsolutePath() + File.separator );
+        Log.info( String.format( "Indexed %s objects in %s in %s ms", count, directory, System.currentTimeMillis() - start ) );
+    }
+
+
+    private int addNames( File directory )
+    {
+        File[] files = directory.listFiles();
+        if( null == files )
+        {
+            return 0;
+        }
+        int count = 0;
+        for( File file : files )
+        {
+            String name = file.getName();
+            if( isTemporary( name ) )
+            {
+                this.deleteIfStale( file );
+            }
+            else if( name.startsWith( "." ) )
+            {
+                // reference counts, quarantine, journals and other state
+                // kept next to the objects
+                continue;
+            }
+            else if( file.isDirectory() )
+            {
+                count += this.addNames( file );
+            }
+            else
+            {
+                this.objectNames.add( file.getName() );
+                count++;
+            }
+        }
+        return count;
+    }
+
+
+    /**
+     * Deletes the stale temporary files in {@code directory}, see
+     * {@link #deleteIfStale(java.io.File)}.
+     */
+    private void deleteStaleTemporaries( File directory )
+    {
+        File[] temporaries = directory.listFiles( new FilenameFilter()
+        {
+            @Override
+            public boolean accept( File dir, String name )
+            {
+                return isTemporary( name );
+            }
+        } );
+        if( null != temporaries )
+        {
+            for( File temporary : temporaries )
+            {
+                this.deleteIfStale( temporary );
+            }
+        }
+    }
+
+
+    /**
+     * Deletes {@code temporary} if it was left behind by a write that never
+     * completed. Only files last modified before this FileStorage was
+     * created are deleted, since newer ones may still be being written.
+     */
+    private void deleteIfStale( File temporary )
+    {
+        if( temporary.lastModified() < this.staleBefore && temporary.delete() )
+        {
+            Log.info( String.format( "Deleted %s, left behind by an interrupted write", temporary ) );
+        }
+    }
+
+
+    private static boolean isTemporary( String name )
+    {
+        return name.startsWith( TEMPORARY_PREFIX ) && name.endsWith( TEMPORARY_SUFFIX );
+    }
+
+
+    private boolean isIndexed( File file )
+    {
+        return isBelow( file, this.indexedPaths );
+    }
+
+
+    private static boolean isBelow( File file, List<String> paths )
+    {
+        String path = file.getAbsolutePath();
+        for( String parent : paths )
+        {
+            if( path.startsWith( parent ) || ( path + File.separator ).equals( parent ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
     @Override
     public URI save( byte[] object, String storagePath ) throws IOException
     {
         String storagePath_cached = this.setCacheOrCheckStoragePath( storagePath );
-        return this.saveObject( object, null, storagePath_cached );
+        if( this.contentAddressed )
+        {
+            return this.saveContentAddressed( new ByteArrayInputStream( object ), object.length, storagePath_cached, null );
+        }
+        return this.saveObject( new ByteArrayInputStream( object ), object.length, null, storagePath_cached, null );
     }
 
 
@@ -90,7 +488,28 @@ public class FileStorage implements StorageProvider
     public void save(  byte[] object, URI uri, String storagePath) throws IOException
     {
         String storagePath_cached = this.setCacheOrCheckStoragePath( storagePath );
-        URI returnedURL = this.saveObject( object, uri, storagePath_cached );
+        URI returnedURL = this.saveObject( new ByteArrayInputStream( object ), object.length, uri, storagePath_cached, null );
+        assert returnedURL.equals( uri );
+    }
+
+
+    @Override
+    public URI save( InputStream object, long length, String storagePath ) throws IOException
+    {
+        String storagePath_cached = this.setCacheOrCheckStoragePath( storagePath );
+        if( this.contentAddressed )
+        {
+            return this.saveContentAddressed( object, length, storagePath_cached, null );
+        }
+        return this.saveObject( object, length, null, storagePath_cached, null );
+    }
+
+
+    @Override
+    public void save( InputStream object, long length, URI uri, String storagePath ) throws IOException
+    {
+        String storagePath_cached = this.setCacheOrCheckStoragePath( storagePath );
+        URI returnedURL = this.saveObject( object, length, uri, storagePath_cached, null );
         assert returnedURL.equals( uri );
     }
 
@@ -101,27 +520,79 @@ public class FileStorage implements StorageProvider
     }
 
 
-    private URI saveObject( byte[] object, URI url, final String storagePath ) throws IOException
+    @Override
+    public BatchResult<URI> saveAll( List<byte[]> objects, String storagePath ) throws IOException
     {
-        final String hash = Integer.toString( object.hashCode() );
-
+        String storagePath_cached = this.setCacheOrCheckStoragePath( storagePath );
+        Set<String> checkedDirectories = new HashSet<String>();
+        BatchResult<URI> result = new BatchResult<URI>( objects.size() );
+        for( int i = 0; i < objects.size(); i++ )
+        {
+            byte[] object = objects.get( i );
+            try
+            {
+                if( this.contentAddressed )
+                {
+                    result.succeeded( i, this.saveContentAddressed( new ByteArrayInputStream( object ), object.length, storagePath_cached, checkedDirectories ) );
+                }
+                else
+                {
+                    result.succeeded( i, this.saveObject( new ByteArrayInputStream( object ), object.length, null, storagePath_cached, checkedDirectories ) );
+                }
+            }
+            catch( IOException ex )
+            {
+                result.failed( i, ex );
+            }
+        }
+        return result;
+    }
 
-        URI id = null;
 
-        if( null == url )
+    @Override
+    public BatchResult<Void> saveAll( List<byte[]> objects, List<URI> uris, String storagePath ) throws IOException
+    {
+        BatchOperations.checkSizes( objects, uris );
+        String storagePath_cached = this.setCacheOrCheckStoragePath( storagePath );
+        Set<String> checkedDirectories = new HashSet<String>();
+        BatchResult<Void> result = new BatchResult<Void>( objects.size() );
+        for( int i = 0; i < objects.size(); i++ )
         {
+            byte[] object = objects.get( i );
             try
             {
-                id = RepositoryUtilities.generateURI( "file", storagePath, hash );
-                Log.info( String.format( "URI for object was null, generated %s", id ) );
+                this.saveObject( new ByteArrayInputStream( object ), object.length, uris.get( i ), storagePath_cached, checkedDirectories );
+                result.succeeded( i, null );
             }
-            catch( URISyntaxException ex )
+            catch( IOException ex )
             {
-                String error = String.format( "Could not construct storage location from %s: %s", url, ex.getMessage() );
-                Log.log( Level.SEVERE, error, ex );
-                throw new IOException( error, ex );
+                result.failed( i, ex );
             }
         }
+        return result;
+    }
+
+
+    /**
+     * Writes exactly {@code length} bytes from {@code object} to the file
+     * identified by {@code url}, or to a new file with a random name in
+     * {@code storagePath} if no url is given. Directories already in
+     * {@code checkedDirectories}, if given, are not checked again. The object is written to a
+     * temporary file next to the target and then renamed over it, so readers
+     * see either the old or the new object in its entirety, and a crash
+     * never leaves a partially written object behind.
+     */
+    private URI saveObject( InputStream object, long length, URI url, final String storagePath, Set<String> checkedDirectories ) throws IOException
+    {
+        URI id = null;
+
+        if( null == url )
+        {
+            // a random name, as names derived from the object could collide
+            // and the object would replace another
+            id = this.generateURI( storagePath, UUID.randomUUID().toString().replace( "-", "" ) );
+            Log.info( String.format( "URI for object was null, generated %s", id ) );
+        }
         else
         {
             id = url;
@@ -129,13 +600,35 @@ public class FileStorage implements StorageProvider
         }
 
 
-        File objectFile = new File( id );
+        // an existing object may have been moved by a fan-out migration
+        File objectFile = null == url ? new File( id ) : this.layout.locate( new File( id ) );
+        if( ! this.layout.isFlat() )
+        {
+            this.checkDirectory( objectFile.getParent(), checkedDirectories );
+        }
 
-        final FileOutputStream fos = new FileOutputStream( objectFile, false );
         Log.info( String.format( "Storing object at %s", id.getPath() ) );
-        fos.write( object );
-        fos.flush();
-        fos.close();
+        File temporary = this.writeTemporary( object, length, objectFile.getParentFile(), null );
+        boolean moved = false;
+        Lock lock = this.objectLocks.get( objectFile.getName() );
+        lock.lock();
+        try
+        {
+            if( null != url )
+            {
+                objectFile = this.layout.locate( new File( id ) );
+            }
+            this.moveIntoPlace( temporary, objectFile );
+            moved = true;
+        }
+        finally
+        {
+            lock.unlock();
+            if( ! moved )
+            {
+                temporary.delete();
+            }
+        }
 
         if( ! objectFile.exists() )
         {
@@ -153,51 +646,607 @@ public class FileStorage implements StorageProvider
     }
 
 
+    /**
+     * Writes exactly {@code length} bytes from {@code object} to a temporary
+     * file in {@code storagePath} while computing the SHA-256 digest of the
+     * content. The file is then moved to a location named by the digest, or
+     * discarded and the existing file referenced once more if the content is
+     * already stored.
+     */
+    private URI saveContentAddressed( InputStream object, long length, final String storagePath, Set<String> checkedDirectories ) throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance( CONTENT_DIGEST );
+        }
+        catch( NoSuchAlgorithmException ex )
+        {
+            String error = String.format( "Digest %s is not available: %s", CONTENT_DIGEST, ex.getMessage() );
+            Log.log( Level.SEVERE, error, ex );
+            throw new IOException( error, ex );
+        }
+
+        File temporary = this.writeTemporary( object, length, new File( storagePath ), digest );
+        boolean moved = false;
+        try
+        {
+            URI id = this.generateURI( storagePath, RepositoryUtilities.toHex( digest.digest() ) );
+            File objectFile = new File( id );
+            if( ! this.layout.isFlat() )
+            {
+                this.checkDirectory( objectFile.getParent(), checkedDirectories );
+            }
+            Lock lock = this.objectLocks.get( objectFile.getName() );
+            lock.lock();
+            try
+            {
+                // the content may be stored in the flat location still
+                objectFile = this.layout.locate( objectFile );
+                if( objectFile.isFile() )
+                {
+                    int count = this.references.increment( objectFile );
+                    Log.info( String.format( "Content of %s is already stored, now referenced %s times", id.getPath(), count ) );
+                }
+                else
+                {
+                    this.moveIntoPlace( temporary, objectFile );
+                    moved = true;
+                    Log.info( String.format( "Stored object at %s", id.getPath() ) );
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+            return id;
+        }
+        finally
+        {
+            if( ! moved )
+            {
+                temporary.delete();
+            }
+        }
+    }
+
+
+    /**
+     * Ensures that {@code directory} exists, unless it is already among the
+     * {@code checkedDirectories} of the current batch.
+     */
+    private void checkDirectory( String directory, Set<String> checkedDirectories )
+    {
+        if( null == checkedDirectories || checkedDirectories.add( directory ) )
+        {
+            this.setCacheOrCheckStoragePath( directory );
+        }
+    }
+
+
+    /**
+     * Copies exactly {@code length} bytes from {@code object} into a new
+     * temporary file in {@code directory}, updating {@code digest} if one is
+     * given. The file is forced to disk if writes are forced, and otherwise
+     * remembered for the next {@link #sync()} while sync tracking is on.
+     */
+    private File writeTemporary( InputStream object, long length, File directory, MessageDigest digest ) throws IOException
+    {
+        File temporary = File.createTempFile( TEMPORARY_PREFIX, TEMPORARY_SUFFIX, directory );
+        boolean written = false;
+        try
+        {
+            FileOutputStream fos = new FileOutputStream( temporary );
+            try
+            {
+                OutputStream out = null == digest ? fos : new DigestOutputStream( fos, digest );
+                RepositoryUtilities.copy( object, out, length );
+                out.flush();
+                if( this.forceWrites )
+                {
+                    fos.getFD().sync();
+                }
+            }
+            finally
+            {
+                fos.close();
+            }
+            written = true;
+        }
+        finally
+        {
+            if( ! written )
+            {
+                temporary.delete();
+            }
+        }
+        return temporary;
+    }
+
+
+    /**
+     * Renames {@code temporary} to {@code objectFile}, replacing any existing
+     * object. The rename is atomic on POSIX file systems; where the platform
+     * refuses to rename over an existing file, the old object is removed
+     * first.
+     */
+    private void moveIntoPlace( File temporary, File objectFile ) throws IOException
+    {
+        if( ! temporary.renameTo( objectFile ) )
+        {
+            Log.warning( String.format( "Could not rename %s over %s, replacing it non-atomically", temporary, objectFile ) );
+            if( ! objectFile.delete() || ! temporary.renameTo( objectFile ) )
+            {
+                String error = String.format( "Could not move %s to %s", temporary, objectFile );
+                Log.severe( error );
+                throw new IOException( error );
+            }
+        }
+        if( this.syncTracking && ! this.forceWrites )
+        {
+            this.unsynced.add( objectFile );
+        }
+        this.directoryChanged( objectFile.getParentFile() );
+        if( null != this.objectNames )
+        {
+            this.objectNames.add( objectFile.getName() );
+        }
+    }
+
+
+    /**
+     * Forces {@code directory}, in which a file was renamed, created or
+     * deleted, to disk if writes are forced, and otherwise remembers it for
+     * the next {@link #sync()} while sync tracking is on.
+     */
+    private void directoryChanged( File directory ) throws IOException
+    {
+        if( this.forceWrites )
+        {
+            RepositoryUtilities.forceDirectory( directory );
+        }
+        else if( this.syncTracking )
+        {
+            this.unsyncedDirectories.add( directory );
+        }
+    }
+
+
+    private URI generateURI( String storagePath, String name ) throws IOException
+    {
+        try
+        {
+            return RepositoryUtilities.generateURI( "file", storagePath, name, this.layout );
+        }
+        catch( URISyntaxException ex )
+        {
+            String error = String.format( "Could not construct storage location from %s and %s: %s", storagePath, name, ex.getMessage() );
+            Log.log( Level.SEVERE, error, ex );
+            throw new IOException( error, ex );
+        }
+    }
+
+
+    /**
+     * Opens the object identified by {@code uri}, locating it once more if
+     * a migration moved it after it was first located.
+     */
+    private FileInputStream open( URI uri ) throws FileNotFoundException
+    {
+        File objectFile = this.getObjectFile( uri );
+        try
+        {
+            return new FileInputStream( objectFile );
+        }
+        catch( FileNotFoundException ex )
+        {
+            return new FileInputStream( this.getObjectFile( uri ) );
+        }
+    }
+
+
+    private File getObjectFile( URI uri ) throws FileNotFoundException
+    {
+        File file = new File( uri );
+        if( null != this.objectNames && ! this.objectNames.mightContain( file.getName() ) && this.isIndexed( file ) )
+        {
+            throw new ObjectNotFoundException( String.format( "No object identified by %s", uri ) );
+        }
+
+        File objectFile = this.layout.locate( file );
+        if( ! objectFile.isFile() )
+        {
+            String error = String.format( "Error - '%s' is not a file", uri );
+            Log.fine( error );
+            throw new ObjectNotFoundException( error );
+        }
+        return objectFile;
+    }
+
+
     @Override
     public byte[] get( URI uri ) throws IOException
     {
         Log.info( String.format( "Getting object identified by %s", uri.getPath() ) );
-        File objectFile = null;
-        objectFile = new File( uri );
+        FileInputStream data = this.open( uri );
+        try
+        {
+            byte[] object = this.readFully( data.getChannel(), uri );
+            Log.info( String.format( "Returning byte array with size %s", object.length ) );
+            return object;
+        }
+        finally
+        {
+            data.close();
+        }
+    }
 
-        if( ! objectFile.isFile() )
+
+    /**
+     * Reads the entire contents of {@code channel} into a byte array sized
+     * from the length of the file. Files at or above the mapped read
+     * threshold are copied out of a memory mapped region, smaller files are
+     * filled with bulk channel reads.
+     */
+    private byte[] readFully( FileChannel channel, URI uri ) throws IOException
+    {
+        long size = channel.size();
+        if( size > Integer.MAX_VALUE )
         {
-            String error = String.format( "Error - '%s' is not a file", uri );
+            String error = String.format( "Object %s is too large (%s bytes) to be returned as a byte array", uri, size );
             Log.log( Level.SEVERE, error );
-            throw new FileNotFoundException( error );
+            throw new IOException( error );
         }
 
-        FileInputStream data = new FileInputStream( objectFile );
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        int b = data.read();
-        while( -1 != b )
+        byte[] object = new byte[ (int) size ];
+        if( size >= this.mappedReadThreshold )
         {
-            baos.write( b );
-            b = data.read();
+            MappedByteBuffer region = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+            region.get( object );
+            return object;
         }
-        Log.info( String.format( "Returning byte array (as output stream) with size %s", baos.size() ) );
-        return baos.toByteArray();
+
+        ByteBuffer buffer = ByteBuffer.wrap( object );
+        while( buffer.hasRemaining() )
+        {
+            if( -1 == channel.read( buffer ) )
+            {
+                // the file was truncated while we were reading it
+                return Arrays.copyOf( object, buffer.position() );
+            }
+        }
+        return object;
     }
 
 
+    @Override
+    public BatchResult<byte[]> getAll( List<URI> identifiers ) throws IOException
+    {
+        return BatchOperations.getAll( this, identifiers );
+    }
+
+
+    @Override
+    public InputStream getStream( URI uri ) throws IOException
+    {
+        Log.info( String.format( "Opening stream on object identified by %s", uri.getPath() ) );
+        return this.open( uri );
+    }
+
+
+    @Override
+    public long getLength( URI uri ) throws IOException
+    {
+        File objectFile = this.getObjectFile( uri );
+        long length = objectFile.length();
+        // a missing file has length 0
+        return 0 == length && ! objectFile.isFile() ? this.getObjectFile( uri ).length() : length;
+    }
+
+
+    /**
+     * Reads the range with positional channel reads, leaving the rest of
+     * the file untouched.
+     */
+    @Override
+    public byte[] get( URI uri, long offset, int length ) throws IOException
+    {
+        FileInputStream data = this.open( uri );
+        try
+        {
+            FileChannel channel = data.getChannel();
+            ByteBuffer range = ByteBuffer.allocate( RepositoryUtilities.rangeLength( channel.size(), offset, length ) );
+            while( range.hasRemaining() )
+            {
+                if( -1 == channel.read( range, offset + range.position() ) )
+                {
+                    // truncated since the size was read
+                    return Arrays.copyOf( range.array(), range.position() );
+                }
+            }
+            return range.array();
+        }
+        finally
+        {
+            data.close();
+        }
+    }
+
+
+    @Override
+    public void sync( URI identifier ) throws IOException
+    {
+        Lock lock = this.objectLocks.get( new File( identifier ).getName() );
+        lock.lock();
+        try
+        {
+            File objectFile = this.getObjectFile( identifier );
+            force( objectFile );
+            this.unsynced.remove( objectFile );
+            // the object may have been renamed into place, and its directory
+            // created, since they were last forced
+            File directory = objectFile.getParentFile();
+            this.unsyncedDirectories.remove( directory );
+            RepositoryUtilities.forceDirectory( directory );
+            for( directory = directory.getParentFile(); null != directory; directory = directory.getParentFile() )
+            {
+                if( this.unsyncedDirectories.remove( directory ) )
+                {
+                    RepositoryUtilities.forceDirectory( directory );
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public void sync() throws IOException
+    {
+        for( File objectFile : this.unsynced )
+        {
+            this.unsynced.remove( objectFile );
+            try
+            {
+                force( objectFile );
+            }
+            catch( FileNotFoundException ex )
+            {
+                Log.fine( String.format( "%s was deleted before it was synced", objectFile ) );
+            }
+        }
+        // renames and deletes are durable only once their directory is
+        for( File directory : this.unsyncedDirectories )
+        {
+            this.unsyncedDirectories.remove( directory );
+            RepositoryUtilities.forceDirectory( directory );
+        }
+    }
+
+
+    @Override
+    public void setSyncTracking( boolean enabled )
+    {
+        this.syncTracking = enabled;
+    }
+
+
+    private static void force( File objectFile ) throws IOException
+    {
+        // opening the file for appending would otherwise recreate a deleted file
+        if( ! objectFile.isFile() )
+        {
+            throw new FileNotFoundException( String.format( "%s does not exist", objectFile ) );
+        }
+        FileOutputStream out = new FileOutputStream( objectFile, true );
+        try
+        {
+            out.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+
+    /**
+     * Forces the files written since the last sync to disk.
+     */
     @Override
     public void close()
     {
-        throw new UnsupportedOperationException( "Not supported yet." );
+        try
+        {
+            this.sync();
+        }
+        catch( IOException ex )
+        {
+            Log.log( Level.SEVERE, String.format( "Could not sync stored objects: %s", ex.getMessage() ), ex );
+        }
+    }
+
+
+    /**
+     * Moves the objects stored directly in {@code storagePath} into the
+     * subdirectories of the fan-out layout, while the storage is in use.
+     * Each object is moved along with its reference count while its lock is
+     * held, so saves, deletes and reference counting of the object wait for
+     * the move, and reads locate the object again if it moved under them.
+     *
+     * @return the number of objects moved
+     * @throws IOException if the storage directory cannot be listed
+     */
+    public int migrate( String storagePath ) throws IOException
+    {
+        if( this.layout.isFlat() )
+        {
+            Log.info( String.format( "The layout is flat, %s is not migrated", storagePath ) );
+            return 0;
+        }
+        return new FanOutMigration( new File( storagePath ), this.layout )
+        {
+            @Override
+            protected boolean move( File object, File target )
+            {
+                Lock lock = FileStorage.this.objectLocks.get( object.getName() );
+                lock.lock();
+                try
+                {
+                    // the object may have been deleted since it was listed
+                    if( ! object.isFile() || ! super.move( object, target ) )
+                    {
+                        return false;
+                    }
+                    if( FileStorage.this.unsynced.remove( object ) )
+                    {
+                        FileStorage.this.unsynced.add( target );
+                    }
+                    FileStorage.this.directoryChanged( object.getParentFile() );
+                    FileStorage.this.directoryChanged( target.getParentFile() );
+                    return true;
+                }
+                catch( IOException ex )
+                {
+                    Log.log( Level.WARNING, String.format( "Could not force the directories of %s and %s to disk: %s", object, target, ex.getMessage() ), ex );
+                    return true;
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
+        }.migrate();
+    }
+
+
+    @Override
+    public boolean isReferenceCounted()
+    {
+        return this.contentAddressed;
+    }
+
+
+    @Override
+    public int getReferenceCount( URI identifier ) throws IOException
+    {
+        Lock lock = this.objectLocks.get( new File( identifier ).getName() );
+        lock.lock();
+        try
+        {
+            File objectFile = this.layout.locate( new File( identifier ) );
+            return objectFile.isFile() ? this.references.count( objectFile ) : 0;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public void setReferenceCount( URI identifier, byte[] object, int count ) throws IOException
+    {
+        Lock lock = this.objectLocks.get( new File( identifier ).getName() );
+        lock.lock();
+        try
+        {
+            File objectFile = this.layout.locate( new File( identifier ) );
+            if( count <= 0 )
+            {
+                if( objectFile.isFile() )
+                {
+                    this.remove( objectFile );
+                }
+                this.references.set( objectFile, 0 );
+                return;
+            }
+            if( ! objectFile.isFile() )
+            {
+                if( null == object )
+                {
+                    String error = String.format( "Cannot restore %s references to %s, the object is not stored", count, identifier );
+                    Log.severe( error );
+                    throw new FileNotFoundException( error );
+                }
+                this.setCacheOrCheckStoragePath( objectFile.getParent() );
+                File temporary = this.writeTemporary( new ByteArrayInputStream( object ), object.length, objectFile.getParentFile(), null );
+                boolean moved = false;
+                try
+                {
+                    this.moveIntoPlace( temporary, objectFile );
+                    moved = true;
+                }
+                finally
+                {
+                    if( ! moved )
+                    {
+                        temporary.delete();
+                    }
+                }
+            }
+            this.references.set( objectFile, count );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public BatchResult<Void> deleteAll( List<URI> identifiers ) throws IOException
+    {
+        return BatchOperations.deleteAll( this, identifiers );
     }
 
 
     @Override
     public void delete( URI identifier) throws IOException
     {
-        File deleteFile = null;
-        deleteFile = new File( identifier );
+        Lock lock = this.objectLocks.get( new File( identifier ).getName() );
+        lock.lock();
+        try
+        {
+            File deleteFile = this.layout.locate( new File( identifier ) );
+            if( this.contentAddressed )
+            {
+                int remaining = this.references.decrement( deleteFile );
+                if( remaining > 0 )
+                {
+                    Log.info( String.format( "%s is still referenced %s times, keeping the file", identifier, remaining ) );
+                    return;
+                }
+            }
+            this.remove( deleteFile );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
 
-        boolean deleted = deleteFile.delete();
-        if( ! deleted )
+    /**
+     * Deletes {@code objectFile}, which must be locked by the caller.
+     */
+    private void remove( File objectFile ) throws IOException
+    {
+        if( ! objectFile.delete() )
         {
-            String error = String.format( "The file %s could not be deleted", identifier );
+            String error = String.format( "The file %s could not be deleted", objectFile );
             Log.log( Level.SEVERE, error );
+            return;
+        }
+        this.unsynced.remove( objectFile );
+        this.directoryChanged( objectFile.getParentFile() );
+        // only names that were added may be removed from the filter
+        if( null != this.objectNames && this.isIndexed( objectFile ) )
+        {
+            this.objectNames.remove( objectFile.getName() );
         }
     }
 }
@@ -18,8 +18,11 @@
 
 package net.manniche.xor.types;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.io.Serializable;
 import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlTransient;
 
 
 /**
@@ -58,6 +61,20 @@ public final class RESTDigitalObject implements DigitalObject, Serializable{
         return this.internal_input;
     }
 
+    @XmlTransient
+    @Override
+    public InputStream getInputStream()
+    {
+        return new ByteArrayInputStream( this.internal_input );
+    }
+
+    @XmlTransient
+    @Override
+    public long getLength()
+    {
+        return this.internal_input.length;
+    }
+
     /**
      * Returns the {@link net.manniche.xor.types.ObjectRepositoryContentType}
      * defined by the server implementor.
@@ -0,0 +1,70 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.rest.server;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class ByteRangeTest {
+
+    @Test
+    public void testClosedRange()
+    {
+        ByteRange range = ByteRange.parse( "bytes=100-199", 1000 );
+        assertEquals( 100, range.getFirst() );
+        assertEquals( 199, range.getLast() );
+        assertEquals( 100, range.getLength() );
+    }
+
+
+    @Test
+    public void testOpenRangeEndsWithObject()
+    {
+        ByteRange range = ByteRange.parse( "bytes=900-", 1000 );
+        assertEquals( 900, range.getFirst() );
+        assertEquals( 999, range.getLast() );
+    }
+
+
+    @Test
+    public void testSuffixRange()
+    {
+        ByteRange range = ByteRange.parse( "bytes=-100", 1000 );
+        assertEquals( 900, range.getFirst() );
+        assertEquals( 999, range.getLast() );
+    }
+
+
+    @Test
+    public void testRangeIsClampedToObject()
+    {
+        assertEquals( 999, ByteRange.parse( "bytes=500-5000", 1000 ).getLast() );
+        assertEquals( 0, ByteRange.parse( "bytes=-5000", 1000 ).getFirst() );
+    }
+
+
+    @Test
+    public void testWholeObjectForMissingOrUnsupportedRanges()
+    {
+        assertNull( ByteRange.parse( null, 1000 ) );
+        assertNull( ByteRange.parse( "items=0-10", 1000 ) );
+        assertNull( ByteRange.parse( "bytes=0-10,20-30", 1000 ) );
+        assertNull( ByteRange.parse( "bytes=20-10", 1000 ) );
+        assertNull( ByteRange.parse( "bytes=a-b", 1000 ) );
+    }
+
+
+    @Test( expected=IllegalArgumentException.class )
+    public void testRangeBeyondObjectIsNotSatisfiable()
+    {
+        ByteRange.parse( "bytes=1000-", 1000 );
+    }
+}
@@ -21,6 +21,7 @@ package net.manniche.xor.server.rmi;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.util.List;
+import net.manniche.xor.storage.BatchResult;
 import net.manniche.xor.types.DigitalObject;
 import net.manniche.xor.types.ObjectIdentifier;
 import net.manniche.xor.types.ObjectRepositoryContentType;
@@ -46,10 +47,29 @@ public interface RMIObjectManagement extends Remote{
      *
      * @param identifier that uniquely identifies the object within the scope of this server
      * @return a DigitalObject with the identifier {@code identifier}
+     * @throws RemoteObjectNotFoundException if no object is identified by
+     * {@code identifier}
      * @throws RemoteException
      */
     public DigitalObject getRepositoryObject( ObjectIdentifier identifier ) throws RemoteException;
 
+    /**
+     * Retrieves at most {@code length} bytes of the object identified by
+     * {@code identifier}, starting at byte {@code offset}. Only the requested
+     * range is read and transferred, so large objects can be sampled or
+     * read piecewise.
+     *
+     * @param identifier that uniquely identifies the object within the scope of this server
+     * @param offset the position in the object of the first byte to return
+     * @param length the maximum number of bytes to return
+     * @return a DigitalObject holding the range, shorter than {@code length}
+     * if the object ends first and empty if {@code offset} is beyond its end
+     * @throws RemoteObjectNotFoundException if no object is identified by
+     * {@code identifier}
+     * @throws RemoteException
+     */
+    public DigitalObject getRepositoryObjectRange( ObjectIdentifier identifier, long offset, int length ) throws RemoteException;
+
     /**
      * Stores a DigitalObject into the object repository annotating the process
      * with {@code logmessage}. The method returns an ObjectIdentifier uniquely 
@@ -63,6 +83,21 @@ public interface RMIObjectManagement extends Remote{
      */
     public ObjectIdentifier storeRepositoryObject( DigitalObject data, ObjectRepositoryContentType contentType, String logmessage ) throws RemoteException;
 
+    /**
+     * Stores a batch of DigitalObjects of the same content type, annotating
+     * the process with {@code logmessage}. Objects that cannot be stored are
+     * reported individually and do not prevent the rest of the batch from
+     * being stored.
+     *
+     * @param data the DigitalObjects to be stored
+     * @param contentType the type of content being stored, as defined by the server
+     * @param logmessage a message describing the action
+     * @return the ObjectIdentifier of each stored object, in the order of
+     * {@code data}, or the reason it could not be stored
+     * @throws RemoteException if the batch as a whole could not be stored
+     */
+    public BatchResult<ObjectIdentifier> storeRepositoryObjects( List<DigitalObject> data, ObjectRepositoryContentType contentType, String logmessage ) throws RemoteException;
+
     /**
      * Deletes an object identified by {@code identifier} using {@code logmessage} 
      * to describe the action.
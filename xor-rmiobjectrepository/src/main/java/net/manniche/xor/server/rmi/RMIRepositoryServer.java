@@ -19,6 +19,7 @@
 
 package net.manniche.xor.server.rmi;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -32,10 +33,18 @@ import net.manniche.xor.types.ObjectIdentifier;
 import net.manniche.xor.storage.StorageProvider;
 import net.manniche.xor.types.DigitalObject;
 import net.manniche.xor.server.RepositoryServer;
+import net.manniche.xor.exceptions.ObjectNotFoundException;
 import net.manniche.xor.exceptions.RepositoryServiceException;
 import net.manniche.xor.server.RepositoryObserver;
+import net.manniche.xor.storage.BatchResult;
+import net.manniche.xor.storage.FanOutLayout;
+import net.manniche.xor.storage.MetadataIndex;
+import net.manniche.xor.storage.ObjectMetadata;
+import net.manniche.xor.storage.OffHeapCache;
+import net.manniche.xor.storage.StoredObject;
 import net.manniche.xor.types.BasicContentType;
 import net.manniche.xor.types.DefaultIdentifier;
+import net.manniche.xor.types.InternalDigitalObject;
 import net.manniche.xor.types.ObjectRepositoryContentType;
 import net.manniche.xor.types.RepositoryAction;
 import net.manniche.xor.utils.RepositoryUtilities;
@@ -62,6 +71,7 @@ public final class RMIRepositoryServer extends RepositoryServer implements RMIOb
     private final List<ObjectRepositoryContentType> registeredContentTypes;
     private final String storagePath;
     private final String metadataStoragePath;
+    private final FanOutLayout metadataLayout;
 
     /**
      * Sets up the RMI server for the object repository.
@@ -75,9 +85,49 @@ public final class RMIRepositoryServer extends RepositoryServer implements RMIOb
      */
     public RMIRepositoryServer( StorageProvider storage, String storagePath, String metadataStoragePath ) throws RemoteException
     {
-        super( storage );
+        this( storage, storagePath, metadataStoragePath, FanOutLayout.getConfigured() );
+    }
+
+
+    /**
+     * Sets up the RMI server for the object repository, placing the metadata
+     * of objects in the subdirectories of {@code metadataStoragePath} given by
+     * {@code metadataLayout}.
+     *
+     * @param storage the StorageProvider that handles storage of objects for
+     * this RMI server instance
+     * @param storagePath path to which data will be stored for this server instance
+     * @param metadataStoragePath path to which metadata of data will be stored for this server instance
+     * @param metadataLayout the fan-out layout of the metadata storage path
+     * @throws RemoteException if the server could not be started
+     */
+    public RMIRepositoryServer( StorageProvider storage, String storagePath, String metadataStoragePath, FanOutLayout metadataLayout ) throws RemoteException
+    {
+        this( storage, storagePath, metadataStoragePath, metadataLayout, null );
+    }
+
+
+    /**
+     * Sets up the RMI server for the object repository, keeping the
+     * metadata of every object stored or deleted in {@code metadataIndex}.
+     *
+     * @param storage the StorageProvider that handles storage of objects for
+     * this RMI server instance
+     * @param storagePath path to which data will be stored for this server instance
+     * @param metadataStoragePath path to which metadata of data will be stored for this server instance
+     * @param metadataLayout the fan-out layout of the metadata storage path
+     * @param metadataIndex the index updated with the metadata of every
+     * object stored or deleted, or null if objects should not be indexed
+     * @throws RemoteException if the server could not be started
+     */
+    public RMIRepositoryServer( StorageProvider storage, String storagePath, String metadataStoragePath, FanOutLayout metadataLayout, MetadataIndex metadataIndex ) throws RemoteException
+    {
+        super( storage, null, OffHeapCache.getConfigured(), metadataIndex );
         this.storagePath = storagePath;
         this.metadataStoragePath = metadataStoragePath;
+        this.metadataLayout = metadataLayout;
+        // the content type files are not objects of the repository
+        this.excludeFromIndex( metadataStoragePath );
         this.observers = new ArrayList<RepositoryObserver>();
         this.registeredContentTypes = new ArrayList<ObjectRepositoryContentType>();
         this.registerContentTypes( BasicContentType.values() );
@@ -99,11 +149,20 @@ public final class RMIRepositoryServer extends RepositoryServer implements RMIOb
     public DigitalObject getRepositoryObject( ObjectIdentifier identifier ) throws RemoteException
     {
         DigitalObject digitalObject = null;
+        ObjectMetadata metadata = null;
 
         Log.info( String.format( "Getting object from %s", identifier.getURI() ) );
         try
         {
-            digitalObject = super.getObject( identifier );
+            StoredObject stored = super.getObjectWithMetadata( identifier );
+            digitalObject = new InternalDigitalObject( stored.getBytes() );
+            metadata = stored.getMetadata();
+        }
+        catch( ObjectNotFoundException ex )
+        {
+            // clients poll for objects that may not exist yet; keep it cheap
+            Log.fine( ex.getMessage() );
+            throw new RemoteObjectNotFoundException( ex.getMessage() );
         }
         catch( IOException ex )
         {
@@ -113,10 +172,75 @@ public final class RMIRepositoryServer extends RepositoryServer implements RMIOb
             throw new RemoteException( error, ex );
         }
 
+        this.notifyRequested( identifier, metadata );
+
+        return digitalObject;
+    }
+
+
+    /**
+     * Retrieves at most {@code length} bytes of the object identified by
+     * {@code identifier}, starting at byte {@code offset}, so that parts of
+     * large objects can be read without transferring the whole object.
+     *
+     * @param identifier identifying the object to be retrieved
+     * @param offset the position in the object of the first byte to return
+     * @param length the maximum number of bytes to return
+     * @return the requested range of the object, shorter than {@code length}
+     * if the object ends first
+     * @throws RemoteException if anything goes wrong in the object retrieval
+     * process
+     */
+    @Override
+    public DigitalObject getRepositoryObjectRange( ObjectIdentifier identifier, long offset, int length ) throws RemoteException
+    {
+        DigitalObject digitalObject = null;
+
+        Log.info( String.format( "Getting %s bytes from %s of object %s", length, offset, identifier.getURI() ) );
+        try
+        {
+            digitalObject = super.getObjectRange( identifier, offset, length );
+        }
+        catch( ObjectNotFoundException ex )
+        {
+            Log.fine( ex.getMessage() );
+            throw new RemoteObjectNotFoundException( ex.getMessage() );
+        }
+        catch( IllegalArgumentException ex )
+        {
+            throw new RemoteException( ex.getMessage(), ex );
+        }
+        catch( IOException ex )
+        {
+            String error = String.format( "Failed to retrieve range of object identified by %s: %s", identifier, ex.getMessage() );
+            Logger.getLogger( RMIRepositoryServer.class.getName() ).log( Level.WARNING, error, ex );
+            //wrap and send to RMI client
+            throw new RemoteException( error, ex );
+        }
+
+        this.notifyRequested( identifier, null );
+
+        return digitalObject;
+    }
+
+
+    /**
+     * Notifies the observers that the object identified by {@code identifier}
+     * was requested.
+     *
+     * @param metadata the metadata read with the object, or null if it
+     * should be looked up
+     */
+    private void notifyRequested( ObjectIdentifier identifier, ObjectMetadata metadata ) throws RemoteException
+    {
         ObjectRepositoryContentType contentTypeForObject;
         try
         {
-            contentTypeForObject = this.getContentTypeForObject( identifier );
+            if( null == metadata )
+            {
+                metadata = super.getObjectMetadata( identifier );
+            }
+            contentTypeForObject = this.getContentTypeForObject( identifier, metadata );
             this.notifyObservers( identifier, null, RepositoryAction.REQUEST, contentTypeForObject );
         }
         catch( IOException ex )
@@ -140,8 +264,6 @@ public final class RMIRepositoryServer extends RepositoryServer implements RMIOb
             //wrap and send to RMI client
             throw new RemoteException( error, ex );
         }
-
-        return digitalObject;
     }
 
 
@@ -149,7 +271,15 @@ public final class RMIRepositoryServer extends RepositoryServer implements RMIOb
      * Stores a {@link DigitalObject} {@code data} into the object repository,
      * returning the {@link ObjectIdentifier identifier} uniquely identifying
      * the object.
-     * 
+     *
+     * If the storage is a {@link net.manniche.xor.storage.JournalingStorageProvider},
+     * the call returns only when the object and its content type are as
+     * durable as the journal is configured to make them. Objects that reach
+     * the journal as streams, such as the shards of an erasure coded
+     * object, are the exception: their content is forced to disk, but the
+     * rename that puts them in place is only durable once the file system
+     * commits the directory.
+     *
      * @param data the object to be stored
      * @param contentType the content type of the data, as defined by {@link RMIRepositoryServerContentType}
      * @param logmessage a message describing the operation, provided by the user
@@ -186,6 +316,106 @@ public final class RMIRepositoryServer extends RepositoryServer implements RMIOb
     }
 
 
+    /**
+     * Stores a batch of {@link DigitalObject}s of the same content type. The
+     * objects and their content types are each stored as one batch, unless
+     * the storage keeps the content type with each object, and the
+     * observers are notified of the whole batch in one pass.
+     *
+     * @param data the objects to be stored
+     * @param contentType the content type of the data, as defined by {@link RMIRepositoryServerContentType}
+     * @param logmessage a message describing the operation, provided by the user
+     * @return the identifier of each stored object, or the reason it could
+     * not be stored
+     * @throws RemoteException if the batch as a whole could not be stored
+     */
+    @Override
+    public BatchResult<ObjectIdentifier> storeRepositoryObjects( List<DigitalObject> data, ObjectRepositoryContentType contentType, String logmessage ) throws RemoteException
+    {
+        Log.info( String.format( "Storing batch of %s objects", data.size() ) );
+        BatchResult<ObjectIdentifier> stored;
+        try
+        {
+            List<byte[]> objects = new ArrayList<byte[]>( data.size() );
+            for( DigitalObject object : data )
+            {
+                objects.add( object.getBytes() );
+            }
+            stored = super.storeObjectsOfType( objects, this.storagePath, contentType, logmessage );
+            if( ! super.hasObjectMetadata() )
+            {
+                this.storeContentTypes( stored, contentType );
+            }
+        }
+        catch( IOException ex )
+        {
+            String error = String.format( "Failed to store batch: %s", ex.getMessage() );
+            Log.log( Level.WARNING, error, ex );
+            throw new RemoteException( error, ex );
+        }
+        catch( RepositoryServiceException ex )
+        {
+            String error = String.format( "Failed to store batch: %s", ex.getMessage() );
+            Log.log( Level.SEVERE, error, ex );
+            throw new RemoteException( error, ex );
+        }
+        catch( URISyntaxException ex )
+        {
+            String error = String.format( "Failed to create uri for object content type: %s", ex.getMessage() );
+            Log.log( Level.WARNING, error, ex );
+            throw new RemoteException( error, ex );
+        }
+
+        synchronized( this.observers )
+        {
+            for( int i = 0; i < stored.size(); i++ )
+            {
+                if( stored.isSuccess( i ) )
+                {
+                    for( RepositoryObserver observer : this.observers )
+                    {
+                        observer.notifyMe( stored.getValue( i ), data.get( i ), RepositoryAction.ADD, contentType );
+                    }
+                }
+            }
+        }
+        Log.info( String.format( "Stored batch of %s objects with %s failures", stored.size(), stored.getFailureCount() ) );
+        return stored;
+    }
+
+
+    /**
+     * Stores a batch of content type files beside the objects stored, for
+     * storage that does not keep the content type with each object. Objects
+     * whose content type could not be stored are marked as failed.
+     */
+    private void storeContentTypes( BatchResult<ObjectIdentifier> stored, ObjectRepositoryContentType contentType ) throws IOException, URISyntaxException
+    {
+        List<byte[]> contentTypes = new ArrayList<byte[]>();
+        List<ObjectIdentifier> contentIdentifiers = new ArrayList<ObjectIdentifier>();
+        List<Integer> positions = new ArrayList<Integer>();
+        byte[] contentTypeBytes = contentType.toString().getBytes();
+        for( int i = 0; i < stored.size(); i++ )
+        {
+            if( stored.isSuccess( i ) )
+            {
+                URI contentURI = RepositoryUtilities.generateURI( "file", this.metadataStoragePath, stored.get( i ).getName(), this.metadataLayout );
+                contentIdentifiers.add( new DefaultIdentifier( contentURI ) );
+                contentTypes.add( contentTypeBytes );
+                positions.add( i );
+            }
+        }
+        BatchResult<ObjectIdentifier> storedTypes = super.storeObjects( contentTypes, this.metadataStoragePath, contentIdentifiers, "Storing content types" );
+        for( int j = 0; j < storedTypes.size(); j++ )
+        {
+            if( ! storedTypes.isSuccess( j ) )
+            {
+                stored.failed( positions.get( j ), storedTypes.getFailure( j ) );
+            }
+        }
+    }
+
+
     /**
      * Stores a {@link DigitalObject} {@code data} into the object repository,
      * returning the {@link ObjectIdentifier identifier} uniquely identifying
@@ -208,7 +438,7 @@ public final class RMIRepositoryServer extends RepositoryServer implements RMIOb
 
         Log.info( "Storing object" );
         ObjectIdentifier oIdentifier = null;
-        oIdentifier = super.storeObject( data.getBytes(), this.storagePath, identifier , logmessage);
+        oIdentifier = super.storeObject( data.getBytes(), this.storagePath, identifier, contentType, logmessage );
 
         Log.info( String.format( "Stored object with uri %s", oIdentifier.getURI() ) );
 
@@ -224,12 +454,16 @@ public final class RMIRepositoryServer extends RepositoryServer implements RMIOb
 
         try
         {
-            Log.info( String.format( "Storing content type at uri %s", identifier.getURI() ) );
+            // storage keeping metadata has stored the content type with the object
+            if( ! super.hasObjectMetadata() )
+            {
+                Log.info( String.format( "Storing content type at uri %s", identifier.getURI() ) );
 
-            String objectName = identifier.getName();
-            URI contentURI = RepositoryUtilities.generateURI( "file", this.metadataStoragePath, objectName );
-            ObjectIdentifier contentIdentifier = new DefaultIdentifier( contentURI );
-            super.storeObject( contentType.toString().getBytes(), this.metadataStoragePath, contentIdentifier, "Storing content type" );
+                String objectName = identifier.getName();
+                URI contentURI = RepositoryUtilities.generateURI( "file", this.metadataStoragePath, objectName, this.metadataLayout );
+                ObjectIdentifier contentIdentifier = new DefaultIdentifier( contentURI );
+                super.storeObject( contentType.toString().getBytes(), this.metadataStoragePath, contentIdentifier, "Storing content type" );
+            }
             this.notifyObservers( identifier, data, RepositoryAction.ADD, contentType );
         }
         catch( IOException ex )
@@ -269,9 +503,11 @@ public final class RMIRepositoryServer extends RepositoryServer implements RMIOb
     {
         String.format( String.format( "Deleting object from %s", identifier.getURI() ) );
         ObjectRepositoryContentType contentTypeForObject;
+        ObjectMetadata metadata;
         try
         {
-            contentTypeForObject = this.getContentTypeForObject( identifier );
+            metadata = super.getObjectMetadata( identifier );
+            contentTypeForObject = this.getContentTypeForObject( identifier, metadata );
         }
         catch( IOException ex )
         {
@@ -298,9 +534,12 @@ public final class RMIRepositoryServer extends RepositoryServer implements RMIOb
         try
         {
             super.deleteObject( identifier, logmessage );
-            URI cURI = RepositoryUtilities.generateURI( "file", this.metadataStoragePath, identifier.getName() );
-            ObjectIdentifier contentId = new DefaultIdentifier( cURI );
-            super.deleteObject( contentId, "deleting content type" );
+            if( null == metadata || null == metadata.getContentType() )
+            {
+                URI cURI = RepositoryUtilities.generateURI( "file", this.metadataStoragePath, identifier.getName(), this.metadataLayout );
+                ObjectIdentifier contentId = new DefaultIdentifier( cURI );
+                super.deleteObject( contentId, "deleting content type" );
+            }
         }
         catch( IOException ex )
         {
@@ -330,13 +569,24 @@ public final class RMIRepositoryServer extends RepositoryServer implements RMIOb
 
     }
 
-    private ObjectRepositoryContentType getContentTypeForObject( ObjectIdentifier objectIdentifier ) throws IOException, RepositoryServiceException, URISyntaxException
+    /**
+     * Takes the content type of an object from its metadata, falling back to
+     * the content type file of objects stored without.
+     *
+     * @param metadata the metadata of the object, or null if it has none
+     */
+    private ObjectRepositoryContentType getContentTypeForObject( ObjectIdentifier objectIdentifier, ObjectMetadata metadata ) throws IOException, RepositoryServiceException, URISyntaxException
     {
+        if( null != metadata && null != metadata.getContentType() )
+        {
+            return BasicContentType.getContentType( metadata.getContentType() );
+        }
+
         String name = objectIdentifier.getName();
 
         ObjectIdentifier metadataIdentifier = null;
         Log.info( String.format( "Trying to generate uri from '%s' + '%s'", this.metadataStoragePath, name ) );
-        URI metaurl = RepositoryUtilities.generateURI( "file", this.metadataStoragePath, name );
+        URI metaurl = RepositoryUtilities.generateURI( "file", this.metadataStoragePath, name, this.metadataLayout );
         metadataIdentifier = new DefaultIdentifier( metaurl );
         Log.info( String.format( "Constructed identifier for metadata with uri %s", metadataIdentifier.getURI() ) );
 
@@ -351,6 +601,59 @@ public final class RMIRepositoryServer extends RepositoryServer implements RMIOb
 
 
 
+    /**
+     * Adds the objects stored in the storage path of this server before the
+     * metadata index was enabled to the index, see
+     * {@link RepositoryServer#backfillIndex(java.lang.String)}.
+     *
+     * @param unindexedPaths paths below the storage path that do not hold
+     * objects of the repository, each ending with a separator
+     * @return the number of objects added to the index
+     */
+    long backfillIndex( List<String> unindexedPaths ) throws IOException
+    {
+        for( String path : unindexedPaths )
+        {
+            this.excludeFromIndex( path );
+        }
+        return super.backfillIndex( this.storagePath );
+    }
+
+
+    /**
+     * Takes the content type of objects stored without metadata from their
+     * content type files.
+     */
+    @Override
+    protected String getIndexedContentType( ObjectIdentifier identifier, ObjectMetadata metadata ) throws IOException
+    {
+        try
+        {
+            return this.getContentTypeForObject( identifier, metadata ).toString();
+        }
+        catch( FileNotFoundException ex )
+        {
+            // stored without a content type
+            return null;
+        }
+        catch( RepositoryServiceException ex )
+        {
+            Log.warning( String.format( "Could not read the content type of %s: %s", identifier, ex.getMessage() ) );
+            return null;
+        }
+        catch( URISyntaxException ex )
+        {
+            Log.warning( String.format( "Could not read the content type of %s: %s", identifier, ex.getMessage() ) );
+            return null;
+        }
+        catch( TypeNotPresentException ex )
+        {
+            Log.warning( String.format( "Could not read the content type of %s: %s", identifier, ex.getMessage() ) );
+            return null;
+        }
+    }
+
+
     private void registerObservers()
     {
         //read a configuration file for implementations of the ObjectRepositoryService
@@ -18,6 +18,7 @@
 
 package net.manniche.xor.server.rmi;
 
+import java.io.File;
 import java.io.IOException;
 import java.rmi.AccessException;
 import java.rmi.AlreadyBoundException;
@@ -27,6 +28,9 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
@@ -34,8 +38,21 @@ import net.manniche.xor.server.RepositoryObserver;
 import net.manniche.xor.server.ServiceLocator;
 import net.manniche.xor.services.search.SearchProvider;
 import net.manniche.xor.services.search.SearchType;
+import net.manniche.xor.storage.CachingStorageProvider;
+import net.manniche.xor.storage.ChecksummingStorageProvider;
+import net.manniche.xor.storage.ChunkingStorageProvider;
+import net.manniche.xor.storage.CompressingStorageProvider;
+import net.manniche.xor.storage.ErasureCodingStorageProvider;
+import net.manniche.xor.storage.FanOutLayout;
 import net.manniche.xor.storage.FileStorage;
+import net.manniche.xor.storage.JournalingStorageProvider;
+import net.manniche.xor.storage.MetadataIndex;
+import net.manniche.xor.storage.MetadataStorageProvider;
+import net.manniche.xor.storage.MirroredStorageProvider;
+import net.manniche.xor.storage.PartitionedStorageProvider;
+import net.manniche.xor.storage.Scrubber;
 import net.manniche.xor.storage.StorageProvider;
+import net.manniche.xor.storage.TieredStorageProvider;
 import net.manniche.xor.types.ObjectRepositoryService;
 
 
@@ -51,6 +68,9 @@ public class RMIServer {
     private final static Logger Log= Logger.getLogger( RMIServer.class.getName() );
     private static RMIRepositoryServer manager;
     private static Registry registry;
+    private static StorageProvider store;
+    private static Scrubber scrubber;
+    private static MetadataIndex index;
 
     ////////////////////////////////////////////////////////////////////////////
     // Below follows the RMI server main method.                              //
@@ -70,16 +90,200 @@ public class RMIServer {
         {
             Log.log( Level.INFO, "trying to export server" );
 
-            StorageProvider store = new FileStorage();
-            manager = new RMIRepositoryServer( store, storagePath, metadataStoragePath );
+            // stores are acknowledged once they are durable in the journal,
+            // see xor.storage.durability
+            final FileStorage files = new FileStorage();
+            store = new JournalingStorageProvider( files, new File( storagePath, ".journal" ) );
+            List<File> scrubbed = new ArrayList<File>();
+            scrubbed.add( new File( storagePath ) );
+            // paths that may lie below storagePath without holding objects
+            final List<String> unindexed = new ArrayList<String>();
+            String roots = System.getProperty( "xor.storage.roots" );
+            if( null != roots && ! roots.trim().isEmpty() )
+            {
+                // objects below storagePath are spread over the roots by
+                // consistent hashing; objects already stored there are
+                // moved to the roots in the background
+                List<String> paths = new ArrayList<String>();
+                for( String root : roots.split( File.pathSeparator ) )
+                {
+                    String path = root.endsWith( sep ) ? root : root + sep;
+                    paths.add( path );
+                    if( ! path.equals( storagePath ) )
+                    {
+                        scrubbed.add( new File( root ) );
+                    }
+                }
+                PartitionedStorageProvider partitions = new PartitionedStorageProvider( store, storagePath, paths, new File( storagePath, ".partitions" ) );
+                partitions.start( Long.getLong( "xor.partitioning.interval", 60000 ), TimeUnit.MILLISECONDS );
+                store = partitions;
+            }
+            String mirrors = System.getProperty( "xor.storage.mirrors" );
+            if( null != mirrors && ! mirrors.trim().isEmpty() )
+            {
+                // storagePath is the first replica; the others are listed
+                // like a class path, preferably on separate mounts
+                List<String> paths = new ArrayList<String>();
+                paths.add( storagePath );
+                for( String mirror : mirrors.split( File.pathSeparator ) )
+                {
+                    paths.add( mirror.endsWith( sep ) ? mirror : mirror + sep );
+                    scrubbed.add( new File( mirror ) );
+                }
+                MirroredStorageProvider mirrored = new MirroredStorageProvider( store, paths, new File( storagePath, ".mirrors" ) );
+                mirrored.start( Long.getLong( "xor.mirror.repair_interval", 60000 ), TimeUnit.MILLISECONDS );
+                store = mirrored;
+            }
+            String coldPath = System.getProperty( "xor.storage.cold_path" );
+            if( null != coldPath && ! coldPath.endsWith( sep ) )
+            {
+                coldPath += sep;
+            }
+            if( null != coldPath )
+            {
+                scrubbed.add( new File( coldPath ) );
+                unindexed.add( coldPath );
+            }
+            List<String> shardPaths = new ArrayList<String>();
+            String shards = System.getProperty( "xor.storage.cold_shards" );
+            if( null != coldPath && null != shards && ! shards.trim().isEmpty() )
+            {
+                for( String shard : shards.split( File.pathSeparator ) )
+                {
+                    shardPaths.add( shard.endsWith( sep ) ? shard : shard + sep );
+                    scrubbed.add( new File( shard ) );
+                    unindexed.add( shard.endsWith( sep ) ? shard : shard + sep );
+                }
+            }
+            // the membership filters of the paths are built in the
+            // background instead of on the first save to each path
+            for( File path : scrubbed )
+            {
+                files.addStoragePath( path.getAbsolutePath() + sep );
+            }
+            if( Boolean.parseBoolean( System.getProperty( "xor.storage.checksums", "false" ) ) )
+            {
+                // checksummed below compression and inline metadata, so the
+                // checksum covers the bytes those layers store; the
+                // partitioning and mirroring layers below copy the sealed
+                // objects unchanged
+                boolean checksummed = ChecksummingStorageProvider.isChecksummed( scrubbed );
+                store = new ChecksummingStorageProvider( store, checksummed );
+                scrubber = new Scrubber( scrubbed, checksummed );
+                long interval = Long.getLong( "xor.scrub.interval", TimeUnit.DAYS.toMillis( 1 ) );
+                scrubber.start( interval, TimeUnit.MILLISECONDS );
+            }
+            else
+            {
+                ChecksummingStorageProvider.unmarkChecksummed( scrubbed );
+            }
+            if( ! shardPaths.isEmpty() )
+            {
+                // large cold objects are erasure coded over the shard
+                // paths instead of being stored whole in the cold path
+                store = new ErasureCodingStorageProvider( store, coldPath, shardPaths );
+            }
+            TieredStorageProvider tiers = null;
+            if( null != coldPath )
+            {
+                // storagePath is the hot tier; objects not requested lately
+                // are moved to the cold path
+                tiers = new TieredStorageProvider( store, storagePath, coldPath, new File( storagePath, ".tiers" ) );
+                tiers.start( Long.getLong( "xor.tiering.interval", 60000 ), TimeUnit.MILLISECONDS );
+                store = tiers;
+            }
+            if( Boolean.parseBoolean( System.getProperty( "xor.storage.read_cache", "false" ) ) )
+            {
+                // up to xor.cache.capacity bytes of objects are cached as
+                // stored, below compression, so more of them fit
+                store = new CachingStorageProvider( store );
+            }
+            if( Boolean.parseBoolean( System.getProperty( "xor.storage.compression", "false" ) ) )
+            {
+                // compressed before journaling, so the journal shrinks too
+                store = new CompressingStorageProvider( store );
+            }
+            if( Boolean.parseBoolean( System.getProperty( "xor.storage.chunking", "false" ) ) )
+            {
+                // large objects are deduplicated before compression, so
+                // identical chunks compress to identical stored chunks
+                store = new ChunkingStorageProvider( store, storagePath + "chunks" + sep, new File( storagePath, ".chunks.index" ) );
+                unindexed.add( storagePath + "chunks" + sep );
+            }
+            if( Boolean.parseBoolean( System.getProperty( "xor.storage.inline_metadata", "false" ) ) )
+            {
+                // content types are kept in a header of each object instead
+                // of in the content type files; chunking is content defined,
+                // so the header only changes the first chunk
+                store = new MetadataStorageProvider( store );
+            }
+            if( Boolean.parseBoolean( System.getProperty( "xor.index.enabled", "false" ) ) )
+            {
+                // the dot keeps the scrubber and migrations out of the index
+                index = new MetadataIndex( new File( System.getProperty( "xor.index.path", storagePath + ".index" ) ) );
+                index.start( Long.getLong( "xor.index.merge_interval", 60000 ), TimeUnit.MILLISECONDS );
+            }
+            manager = new RMIRepositoryServer( store, storagePath, metadataStoragePath, FanOutLayout.getConfigured(), index );
             SearchProvider search = getSearchProvider();
             manager.addObserver( (RepositoryObserver) search);
+            if( null != tiers )
+            {
+                manager.addObserver( tiers );
+            }
 
             Remote remote = UnicastRemoteObject.exportObject( manager, port );
             registry = LocateRegistry.createRegistry( Registry.REGISTRY_PORT );
             registry.bind( RMIRepositoryServer.class.getName(), remote );
 
             Log.log( Level.INFO, String.format( "Started server on port %s", port ) );
+            if( null != index )
+            {
+                // objects stored before the index was enabled are added
+                // while the server runs
+                Thread backfill = new Thread( "xor-index-backfill" ){
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            manager.backfillIndex( unindexed );
+                        }
+                        catch( IOException ex )
+                        {
+                            Log.log( Level.SEVERE, String.format( "Could not add existing objects to the index: %s", ex.getMessage() ), ex );
+                        }
+                    }
+                };
+                backfill.setDaemon( true );
+                backfill.setPriority( Thread.MIN_PRIORITY );
+                backfill.start();
+            }
+            if( Boolean.getBoolean( "xor.storage.fanout_migrate" ) )
+            {
+                // objects stored before the fan-out layout was configured
+                // are moved into it while the server runs
+                final String[] migrated = { storagePath, metadataStoragePath };
+                Thread migration = new Thread( "xor-fanout-migration" ){
+                    @Override
+                    public void run()
+                    {
+                        for( String path : migrated )
+                        {
+                            try
+                            {
+                                files.migrate( path );
+                            }
+                            catch( IOException ex )
+                            {
+                                Log.log( Level.SEVERE, String.format( "Could not migrate %s to the fan-out layout: %s", path, ex.getMessage() ), ex );
+                            }
+                        }
+                    }
+                };
+                migration.setDaemon( true );
+                migration.setPriority( Thread.MIN_PRIORITY );
+                migration.start();
+            }
             Runtime.getRuntime().addShutdownHook( new Thread(){
                 @Override
                 public void run()
@@ -137,5 +341,28 @@ public class RMIServer {
         {
             Log.log( Level.SEVERE, ex.getMessage(), ex );
         }
+        if( null != scrubber )
+        {
+            try
+            {
+                scrubber.stop();
+            }
+            catch( InterruptedException ex )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if( null != index )
+        {
+            try
+            {
+                index.close();
+            }
+            catch( IOException ex )
+            {
+                Log.log( Level.SEVERE, ex.getMessage(), ex );
+            }
+        }
+        store.close();
     }
 }
@@ -0,0 +1,52 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ *
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.server.rmi;
+
+import java.rmi.RemoteException;
+
+
+/**
+ * Sent to RMI clients requesting an object that does not exist. Like
+ * {@link net.manniche.xor.exceptions.ObjectNotFoundException}, it carries no
+ * stack trace, which would be of no use to the client anyway.
+ *
+ * @author Steen Manniche
+ */
+public class RemoteObjectNotFoundException extends RemoteException
+{
+    static final long serialVersionUID = 4133914046370389571L;
+
+    /**
+     * @param msg the detail message.
+     */
+    public RemoteObjectNotFoundException( String msg )
+    {
+        super( msg );
+    }
+
+
+    /**
+     * Does not fill in the stack trace.
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace()
+    {
+        return this;
+    }
+}
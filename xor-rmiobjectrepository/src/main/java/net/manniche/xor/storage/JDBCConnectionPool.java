@@ -0,0 +1,266 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ * 
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.manniche.xor.storage;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * A bounded pool of JDBC connections. At most {@code size} connections are
+ * open at any time; a caller wanting a connection when all are leased waits
+ * for one to be released. Each connection keeps the statements prepared on
+ * it, so that the statements of a {@link JDBCStorage} are only prepared once
+ * per connection.
+ *
+ * Connections are handed out with auto-commit disabled.
+ *
+ * @author Steen Manniche
+ */
+public final class JDBCConnectionPool
+{
+    private static final Logger Log = Logger.getLogger( JDBCConnectionPool.class.getName() );
+
+    private final String url;
+    private final String user;
+    private final String passwd;
+    private final long timeout;
+
+    private final Semaphore permits;
+    // guarded by this
+    private final LinkedList<Lease> idle = new LinkedList<Lease>();
+    private final List<Lease> all = new ArrayList<Lease>();
+    private boolean closed;
+
+    /**
+     * @param url the JDBC url of the database
+     * @param user the database user
+     * @param passwd the password of the database user
+     * @param size the maximum number of open connections
+     * @param timeout the number of milliseconds to wait for a connection
+     * before giving up
+     */
+    public JDBCConnectionPool( String url, String user, String passwd, int size, long timeout )
+    {
+        this.url = url;
+        this.user = user;
+        this.passwd = passwd;
+        this.timeout = timeout;
+        this.permits = new Semaphore( size, true );
+    }
+
+
+    /**
+     * Leases a connection, opening a new one if no idle connection is
+     * available and the pool is not full. The lease must be
+     * {@link Lease#release() released} when the caller is done with it.
+     *
+     * @throws SQLException if no connection could be opened, or none was
+     * released within the timeout
+     */
+    public Lease acquire() throws SQLException
+    {
+        try
+        {
+            if( ! this.permits.tryAcquire( this.timeout, TimeUnit.MILLISECONDS ) )
+            {
+                throw new SQLException( String.format( "No connection to %s became available within %s ms", this.url, this.timeout ) );
+            }
+        }
+        catch( InterruptedException ex )
+        {
+            Thread.currentThread().interrupt();
+            throw new SQLException( String.format( "Interrupted while waiting for a connection to %s", this.url ) );
+        }
+
+        boolean leased = false;
+        try
+        {
+            Lease lease;
+            synchronized( this )
+            {
+                if( this.closed )
+                {
+                    throw new SQLException( "The connection pool is closed" );
+                }
+                lease = this.idle.poll();
+            }
+            if( null == lease )
+            {
+                Connection connection = DriverManager.getConnection( this.url, this.user, this.passwd );
+                connection.setAutoCommit( false );
+                lease = new Lease( connection );
+                synchronized( this )
+                {
+                    this.all.add( lease );
+                }
+                Log.fine( String.format( "Opened connection to %s", this.url ) );
+            }
+            leased = true;
+            return lease;
+        }
+        finally
+        {
+            if( ! leased )
+            {
+                this.permits.release();
+            }
+        }
+    }
+
+
+    /**
+     * Closes the idle connections. Leased connections are closed when they
+     * are released.
+     */
+    public void close()
+    {
+        List<Lease> idleLeases;
+        synchronized( this )
+        {
+            this.closed = true;
+            idleLeases = new ArrayList<Lease>( this.idle );
+            this.idle.clear();
+        }
+        for( Lease lease : idleLeases )
+        {
+            this.discard( lease );
+        }
+    }
+
+
+    /**
+     * @return the number of connections currently open
+     */
+    public synchronized int getOpenConnections()
+    {
+        return this.all.size();
+    }
+
+
+    private void release( Lease lease )
+    {
+        boolean keep;
+        synchronized( this )
+        {
+            keep = ! this.closed && ! lease.broken;
+            if( keep )
+            {
+                this.idle.addFirst( lease );
+            }
+        }
+        if( ! keep )
+        {
+            this.discard( lease );
+        }
+        this.permits.release();
+    }
+
+
+    private void discard( Lease lease )
+    {
+        synchronized( this )
+        {
+            this.all.remove( lease );
+        }
+        try
+        {
+            lease.connection.close();
+        }
+        catch( SQLException ex )
+        {
+            Log.log( Level.WARNING, String.format( "Could not close connection to %s: %s", this.url, ex.getMessage() ), ex );
+        }
+    }
+
+
+    /**
+     * A connection leased from the pool, with its prepared statements.
+     */
+    public final class Lease
+    {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+        private boolean broken;
+
+        private Lease( Connection connection )
+        {
+            this.connection = connection;
+        }
+
+
+        public Connection getConnection()
+        {
+            return this.connection;
+        }
+
+
+        /**
+         * @return the statement prepared from {@code sql} on this connection,
+         * preparing it on first use
+         */
+        public PreparedStatement prepare( String sql ) throws SQLException
+        {
+            PreparedStatement statement = this.statements.get( sql );
+            if( null == statement )
+            {
+                statement = this.connection.prepareStatement( sql );
+                this.statements.put( sql, statement );
+            }
+            return statement;
+        }
+
+
+        /**
+         * Rolls back the current transaction. If that fails, the connection
+         * is considered broken and is closed on release.
+         */
+        public void rollback()
+        {
+            try
+            {
+                this.connection.rollback();
+            }
+            catch( SQLException ex )
+            {
+                Log.log( Level.WARNING, String.format( "Could not roll back, discarding connection: %s", ex.getMessage() ), ex );
+                this.broken = true;
+            }
+        }
+
+
+        /**
+         * Returns the connection to the pool.
+         */
+        public void release()
+        {
+            JDBCConnectionPool.this.release( this );
+        }
+    }
+}
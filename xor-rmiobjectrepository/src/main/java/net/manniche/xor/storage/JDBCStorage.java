@@ -0,0 +1,706 @@
+/*
+ *  This file is part of xor
+ *  Copyright © 2009, Steen Manniche.
+ * 
+ *  xor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  xor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.manniche.xor.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.sql.BatchUpdateException;
+import java.sql.Blob;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.naming.ConfigurationException;
+import net.manniche.xor.exceptions.ObjectNotFoundException;
+import net.manniche.xor.utils.RepositoryUtilities;
+
+
+/**
+ * Stores objects as BLOBs in a single table of a relational database,
+ * reached through JDBC. Connections are taken from a bounded
+ * {@link JDBCConnectionPool}, and each connection keeps its prepared
+ * statements. Batches are written with JDBC batch statements in a single
+ * transaction. Streamed objects are passed to and from the driver as streams
+ * and never held in memory as a whole by this class.
+ *
+ * The table is created on first use if it does not exist:
+ * <pre>
+ *   CREATE TABLE xor_objects ( id VARCHAR(1024) PRIMARY KEY, storage_path VARCHAR(1024), data BLOB )
+ * </pre>
+ *
+ * @author Steen Manniche
+ */
+public class JDBCStorage extends DBStorage
+{
+    private static final Logger Log = Logger.getLogger( JDBCStorage.class.getName() );
+    private static final String SCHEME = "db";
+
+    private static final String TABLE = "xor_objects";
+    private static final String CREATE = "CREATE TABLE " + TABLE + " ( id VARCHAR(1024) PRIMARY KEY, storage_path VARCHAR(1024), data BLOB )";
+    private static final String INSERT = "INSERT INTO " + TABLE + " ( id, storage_path, data ) VALUES ( ?, ?, ? )";
+    private static final String DELETE = "DELETE FROM " + TABLE + " WHERE id = ?";
+    private static final String SELECT = "SELECT data FROM " + TABLE + " WHERE id = ?";
+    private static final String SELECT_LENGTH = "SELECT LENGTH( data ) FROM " + TABLE + " WHERE id = ?";
+
+    private static final int DEFAULT_POOL_SIZE = 8;
+    private static final long DEFAULT_POOL_TIMEOUT = 30000;
+
+    private final JDBCConnectionPool pool;
+    private final StripedLock objectLocks = new StripedLock();
+    private final AtomicLong sequence = new AtomicLong( System.currentTimeMillis() << 20 );
+
+    /**
+     * Connects to the database given by the {@code driver_name}, {@code url},
+     * {@code user} and {@code passwd} system properties, through a pool of
+     * {@code xor.jdbc.pool_size} connections (8 by default).
+     */
+    public JDBCStorage() throws ConfigurationException, IOException
+    {
+        this( System.getProperty( "driver_name" ), System.getProperty( "url" ),
+              System.getProperty( "user" ), System.getProperty( "passwd" ),
+              Integer.getInteger( "xor.jdbc.pool_size", DEFAULT_POOL_SIZE ) );
+    }
+
+
+    /**
+     * @param driver the class name of the JDBC driver
+     * @param url the JDBC url of the database
+     * @param user the database user
+     * @param passwd the password of the database user
+     * @param poolSize the maximum number of open connections
+     * @throws ConfigurationException if any of the values are missing
+     * @throws IOException if the driver could not be loaded or the table
+     * could not be created
+     */
+    public JDBCStorage( String driver, String url, String user, String passwd, int poolSize ) throws ConfigurationException, IOException
+    {
+        super( driver, url, user, passwd );
+        try
+        {
+            Class.forName( driver );
+        }
+        catch( ClassNotFoundException ex )
+        {
+            String error = String.format( "Could not load JDBC driver %s", driver );
+            Log.log( Level.SEVERE, error, ex );
+            throw new IOException( error, ex );
+        }
+        this.pool = new JDBCConnectionPool( url, user, passwd, poolSize, Long.getLong( "xor.jdbc.pool_timeout", DEFAULT_POOL_TIMEOUT ) );
+        this.createTable();
+    }
+
+
+    private void createTable() throws IOException
+    {
+        JDBCConnectionPool.Lease lease = this.acquire();
+        try
+        {
+            DatabaseMetaData metadata = lease.getConnection().getMetaData();
+            if( this.tableExists( metadata, TABLE.toUpperCase() ) || this.tableExists( metadata, TABLE ) )
+            {
+                return;
+            }
+            Statement statement = lease.getConnection().createStatement();
+            try
+            {
+                statement.executeUpdate( CREATE );
+            }
+            finally
+            {
+                statement.close();
+            }
+            lease.getConnection().commit();
+            Log.info( String.format( "Created table %s in %s", TABLE, this.getUrl() ) );
+        }
+        catch( SQLException ex )
+        {
+            lease.rollback();
+            throw this.failure( String.format( "Could not create table %s", TABLE ), ex );
+        }
+        finally
+        {
+            lease.release();
+        }
+    }
+
+
+    private boolean tableExists( DatabaseMetaData metadata, String table ) throws SQLException
+    {
+        ResultSet tables = metadata.getTables( null, null, table, null );
+        try
+        {
+            return tables.next();
+        }
+        finally
+        {
+            tables.close();
+        }
+    }
+
+
+    @Override
+    public URI save( byte[] object, String storagePath ) throws IOException
+    {
+        return this.save( new ByteArrayInputStream( object ), object.length, storagePath );
+    }
+
+
+    @Override
+    public void save( byte[] object, URI uri, String storagePath ) throws IOException
+    {
+        this.save( new ByteArrayInputStream( object ), object.length, uri, storagePath );
+    }
+
+
+    @Override
+    public URI save( InputStream object, long length, String storagePath ) throws IOException
+    {
+        URI uri = this.generateURI( storagePath );
+        JDBCConnectionPool.Lease lease = this.acquire();
+        try
+        {
+            this.insert( lease, uri, storagePath, object, length );
+            lease.getConnection().commit();
+        }
+        catch( SQLException ex )
+        {
+            lease.rollback();
+            throw this.failure( String.format( "Could not store object %s", uri ), ex );
+        }
+        finally
+        {
+            lease.release();
+        }
+        return uri;
+    }
+
+
+    /**
+     * Replaces any object stored as {@code uri} in a single transaction.
+     */
+    @Override
+    public void save( InputStream object, long length, URI uri, String storagePath ) throws IOException
+    {
+        Lock lock = this.objectLocks.get( uri );
+        lock.lock();
+        JDBCConnectionPool.Lease lease = null;
+        try
+        {
+            lease = this.acquire();
+            PreparedStatement delete = lease.prepare( DELETE );
+            delete.setString( 1, uri.toString() );
+            delete.executeUpdate();
+            this.insert( lease, uri, storagePath, object, length );
+            lease.getConnection().commit();
+        }
+        catch( SQLException ex )
+        {
+            lease.rollback();
+            throw this.failure( String.format( "Could not store object %s", uri ), ex );
+        }
+        finally
+        {
+            if( null != lease )
+            {
+                lease.release();
+            }
+            lock.unlock();
+        }
+    }
+
+
+    private void insert( JDBCConnectionPool.Lease lease, URI uri, String storagePath, InputStream object, long length ) throws SQLException
+    {
+        PreparedStatement insert = lease.prepare( INSERT );
+        insert.setString( 1, uri.toString() );
+        insert.setString( 2, storagePath );
+        insert.setBinaryStream( 3, object, length );
+        insert.executeUpdate();
+    }
+
+
+    /**
+     * Inserts the batch with one JDBC batch statement in one transaction. If
+     * the batch fails, none of it is stored and every object is reported
+     * failed.
+     */
+    @Override
+    public BatchResult<URI> saveAll( List<byte[]> objects, String storagePath ) throws IOException
+    {
+        List<URI> uris = new ArrayList<URI>( objects.size() );
+        for( int i = 0; i < objects.size(); i++ )
+        {
+            uris.add( this.generateURI( storagePath ) );
+        }
+        BatchResult<URI> result = new BatchResult<URI>( objects.size() );
+        JDBCConnectionPool.Lease lease = this.acquire();
+        try
+        {
+            this.insertAll( lease, objects, uris, storagePath );
+            lease.getConnection().commit();
+            for( int i = 0; i < uris.size(); i++ )
+            {
+                result.succeeded( i, uris.get( i ) );
+            }
+        }
+        catch( SQLException ex )
+        {
+            lease.rollback();
+            IOException failure = this.failure( String.format( "Could not store batch of %s objects", objects.size() ), ex );
+            for( int i = 0; i < objects.size(); i++ )
+            {
+                result.failed( i, failure );
+            }
+        }
+        finally
+        {
+            lease.release();
+        }
+        return result;
+    }
+
+
+    /**
+     * Replaces the objects of the batch with one JDBC batch of deletes and
+     * one of inserts, in one transaction. If the batch fails, none of it is
+     * stored and every object is reported failed.
+     */
+    @Override
+    public BatchResult<Void> saveAll( List<byte[]> objects, List<URI> uris, String storagePath ) throws IOException
+    {
+        BatchOperations.checkSizes( objects, uris );
+        BatchResult<Void> result = new BatchResult<Void>( objects.size() );
+        List<Lock> locks = this.objectLocks.lockAll( uris );
+        JDBCConnectionPool.Lease lease = null;
+        try
+        {
+            lease = this.acquire();
+            PreparedStatement delete = lease.prepare( DELETE );
+            for( URI uri : uris )
+            {
+                delete.setString( 1, uri.toString() );
+                delete.addBatch();
+            }
+            delete.executeBatch();
+            this.insertAll( lease, objects, uris, storagePath );
+            lease.getConnection().commit();
+            for( int i = 0; i < objects.size(); i++ )
+            {
+                result.succeeded( i, null );
+            }
+        }
+        catch( SQLException ex )
+        {
+            lease.rollback();
+            IOException failure = this.failure( String.format( "Could not store batch of %s objects", objects.size() ), ex );
+            for( int i = 0; i < objects.size(); i++ )
+            {
+                result.failed( i, failure );
+            }
+        }
+        finally
+        {
+            if( null != lease )
+            {
+                lease.release();
+            }
+            this.objectLocks.unlockAll( locks );
+        }
+        return result;
+    }
+
+
+    private void insertAll( JDBCConnectionPool.Lease lease, List<byte[]> objects, List<URI> uris, String storagePath ) throws SQLException
+    {
+        PreparedStatement insert = lease.prepare( INSERT );
+        for( int i = 0; i < objects.size(); i++ )
+        {
+            insert.setString( 1, uris.get( i ).toString() );
+            insert.setString( 2, storagePath );
+            insert.setBinaryStream( 3, new ByteArrayInputStream( objects.get( i ) ), objects.get( i ).length );
+            insert.addBatch();
+        }
+        insert.executeBatch();
+    }
+
+
+    @Override
+    public byte[] get( URI identifier ) throws IOException
+    {
+        JDBCConnectionPool.Lease lease = this.acquire();
+        try
+        {
+            return this.select( lease, identifier );
+        }
+        catch( SQLException ex )
+        {
+            throw this.failure( String.format( "Could not retrieve object %s", identifier ), ex );
+        }
+        finally
+        {
+            lease.rollback();
+            lease.release();
+        }
+    }
+
+
+    /**
+     * Reads the objects of the batch over one connection.
+     */
+    @Override
+    public BatchResult<byte[]> getAll( List<URI> identifiers ) throws IOException
+    {
+        BatchResult<byte[]> result = new BatchResult<byte[]>( identifiers.size() );
+        JDBCConnectionPool.Lease lease = this.acquire();
+        try
+        {
+            for( int i = 0; i < identifiers.size(); i++ )
+            {
+                try
+                {
+                    result.succeeded( i, this.select( lease, identifiers.get( i ) ) );
+                }
+                catch( ObjectNotFoundException ex )
+                {
+                    result.failed( i, ex );
+                }
+                catch( SQLException ex )
+                {
+                    result.failed( i, this.failure( String.format( "Could not retrieve object %s", identifiers.get( i ) ), ex ) );
+                }
+            }
+        }
+        finally
+        {
+            lease.rollback();
+            lease.release();
+        }
+        return result;
+    }
+
+
+    private byte[] select( JDBCConnectionPool.Lease lease, URI identifier ) throws SQLException, ObjectNotFoundException
+    {
+        PreparedStatement select = lease.prepare( SELECT );
+        select.setString( 1, identifier.toString() );
+        ResultSet row = select.executeQuery();
+        try
+        {
+            if( ! row.next() )
+            {
+                throw new ObjectNotFoundException( String.format( "No object identified by %s", identifier ) );
+            }
+            return row.getBytes( 1 );
+        }
+        finally
+        {
+            row.close();
+        }
+    }
+
+
+    /**
+     * Returns a stream reading the BLOB from the database. The connection
+     * stays leased until the stream is closed.
+     */
+    @Override
+    public InputStream getStream( URI identifier ) throws IOException
+    {
+        final JDBCConnectionPool.Lease lease = this.acquire();
+        boolean streaming = false;
+        try
+        {
+            PreparedStatement select = lease.prepare( SELECT );
+            select.setString( 1, identifier.toString() );
+            final ResultSet row = select.executeQuery();
+            if( ! row.next() )
+            {
+                row.close();
+                throw new ObjectNotFoundException( String.format( "No object identified by %s", identifier ) );
+            }
+            InputStream stream = new FilterInputStream( row.getBinaryStream( 1 ) )
+            {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException
+                {
+                    if( this.closed )
+                    {
+                        return;
+                    }
+                    this.closed = true;
+                    try
+                    {
+                        super.close();
+                        row.close();
+                    }
+                    catch( SQLException ex )
+                    {
+                        Log.log( Level.WARNING, String.format( "Could not close result: %s", ex.getMessage() ), ex );
+                    }
+                    finally
+                    {
+                        lease.rollback();
+                        lease.release();
+                    }
+                }
+            };
+            streaming = true;
+            return stream;
+        }
+        catch( SQLException ex )
+        {
+            throw this.failure( String.format( "Could not retrieve object %s", identifier ), ex );
+        }
+        finally
+        {
+            if( ! streaming )
+            {
+                lease.rollback();
+                lease.release();
+            }
+        }
+    }
+
+
+    /**
+     * Reads the range out of the BLOB, so the driver only has to transfer
+     * the requested bytes.
+     */
+    @Override
+    public byte[] get( URI identifier, long offset, int length ) throws IOException
+    {
+        JDBCConnectionPool.Lease lease = this.acquire();
+        try
+        {
+            PreparedStatement select = lease.prepare( SELECT );
+            select.setString( 1, identifier.toString() );
+            ResultSet row = select.executeQuery();
+            try
+            {
+                if( ! row.next() )
+                {
+                    throw new ObjectNotFoundException( String.format( "No object identified by %s", identifier ) );
+                }
+                Blob data = row.getBlob( 1 );
+                int count = RepositoryUtilities.rangeLength( data.length(), offset, length );
+                // BLOB positions start at 1
+                return 0 == count ? new byte[ 0 ] : data.getBytes( offset + 1, count );
+            }
+            finally
+            {
+                row.close();
+            }
+        }
+        catch( SQLException ex )
+        {
+            throw this.failure( String.format( "Could not retrieve range of object %s", identifier ), ex );
+        }
+        finally
+        {
+            lease.rollback();
+            lease.release();
+        }
+    }
+
+
+    @Override
+    public long getLength( URI identifier ) throws IOException
+    {
+        JDBCConnectionPool.Lease lease = this.acquire();
+        try
+        {
+            PreparedStatement select = lease.prepare( SELECT_LENGTH );
+            select.setString( 1, identifier.toString() );
+            ResultSet row = select.executeQuery();
+            try
+            {
+                if( ! row.next() )
+                {
+                    throw new ObjectNotFoundException( String.format( "No object identified by %s", identifier ) );
+                }
+                return row.getLong( 1 );
+            }
+            finally
+            {
+                row.close();
+            }
+        }
+        catch( SQLException ex )
+        {
+            throw this.failure( String.format( "Could not retrieve length of object %s", identifier ), ex );
+        }
+        finally
+        {
+            lease.rollback();
+            lease.release();
+        }
+    }
+
+
+    @Override
+    public void delete( URI identifier ) throws IOException
+    {
+        Lock lock = this.objectLocks.get( identifier );
+        lock.lock();
+        JDBCConnectionPool.Lease lease = null;
+        try
+        {
+            lease = this.acquire();
+            PreparedStatement delete = lease.prepare( DELETE );
+            delete.setString( 1, identifier.toString() );
+            int deleted = delete.executeUpdate();
+            lease.getConnection().commit();
+            if( 0 == deleted )
+            {
+                throw new ObjectNotFoundException( String.format( "No object identified by %s", identifier ) );
+            }
+        }
+        catch( SQLException ex )
+        {
+            lease.rollback();
+            throw this.failure( String.format( "Could not delete object %s", identifier ), ex );
+        }
+        finally
+        {
+            if( null != lease )
+            {
+                lease.release();
+            }
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Deletes the batch with one JDBC batch statement in one transaction.
+     */
+    @Override
+    public BatchResult<Void> deleteAll( List<URI> identifiers ) throws IOException
+    {
+        BatchResult<Void> result = new BatchResult<Void>( identifiers.size() );
+        List<Lock> locks = this.objectLocks.lockAll( identifiers );
+        JDBCConnectionPool.Lease lease = null;
+        try
+        {
+            lease = this.acquire();
+            PreparedStatement delete = lease.prepare( DELETE );
+            for( URI identifier : identifiers )
+            {
+                delete.setString( 1, identifier.toString() );
+                delete.addBatch();
+            }
+            int[] counts = delete.executeBatch();
+            lease.getConnection().commit();
+            for( int i = 0; i < identifiers.size(); i++ )
+            {
+                if( 0 == counts[ i ] )
+                {
+                    result.failed( i, new ObjectNotFoundException( String.format( "No object identified by %s", identifiers.get( i ) ) ) );
+                }
+                else
+                {
+                    result.succeeded( i, null );
+                }
+            }
+        }
+        catch( SQLException ex )
+        {
+            lease.rollback();
+            IOException failure = this.failure( String.format( "Could not delete batch of %s objects", identifiers.size() ), ex );
+            for( int i = 0; i < identifiers.size(); i++ )
+            {
+                result.failed( i, failure );
+            }
+        }
+        finally
+        {
+            if( null != lease )
+            {
+                lease.release();
+            }
+            this.objectLocks.unlockAll( locks );
+        }
+        return result;
+    }
+
+
+    @Override
+    public void close()
+    {
+        this.pool.close();
+    }
+
+
+    @Override
+    public String getScheme()
+    {
+        return SCHEME;
+    }
+
+
+    private JDBCConnectionPool.Lease acquire() throws IOException
+    {
+        try
+        {
+            return this.pool.acquire();
+        }
+        catch( SQLException ex )
+        {
+            throw this.failure( "Could not get a database connection", ex );
+        }
+    }
+
+
+    private URI generateURI( String storagePath ) throws IOException
+    {
+        String path = storagePath.startsWith( "/" ) ? storagePath : "/" + storagePath;
+        path = path.endsWith( "/" ) ? path : path + "/";
+        try
+        {
+            return new URI( SCHEME, null, path + Long.toHexString( this.sequence.incrementAndGet() ), null );
+        }
+        catch( URISyntaxException ex )
+        {
+            String error = String.format( "Could not construct identifier from %s: %s", storagePath, ex.getMessage() );
+            Log.log( Level.SEVERE, error, ex );
+            throw new IOException( error, ex );
+        }
+    }
+
+
+    private IOException failure( String message, SQLException ex )
+    {
+        SQLException cause = ex instanceof BatchUpdateException && null != ex.getNextException() ? ex.getNextException() : ex;
+        String error = String.format( "%s: %s", message, cause.getMessage() );
+        Log.log( Level.SEVERE, error, cause );
+        return new IOException( error, cause );
+    }
+}
@@ -18,6 +18,8 @@
 
 package net.manniche.xor.types;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.io.Serializable;
 
 
@@ -50,6 +52,18 @@ public final class DefaultDigitalObject implements DigitalObject, Serializable{
         return this.internal_input;
     }
 
+    @Override
+    public InputStream getInputStream()
+    {
+        return new ByteArrayInputStream( this.internal_input );
+    }
+
+    @Override
+    public long getLength()
+    {
+        return this.internal_input.length;
+    }
+
     /**
      * Returns the {@link net.manniche.xor.types.ObjectRepositoryContentType}
      * defined by the server implementor.
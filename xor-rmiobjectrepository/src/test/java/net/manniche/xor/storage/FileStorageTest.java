@@ -0,0 +1,432 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import net.manniche.xor.exceptions.ObjectNotFoundException;
+import net.manniche.xor.utils.RepositoryUtilities;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class FileStorageTest {
+
+    private File storageDir;
+    private String storagePath;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        storageDir = File.createTempFile( "filestorage", "" );
+        storageDir.delete();
+        storagePath = storageDir.getAbsolutePath() + File.separator;
+        data = new byte[ 100 * 1024 + 17 ];
+        new Random( 42 ).nextBytes( data );
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        deleteRecursively( storageDir );
+    }
+
+
+    @Test
+    public void testChannelReadReturnsStoredBytes() throws Exception
+    {
+        FileStorage instance = new FileStorage( Long.MAX_VALUE );
+        URI uri = new File( storageDir, "channel" ).toURI();
+        instance.save( data, uri, storagePath );
+        assertTrue( Arrays.equals( data, instance.get( uri ) ) );
+    }
+
+
+    @Test
+    public void testMappedReadReturnsStoredBytes() throws Exception
+    {
+        FileStorage instance = new FileStorage( 0 );
+        URI uri = new File( storageDir, "mapped" ).toURI();
+        instance.save( data, uri, storagePath );
+        assertTrue( Arrays.equals( data, instance.get( uri ) ) );
+    }
+
+
+    @Test
+    public void testRangeReadReturnsPartOfObject() throws Exception
+    {
+        FileStorage instance = new FileStorage();
+        URI uri = new File( storageDir, "ranged" ).toURI();
+        instance.save( data, uri, storagePath );
+
+        assertTrue( Arrays.equals( Arrays.copyOfRange( data, 5000, 6000 ), instance.get( uri, 5000, 1000 ) ) );
+        assertTrue( Arrays.equals( Arrays.copyOfRange( data, data.length - 10, data.length ), instance.get( uri, data.length - 10, 1000 ) ) );
+        assertEquals( 0, instance.get( uri, data.length + 1, 1000 ).length );
+    }
+
+
+    @Test
+    public void testStreamingSaveAndGet() throws Exception
+    {
+        FileStorage instance = new FileStorage();
+        URI uri = new File( storageDir, "streamed" ).toURI();
+        instance.save( new ByteArrayInputStream( data ), data.length, uri, storagePath );
+
+        assertEquals( data.length, instance.getLength( uri ) );
+        InputStream stream = instance.getStream( uri );
+        try
+        {
+            assertTrue( Arrays.equals( data, RepositoryUtilities.readFully( stream, data.length ) ) );
+            assertEquals( -1, stream.read() );
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+
+    @Test
+    public void testContentAddressedObjectsAreStoredOnce() throws Exception
+    {
+        FileStorage instance = new FileStorage( Long.MAX_VALUE, true );
+        URI first = instance.save( data, storagePath );
+        URI second = instance.save( new ByteArrayInputStream( data ), data.length, storagePath );
+        assertEquals( first, second );
+        assertEquals( 64, new File( first ).getName().length() );
+
+        instance.delete( first );
+        assertTrue( Arrays.equals( data, instance.get( second ) ) );
+        instance.delete( second );
+        assertFalse( new File( second ).exists() );
+    }
+
+
+    @Test
+    public void testObjectsWithoutContentAddressingNeverShareAName() throws Exception
+    {
+        FileStorage instance = new FileStorage();
+        byte[] other = Arrays.copyOf( data, 10 );
+        // the same array, and so the same identity hash, saved twice
+        URI first = instance.save( data, storagePath );
+        URI second = instance.save( data, storagePath );
+        URI third = instance.save( new ByteArrayInputStream( other ), other.length, storagePath );
+        assertFalse( first.equals( second ) );
+        assertFalse( first.equals( third ) );
+
+        instance.delete( first );
+        assertTrue( Arrays.equals( data, instance.get( second ) ) );
+        assertTrue( Arrays.equals( other, instance.get( third ) ) );
+    }
+
+
+    @Test
+    public void testJournalReplayRestoresReferenceCounts() throws Exception
+    {
+        FileStorage storage = new FileStorage( Long.MAX_VALUE, true );
+        File journal = new File( storageDir.getParentFile(), storageDir.getName() + ".journal" );
+        try
+        {
+            JournalingStorageProvider instance = journaled( storage, journal );
+            URI first = instance.save( data, storagePath );
+            URI second = instance.save( data, storagePath );
+            instance.delete( first );
+
+            // the delete reached the storage, replaying it must not release the second reference
+            instance = journaled( storage, journal );
+            assertEquals( 1, storage.getReferenceCount( second ) );
+            assertTrue( Arrays.equals( data, storage.get( second ) ) );
+
+            // the object is stored again if it never reached the disk
+            instance.save( data, storagePath );
+            new File( second ).delete();
+            instance = journaled( storage, journal );
+            assertEquals( 2, storage.getReferenceCount( second ) );
+            assertTrue( Arrays.equals( data, storage.get( second ) ) );
+            instance.close();
+        }
+        finally
+        {
+            journal.delete();
+        }
+    }
+
+
+    @Test
+    public void testTieringTracksObjectsAlreadyInHotTier() throws Exception
+    {
+        FileStorage storage = new FileStorage( Long.MAX_VALUE );
+        String hotPath = storagePath + "hot" + File.separator;
+        String coldPath = storagePath + "cold" + File.separator;
+        List<URI> uris = new ArrayList<URI>();
+        for( int i = 0; i < 4; i++ )
+        {
+            uris.add( storage.save( Arrays.copyOf( data, data.length ), hotPath ) );
+        }
+
+        File state = new File( storageDir, ".tiers" );
+        TieredStorageProvider instance = new TieredStorageProvider( storage, hotPath, coldPath, state, 2 * data.length, 2, null );
+        try
+        {
+            assertEquals( 0, instance.getHotBytes() );
+            instance.migrate();
+            int hot = 0;
+            for( URI uri : uris )
+            {
+                hot += instance.isHot( uri ) ? 1 : 0;
+                assertTrue( Arrays.equals( data, instance.get( uri ) ) );
+            }
+            assertTrue( hot < 4 );
+            assertEquals( hot * (long) data.length, instance.getHotBytes() );
+            assertTrue( new File( coldPath ).list().length > 0 );
+        }
+        finally
+        {
+            instance.close();
+        }
+    }
+
+
+    private static JournalingStorageProvider journaled( FileStorage storage, File journal ) throws Exception
+    {
+        return new JournalingStorageProvider( storage, new WriteAheadJournal( journal, 0 ), Durability.PER_WRITE, 1024 * 1024 );
+    }
+
+
+    @Test
+    public void testOverwriteReplacesObjectWithoutLeftovers() throws Exception
+    {
+        FileStorage instance = new FileStorage( Long.MAX_VALUE );
+        URI uri = new File( storageDir, "overwritten" ).toURI();
+        instance.save( data, uri, storagePath );
+        InputStream reader = instance.getStream( uri );
+        instance.save( "replacement".getBytes(), uri, storagePath );
+
+        // a reader that opened the old object keeps seeing all of it
+        try
+        {
+            assertTrue( Arrays.equals( data, RepositoryUtilities.readFully( reader, data.length ) ) );
+        }
+        finally
+        {
+            reader.close();
+        }
+        assertEquals( "replacement", new String( instance.get( uri ) ) );
+        assertEquals( 1, storageDir.list().length );
+    }
+
+
+    @Test
+    public void testMissingObjectsAreAnsweredFromFilter() throws Exception
+    {
+        URI existing = new File( storageDir, "existing" ).toURI();
+        new FileStorage().save( data, existing, storagePath );
+
+        // a new instance indexes the objects already stored in the background
+        FileStorage instance = new FileStorage();
+        instance.addStoragePath( storagePath );
+        URI saved = new File( storageDir, "saved" ).toURI();
+        instance.save( data, saved, storagePath );
+        for( int i = 0; i < 500 && ! instance.isIndexed( storagePath ); i++ )
+        {
+            Thread.sleep( 10 );
+        }
+        assertTrue( instance.isIndexed( storagePath ) );
+        assertTrue( Arrays.equals( data, instance.get( existing ) ) );
+        assertTrue( Arrays.equals( data, instance.get( saved ) ) );
+
+        instance.delete( saved );
+        try
+        {
+            instance.get( saved );
+            fail( "deleted object was found" );
+        }
+        catch( ObjectNotFoundException expected )
+        {
+            assertEquals( 0, expected.getStackTrace().length );
+        }
+    }
+
+
+    @Test
+    public void testStaleTemporaryFilesAreDeleted() throws Exception
+    {
+        File stale = new File( storageDir, "ab" + File.separator + ".xor-1.tmp" );
+        stale.getParentFile().mkdirs();
+        stale.createNewFile();
+        stale.setLastModified( System.currentTimeMillis() - 60000 );
+        File recent = new File( storageDir, ".xor-2.tmp" );
+        recent.createNewFile();
+
+        FileStorage instance = new FileStorage();
+        instance.addStoragePath( storagePath );
+        for( int i = 0; i < 500 && ! instance.isIndexed( storagePath ); i++ )
+        {
+            Thread.sleep( 10 );
+        }
+        assertFalse( stale.exists() );
+        assertTrue( recent.exists() );
+    }
+
+
+    @Test
+    public void testSyncDoesNotRecreateDeletedObjects() throws Exception
+    {
+        FileStorage instance = new FileStorage( Long.MAX_VALUE );
+        instance.setSyncTracking( true );
+        URI kept = new File( storageDir, "kept" ).toURI();
+        URI deleted = new File( storageDir, "deleted" ).toURI();
+        instance.save( data, kept, storagePath );
+        instance.save( data, deleted, storagePath );
+        instance.sync( kept );
+        new File( deleted ).delete();
+        instance.sync();
+        assertFalse( new File( deleted ).exists() );
+        assertTrue( Arrays.equals( data, instance.get( kept ) ) );
+    }
+
+
+    @Test
+    public void testSyncForcesDirectoriesOfMovedAndDeletedObjects() throws Exception
+    {
+        FileStorage instance = new FileStorage( Long.MAX_VALUE, false, new FanOutLayout( 2, 16 ) );
+        instance.setSyncTracking( true );
+        URI kept = instance.save( data, storagePath );
+        URI deleted = instance.save( "deleted".getBytes(), storagePath );
+        instance.delete( deleted );
+        instance.sync();
+        instance.sync( kept );
+        assertTrue( RepositoryUtilities.forceDirectory( new File( kept ).getParentFile() ) );
+        assertFalse( new File( deleted ).exists() );
+        assertTrue( Arrays.equals( data, instance.get( kept ) ) );
+    }
+
+
+    @Test
+    public void testBatchSaveIntoFanOut() throws Exception
+    {
+        FileStorage instance = new FileStorage( Long.MAX_VALUE, false, new FanOutLayout( 2, 16 ) );
+        List<byte[]> objects = new ArrayList<byte[]>();
+        for( int i = 0; i < 20; i++ )
+        {
+            objects.add( ( "object " + i ).getBytes() );
+        }
+        BatchResult<URI> saved = instance.saveAll( objects, storagePath );
+        assertFalse( saved.hasFailures() );
+
+        List<URI> uris = new ArrayList<URI>();
+        for( int i = 0; i < saved.size(); i++ )
+        {
+            uris.add( saved.get( i ) );
+        }
+        BatchResult<byte[]> read = instance.getAll( uris );
+        for( int i = 0; i < read.size(); i++ )
+        {
+            assertEquals( "object " + i, new String( read.get( i ) ) );
+        }
+    }
+
+
+    @Test
+    public void testFanOutLayout() throws Exception
+    {
+        FanOutLayout layout = new FanOutLayout( 2, 256 );
+        FileStorage instance = new FileStorage( Long.MAX_VALUE, false, layout );
+        URI uri = instance.save( data, storagePath );
+        File objectFile = new File( uri );
+        assertEquals( layout.resolve( storageDir, objectFile.getName() ), objectFile );
+        assertTrue( Arrays.equals( data, instance.get( uri ) ) );
+    }
+
+
+    @Test
+    public void testObjectsAreFoundDuringMigration() throws Exception
+    {
+        URI flat = new FileStorage( Long.MAX_VALUE ).save( data, storagePath );
+        FanOutLayout layout = new FanOutLayout( 2, 256 );
+        new FanOutMigration( storageDir, layout ).migrate();
+
+        FileStorage instance = new FileStorage( Long.MAX_VALUE, false, layout );
+        assertTrue( Arrays.equals( data, instance.get( flat ) ) );
+        instance.delete( flat );
+        assertFalse( layout.locate( new File( flat ) ).exists() );
+    }
+
+
+    @Test
+    public void testMigrationWhileInUseKeepsReferenceCounts() throws Exception
+    {
+        FileStorage flatStorage = new FileStorage( Long.MAX_VALUE, true, FanOutLayout.FLAT );
+        URI shared = flatStorage.save( data, storagePath );
+        flatStorage.save( data, storagePath );
+        for( int i = 0; i < 50; i++ )
+        {
+            flatStorage.save( Integer.toString( i ).getBytes(), storagePath );
+        }
+
+        FanOutLayout layout = new FanOutLayout( 2, 16 );
+        final FileStorage instance = new FileStorage( Long.MAX_VALUE, true, layout );
+        final Exception[] failure = new Exception[ 1 ];
+        Thread writer = new Thread(){
+            @Override
+            public void run()
+            {
+                try
+                {
+                    for( int i = 0; i < 20; i++ )
+                    {
+                        instance.save( data, storagePath );
+                    }
+                }
+                catch( Exception ex )
+                {
+                    failure[ 0 ] = ex;
+                }
+            }
+        };
+        writer.start();
+        assertEquals( 51, instance.migrate( storagePath ) );
+        writer.join();
+        assertNull( failure[ 0 ] );
+
+        assertEquals( 22, instance.getReferenceCount( shared ) );
+        assertFalse( new File( shared ).exists() );
+        for( int i = 0; i < 22; i++ )
+        {
+            assertTrue( Arrays.equals( data, instance.get( shared ) ) );
+            instance.delete( shared );
+        }
+        assertFalse( layout.locate( new File( shared ) ).exists() );
+    }
+
+
+    private static void deleteRecursively( File file )
+    {
+        File[] children = file.listFiles();
+        if( null != children )
+        {
+            for( File child : children )
+            {
+                deleteRecursively( child );
+            }
+        }
+        file.delete();
+    }
+}
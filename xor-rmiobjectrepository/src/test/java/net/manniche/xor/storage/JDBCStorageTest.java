@@ -0,0 +1,151 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import net.manniche.xor.exceptions.ObjectNotFoundException;
+import net.manniche.xor.utils.RepositoryUtilities;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class JDBCStorageTest {
+
+    private static int databases;
+    private JDBCStorage instance;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        String url = String.format( "jdbc:h2:mem:xor%s;DB_CLOSE_DELAY=-1", databases++ );
+        instance = new JDBCStorage( "org.h2.Driver", url, "sa", "", 4 );
+        data = new byte[ 100 * 1024 + 17 ];
+        new Random( 42 ).nextBytes( data );
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        instance.close();
+    }
+
+
+    @Test
+    public void testSaveAndGet() throws Exception
+    {
+        URI uri = instance.save( data, "/objects/" );
+        assertEquals( "db", uri.getScheme() );
+        assertTrue( Arrays.equals( data, instance.get( uri ) ) );
+        assertEquals( data.length, instance.getLength( uri ) );
+    }
+
+
+    @Test
+    public void testOverwrite() throws Exception
+    {
+        URI uri = new URI( "db:/objects/named" );
+        instance.save( "first".getBytes(), uri, "/objects/" );
+        instance.save( "second".getBytes(), uri, "/objects/" );
+        assertEquals( "second", new String( instance.get( uri ) ) );
+    }
+
+
+    @Test
+    public void testStreamingSaveAndGet() throws Exception
+    {
+        URI uri = instance.save( new ByteArrayInputStream( data ), data.length, "/objects/" );
+        InputStream stream = instance.getStream( uri );
+        try
+        {
+            assertTrue( Arrays.equals( data, RepositoryUtilities.readFully( stream, data.length ) ) );
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+
+    @Test
+    public void testBatchSaveGetAndDelete() throws Exception
+    {
+        List<byte[]> objects = new ArrayList<byte[]>();
+        for( int i = 0; i < 20; i++ )
+        {
+            objects.add( ( "object " + i ).getBytes() );
+        }
+        BatchResult<URI> saved = instance.saveAll( objects, "/objects/" );
+        assertFalse( saved.hasFailures() );
+
+        List<URI> uris = new ArrayList<URI>();
+        for( int i = 0; i < saved.size(); i++ )
+        {
+            uris.add( saved.get( i ) );
+        }
+        BatchResult<byte[]> read = instance.getAll( uris );
+        assertEquals( "object 7", new String( read.get( 7 ) ) );
+
+        uris.add( new URI( "db:/objects/missing" ) );
+        BatchResult<Void> deleted = instance.deleteAll( uris );
+        assertEquals( 1, deleted.getFailureCount() );
+        assertTrue( deleted.getFailure( 20 ) instanceof ObjectNotFoundException );
+    }
+
+
+    @Test( expected=ObjectNotFoundException.class )
+    public void testGetMissingObject() throws Exception
+    {
+        instance.get( new URI( "db:/objects/missing" ) );
+    }
+
+
+    @Test
+    public void testConcurrentSavesShareBoundedPool() throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool( 16 );
+        try
+        {
+            List<Future<URI>> saves = new ArrayList<Future<URI>>();
+            for( int i = 0; i < 100; i++ )
+            {
+                saves.add( executor.submit( new Callable<URI>()
+                {
+                    @Override
+                    public URI call() throws Exception
+                    {
+                        return instance.save( data, "/objects/" );
+                    }
+                } ) );
+            }
+            for( Future<URI> save : saves )
+            {
+                assertEquals( data.length, instance.getLength( save.get() ) );
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author stm
+ */
+public class PartitionedStorageProviderTest {
+
+    private File directory;
+    private File stateFile;
+    private String path;
+    private List<String> roots;
+    private PartitionedStorageProvider instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        directory = File.createTempFile( "partitioned", "" );
+        directory.delete();
+        directory.mkdirs();
+        stateFile = new File( directory, ".partitions" );
+        path = new File( directory, "objects" ).getAbsolutePath() + File.separator;
+        roots = new ArrayList<String>();
+        for( String name : new String[] { "disk0", "disk1", "disk2" } )
+        {
+            roots.add( new File( directory, name ).getAbsolutePath() + File.separator );
+        }
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        if( null != instance )
+        {
+            instance.close();
+        }
+        deleteRecursively( directory );
+    }
+
+
+    private PartitionedStorageProvider open( List<String> partitions ) throws Exception
+    {
+        return open( partitions, new FileStorage( Long.MAX_VALUE ) );
+    }
+
+
+    private PartitionedStorageProvider open( List<String> partitions, FileStorage storage ) throws Exception
+    {
+        if( null != instance )
+        {
+            instance.close();
+        }
+        instance = new PartitionedStorageProvider( storage, path, partitions, stateFile, 64, null );
+        return instance;
+    }
+
+
+    private static byte[] object( int value )
+    {
+        byte[] object = new byte[ 100 ];
+        Arrays.fill( object, (byte) value );
+        return object;
+    }
+
+
+    private static Set<String> files( String root )
+    {
+        Set<String> names = new HashSet<String>();
+        String[] list = new File( root ).list();
+        if( null != list )
+        {
+            names.addAll( Arrays.asList( list ) );
+        }
+        return names;
+    }
+
+
+    @Test
+    public void testObjectsAreSpreadOverRoots() throws Exception
+    {
+        open( roots.subList( 0, 3 ) );
+        List<URI> uris = new ArrayList<URI>();
+        for( int i = 0; i < 60; i++ )
+        {
+            uris.add( instance.save( object( i ), path ) );
+        }
+
+        int total = 0;
+        for( String root : roots )
+        {
+            assertTrue( root, files( root ).size() > 5 );
+            total += files( root ).size();
+        }
+        assertEquals( 60, total );
+        assertFalse( new File( path ).exists() );
+        for( int i = 0; i < uris.size(); i++ )
+        {
+            assertTrue( uris.get( i ).getPath().startsWith( path ) );
+            assertTrue( Arrays.equals( object( i ), instance.get( uris.get( i ) ) ) );
+            assertEquals( 100, instance.getLength( uris.get( i ) ) );
+        }
+        assertFalse( instance.isMigrating() );
+    }
+
+
+    @Test
+    public void testAddedRootOnlyTakesAffectedObjects() throws Exception
+    {
+        open( roots.subList( 0, 2 ) );
+        List<URI> uris = new ArrayList<URI>();
+        for( int i = 0; i < 60; i++ )
+        {
+            uris.add( instance.save( object( i ), path ) );
+        }
+        Set<String> before0 = files( roots.get( 0 ) );
+        Set<String> before1 = files( roots.get( 1 ) );
+
+        open( roots );
+        assertTrue( instance.isMigrating() );
+        for( int i = 0; i < uris.size(); i++ )
+        {
+            assertTrue( Arrays.equals( object( i ), instance.get( uris.get( i ) ) ) );
+        }
+
+        long moved = instance.migrate();
+
+        assertFalse( instance.isMigrating() );
+        assertEquals( files( roots.get( 2 ) ).size(), moved );
+        assertTrue( moved > 5 );
+        assertTrue( before0.containsAll( files( roots.get( 0 ) ) ) );
+        assertTrue( before1.containsAll( files( roots.get( 1 ) ) ) );
+        assertEquals( 60, files( roots.get( 0 ) ).size() + files( roots.get( 1 ) ).size() + files( roots.get( 2 ) ).size() );
+        for( int i = 0; i < uris.size(); i++ )
+        {
+            assertTrue( Arrays.equals( object( i ), instance.get( uris.get( i ) ) ) );
+        }
+
+        open( roots );
+        assertFalse( instance.isMigrating() );
+        assertEquals( 0, instance.migrate() );
+    }
+
+
+    @Test
+    public void testWriteBeforeMigrationIsNotOverwritten() throws Exception
+    {
+        open( roots.subList( 0, 2 ) );
+        List<URI> uris = new ArrayList<URI>();
+        for( int i = 0; i < 30; i++ )
+        {
+            uris.add( instance.save( object( i ), path ) );
+        }
+
+        open( roots );
+        for( URI uri : uris )
+        {
+            instance.save( object( 100 ), uri, path );
+        }
+        instance.delete( uris.get( 0 ) );
+        instance.migrate();
+
+        try
+        {
+            instance.get( uris.get( 0 ) );
+            fail( "The deleted object was migrated" );
+        }
+        catch( FileNotFoundException ex )
+        {
+            // expected
+        }
+        for( URI uri : uris.subList( 1, uris.size() ) )
+        {
+            assertTrue( Arrays.equals( object( 100 ), instance.get( uri ) ) );
+        }
+    }
+
+
+    @Test
+    public void testExistingStoragePathIsSpread() throws Exception
+    {
+        FileStorage storage = new FileStorage( Long.MAX_VALUE );
+        List<URI> uris = new ArrayList<URI>();
+        for( int i = 0; i < 30; i++ )
+        {
+            uris.add( storage.save( object( i ), path ) );
+        }
+        List<String> partitions = new ArrayList<String>( roots );
+        partitions.set( 0, path );
+
+        open( partitions ).migrate();
+
+        assertTrue( files( path ).size() < 30 );
+        for( int i = 0; i < uris.size(); i++ )
+        {
+            assertTrue( Arrays.equals( object( i ), instance.get( uris.get( i ) ) ) );
+        }
+    }
+
+
+    @Test
+    public void testExistingStoragePathOutsideRootsIsMoved() throws Exception
+    {
+        FileStorage storage = new FileStorage( Long.MAX_VALUE );
+        List<URI> uris = new ArrayList<URI>();
+        for( int i = 0; i < 30; i++ )
+        {
+            uris.add( storage.save( object( i ), path ) );
+        }
+
+        open( roots );
+        assertTrue( instance.isMigrating() );
+        for( int i = 0; i < uris.size(); i++ )
+        {
+            assertTrue( Arrays.equals( object( i ), instance.get( uris.get( i ) ) ) );
+        }
+
+        assertEquals( 30, instance.migrate() );
+        assertTrue( files( path ).isEmpty() );
+        for( int i = 0; i < uris.size(); i++ )
+        {
+            assertTrue( Arrays.equals( object( i ), instance.get( uris.get( i ) ) ) );
+        }
+    }
+
+
+    @Test
+    public void testContentAddressedObjectsAreStoredOnce() throws Exception
+    {
+        FileStorage storage = new FileStorage( Long.MAX_VALUE, true );
+        open( roots, storage );
+        URI uri = instance.save( object( 1 ), path );
+        assertEquals( uri, instance.save( new ByteArrayInputStream( object( 1 ) ), 100, path ) );
+
+        int stored = 0;
+        for( String root : roots )
+        {
+            Set<String> names = files( root );
+            names.remove( ReferenceCounter.REFERENCE_DIRECTORY );
+            stored += names.size();
+        }
+        assertEquals( 1, stored );
+        assertEquals( 2, instance.getReferenceCount( uri ) );
+
+        instance.delete( uri );
+        assertTrue( Arrays.equals( object( 1 ), instance.get( uri ) ) );
+        instance.delete( uri );
+        try
+        {
+            instance.get( uri );
+            fail( "The object outlived its references" );
+        }
+        catch( FileNotFoundException ex )
+        {
+            // expected
+        }
+    }
+
+
+    @Test
+    public void testContentAddressedReferencesAreMovedWithTheirObjects() throws Exception
+    {
+        FileStorage storage = new FileStorage( Long.MAX_VALUE, true );
+        open( roots.subList( 0, 2 ), storage );
+        List<URI> uris = new ArrayList<URI>();
+        for( int i = 0; i < 30; i++ )
+        {
+            uris.add( instance.save( object( i ), path ) );
+            instance.save( object( i ), path );
+        }
+
+        open( roots, storage );
+        // a reference added at the new root before the object is moved
+        for( int i = 0; i < uris.size(); i++ )
+        {
+            assertEquals( uris.get( i ), instance.save( new ByteArrayInputStream( object( i ) ), 100, path ) );
+        }
+        assertTrue( instance.migrate() > 5 );
+
+        for( int i = 0; i < uris.size(); i++ )
+        {
+            assertEquals( 3, instance.getReferenceCount( uris.get( i ) ) );
+            instance.delete( uris.get( i ) );
+            instance.delete( uris.get( i ) );
+            assertTrue( Arrays.equals( object( i ), instance.get( uris.get( i ) ) ) );
+            instance.delete( uris.get( i ) );
+            try
+            {
+                instance.get( uris.get( i ) );
+                fail( "The object outlived its references" );
+            }
+            catch( FileNotFoundException ex )
+            {
+                // expected
+            }
+        }
+    }
+
+
+    private static void deleteRecursively( File file )
+    {
+        File[] children = file.listFiles();
+        if( null != children )
+        {
+            for( File child : children )
+            {
+                deleteRecursively( child );
+            }
+        }
+        file.delete();
+    }
+}
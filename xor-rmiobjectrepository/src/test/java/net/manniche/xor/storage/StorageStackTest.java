@@ -0,0 +1,303 @@
+/*
+ *  This file is part of xor. Copyright © 2009-, Steen Manniche.
+ *  Distributed under the GPL license, see the copy of the GNU General Public
+ *  License along with xor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.manniche.xor.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import net.manniche.xor.exceptions.CorruptObjectException;
+import net.manniche.xor.types.ObjectRepositoryContentType;
+import net.manniche.xor.utils.RepositoryUtilities;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Runs objects through the stack RMIServer builds on a FileStorage:
+ * journaling, checksums, compression and inline metadata.
+ *
+ * @author stm
+ */
+public class StorageStackTest {
+
+    private static final ObjectRepositoryContentType DUBLIN_CORE = new ObjectRepositoryContentType()
+    {
+        @Override
+        public String toString()
+        {
+            return "DUBLIN_CORE";
+        }
+    };
+
+    private static final FileFilter OBJECTS = new FileFilter()
+    {
+        @Override
+        public boolean accept( File file )
+        {
+            return file.isFile();
+        }
+    };
+
+    private File storageDir;
+    private String storagePath;
+    private FileStorage files;
+    private MetadataStorageProvider instance;
+    private byte[] xml;
+    private byte[] random;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        storageDir = File.createTempFile( "storagestack", "" );
+        storageDir.delete();
+        storagePath = storageDir.getAbsolutePath() + File.separator;
+        open( false );
+
+        StringBuilder record = new StringBuilder( "<dc>" );
+        for( int i = 0; i < 200; i++ )
+        {
+            record.append( "<dc:title>Title number " ).append( i ).append( "</dc:title>" );
+        }
+        xml = record.append( "</dc>" ).toString().getBytes();
+        random = new byte[ 16 * 1024 ];
+        new Random( 42 ).nextBytes( random );
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        instance.close();
+        deleteRecursively( storageDir );
+    }
+
+
+    /**
+     * (Re)opens the stack over the storage directory, replaying the journal.
+     */
+    private void open( boolean checksummed ) throws Exception
+    {
+        files = new FileStorage( Long.MAX_VALUE, false, FanOutLayout.FLAT );
+        JournalingStorageProvider journal = new JournalingStorageProvider( files, new WriteAheadJournal( new File( storageDir, ".journal" ), 0 ), Durability.PER_WRITE, 1024 * 1024 );
+        ChecksummingStorageProvider checksums = new ChecksummingStorageProvider( journal, 1.0, checksummed );
+        CompressingStorageProvider compressing = new CompressingStorageProvider( checksums, Collections.singleton( "DUBLIN_CORE" ) );
+        instance = new MetadataStorageProvider( compressing );
+    }
+
+
+    @Test
+    public void testObjectsPassThroughEveryLayer() throws Exception
+    {
+        URI compressed = instance.save( xml, storagePath, DUBLIN_CORE );
+        URI streamed = instance.save( new ByteArrayInputStream( random ), random.length, storagePath );
+
+        RandomAccessFile stored = new RandomAccessFile( new File( compressed ), "r" );
+        byte[] header = new byte[ 4 ];
+        byte[] trailer = new byte[ 4 ];
+        try
+        {
+            assertTrue( stored.length() < xml.length / 4 );
+            stored.readFully( header );
+            stored.seek( stored.length() - trailer.length );
+            stored.readFully( trailer );
+        }
+        finally
+        {
+            stored.close();
+        }
+        assertEquals( "XORZ", new String( header ) );
+        assertEquals( "XORC", new String( trailer ) );
+
+        assertTrue( Arrays.equals( xml, instance.get( compressed ) ) );
+        assertEquals( xml.length, instance.getLength( compressed ) );
+        assertEquals( "DUBLIN_CORE", instance.getMetadata( compressed ).getContentType() );
+        assertTrue( Arrays.equals( Arrays.copyOfRange( xml, 100, 300 ), instance.get( compressed, 100, 200 ) ) );
+
+        InputStream in = instance.getStream( streamed );
+        try
+        {
+            assertTrue( Arrays.equals( random, RepositoryUtilities.readFully( in, random.length ) ) );
+            assertEquals( -1, in.read() );
+        }
+        finally
+        {
+            in.close();
+        }
+        assertEquals( random.length, instance.getLength( streamed ) );
+    }
+
+
+    @Test
+    public void testSavedObjectsAreReadAfterRestart() throws Exception
+    {
+        URI generated = instance.save( xml, storagePath, DUBLIN_CORE );
+        URI given = new File( storageDir, "given" ).toURI();
+        instance.save( random, given, storagePath, DUBLIN_CORE );
+        instance.close();
+
+        open( false );
+        assertTrue( Arrays.equals( xml, instance.get( generated ) ) );
+        assertTrue( Arrays.equals( random, instance.get( given ) ) );
+        assertEquals( "DUBLIN_CORE", instance.getMetadata( given ).getContentType() );
+    }
+
+
+    @Test
+    public void testObjectsStoredBeforeLayersWereEnabledAreReturnedUnchanged() throws Exception
+    {
+        // stored before any of the layers were enabled
+        URI plain = files.save( xml, storagePath );
+        // stored while only checksums were enabled
+        URI checksummed = new ChecksummingStorageProvider( files, 1.0 ).save( random, storagePath );
+
+        assertTrue( Arrays.equals( xml, instance.get( plain ) ) );
+        assertEquals( xml.length, instance.getLength( plain ) );
+        assertNull( instance.getMetadata( plain ) );
+        assertTrue( Arrays.equals( random, instance.get( checksummed ) ) );
+        assertEquals( random.length, instance.getLength( checksummed ) );
+        assertNull( instance.getMetadata( checksummed ) );
+    }
+
+
+    @Test
+    public void testDamagedObjectsAreNotServed() throws Exception
+    {
+        URI uri = instance.save( random, storagePath, DUBLIN_CORE );
+        RandomAccessFile file = new RandomAccessFile( new File( uri ), "rw" );
+        file.seek( 1000 );
+        int original = file.read();
+        file.seek( 1000 );
+        file.write( original ^ 0x10 );
+        file.close();
+
+        try
+        {
+            instance.get( uri );
+            fail( "a damaged object was served" );
+        }
+        catch( CorruptObjectException expected )
+        {
+        }
+    }
+
+
+    @Test( expected=CorruptObjectException.class )
+    public void testObjectsWithoutChecksumAreCorruptInChecksummedStore() throws Exception
+    {
+        URI plain = files.save( xml, storagePath );
+        instance.close();
+        open( true );
+        instance.get( plain );
+    }
+
+
+    @Test
+    public void testMirroredIdenticalObjectsShareOneFileInEachReplica() throws Exception
+    {
+        FileStorage counted = new FileStorage( Long.MAX_VALUE, true, FanOutLayout.FLAT );
+        MirroredStorageProvider mirror = mirror( counted );
+        try
+        {
+            URI first = mirror.save( random, storagePath + "a/" );
+            URI second = mirror.save( new ByteArrayInputStream( random ), random.length, storagePath + "a/" );
+            mirror.awaitReplication();
+
+            assertEquals( first, second );
+            for( String replica : new String[] { "a/", "b/", "c/" } )
+            {
+                assertEquals( 1, new File( storageDir, replica ).listFiles( OBJECTS ).length );
+                assertEquals( 2, counted.getReferenceCount( replicaOf( first, replica ) ) );
+            }
+
+            mirror.delete( first );
+            mirror.awaitReplication();
+            assertTrue( Arrays.equals( random, mirror.get( second ) ) );
+            assertEquals( 1, counted.getReferenceCount( replicaOf( first, "c/" ) ) );
+
+            mirror.delete( second );
+            mirror.awaitReplication();
+            for( String replica : new String[] { "a/", "b/", "c/" } )
+            {
+                assertFalse( new File( replicaOf( first, replica ) ).exists() );
+            }
+        }
+        finally
+        {
+            mirror.close();
+        }
+    }
+
+
+    @Test
+    public void testMirroredReplicaIsRepairedToTheReferencesItMissed() throws Exception
+    {
+        FileStorage counted = new FileStorage( Long.MAX_VALUE, true, FanOutLayout.FLAT );
+        File broken = new File( storageDir, "c" );
+        storageDir.mkdirs();
+        // a file in place of the replica directory fails the writes to it
+        broken.createNewFile();
+        MirroredStorageProvider mirror = mirror( counted );
+        try
+        {
+            URI uri = mirror.save( random, storagePath + "a/" );
+            mirror.save( random, storagePath + "a/" );
+            mirror.awaitReplication();
+            assertEquals( 1, mirror.getDivergentCount() );
+
+            // the replica comes back
+            broken.delete();
+            broken.mkdir();
+            assertEquals( 1, mirror.repair() );
+            assertEquals( 0, mirror.getDivergentCount() );
+            assertEquals( 2, counted.getReferenceCount( replicaOf( uri, "c/" ) ) );
+            assertTrue( Arrays.equals( random, counted.get( replicaOf( uri, "c/" ) ) ) );
+        }
+        finally
+        {
+            mirror.close();
+        }
+    }
+
+
+    /**
+     * Mirrors {@code storage} in the replicas a, b and c of the storage
+     * directory, journaled as RMIServer does.
+     */
+    private MirroredStorageProvider mirror( FileStorage storage ) throws Exception
+    {
+        JournalingStorageProvider journal = new JournalingStorageProvider( storage, new WriteAheadJournal( new File( storageDir, ".mirrorjournal" ), 0 ), Durability.PER_WRITE, 1024 * 1024 );
+        return new MirroredStorageProvider( journal, Arrays.asList( storagePath + "a/", storagePath + "b/", storagePath + "c/" ), new File( storageDir, ".mirrors" ),
+                                            2, MirroredStorageProvider.DEFAULT_HEDGE_DELAY, MirroredStorageProvider.DEFAULT_BUFFER_LIMIT, null );
+    }
+
+
+    private URI replicaOf( URI identifier, String replica )
+    {
+        return new File( storageDir, replica + new File( identifier ).getName() ).toURI();
+    }
+
+
+    private static void deleteRecursively( File file )
+    {
+        File[] children = file.listFiles();
+        if( null != children )
+        {
+            for( File child : children )
+            {
+                deleteRecursively( child );
+            }
+        }
+        file.delete();
+    }
+}
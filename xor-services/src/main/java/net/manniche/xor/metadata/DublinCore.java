@@ -18,7 +18,9 @@
 
 package net.manniche.xor.metadata;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.text.ParseException;
@@ -367,6 +369,24 @@ public class DublinCore implements DigitalObject
         return out.toByteArray();
     }
 
+
+    /**
+     * Dublin Core records are small, so the stream is simply a view of the
+     * serialized record.
+     */
+    @Override
+    public InputStream getInputStream() throws RepositoryServiceException
+    {
+        return new ByteArrayInputStream( this.getBytes() );
+    }
+
+
+    @Override
+    public long getLength() throws RepositoryServiceException
+    {
+        return this.getBytes().length;
+    }
+
     private void putValueForElement( DublinCoreElement elem, String elemValue )
     {
         List<String> vals = dcvalues.get( elem );